@@ -0,0 +1,146 @@
+package eu.piotro.rest2api;
+
+import eu.piotro.rest2api.api.APIForwarder;
+import eu.piotro.rest2api.http.HTTPCodes;
+import eu.piotro.rest2api.http.HTTPResponse;
+import eu.piotro.rest2api.tcp.Server;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Request/response loop over loopback on persistent connection, one connection per benchmark thread
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerBenchmark {
+
+    @Param({"BLOCKING", "NIO"})
+    public Server.Engine engine;
+
+    @Setup
+    public void setUp() throws IOException {
+        LOGGER.setLevel(Level.WARNING); // server logs every request at INFO level, that would be measured instead
+        APIForwarder forwarder = new APIForwarder();
+        HTTPResponse response = new HTTPResponse(200, HTTPCodes.C200, "text/plain", "OK");
+        forwarder.register("GET", "/", request -> response);
+
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        Server server = new Server.Builder(port, forwarder)
+                .engine(engine)
+                .maxThreads(16)
+                .maxQueueSize(1000)
+                .rateLimiter(address -> true)
+                .maxKeepAliveRequests(Integer.MAX_VALUE)
+                .build();
+        Thread acceptor = new Thread(() -> {
+            while(!Thread.currentThread().isInterrupted())
+                server.accept();
+        }, "BenchmarkAcceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        @Setup
+        public void setUp(ServerBenchmark benchmark) throws IOException {
+            socket = new Socket("localhost", benchmark.port);
+            socket.setTcpNoDelay(true);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            socket.close();
+        }
+
+        /**
+         * Reads response head and body of length from Content-Length header
+         * @return status code
+         */
+        int readResponse() throws IOException {
+            int length = 0;
+            int headEnd = -1;
+            int contentLength = -1;
+            while(true) {
+                int n = in.read(buf, length, buf.length - length);
+                if(n == -1)
+                    throw new IOException("Server closed connection");
+                length += n;
+                if(headEnd == -1) {
+                    headEnd = indexOf(HEAD_END, length);
+                    if(headEnd != -1)
+                        contentLength = parseContentLength(headEnd);
+                }
+                if(headEnd != -1 && length >= headEnd + 4 + contentLength)
+                    return (buf[9] - '0') * 100 + (buf[10] - '0') * 10 + (buf[11] - '0');
+            }
+        }
+
+        private int indexOf(byte[] pattern, int length){
+            outer:
+            for(int i = 0; i <= length - pattern.length; i++) {
+                for(int j = 0; j < pattern.length; j++) {
+                    if(buf[i + j] != pattern[j])
+                        continue outer;
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        private int parseContentLength(int headEnd){
+            String head = new String(buf, 0, headEnd, StandardCharsets.US_ASCII);
+            for(String line : head.split("\r\n")) {
+                if(line.regionMatches(true, 0, "Content-Length:", 0, 15))
+                    return Integer.parseInt(line.substring(15).strip());
+            }
+            return 0;
+        }
+
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private final byte[] buf = new byte[4096];
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int requestResponse1(Connection connection) throws IOException {
+        return requestResponse(connection);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int requestResponse4(Connection connection) throws IOException {
+        return requestResponse(connection);
+    }
+
+    private static int requestResponse(Connection connection) throws IOException {
+        connection.out.write(REQUEST);
+        connection.out.flush();
+        return connection.readResponse();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger("eu.piotro.rest2api"); // strong reference keeps level
+    private static final byte[] REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEAD_END = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private int port;
+}
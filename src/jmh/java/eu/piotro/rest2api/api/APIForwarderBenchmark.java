@@ -0,0 +1,74 @@
+package eu.piotro.rest2api.api;
+
+import eu.piotro.rest2api.http.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Route matching with growing number of registered routes. Half of routes are literal, half contain regex segments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class APIForwarderBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int routes;
+
+    @Setup
+    public void setUp() throws Exception {
+        forwarder = new APIForwarder();
+        APIHandler handler = request -> RESPONSE;
+        for(int i = 0; i < routes / 2; i++) {
+            forwarder.register("GET", "/api/resource" + i, handler);
+            forwarder.register("GET", "/api/resource" + i + "/[0-9]+", handler);
+        }
+        int last = routes / 2 - 1;
+        literal = request("/api/resource" + last);
+        regex = request("/api/resource" + last + "/12345");
+        notFound = request("/api/missing/12345");
+    }
+
+    @Benchmark
+    public HTTPResponse literalRoute() throws HTTPException {
+        return forwarder.forward(literal);
+    }
+
+    @Benchmark
+    public HTTPResponse regexRoute() throws HTTPException {
+        return forwarder.forward(regex);
+    }
+
+    @Benchmark
+    public int notFound() {
+        try {
+            forwarder.forward(notFound);
+            return 200;
+        } catch (HTTPException e) {
+            return e.getCode();
+        }
+    }
+
+    private static HTTPRequest request(String uri) throws Exception {
+        byte[] data = ("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        RequestBuffer buffer = new RequestBuffer(new ByteArrayInputStream(data));
+        HTTPRequest request = new HTTPRequest(buffer);
+        while(!request.parse())
+            buffer.fill();
+        request.getURI(); // cached before measurement
+        return request;
+    }
+
+    private static final HTTPResponse RESPONSE = new HTTPResponse(200, HTTPCodes.C200, "text/plain", "OK");
+
+    private APIForwarder forwarder;
+    private HTTPRequest literal;
+    private HTTPRequest regex;
+    private HTTPRequest notFound;
+}
@@ -0,0 +1,73 @@
+package eu.piotro.rest2api.api.annotations;
+
+import eu.piotro.rest2api.api.APIHandler;
+import eu.piotro.rest2api.http.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Invocation of {@link RESTHandler} method by reflection, by call site generated with {@link AnnotationsMagic#bind(Method, Object)}
+ * and by lambda written by hand
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerDispatchBenchmark {
+
+    public static class Handlers {
+        @RESTHandler(method = "GET", URI = "/")
+        public HTTPResponse get(HTTPRequest request){
+            return response;
+        }
+
+        private final HTTPResponse response = new HTTPResponse(200, HTTPCodes.C200, "text/plain", "OK");
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        Handlers handlers = new Handlers();
+        Method method = Handlers.class.getMethod("get", HTTPRequest.class);
+        reflective = request -> {
+            try {
+                return (HTTPResponse) method.invoke(handlers, request);
+            } catch (ReflectiveOperationException e) {
+                throw new HTTPException(500, HTTPCodes.C500);
+            }
+        };
+        generated = AnnotationsMagic.bind(method, handlers);
+        direct = handlers::get;
+
+        byte[] data = "GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        RequestBuffer buffer = new RequestBuffer(new ByteArrayInputStream(data));
+        request = new HTTPRequest(buffer);
+        while(!request.parse())
+            buffer.fill();
+    }
+
+    @Benchmark
+    public HTTPResponse reflective() throws HTTPException {
+        return reflective.handle(request);
+    }
+
+    @Benchmark
+    public HTTPResponse generated() throws HTTPException {
+        return generated.handle(request);
+    }
+
+    @Benchmark
+    public HTTPResponse direct() throws HTTPException {
+        return direct.handle(request);
+    }
+
+    private APIHandler reflective;
+    private APIHandler generated;
+    private APIHandler direct;
+    private HTTPRequest request;
+}
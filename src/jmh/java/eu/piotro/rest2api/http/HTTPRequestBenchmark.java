@@ -0,0 +1,91 @@
+package eu.piotro.rest2api.http;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of pipelined requests from single connection buffer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HTTPRequestBenchmark {
+
+    @Param({"GET", "POST"})
+    public String method;
+
+    @Setup
+    public void setUp(){
+        String request = method + " /api/items/12345?sort=asc HTTP/1.1\r\n" +
+                "Host: localhost:8080\r\n" +
+                "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n" +
+                "Accept: application/json\r\n" +
+                "Accept-Encoding: gzip, deflate\r\n" +
+                "Connection: keep-alive\r\n";
+        if(method.equals("POST"))
+            request += "Content-Type: application/json\r\nContent-Length: 27\r\n\r\n{\"name\":\"item\",\"count\":10}\n";
+        else
+            request += "\r\n";
+        buffer = new RequestBuffer(new RepeatingInputStream(request.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) throws Exception {
+        HTTPRequest request = new HTTPRequest(buffer);
+        while(!request.parse())
+            buffer.fill();
+        blackhole.consume(request.getURI());
+        blackhole.consume(request.getHeader("Accept"));
+        request.release();
+    }
+
+    @Benchmark
+    public void parseWithBody(Blackhole blackhole) throws Exception {
+        HTTPRequest request = new HTTPRequest(buffer);
+        while(!request.parse())
+            buffer.fill();
+        blackhole.consume(request.getURI());
+        blackhole.consume(request.getBody());
+        request.release();
+    }
+
+    /**
+     * Stream of the same request sent again and again, like pipelined connection
+     */
+    private static final class RepeatingInputStream extends InputStream {
+        RepeatingInputStream(byte[] data){
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            byte b = data[position];
+            position = (position + 1) % data.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int read = 0;
+            while(read < len) {
+                int n = Math.min(len - read, data.length - position);
+                System.arraycopy(data, position, b, off + read, n);
+                read += n;
+                position = (position + n) % data.length;
+            }
+            return read;
+        }
+
+        private final byte[] data;
+        private int position = 0;
+    }
+
+    private RequestBuffer buffer;
+}
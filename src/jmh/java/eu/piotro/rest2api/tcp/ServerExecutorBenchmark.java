@@ -0,0 +1,54 @@
+package eu.piotro.rest2api.tcp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput of {@link ServerExecutor#execute(Runnable)} with several producers (like acceptor and event loops)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerExecutorBenchmark {
+
+    @Param({"4", "16"})
+    public int maxThreads;
+
+    @Setup
+    public void setUp(){
+        executor = new ServerExecutor(maxThreads, maxThreads, 10, 100_000);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void execute1(){
+        execute();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void execute4(){
+        execute();
+    }
+
+    private void execute(){
+        while(true) {
+            try {
+                executor.execute(task);
+                return;
+            } catch (RejectedExecutionException e) { // queue is full, workers are behind
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    private ServerExecutor executor;
+    private final LongAdder executed = new LongAdder();
+    private final Runnable task = executed::increment;
+}
@@ -2,8 +2,13 @@ package eu.piotro.rest2api.api;
 
 import eu.piotro.rest2api.api.annotations.AnnotationsMagic;
 import eu.piotro.rest2api.http.*;
+import eu.piotro.rest2api.metrics.Metrics;
+import eu.piotro.rest2api.tcp.TimingWheel;
 
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 /**
@@ -19,36 +24,193 @@ public class APIForwarder {
      * @throws HTTPException if HTTPException was threw by handler or own HTTPException ex. URI was not found.
      */
     public HTTPResponse forward(HTTPRequest request) throws HTTPException {
+        return forward(route(request), request);
+    }
+
+    /**
+     * Forwards HTTP Request to registered handler without waiting for asynchronous handlers
+     * ({@link #registerAsync(String, String, AsyncAPIHandler, long)}). Synchronous handlers are called on current thread.
+     * @param request Request to forward
+     * @return future of response, completed exceptionally only with {@link HTTPException}
+     * @throws HTTPException if HTTPException was threw by synchronous handler or URI was not found
+     * @since 1.4
+     */
+    public CompletableFuture<HTTPResponse> forwardAsync(HTTPRequest request) throws HTTPException {
+        RouteTrie.Route match = route(request);
+        if(!(match.getHandler() instanceof AsyncRoute))
+            return CompletableFuture.completedFuture(forward(match, request));
+
+        Metrics metrics = this.metrics;
+        ResponseCompressor compressor = this.compressor;
+        String encoding = compressor == null ? null : compressor.negotiate(request); // headers are not valid after response
+        CompletableFuture<HTTPResponse> response = ((AsyncRoute) match.getHandler()).handleAsync(request);
+        if(metrics != null) {
+            long start = System.nanoTime();
+            response.whenComplete((r, e) -> match.latency(metrics).record(System.nanoTime() - start));
+        }
+        if(compressor == null)
+            return response;
+        CompletableFuture<HTTPResponse> compressed = new CompletableFuture<>();
+        response.whenComplete((r, e) -> {
+            if(e != null) {
+                compressed.completeExceptionally(e);
+                return;
+            }
+            try {
+                compressed.complete(compressor.compress(r, encoding));
+            } catch (RuntimeException compressionError) {
+                compressed.completeExceptionally(AsyncRoute.httpException(compressionError));
+            }
+        });
+        return compressed;
+    }
+
+    /**
+     * Returns priority of route matching request, used to decide which requests are shed under overload
+     * @param request received request
+     * @return priority of route or 0 if there is no route for request
+     * @see eu.piotro.rest2api.tcp.LoadShedder
+     * @since 1.4
+     */
+    public int getPriority(HTTPRequest request){
+        RouteTrie.Route match = routes.find(request.getMethod(), request.getURI(), new ArrayList<>(0));
+        return match == null ? 0 : match.getPriority();
+    }
 
-        List<MethodURIPair> uriMatched = map.keySet().stream()
-                .filter(keyPair -> request.getURI().matches(keyPair.getURI()))
-                .collect(Collectors.toList());
+    private RouteTrie.Route route(HTTPRequest request) throws HTTPException {
+        List<RouteTrie.Route> uriMatched = new ArrayList<>(0);
+        RouteTrie.Route match = routes.find(request, uriMatched);
 
-        if(uriMatched.isEmpty())
-            throw new HTTPException(404, HTTPCodes.C404);
+        if(match == null){
+            if(uriMatched.isEmpty())
+                throw new HTTPException(404, HTTPCodes.C404);
 
-        Optional<MethodURIPair> match = uriMatched.stream()
-                .filter(keyPair -> keyPair.getMethod().equals(request.getMethod()))
-                .findFirst();
-        if(match.isEmpty()){
-            String acceptedMethods = "Allow: " + uriMatched.stream().map(MethodURIPair::getMethod).collect(Collectors.joining(", "));
+            String acceptedMethods = "Allow: " + uriMatched.stream().map(RouteTrie.Route::getMethod).collect(Collectors.joining(", "));
             throw new HTTPException(405, HTTPCodes.C405, acceptedMethods);
         }
+        return match;
+    }
+
+    private HTTPResponse forward(RouteTrie.Route match, HTTPRequest request) throws HTTPException {
+        ResponseCompressor compressor = this.compressor;
+        if(compressor == null)
+            return handle(match, request);
+        String encoding = compressor.negotiate(request); // before handler, reading body as stream may overwrite headers in buffer
+        return compressor.compress(handle(match, request), encoding);
+    }
 
-        APIHandler handler = map.get(match.get());
-        return handler.handle(request);
+    private HTTPResponse handle(RouteTrie.Route match, HTTPRequest request) throws HTTPException {
+        Metrics metrics = this.metrics;
+        if(metrics == null)
+            return match.getHandler().handle(request);
+        long start = System.nanoTime();
+        try {
+            return match.getHandler().handle(request);
+        } finally {
+            match.latency(metrics).record(System.nanoTime() - start);
+        }
     }
 
     /**
      * Register single APIHandler (Lambda may be used to pass single function)
      * @param method method to register ex. GET, POST, PUT, DELETE
-     * @param regex URI to register (supports regex)
+     * @param regex URI to register (supports regex and path parameters like {@code /users/{id:int}}, see {@link eu.piotro.rest2api.http.PathTemplate})
      * @param handler APIHandler to register
      */
     public void register(String method, String regex, APIHandler handler){
-        map.put(new MethodURIPair(method, regex), handler);
+        routes.add(method, regex, handler);
     }
 
+    /**
+     * Register single APIHandler with rate limit of route. Requests over limit are rejected with 429.
+     * @param method method to register ex. GET, POST, PUT, DELETE
+     * @param regex URI to register (supports regex)
+     * @param handler APIHandler to register
+     * @param rateLimiter limiter of requests to route, keyed by client address
+     * @since 1.4
+     */
+    public void register(String method, String regex, APIHandler handler, RateLimiter rateLimiter){
+        register(method, regex, request -> {
+            String address = request.getClientAddress();
+            if(address != null && !rateLimiter.tryAcquire(address))
+                throw new HTTPException(429, HTTPCodes.C429, "Retry-After: 1");
+            return handler.handle(request);
+        });
+    }
+
+    /**
+     * Register asynchronous handler. Worker thread is released while response is not completed when server uses
+     * {@link eu.piotro.rest2api.tcp.Server.Engine#NIO} engine, blocking engine waits for response on connection thread.
+     * @param method method to register ex. GET, POST, PUT, DELETE
+     * @param regex URI to register (supports regex)
+     * @param handler AsyncAPIHandler to register
+     * @param timeoutMillis time in milliseconds after which 504 is sent and handler's future is cancelled, 0 for no timeout
+     * @since 1.4
+     */
+    public void registerAsync(String method, String regex, AsyncAPIHandler handler, long timeoutMillis){
+        if(timeoutMillis < 0)
+            throw new IllegalArgumentException("timeoutMillis must not be negative");
+        routes.add(method, regex, new AsyncRoute(handler, timeoutMillis));
+    }
+
+    /**
+     * Register asynchronous handler with rate limit of route. Requests over limit are rejected with 429.
+     * @param method method to register ex. GET, POST, PUT, DELETE
+     * @param regex URI to register (supports regex)
+     * @param handler AsyncAPIHandler to register
+     * @param timeoutMillis time in milliseconds after which 504 is sent and handler's future is cancelled, 0 for no timeout
+     * @param rateLimiter limiter of requests to route, keyed by client address
+     * @since 1.4
+     */
+    public void registerAsync(String method, String regex, AsyncAPIHandler handler, long timeoutMillis, RateLimiter rateLimiter){
+        registerAsync(method, regex, request -> {
+            String address = request.getClientAddress();
+            if(address != null && !rateLimiter.tryAcquire(address))
+                throw new HTTPException(429, HTTPCodes.C429, "Retry-After: 1");
+            return handler.handleAsync(request);
+        }, timeoutMillis);
+    }
+
+    /**
+     * Sets priority of registered route under overload ({@link eu.piotro.rest2api.tcp.Server.Builder#loadShedding(int, int)}).
+     * Requests to routes with negative priority are shed first, routes with positive priority (ex. health checks) are never shed.
+     * @param method method of registered route
+     * @param regex URI of registered route, exactly as it was registered
+     * @param priority priority of route, 0 by default
+     * @throws IllegalArgumentException if route is not registered
+     * @since 1.4
+     */
+    public void setPriority(String method, String regex, int priority){
+        RouteTrie.Route route = routes.get(method, regex);
+        if(route == null)
+            throw new IllegalArgumentException("Route " + method + " " + regex + " is not registered");
+        route.setPriority(priority);
+    }
+
+    /**
+     * Registers {@link StaticFileHandler} serving files from directory for GET requests under URI prefix
+     * @param uriPrefix URI prefix ex. /docs, file root/a.html is served at /docs/a.html
+     * @param root directory with files
+     * @since 1.4
+     */
+    public void registerStaticFiles(String uriPrefix, Path root){
+        if(uriPrefix.endsWith("/"))
+            uriPrefix = uriPrefix.substring(0, uriPrefix.length() - 1);
+        StaticFileHandler handler = new StaticFileHandler(uriPrefix, root);
+        String escaped = uriPrefix.replaceAll("[\\\\^$.|?*+()\\[\\]{}]", "\\\\$0");
+        register("GET", escaped.isEmpty() ? "/" : escaped, handler);
+        register("GET", escaped + "/.*", handler);
+    }
+
+    /**
+     * Registers GET endpoint exposing metrics in Prometheus text format
+     * @param uri URI of endpoint ex. /metrics
+     * @param metrics metrics to expose
+     * @since 1.4
+     */
+    public void registerMetrics(String uri, Metrics metrics){
+        register("GET", uri, request -> new HTTPResponse(200, HTTPCodes.C200, "text/plain; version=0.0.4; charset=utf-8", metrics.toPrometheus()));
+    }
 
     /**
      * Registers all annotated methods in class using class object.
@@ -72,8 +234,139 @@ public class APIForwarder {
         AnnotationsMagic.registerClass(classToRegister, this, null);
     }
 
-    private final Map<MethodURIPair, APIHandler> map = new HashMap<>();
+    /**
+     * Returns cache shared by cached routes of this forwarder, creates cache of {@value #DEFAULT_CACHE_SIZE} bytes on first use.
+     * Register cached route with {@code register("GET", uri, getResponseCache().cached(handler, ttlMillis))}.
+     * @return response cache
+     * @since 1.4
+     */
+    public synchronized ResponseCache getResponseCache(){
+        if(responseCache == null) {
+            responseCache = new ResponseCache(DEFAULT_CACHE_SIZE);
+            responseCache.setCompressor(compressor);
+        }
+        return responseCache;
+    }
+
+    /**
+     * Sets cache used by {@link #getResponseCache()}, must be called before cached routes are registered
+     * @param responseCache response cache ex. with custom size
+     * @since 1.4
+     */
+    public synchronized void setResponseCache(ResponseCache responseCache){
+        this.responseCache = responseCache;
+        if(responseCache != null)
+            responseCache.setCompressor(compressor);
+    }
+
+    /**
+     * Sets compression of responses negotiated with {@code Accept-Encoding}. Responses of {@link #getResponseCache()} are
+     * compressed once and cached.
+     * @param compressor response compressor, null disables compression
+     * @since 1.4
+     */
+    public synchronized void setCompressor(ResponseCompressor compressor){
+        this.compressor = compressor;
+        if(responseCache != null)
+            responseCache.setCompressor(compressor);
+    }
+
+    /**
+     * Route of {@link AsyncAPIHandler}. Called synchronously (ex. by {@link #forward(HTTPRequest)}) it waits for response.
+     */
+    private static final class AsyncRoute implements APIHandler {
+        AsyncRoute(AsyncAPIHandler handler, long timeoutMillis){
+            this.handler = handler;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public HTTPResponse handle(HTTPRequest request) throws HTTPException {
+            try {
+                return handleAsync(request).join();
+            } catch (CompletionException e) {
+                throw httpException(e);
+            }
+        }
+
+        /**
+         * @return future completed with response of handler or exceptionally with {@link HTTPException}
+         */
+        CompletableFuture<HTTPResponse> handleAsync(HTTPRequest request) throws HTTPException {
+            CompletableFuture<HTTPResponse> future;
+            try {
+                future = handler.handleAsync(request);
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            if(future == null)
+                future = CompletableFuture.failedFuture(new NullPointerException("Handler returned null future"));
+
+            CompletableFuture<HTTPResponse> response = new CompletableFuture<>();
+            CompletableFuture<HTTPResponse> handlerFuture = future;
+            TimingWheel.Timeout timeout = timeoutMillis == 0 ? null : AsyncTimer.WHEEL.schedule(() -> {
+                if(response.completeExceptionally(new HTTPException(504, HTTPCodes.C504)))
+                    handlerFuture.cancel(false);
+            }, timeoutMillis);
+            future.whenComplete((result, e) -> {
+                if(timeout != null)
+                    timeout.cancel();
+                if(e == null && result != null)
+                    response.complete(result);
+                else
+                    response.completeExceptionally(httpException(e == null ? new NullPointerException("Handler completed with null response") : e));
+            });
+            return response;
+        }
+
+        /**
+         * @return exception to respond with: HTTPException itself, 504 on timeout, 503 when rejected and 500 otherwise
+         */
+        static HTTPException httpException(Throwable e){
+            while((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null)
+                e = e.getCause();
+            if(e instanceof HTTPException)
+                return (HTTPException) e;
+            if(e instanceof TimeoutException)
+                return new HTTPException(504, HTTPCodes.C504);
+            if(e instanceof RejectedExecutionException || e instanceof CancellationException)
+                return new HTTPException(503, HTTPCodes.C503, "Retry-After: 1");
+            logger.severe("Asynchronous handler failed " + e);
+            return new HTTPException(500, HTTPCodes.C500);
+        }
+
+        private final AsyncAPIHandler handler;
+        private final long timeoutMillis;
+    }
+
+    /**
+     * Timer of asynchronous handlers timeouts, started on first use
+     */
+    private static final class AsyncTimer {
+        private static final TimingWheel WHEEL = new TimingWheel(10, 1024);
+
+        static {
+            WHEEL.start("SEAsyncTimer");
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(APIForwarder.class.getName());
+    private static final long DEFAULT_CACHE_SIZE = 32 * 1024 * 1024;
+
+    private final RouteTrie routes = new RouteTrie();
     private HTTPExceptionHandler httpExceptionHandler;
+    private volatile Metrics metrics;
+    private ResponseCache responseCache;
+    private volatile ResponseCompressor compressor;
+
+    /**
+     * Sets registry to record latency of every route to (metric rest2api_route_duration_seconds)
+     * @param metrics metrics registry, null disables recording
+     * @since 1.4
+     */
+    public void setMetrics(Metrics metrics){
+        this.metrics = metrics;
+    }
 
     /**
      * Set custom {@link HTTPExceptionHandler} used to show custom HTTP Exception (HTTP error threw by server ex. 404) message page.
@@ -86,19 +379,6 @@ public class APIForwarder {
     public HTTPExceptionHandler getHTTPExceptionHandler(){
         return httpExceptionHandler;
     }
-
-    private static class MethodURIPair {
-        private MethodURIPair(String method, String uri){
-            this.method = method;
-            this.uri = uri;
-        }
-
-        public String getMethod() { return method; }
-        public String getURI() { return uri; }
-
-        private final String method, uri;
-    }
-
 }
 
 
@@ -0,0 +1,24 @@
+package eu.piotro.rest2api.api;
+
+import eu.piotro.rest2api.http.*;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous API handler. Handler starts processing (ex. call to downstream service) and returns future of response,
+ * so worker thread is not blocked while waiting. Response is written when future completes.
+ * <p>Future may complete exceptionally with {@link HTTPException} to respond with error.
+ * {@link java.util.concurrent.RejectedExecutionException} is mapped to 503, other exceptions to 500
+ * and exceeded route timeout to 504.</p>
+ * @see APIForwarder#registerAsync(String, String, AsyncAPIHandler, long)
+ * @since 1.4
+ */
+public interface AsyncAPIHandler {
+    /**
+     * Asynchronous HTTP request handler
+     * @param request HTTP request to handle, must not be used after returned future completes
+     * @return future of HTTP response
+     * @throws HTTPException quick way to throw HTTP errors like 4xx, 5xx before processing is started
+     */
+    CompletableFuture<HTTPResponse> handleAsync(HTTPRequest request) throws HTTPException;
+}
@@ -0,0 +1,17 @@
+package eu.piotro.rest2api.api;
+
+/**
+ * Limits rate of requests per key (ex. client address).
+ * Used by {@link eu.piotro.rest2api.tcp.Server} for connections and requests from one address and by {@link APIForwarder}
+ * for per-route limits. Implementations must be thread safe.
+ * @see TokenBucketRateLimiter
+ * @since 1.4
+ */
+public interface RateLimiter {
+    /**
+     * Takes one permit for key
+     * @param key key to limit ex. client IP address
+     * @return true if request is allowed, false if rate limit is exceeded
+     */
+    boolean tryAcquire(String key);
+}
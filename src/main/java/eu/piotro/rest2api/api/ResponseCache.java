@@ -0,0 +1,258 @@
+package eu.piotro.rest2api.api;
+
+import eu.piotro.rest2api.http.*;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of responses of idempotent GET routes, bounded by total size of cached responses and evicted in LRU order.
+ * <p>Responses are keyed by URI and values of selected request headers (like {@code Vary}). Only {@code 200 OK}
+ * responses with in-memory body are stored, unless their headers contain {@code Cache-Control: no-store} or {@code private}.
+ * Body is stored once as encoded bytes and cache hits don't call handler at all. Other methods are passed to handler.</p>
+ * <p>Concurrent misses of the same key are coalesced: handler runs once and other requests wait for its response,
+ * so expired popular entry doesn't cause a stampede of handler calls. Response is shared with waiting requests only
+ * if it could be cached, otherwise (also when handler throws) each of them calls handler itself.</p>
+ * <p>With {@link #setCompressor(ResponseCompressor)} compressible entries are compressed once per encoding on first
+ * request accepting it, and later requests get precompressed body.</p>
+ * @see APIForwarder#getResponseCache()
+ * @see eu.piotro.rest2api.api.annotations.RESTHandler#cacheTtl()
+ * @since 1.4
+ */
+public class ResponseCache {
+    private static final int ENTRY_OVERHEAD = 128; // approximate size of entry objects, key and map node
+    private static final byte[] NOT_SMALLER = new byte[0]; // marker of body, which is not smaller after compression
+
+    /**
+     * Creates cache
+     * @param maxBytes maximum total size of cached responses, single response larger than 1/8 of it is never cached
+     */
+    public ResponseCache(long maxBytes){
+        if(maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be positive");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Wraps handler, so its responses to GET requests are served from cache
+     * @param handler handler to cache
+     * @param ttlMillis time for which response is served from cache
+     * @param varyHeaders names of request headers which values are part of key ex. Accept, Authorization
+     * @return caching handler
+     */
+    public APIHandler cached(APIHandler handler, long ttlMillis, String... varyHeaders){
+        if(ttlMillis <= 0)
+            throw new IllegalArgumentException("ttlMillis must be positive");
+        long ttl = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        String[] vary = varyHeaders.clone();
+        return request -> {
+            if(!"GET".equals(request.getMethod()))
+                return handler.handle(request);
+            ResponseCompressor compressor = this.compressor;
+            String encoding = compressor == null ? null : compressor.negotiate(request);
+            return get(key(request, vary), ttl, handler, request, compressor, encoding);
+        };
+    }
+
+    /**
+     * Sets compressor of cached responses, responses are compressed once per encoding and kept with entry
+     * @param compressor response compressor or null to cache only uncompressed responses
+     * @see APIForwarder#setCompressor(ResponseCompressor)
+     */
+    public void setCompressor(ResponseCompressor compressor){
+        this.compressor = compressor;
+    }
+
+    /**
+     * Removes all cached responses
+     */
+    public void clear(){
+        synchronized (entries) {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * @return number of requests served from cache
+     */
+    public long getHits(){
+        return hits.sum();
+    }
+
+    /**
+     * @return number of requests passed to handler (including coalesced ones)
+     */
+    public long getMisses(){
+        return misses.sum();
+    }
+
+    /**
+     * @return total approximate size of cached responses in bytes
+     */
+    public long getSize(){
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    private HTTPResponse get(String key, long ttl, APIHandler handler, HTTPRequest request, ResponseCompressor compressor, String encoding) throws HTTPException {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if(entry != null && System.nanoTime() - entry.expires < 0) {
+            hits.increment();
+            return entry.response(compressor, encoding);
+        }
+
+        misses.increment();
+        CompletableFuture<Entry> pending = new CompletableFuture<>();
+        CompletableFuture<Entry> leader = inFlight.putIfAbsent(key, pending);
+        if(leader != null) {
+            Entry shared = leader.join(); // never completed exceptionally
+            return shared != null ? shared.response(compressor, encoding) : handler.handle(request); // private response is not shared
+        }
+
+        Entry created = null;
+        try {
+            HTTPResponse response = handler.handle(request);
+            if(response.getCode() != 200 || !cacheable(response.getHeaders()))
+                return response;
+            created = entry(key, ttl, response);
+            if(created == null)
+                return response;
+            if(created.size <= maxBytes / 8)
+                store(key, created);
+            return created.response(compressor, encoding);
+        } finally {
+            pending.complete(created);
+            inFlight.remove(key, pending);
+        }
+    }
+
+    /**
+     * @return entry with response, that can be shared between requests, or null if body is streamed
+     */
+    private static Entry entry(String key, long ttl, HTTPResponse response){
+        ByteBuffer content = response.getResponseBody().buffer();
+        if(content == null)
+            return null;
+        long entrySize = ENTRY_OVERHEAD + 2L * key.length() + content.remaining() + headersLength(response);
+        return new Entry(response, content.asReadOnlyBuffer(), System.nanoTime() + ttl, entrySize);
+    }
+
+    private void store(String key, Entry entry){
+        synchronized (entries) {
+            Entry previous = entries.put(key, entry);
+            if(previous != null)
+                size -= previous.size;
+            size += entry.size;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while(size > maxBytes) {
+                size -= eldest.next().size;
+                eldest.remove();
+            }
+        }
+    }
+
+    private static boolean cacheable(String headers){
+        if(headers == null || headers.isEmpty())
+            return true;
+        for(String header : headers.split("\r?\n")) {
+            int colon = header.indexOf(':');
+            if(colon == -1 || !header.substring(0, colon).trim().equalsIgnoreCase("Cache-Control"))
+                continue;
+            String value = header.substring(colon + 1).toLowerCase();
+            if(value.contains("no-store") || value.contains("private"))
+                return false;
+        }
+        return true;
+    }
+
+    private static long headersLength(HTTPResponse response){
+        return 2L * ((response.getHeaders() == null ? 0 : response.getHeaders().length())
+                + (response.getType() == null ? 0 : response.getType().length()));
+    }
+
+    private static String key(HTTPRequest request, String[] varyHeaders){
+        if(varyHeaders.length == 0)
+            return request.getURI();
+        StringBuilder key = new StringBuilder(request.getURI());
+        for(String header : varyHeaders) {
+            String value = request.getHeader(header);
+            key.append('\n').append(value == null ? "" : value);
+        }
+        return key.toString();
+    }
+
+    private static final class Entry {
+        Entry(HTTPResponse response, ByteBuffer content, long expires, long size){
+            this.code = response.getCode();
+            this.codeDescription = response.getCodeDescription();
+            this.type = response.getType();
+            this.headers = response.getHeaders();
+            this.content = content;
+            this.expires = expires;
+            this.size = size;
+        }
+
+        /**
+         * @return new response sharing cached body bytes
+         */
+        HTTPResponse response(){
+            return new HTTPResponse(code, codeDescription, type, headers, ResponseBody.of(content));
+        }
+
+        /**
+         * @param compressor compressor of cache or null
+         * @param encoding encoding accepted by client or null
+         * @return new response sharing cached body, compressed once per encoding
+         */
+        HTTPResponse response(ResponseCompressor compressor, String encoding){
+            if(compressor == null || !compressor.isCompressible(code, type, headers, content.remaining()))
+                return response();
+            if(encoding == null)
+                return new HTTPResponse(code, codeDescription, type, ResponseCompressor.headers(headers, null), ResponseBody.of(content));
+
+            boolean gzip = ResponseCompressor.GZIP.equals(encoding);
+            byte[] encoded = gzip ? gzipContent : deflateContent;
+            if(encoded == null) { // racy, at worst body is compressed more than once
+                encoded = compressor.encode(content, encoding);
+                if(encoded == null)
+                    encoded = NOT_SMALLER;
+                if(gzip)
+                    gzipContent = encoded;
+                else
+                    deflateContent = encoded;
+            }
+            if(encoded == NOT_SMALLER)
+                return new HTTPResponse(code, codeDescription, type, ResponseCompressor.headers(headers, null), ResponseBody.of(content));
+            return new HTTPResponse(code, codeDescription, type, ResponseCompressor.headers(headers, encoding), ResponseBody.of(encoded));
+        }
+
+        private final int code;
+        private final String codeDescription;
+        private final String type;
+        private final String headers;
+        private final ByteBuffer content;
+        private final long expires;
+        private final long size;
+        private volatile byte[] gzipContent; // compressed bodies are not counted in size, they are smaller than content
+        private volatile byte[] deflateContent;
+    }
+
+    private final long maxBytes;
+    private final Map<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true); // access order, eldest is least recently used
+    private final Map<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long size = 0; // guarded by entries
+    private volatile ResponseCompressor compressor;
+}
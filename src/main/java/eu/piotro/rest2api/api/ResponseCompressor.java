@@ -0,0 +1,259 @@
+package eu.piotro.rest2api.api;
+
+import eu.piotro.rest2api.http.HTTPHeaders;
+import eu.piotro.rest2api.http.HTTPRequest;
+import eu.piotro.rest2api.http.HTTPResponse;
+import eu.piotro.rest2api.http.ResponseBody;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses response bodies with encoding accepted by client ({@code gzip} or {@code deflate}, negotiated from {@code Accept-Encoding}).
+ * <p>Only {@code 200 OK} responses with in-memory body of at least {@code minSize} bytes and compressible type (text, JSON,
+ * XML, JavaScript, SVG) are compressed. Responses which already have {@code Content-Encoding} or {@code ETag} (static files,
+ * which ETag would have to differ per encoding) are sent as they are. Body is sent uncompressed if compression doesn't make it smaller.</p>
+ * <p>{@link Deflater} instances are kept in a bounded pool and reused between requests, so native zlib state is not
+ * allocated per response. Cached responses ({@link ResponseCache}) are compressed once per encoding.</p>
+ * @see APIForwarder#setCompressor(ResponseCompressor)
+ * @since 1.4
+ */
+public class ResponseCompressor {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    /**
+     * Default minimum size of compressed body, smaller bodies fit in one packet anyway
+     */
+    public static final int DEFAULT_MIN_SIZE = 1024;
+
+    /**
+     * Creates compressor with {@value #DEFAULT_MIN_SIZE} bytes threshold and default compression level
+     */
+    public ResponseCompressor(){
+        this(DEFAULT_MIN_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates compressor
+     * @param minSize minimum size of body in bytes to compress
+     * @param level compression level 1-9 (or {@link Deflater#DEFAULT_COMPRESSION}), lower levels are faster
+     */
+    public ResponseCompressor(int minSize, int level){
+        if(minSize < 0)
+            throw new IllegalArgumentException("minSize can't be negative");
+        if((level < 1 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        this.minSize = minSize;
+        this.level = level;
+        int poolSize = 2 * Runtime.getRuntime().availableProcessors();
+        this.gzipPool = new ArrayBlockingQueue<>(poolSize);
+        this.deflatePool = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    /**
+     * Selects encoding of response from {@code Accept-Encoding} header of request
+     * @param request received request
+     * @return {@link #GZIP}, {@link #DEFLATE} or null if client doesn't accept any of them
+     */
+    public String negotiate(HTTPRequest request){
+        String accept = request.getHeader(HTTPHeaders.ACCEPT_ENCODING);
+        return accept == null ? null : negotiate(accept);
+    }
+
+    /**
+     * Compresses response
+     * @param response response of handler
+     * @param encoding encoding selected by {@link #negotiate(HTTPRequest)}, null if client doesn't accept compressed response
+     * @return compressed response, or the same response if it shouldn't be compressed
+     */
+    public HTTPResponse compress(HTTPResponse response, String encoding){
+        ByteBuffer content = response.getResponseBody().buffer();
+        if(content == null || !isCompressible(response.getCode(), response.getType(), response.getHeaders(), content.remaining()))
+            return response;
+        byte[] compressed = encoding == null ? null : encode(content, encoding);
+        return new HTTPResponse(response.getCode(), response.getCodeDescription(), response.getType(),
+                headers(response.getHeaders(), compressed == null ? null : encoding),
+                compressed == null ? ResponseBody.of(content) : ResponseBody.of(compressed));
+    }
+
+    /**
+     * @return true if response with given properties should be compressed
+     */
+    boolean isCompressible(int code, String type, String headers, long length){
+        return code == 200 && length >= minSize && isCompressibleType(type)
+                && !hasHeader(headers, "Content-Encoding") && !hasHeader(headers, "ETag");
+    }
+
+    /**
+     * Compresses body
+     * @param content body, its position is not changed
+     * @param encoding {@link #GZIP} or {@link #DEFLATE}
+     * @return compressed body or null if it is not smaller than original
+     */
+    byte[] encode(ByteBuffer content, String encoding){
+        boolean gzip = GZIP.equals(encoding);
+        BlockingQueue<Deflater> pool = gzip ? gzipPool : deflatePool;
+        Deflater deflater = pool.poll();
+        if(deflater == null)
+            deflater = new Deflater(level, gzip); // gzip header and trailer are written here, so raw deflate is used
+        try {
+            int length = content.remaining();
+            byte[] out = new byte[Math.max(GZIP_HEADER.length, Math.min(length, 64 + length / 4))];
+            int pos = 0;
+            if(gzip)
+                pos = put(out, 0, GZIP_HEADER);
+            deflater.setInput(content.duplicate());
+            deflater.finish();
+            while(!deflater.finished()) {
+                if(pos == out.length) {
+                    if(pos >= length)
+                        return null;
+                    out = Arrays.copyOf(out, Math.min(length, out.length * 2));
+                }
+                pos += deflater.deflate(out, pos, out.length - pos);
+            }
+            if(gzip) {
+                CRC32 crc = new CRC32();
+                crc.update(content.duplicate());
+                if(out.length - pos < 8)
+                    out = Arrays.copyOf(out, pos + 8);
+                pos = putIntLE(out, pos, (int) crc.getValue());
+                pos = putIntLE(out, pos, length);
+            }
+            return pos >= length ? null : Arrays.copyOf(out, pos);
+        } finally {
+            deflater.reset();
+            if(!pool.offer(deflater))
+                deflater.end();
+        }
+    }
+
+    /**
+     * @param encoding applied encoding or null if body is not compressed
+     * @return headers of response with {@code Content-Encoding} and {@code Vary}
+     */
+    static String headers(String headers, String encoding){
+        StringBuilder result = new StringBuilder(headers == null ? "" : headers);
+        if(encoding != null)
+            append(result, "Content-Encoding: ").append(encoding);
+        if(!variesByEncoding(headers))
+            append(result, "Vary: Accept-Encoding");
+        return result.toString();
+    }
+
+    /**
+     * @param accept value of Accept-Encoding header
+     * @return supported encoding with highest quality, gzip is preferred when equal
+     */
+    static String negotiate(String accept){
+        double gzip = -1, deflate = -1, any = -1;
+        for(String coding : accept.split(",")) {
+            int semicolon = coding.indexOf(';');
+            String name = (semicolon == -1 ? coding : coding.substring(0, semicolon)).trim();
+            double q = semicolon == -1 ? 1 : quality(coding.substring(semicolon + 1));
+            if(name.equalsIgnoreCase(GZIP) || name.equalsIgnoreCase("x-gzip"))
+                gzip = Math.max(gzip, q);
+            else if(name.equalsIgnoreCase(DEFLATE))
+                deflate = Math.max(deflate, q);
+            else if(name.equals("*"))
+                any = q;
+        }
+        if(gzip == -1)
+            gzip = any;
+        if(deflate == -1)
+            deflate = any;
+        if(gzip <= 0 && deflate <= 0)
+            return null;
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    private static double quality(String parameters){
+        for(String parameter : parameters.split(";")) {
+            parameter = parameter.trim();
+            if(parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    private static boolean isCompressibleType(String type){
+        if(type == null)
+            return false;
+        int semicolon = type.indexOf(';');
+        String mime = (semicolon == -1 ? type : type.substring(0, semicolon)).trim().toLowerCase();
+        if(mime.startsWith("text/") || mime.endsWith("+json") || mime.endsWith("+xml"))
+            return true;
+        switch (mime) {
+            case "application/json":
+            case "application/javascript":
+            case "application/xml":
+            case "application/x-www-form-urlencoded":
+            case "image/svg+xml":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean hasHeader(String headers, String name){
+        return headerValue(headers, name) != null;
+    }
+
+    private static boolean variesByEncoding(String headers){
+        String vary = headerValue(headers, "Vary");
+        if(vary == null)
+            return false;
+        for(String name : vary.split(",")) {
+            if(name.trim().equalsIgnoreCase("Accept-Encoding") || name.trim().equals("*"))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return value of first header with name in headers of response or null
+     */
+    private static String headerValue(String headers, String name){
+        if(headers == null || headers.isEmpty())
+            return null;
+        for(String header : headers.split("\r?\n")) {
+            int colon = header.indexOf(':');
+            if(colon != -1 && header.substring(0, colon).trim().equalsIgnoreCase(name))
+                return header.substring(colon + 1);
+        }
+        return null;
+    }
+
+    private static StringBuilder append(StringBuilder headers, String header){
+        if(headers.length() > 0)
+            headers.append("\r\n");
+        return headers.append(header);
+    }
+
+    private static int put(byte[] dst, int pos, byte[] src){
+        System.arraycopy(src, 0, dst, pos, src.length);
+        return pos + src.length;
+    }
+
+    private static int putIntLE(byte[] dst, int pos, int value){
+        for(int i = 0; i < 4; i++)
+            dst[pos + i] = (byte) (value >>> (8 * i));
+        return pos + 4;
+    }
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final int minSize;
+    private final int level;
+    private final BlockingQueue<Deflater> gzipPool;
+    private final BlockingQueue<Deflater> deflatePool;
+}
@@ -0,0 +1,242 @@
+package eu.piotro.rest2api.api;
+
+import eu.piotro.rest2api.http.HTTPRequest;
+import eu.piotro.rest2api.http.PathTemplate;
+import eu.piotro.rest2api.metrics.LatencyHistogram;
+import eu.piotro.rest2api.metrics.Metrics;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Route table compiled at registration time.
+ * Literal URIs are kept in a hash map for constant time lookup. Regex URIs are precompiled and attached to node of a segment
+ * trie built from their longest literal prefix, so on lookup only regexes that may match requested URI are tested.
+ * URIs with path parameters ({@link PathTemplate}) are compiled to regexes and their parameters are bound to request
+ * by the same match that selects route. Routes are matched against path of requested URI without query string, regex
+ * routes (without path parameters) not matching path are also tested with whole URI, so regexes matching query still work.
+ * @see APIForwarder
+ * @since 1.4
+ */
+class RouteTrie {
+    /**
+     * Adds route to table
+     * @param method HTTP method
+     * @param uri URI (supports regex and path templates)
+     * @param handler handler assigned to route
+     */
+    void add(String method, String uri, APIHandler handler){
+        if(isLiteral(uri)) {
+            literals.computeIfAbsent(uri, k -> new ArrayList<>(1)).add(new Route(method, uri, null, null, handler));
+            return;
+        }
+
+        PathTemplate template = PathTemplate.compile(uri);
+        String regex = template == null ? uri : template.getRegex();
+        Node node = root;
+        for(String segment : literalPrefix(regex))
+            node = node.children.computeIfAbsent(segment, k -> new Node());
+        node.regexRoutes.add(new Route(method, uri, Pattern.compile(regex), template, handler));
+    }
+
+    /**
+     * Finds route for request and binds path parameters of matched route to it.
+     * @param request request to route
+     * @param uriMatched list filled with all routes matching URI if there is no route for method (used for 405 Allow header)
+     * @return matched route or null if there is no route for URI and method
+     */
+    Route find(HTTPRequest request, List<Route> uriMatched){
+        return find(request.getMethod(), request.getURI(), uriMatched, request);
+    }
+
+    /**
+     * Finds route for requested URI and method.
+     * @param method requested HTTP method
+     * @param uri requested URI
+     * @param uriMatched list filled with all routes matching URI if there is no route for method (used for 405 Allow header)
+     * @return matched route or null if there is no route for URI and method
+     */
+    Route find(String method, String uri, List<Route> uriMatched){
+        return find(method, uri, uriMatched, null);
+    }
+
+    private Route find(String method, String uri, List<Route> uriMatched, HTTPRequest request){
+        int query = uri.indexOf('?');
+        String path = query == -1 ? uri : uri.substring(0, query);
+        List<Route> literalRoutes = literals.get(path);
+        if(literalRoutes != null){
+            for(Route route : literalRoutes){
+                if(route.method.equals(method))
+                    return route;
+            }
+            uriMatched.addAll(literalRoutes);
+        }
+
+        // Walk down the trie and remember visited nodes, deeper regexes are more specific so are tested first
+        Node[] visited = new Node[8];
+        int depth = 0;
+        Node node = root;
+        int pos = 0;
+        while(node != null){
+            if(depth == visited.length)
+                visited = Arrays.copyOf(visited, depth*2);
+            visited[depth++] = node;
+            if(node.children.isEmpty())
+                break;
+            int next = path.indexOf('/', pos);
+            if(next == -1)
+                break; // last segment is never a part of literal prefix
+            node = node.children.get(path.substring(pos, next));
+            pos = next + 1;
+        }
+
+        for(int i = depth-1; i >= 0; i--){
+            for(Route route : visited[i].regexRoutes){
+                Matcher matcher = route.pattern.matcher(path);
+                if(!matcher.matches() && (query == -1 || route.template != null || !matcher.reset(uri).matches()))
+                    continue;
+                if(route.method.equals(method)) {
+                    if(route.template == null || request == null || route.template.bind(request, matcher))
+                        return route;
+                    continue; // parameter out of range of its type
+                }
+                uriMatched.add(route);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds registered route by its URI as it was registered (not matched against it)
+     * @param method HTTP method of route
+     * @param uri registered URI (regex)
+     * @return route or null if it is not registered
+     */
+    Route get(String method, String uri){
+        List<Route> candidates;
+        if(isLiteral(uri)) {
+            candidates = literals.getOrDefault(uri, Collections.emptyList());
+        } else {
+            PathTemplate template = PathTemplate.compile(uri);
+            Node node = root;
+            for(String segment : literalPrefix(template == null ? uri : template.getRegex())) {
+                node = node.children.get(segment);
+                if(node == null)
+                    return null;
+            }
+            candidates = node.regexRoutes;
+        }
+        for(Route route : candidates) {
+            if(route.method.equals(method) && route.uri.equals(uri))
+                return route;
+        }
+        return null;
+    }
+
+    /**
+     * Checks if URI has no regex special characters, so it can only be matched by identical string
+     */
+    private static boolean isLiteral(String uri){
+        for(int i = 0; i < uri.length(); i++){
+            if(META_CHARS.indexOf(uri.charAt(i)) != -1)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns full literal segments (each followed by '/') that every URI matched by regex must start with.
+     */
+    private static List<String> literalPrefix(String regex){
+        List<String> prefix = new ArrayList<>();
+        if(hasTopLevelAlternation(regex))
+            return prefix;
+
+        int pos = 0;
+        int next;
+        while((next = regex.indexOf('/', pos)) != -1){
+            String segment = regex.substring(pos, next);
+            if(!isLiteral(segment))
+                break;
+            // quantifier after '/' makes it optional, so it is not guaranteed to be in URI
+            if(next+1 < regex.length() && QUANTIFIERS.indexOf(regex.charAt(next+1)) != -1)
+                break;
+            prefix.add(segment);
+            pos = next + 1;
+        }
+        return prefix;
+    }
+
+    private static boolean hasTopLevelAlternation(String regex){
+        int groupDepth = 0;
+        boolean inClass = false;
+        for(int i = 0; i < regex.length(); i++){
+            char c = regex.charAt(i);
+            if(c == '\\')
+                i++;
+            else if(inClass)
+                inClass = c != ']';
+            else if(c == '[')
+                inClass = true;
+            else if(c == '(')
+                groupDepth++;
+            else if(c == ')')
+                groupDepth--;
+            else if(c == '|' && groupDepth == 0)
+                return true;
+        }
+        return false;
+    }
+
+    private static final String META_CHARS = "\\^$.|?*+()[]{}";
+    private static final String QUANTIFIERS = "?*+{";
+
+    private final Map<String, List<Route>> literals = new HashMap<>();
+    private final Node root = new Node();
+
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private final List<Route> regexRoutes = new ArrayList<>(1);
+    }
+
+    /**
+     * Registered route
+     */
+    static class Route {
+        private Route(String method, String uri, Pattern pattern, PathTemplate template, APIHandler handler){
+            this.method = method;
+            this.uri = uri;
+            this.pattern = pattern;
+            this.template = template;
+            this.handler = handler;
+        }
+
+        String getMethod() { return method; }
+        String getURI() { return uri; }
+        APIHandler getHandler() { return handler; }
+        int getPriority() { return priority; }
+        void setPriority(int priority) { this.priority = priority; }
+
+        /**
+         * @return latency histogram of route in metrics, cached after first lookup
+         */
+        LatencyHistogram latency(Metrics metrics){
+            LatencyHistogram latency = this.latency;
+            if(latency == null || latencyMetrics != metrics) {
+                latency = metrics.histogram("rest2api_route_duration_seconds", "Time spent in route handler", "method", method, "route", uri);
+                this.latencyMetrics = metrics;
+                this.latency = latency;
+            }
+            return latency;
+        }
+
+        private final String method, uri;
+        private final Pattern pattern;
+        private final PathTemplate template;
+        private final APIHandler handler;
+        private volatile int priority = 0;
+        private volatile LatencyHistogram latency;
+        private volatile Metrics latencyMetrics;
+    }
+}
@@ -0,0 +1,284 @@
+package eu.piotro.rest2api.api;
+
+import eu.piotro.rest2api.http.*;
+
+import java.io.IOException;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Serves files from directory. Register with {@link APIForwarder#registerStaticFiles(String, Path)}.
+ * <p>Files are sent as file regions, so {@link eu.piotro.rest2api.tcp.Server.Engine#NIO} engine transfers them with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} without copying to heap.
+ * Small frequently requested files are kept memory-mapped. Supports conditional requests ({@code ETag}/{@code If-None-Match},
+ * {@code Last-Modified}/{@code If-Modified-Since}) and single range requests.</p>
+ * @since 1.4
+ */
+public class StaticFileHandler implements APIHandler {
+    private static final int defaultMaxCachedFileSize = 64 * 1024;
+    private static final long defaultMaxCacheSize = 16 * 1024 * 1024;
+
+    /**
+     * Creates handler with default mapped cache limits
+     * @param uriPrefix URI prefix under which files are served ex. /docs
+     * @param root directory with files
+     */
+    public StaticFileHandler(String uriPrefix, Path root){
+        this(uriPrefix, root, defaultMaxCachedFileSize, defaultMaxCacheSize);
+    }
+
+    /**
+     * Creates handler
+     * @param uriPrefix URI prefix under which files are served ex. /docs
+     * @param root directory with files
+     * @param maxCachedFileSize maximum size in bytes of file kept memory-mapped (0 disables cache)
+     * @param maxCacheSize maximum total size in bytes of memory-mapped files
+     */
+    public StaticFileHandler(String uriPrefix, Path root, int maxCachedFileSize, long maxCacheSize){
+        this.uriPrefix = uriPrefix.endsWith("/") ? uriPrefix.substring(0, uriPrefix.length() - 1) : uriPrefix;
+        this.root = root.toAbsolutePath().normalize();
+        this.maxCachedFileSize = maxCachedFileSize;
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    @Override
+    public HTTPResponse handle(HTTPRequest request) throws HTTPException {
+        Path file = resolve(request.getURI());
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if(attributes.isDirectory()) {
+                file = file.resolve("index.html");
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            }
+        } catch (IOException e) {
+            throw new HTTPException(404, HTTPCodes.C404);
+        }
+        if(!attributes.isRegularFile())
+            throw new HTTPException(404, HTTPCodes.C404);
+
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified) + "\"";
+        String lastModified = HTTP_DATE.format(Instant.ofEpochMilli(modified).atOffset(ZoneOffset.UTC));
+        String headers = "ETag: " + etag + "\r\nLast-Modified: " + lastModified + "\r\nAccept-Ranges: bytes";
+
+        if(isNotModified(request, etag, modified))
+            return new HTTPResponse(304, HTTPCodes.C304, contentType(file), headers, "");
+
+        long start = 0;
+        long count = size;
+        int code = 200;
+        String description = HTTPCodes.C200;
+        String range = request.getHeader("Range");
+        if(range != null && isRangeValid(request.getHeader("If-Range"), etag, modified)) {
+            long[] bounds = parseRange(range, size);
+            if(bounds != null) {
+                if(bounds[0] >= size || bounds[0] > bounds[1])
+                    throw new HTTPException(416, HTTPCodes.C416, "Content-Range: bytes */" + size);
+                start = bounds[0];
+                count = bounds[1] - bounds[0] + 1;
+                code = 206;
+                description = HTTPCodes.C206;
+                headers += "\r\nContent-Range: bytes " + bounds[0] + "-" + bounds[1] + "/" + size;
+            }
+        }
+
+        ResponseBody body;
+        try {
+            body = open(file, size, modified, start, count);
+        } catch (NoSuchFileException e) {
+            throw new HTTPException(404, HTTPCodes.C404);
+        } catch (IOException e) {
+            logger.warning("Can't open " + file + " " + e);
+            throw new HTTPException(500, HTTPCodes.C500);
+        }
+        return new HTTPResponse(code, description, contentType(file), headers, body);
+    }
+
+    /**
+     * Maps requested URI to file under root directory
+     * @throws HTTPException 404 if URI is outside of root
+     */
+    private Path resolve(String uri) throws HTTPException {
+        int query = uri.indexOf('?');
+        if(query != -1)
+            uri = uri.substring(0, query);
+        if(!uri.startsWith(uriPrefix))
+            throw new HTTPException(404, HTTPCodes.C404);
+
+        String relative;
+        try {
+            relative = URLDecoder.decode(uri.substring(uriPrefix.length()).replace("+", "%2B"), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new HTTPException(400, HTTPCodes.C400);
+        }
+        while(relative.startsWith("/"))
+            relative = relative.substring(1);
+        if(relative.indexOf('\0') != -1)
+            throw new HTTPException(404, HTTPCodes.C404);
+
+        Path file = root.resolve(relative).normalize();
+        if(!file.startsWith(root)) // ../ in path
+            throw new HTTPException(404, HTTPCodes.C404);
+        return file;
+    }
+
+    private static boolean isNotModified(HTTPRequest request, String etag, long modified){
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if(ifNoneMatch != null)
+            return matchesETag(ifNoneMatch, etag);
+        String ifModifiedSince = request.getHeader("If-Modified-Since");
+        if(ifModifiedSince != null) {
+            long since = parseDate(ifModifiedSince);
+            return since != -1 && modified / 1000 <= since / 1000; // HTTP dates have second precision
+        }
+        return false;
+    }
+
+    private static boolean matchesETag(String header, String etag){
+        for(String tag : header.split(",")) {
+            tag = tag.strip();
+            if(tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if range should be applied (If-Range is not sent or representation is unchanged)
+     */
+    private static boolean isRangeValid(String ifRange, String etag, long modified){
+        if(ifRange == null)
+            return true;
+        if(ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+            return ifRange.equals(etag);
+        long date = parseDate(ifRange);
+        return date != -1 && modified / 1000 <= date / 1000;
+    }
+
+    /**
+     * Parses single byte range. Multiple ranges are not supported, so whole file is sent for them.
+     * @return first and last byte position or null if range should be ignored
+     */
+    static long[] parseRange(String range, long size){
+        if(!range.startsWith("bytes=") || range.indexOf(',') != -1)
+            return null;
+        String spec = range.substring("bytes=".length()).strip();
+        int dash = spec.indexOf('-');
+        if(dash == -1)
+            return null;
+        try {
+            if(dash == 0) { // suffix: last n bytes
+                long suffix = Long.parseLong(spec.substring(1));
+                if(suffix <= 0)
+                    return new long[] {size, size - 1}; // unsatisfiable
+                return new long[] {Math.max(0, size - suffix), size - 1};
+            }
+            long first = Long.parseLong(spec.substring(0, dash));
+            long last = dash == spec.length() - 1 ? size - 1 : Long.parseLong(spec.substring(dash + 1));
+            if(first < 0 || last < 0)
+                return null;
+            return new long[] {first, Math.min(last, size - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long parseDate(String date){
+        try {
+            return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private ResponseBody open(Path file, long size, long modified, long start, long count) throws IOException {
+        if(size > maxCachedFileSize)
+            return ResponseBody.of(FileChannel.open(file, StandardOpenOption.READ), start, count);
+
+        MappedFile mapped;
+        synchronized (cache) {
+            mapped = cache.get(file);
+        }
+        if(mapped == null || mapped.size != size || mapped.modified != modified) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                mapped = new MappedFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), size, modified);
+            }
+            cache(file, mapped);
+        }
+
+        ByteBuffer content = mapped.buffer.duplicate();
+        content.position((int) start).limit((int) (start + count));
+        return ResponseBody.of(content);
+    }
+
+    private void cache(Path file, MappedFile mapped){
+        synchronized (cache) {
+            MappedFile previous = cache.put(file, mapped);
+            if(previous != null)
+                cacheSize -= previous.size;
+            cacheSize += mapped.size;
+            Iterator<MappedFile> eldest = cache.values().iterator(); // access order, least recently used first
+            while(cacheSize > maxCacheSize && eldest.hasNext()) {
+                cacheSize -= eldest.next().size;
+                eldest.remove();
+            }
+        }
+    }
+
+    private static String contentType(Path file){
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String extension = dot == -1 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return contentTypes.computeIfAbsent(extension, ext -> {
+            String type = URLConnection.guessContentTypeFromName(name);
+            return type != null ? type : "application/octet-stream";
+        });
+    }
+
+    private static final class MappedFile {
+        MappedFile(MappedByteBuffer buffer, long size, long modified){
+            this.buffer = buffer;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        private final MappedByteBuffer buffer;
+        private final long size;
+        private final long modified;
+    }
+
+    private final String uriPrefix;
+    private final Path root;
+    private final int maxCachedFileSize;
+    private final long maxCacheSize;
+    private final LinkedHashMap<Path, MappedFile> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheSize = 0;
+
+    private static final Map<String, String> contentTypes = new ConcurrentHashMap<>(Map.of(
+            "html", "text/html", "css", "text/css", "js", "application/javascript", "json", JSON,
+            "svg", "image/svg+xml", "txt", "text/plain", "png", "image/png", "jpg", "image/jpeg", "ico", "image/x-icon"));
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+    private static final Logger logger = Logger.getLogger(StaticFileHandler.class.getName());
+}
@@ -0,0 +1,91 @@
+package eu.piotro.rest2api.api;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket rate limiter keyed by address.
+ * <p>Bucket of each key is a single {@code long} updated with CAS (generic cell rate algorithm, equivalent to token bucket):
+ * it holds time at which bucket will be full again. Key may take {@code burst} permits at once and then one permit
+ * every {@code 1/permitsPerSecond} seconds, so there are no bursts at window edges as with fixed windows.</p>
+ * <p>Buckets of idle keys (already refilled, so indistinguishable from new ones) are evicted periodically and number of tracked
+ * keys is bounded by {@code maxKeys}. When limit is reached and no bucket is idle, new keys are not tracked and share
+ * one overflow bucket, so memory stays bounded when many addresses are used and they are still limited together.</p>
+ * @since 1.4
+ */
+public class TokenBucketRateLimiter implements RateLimiter {
+    private static final int defaultMaxKeys = 100_000;
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Creates limiter allowing burst of {@code permitsPerSecond} requests
+     * @param permitsPerSecond sustained number of requests per second for one key
+     */
+    public TokenBucketRateLimiter(int permitsPerSecond){
+        this(permitsPerSecond, permitsPerSecond, defaultMaxKeys);
+    }
+
+    /**
+     * Creates limiter
+     * @param permitsPerSecond sustained number of requests per second for one key
+     * @param burst maximum number of requests at once (bucket capacity)
+     * @param maxKeys maximum number of tracked keys
+     */
+    public TokenBucketRateLimiter(double permitsPerSecond, int burst, int maxKeys){
+        if(permitsPerSecond <= 0 || burst < 1 || maxKeys < 1)
+            throw new IllegalArgumentException("permitsPerSecond, burst and maxKeys must be positive");
+        this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.tolerance = interval * (burst - 1);
+        this.maxKeys = maxKeys;
+        long now = System.nanoTime();
+        this.nextSweep = new AtomicLong(now + SWEEP_INTERVAL);
+        this.overflow = new AtomicLong(now);
+    }
+
+    @Override
+    public boolean tryAcquire(String key){
+        long now = System.nanoTime();
+        AtomicLong bucket = buckets.get(key);
+        if(bucket == null) {
+            sweep(now);
+            bucket = buckets.size() >= maxKeys ? overflow : buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+        return acquire(bucket, now);
+    }
+
+    private boolean acquire(AtomicLong bucket, long now){
+        while(true) {
+            long full = bucket.get(); // time at which bucket is full
+            if(full - now > tolerance)
+                return false;
+            long next = (full - now < 0 ? now : full) + interval;
+            if(bucket.compareAndSet(full, next))
+                return true;
+        }
+    }
+
+    /**
+     * @return number of tracked keys
+     */
+    int size(){
+        return buckets.size();
+    }
+
+    /**
+     * Removes buckets of idle keys, at most once per second
+     */
+    private void sweep(long now){
+        long next = nextSweep.get();
+        if(now - next < 0 || !nextSweep.compareAndSet(next, now + SWEEP_INTERVAL))
+            return;
+        buckets.values().removeIf(bucket -> bucket.get() - now <= 0); // concurrent update of removed bucket is lost, granting at most one extra permit
+    }
+
+    private final long interval;
+    private final long tolerance;
+    private final int maxKeys;
+    private final AtomicLong nextSweep;
+    private final AtomicLong overflow; // bucket shared by untracked keys when maxKeys is reached
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+}
@@ -3,10 +3,14 @@ package eu.piotro.rest2api.api.annotations;
 import eu.piotro.rest2api.api.*;
 import eu.piotro.rest2api.http.*;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.*;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -28,32 +32,166 @@ public class AnnotationsMagic {
                     checkValidHandler(method, classObject);
                     RESTHandler annotation = method.getAnnotation(RESTHandler.class);
 
-                    APIHandler handler = new APIHandler() {
-                        @Override
-                        public HTTPResponse handle(HTTPRequest request) throws HTTPException {
-                            try {
-                                return (HTTPResponse) method.invoke(classObject, request); //can cast because checked before that returns HTTPResponse. Obj may be null because method is static and don't matter from where we are calling it
-                            } catch (IllegalAccessException e){
-                                logger.severe("IllegalAccessException to " + method.getName() + ": " + e);
-                                throw new HTTPException(500, HTTPCodes.C500);
-                            } catch (InvocationTargetException e){ //invoked method returned exception
-                                if (e.getTargetException() instanceof HTTPException){
-                                    throw (HTTPException) e.getTargetException(); //pass HTTPException
-                                } else {
-                                    logger.severe("Handler method " + method.getName() + " threw exception " + e.getTargetException());
-                                    throw new HTTPException(500, HTTPCodes.C500); //This should not happen
-                                }
-                            }
-                        }
-                    };
-
-                    forwarder.register(annotation.method(), annotation.URI(), handler);
+                    if(method.getReturnType() == CompletableFuture.class)
+                        registerAsync(method, annotation, forwarder, bindAsync(method, classObject));
+                    else
+                        register(method, annotation, forwarder, bind(method, classObject));
+                    if(annotation.priority() != 0)
+                        forwarder.setPriority(annotation.method(), annotation.URI(), annotation.priority());
         });
     }
 
+    private static void register(Method method, RESTHandler annotation, APIForwarder forwarder, APIHandler target){
+        APIHandler checked = request -> {
+            try {
+                return target.handle(request);
+            } catch (HTTPException e) { //pass HTTPException
+                throw e;
+            } catch (Throwable e) {
+                logger.severe("Handler method " + method.getName() + " threw exception " + e);
+                throw new HTTPException(500, HTTPCodes.C500); //This should not happen
+            }
+        };
+        APIHandler handler = annotation.cacheTtl() > 0
+                ? forwarder.getResponseCache().cached(checked, TimeUnit.SECONDS.toMillis(annotation.cacheTtl()), annotation.cacheVary())
+                : checked;
+
+        if(annotation.rateLimit() > 0)
+            forwarder.register(annotation.method(), annotation.URI(), handler, new TokenBucketRateLimiter(annotation.rateLimit()));
+        else
+            forwarder.register(annotation.method(), annotation.URI(), handler);
+    }
+
+    private static void registerAsync(Method method, RESTHandler annotation, APIForwarder forwarder, AsyncAPIHandler target){
+        AsyncAPIHandler handler = request -> {
+            try {
+                return target.handleAsync(request);
+            } catch (HTTPException e) { //pass HTTPException
+                throw e;
+            } catch (Throwable e) {
+                logger.severe("Handler method " + method.getName() + " threw exception " + e);
+                throw new HTTPException(500, HTTPCodes.C500);
+            }
+        };
+
+        if(annotation.rateLimit() > 0)
+            forwarder.registerAsync(annotation.method(), annotation.URI(), handler, annotation.timeout(), new TokenBucketRateLimiter(annotation.rateLimit()));
+        else
+            forwarder.registerAsync(annotation.method(), annotation.URI(), handler, annotation.timeout());
+    }
+
+    /**
+     * Creates handler calling method directly. Call site is generated with {@link LambdaMetafactory}, so it is as fast as
+     * handler written by hand (no reflection, boxing and access checks on every request). If lambda can't be generated
+     * (ex. class is hidden from this module or loaded by class loader not visible from this library),
+     * {@link MethodHandle} is invoked instead.
+     * @param method valid handler method
+     * @param classObject object to call method on, ignored for static methods
+     * @return handler throwing exceptions of method unchanged
+     */
+    static APIHandler bind(Method method, Object classObject){
+        APIHandler generated = generate(method, classObject, APIHandler.class, "handle");
+        if(generated != null)
+            return generated;
+
+        MethodHandle exact = exact(method, classObject);
+        return request -> {
+            try {
+                return (HTTPResponse) exact.invokeExact(request);
+            } catch (HTTPException | RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new UndeclaredThrowableException(e);
+            }
+        };
+    }
+
+    /**
+     * Creates asynchronous handler calling method returning {@code CompletableFuture<HTTPResponse>} directly
+     * @param method valid asynchronous handler method
+     * @param classObject object to call method on, ignored for static methods
+     * @return handler throwing exceptions of method unchanged
+     * @see #bind(Method, Object)
+     */
+    @SuppressWarnings("unchecked")
+    static AsyncAPIHandler bindAsync(Method method, Object classObject){
+        AsyncAPIHandler generated = generate(method, classObject, AsyncAPIHandler.class, "handleAsync");
+        if(generated != null)
+            return generated;
+
+        MethodHandle exact = exact(method, classObject);
+        return request -> {
+            try {
+                return (CompletableFuture<HTTPResponse>) exact.invokeExact(request);
+            } catch (HTTPException | RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new UndeclaredThrowableException(e);
+            }
+        };
+    }
+
+    /**
+     * @return lambda implementing functional interface with method, or null if it can't be generated
+     */
+    private static <T> T generate(Method method, Object classObject, Class<T> type, String name){
+        if(!isVisible(method.getDeclaringClass())) { // lambda class is defined in loader of this library
+            logger.fine("Class of " + method + " is not visible from library class loader, using method handle");
+            return null;
+        }
+        boolean isStatic = Modifier.isStatic(method.getModifiers());
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodType handlerType = MethodType.methodType(method.getReturnType(), HTTPRequest.class);
+        try {
+            MethodType factoryType = isStatic ? MethodType.methodType(type) : MethodType.methodType(type, method.getDeclaringClass());
+            CallSite site = LambdaMetafactory.metafactory(lookup, name, factoryType, handlerType, unreflect(method, lookup), handlerType);
+            return type.cast(isStatic ? site.getTarget().invoke() : site.getTarget().invoke(classObject));
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (Throwable e) {
+            logger.fine("Can't generate lambda for " + method + ", using method handle " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if class resolves to the same class from class loader of this library
+     */
+    private static boolean isVisible(Class<?> clazz){
+        try {
+            return Class.forName(clazz.getName(), false, AnnotationsMagic.class.getClassLoader()) == clazz;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return method handle bound to class object with type (HTTPRequest) -> return type of method
+     */
+    private static MethodHandle exact(Method method, Object classObject){
+        MethodHandle handle = unreflect(method, MethodHandles.lookup());
+        return (Modifier.isStatic(method.getModifiers()) ? handle : handle.bindTo(classObject))
+                .asType(MethodType.methodType(method.getReturnType(), HTTPRequest.class));
+    }
+
+    private static MethodHandle unreflect(Method method, MethodHandles.Lookup lookup){
+        try {
+            return lookup.unreflect(method);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("@RESTHandler method '" + method + "' must be accessible", e);
+        }
+    }
+
     private static void checkValidHandler(Method method, Object classObject){
-        if (method.getReturnType() != HTTPResponse.class) {
-            throw new IllegalArgumentException("@RESTHandler method '" + method + "' must return HTTPResponse type");
+        if (method.getReturnType() != HTTPResponse.class && !isAsync(method)) {
+            throw new IllegalArgumentException("@RESTHandler method '" + method + "' must return HTTPResponse or CompletableFuture<HTTPResponse> type");
+        }
+        RESTHandler annotation = method.getAnnotation(RESTHandler.class);
+        if (isAsync(method) && annotation.cacheTtl() > 0) {
+            throw new IllegalArgumentException("@RESTHandler method '" + method + "' returning CompletableFuture can't be cached");
+        }
+        if (annotation.timeout() < 0) {
+            throw new IllegalArgumentException("@RESTHandler method '" + method + "' timeout must not be negative");
         }
         if (method.getParameterCount() != 1 || method.getParameterTypes()[0] != HTTPRequest.class) {
             throw new IllegalArgumentException("@RESTHandler method '" + method + "' must take HTTPRequest as only parameter");
@@ -66,5 +204,11 @@ public class AnnotationsMagic {
         }
     }
 
+    private static boolean isAsync(Method method){
+        if(method.getReturnType() != CompletableFuture.class || !(method.getGenericReturnType() instanceof ParameterizedType))
+            return false;
+        return ((ParameterizedType) method.getGenericReturnType()).getActualTypeArguments()[0] == HTTPResponse.class;
+    }
+
     private static final Logger logger = Logger.getLogger(AnnotationsMagic.class.getName());
 }
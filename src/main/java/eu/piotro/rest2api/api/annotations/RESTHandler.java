@@ -7,7 +7,8 @@ import java.lang.annotation.*;
  * Consists of URI (regex supported) to which handler is assigned and HTTP method. Annotated functions should match {@link eu.piotro.rest2api.api.APIHandler}
  * format (have one parameter of type {@link eu.piotro.rest2api.http.HTTPRequest} and return {@link eu.piotro.rest2api.http.HTTPResponse}.
  * Methods may throw {@link eu.piotro.rest2api.http.HTTPException} (quick way for responding with HTTP errors) or return HTTPResponse
- * with error. Classes with handlers must be registered via {@link eu.piotro.rest2api.api.APIForwarder#registerClass(Object)} or {@link eu.piotro.rest2api.api.APIForwarder#registerClassStatic(Class)}.
+ * with error. Methods returning {@code CompletableFuture<HTTPResponse>} are registered as {@link eu.piotro.rest2api.api.AsyncAPIHandler}.
+ * Classes with handlers must be registered via {@link eu.piotro.rest2api.api.APIForwarder#registerClass(Object)} or {@link eu.piotro.rest2api.api.APIForwarder#registerClassStatic(Class)}.
  * @since 1.1
  * @see eu.piotro.rest2api.api.annotations
  */
@@ -20,7 +21,38 @@ public @interface RESTHandler {
      */
     String method();
     /**
-     * @return URI to which handler is assigned
+     * @return URI to which handler is assigned, regex or template with path parameters ({@link eu.piotro.rest2api.http.PathTemplate})
      */
     String URI();
+    /**
+     * @return maximum number of requests per second from one client address to this handler, 0 for no limit
+     * @see eu.piotro.rest2api.api.TokenBucketRateLimiter
+     * @since 1.4
+     */
+    int rateLimit() default 0;
+    /**
+     * @return time in seconds for which GET responses are served from {@link eu.piotro.rest2api.api.APIForwarder#getResponseCache()}
+     * without calling handler, 0 for no caching
+     * @see eu.piotro.rest2api.api.ResponseCache
+     * @since 1.4
+     */
+    int cacheTtl() default 0;
+    /**
+     * @return names of request headers, which values are part of cache key ex. Accept
+     * @since 1.4
+     */
+    String[] cacheVary() default {};
+    /**
+     * @return time in milliseconds after which asynchronous handler (returning {@code CompletableFuture<HTTPResponse>}) is
+     * responded with 504, 0 for no timeout
+     * @see eu.piotro.rest2api.api.APIForwarder#registerAsync(String, String, eu.piotro.rest2api.api.AsyncAPIHandler, long)
+     * @since 1.4
+     */
+    long timeout() default 30_000;
+    /**
+     * @return priority of handler under overload, requests with negative priority are shed first and with positive priority never
+     * @see eu.piotro.rest2api.api.APIForwarder#setPriority(String, String, int)
+     * @since 1.4
+     */
+    int priority() default 0;
 }
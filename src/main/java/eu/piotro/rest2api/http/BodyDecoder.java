@@ -0,0 +1,194 @@
+package eu.piotro.rest2api.http;
+
+/**
+ * Decodes request body received in {@link RequestBuffer}, either of known length or with chunked transfer encoding.
+ * Chunked body is decoded in place, so decoded bytes are always contiguous after start of body.
+ * Decoded bytes may be read as stream and removed from buffer with {@link #compact()}, so body doesn't have to fit in memory.
+ * All offsets are relative to start of buffer (start of request).
+ * @since 1.4
+ */
+class BodyDecoder {
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    /**
+     * @param buffer buffer of connection
+     * @param bodyStart offset of first byte of body
+     * @param contentLength length of body or -1 if body is chunked
+     * @param maxBodySize maximum decoded length of chunked body
+     */
+    BodyDecoder(RequestBuffer buffer, int bodyStart, long contentLength, long maxBodySize){
+        this.buffer = buffer;
+        this.bodyStart = bodyStart;
+        this.maxBodySize = maxBodySize;
+        this.rawPos = this.decodedEnd = this.readPos = bodyStart;
+        if(contentLength == -1) {
+            phase = CHUNK_SIZE;
+        } else {
+            remaining = contentLength;
+            phase = contentLength == 0 ? DONE : LENGTH;
+        }
+    }
+
+    /**
+     * Decodes bytes received so far
+     * @return true if whole body was received
+     * @throws HTTPException if chunked encoding is invalid or body is too large
+     */
+    boolean decode() throws HTTPException {
+        byte[] buf = buffer.array();
+        int base = buffer.start();
+        int end = buffer.end() - base;
+
+        while(phase != DONE) {
+            if(phase == LENGTH || phase == CHUNK_DATA) {
+                int len = (int) Math.min(end - rawPos, remaining);
+                if(len == 0)
+                    return false;
+                if(rawPos != decodedEnd)
+                    System.arraycopy(buf, base + rawPos, buf, base + decodedEnd, len);
+                rawPos += len;
+                decodedEnd += len;
+                remaining -= len;
+                if(remaining == 0)
+                    phase = phase == LENGTH ? DONE : CHUNK_END;
+                continue;
+            }
+
+            int lineEnd = lineEnd(buf, base, end);
+            if(lineEnd == -1)
+                return false;
+            int contentEnd = lineEnd > rawPos && buf[base + lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+
+            if(phase == CHUNK_SIZE) {
+                long size = parseChunkSize(buf, base + rawPos, base + contentEnd);
+                if(size == 0) {
+                    phase = TRAILERS;
+                } else {
+                    if(decoded() + size > maxBodySize)
+                        throw new HTTPException(413, HTTPCodes.C413);
+                    remaining = size;
+                    phase = CHUNK_DATA;
+                }
+            } else if(phase == CHUNK_END) {
+                if(contentEnd != rawPos)
+                    throw new HTTPException(400, HTTPCodes.C400);
+                phase = CHUNK_SIZE;
+            } else if(contentEnd == rawPos) { // end of trailers, trailer fields are ignored
+                phase = DONE;
+            }
+            rawPos = lineEnd + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Reads decoded bytes
+     * @return number of bytes read, 0 if more bytes must be received and decoded, -1 if whole body was read
+     */
+    int read(byte[] b, int off, int len){
+        int available = decodedEnd - readPos;
+        if(available == 0)
+            return phase == DONE ? -1 : 0;
+        len = Math.min(len, available);
+        System.arraycopy(buffer.array(), buffer.start() + readPos, b, off, len);
+        readPos += len;
+        return len;
+    }
+
+    /**
+     * Marks all decoded bytes as read
+     */
+    void skipDecoded(){
+        readPos = decodedEnd;
+    }
+
+    /**
+     * Removes read and decoded bytes from buffer, so next part of body can be received without growing buffer.
+     * After compaction whole body is no longer available in buffer.
+     */
+    void compact(){
+        if(readPos != decodedEnd || rawPos == bodyStart)
+            return;
+        buffer.remove(bodyStart, rawPos);
+        removed += decodedEnd - bodyStart;
+        rawPos = decodedEnd = readPos = bodyStart;
+    }
+
+    /**
+     * @return number of decoded bytes not read yet
+     */
+    int available(){
+        return decodedEnd - readPos;
+    }
+
+    boolean isComplete(){
+        return phase == DONE;
+    }
+
+    /**
+     * @return true if part of body was removed by {@link #compact()}
+     */
+    boolean isCompacted(){
+        return removed > 0;
+    }
+
+    /**
+     * @return length of decoded body kept in buffer after body start
+     */
+    int bufferedLength(){
+        return decodedEnd - bodyStart;
+    }
+
+    /**
+     * @return offset of end of raw body, valid when body is complete
+     */
+    int rawEnd(){
+        return rawPos;
+    }
+
+    private long decoded(){
+        return removed + decodedEnd - bodyStart;
+    }
+
+    /**
+     * @return offset of line feed ending line at raw position or -1 if line is not complete
+     * @throws HTTPException if line is too long
+     */
+    private int lineEnd(byte[] buf, int base, int end) throws HTTPException {
+        for(int i = base + rawPos; i < base + end; i++) {
+            if(buf[i] == '\n')
+                return i - base;
+        }
+        if(end - rawPos > MAX_LINE_LENGTH)
+            throw new HTTPException(400, HTTPCodes.C400);
+        return -1;
+    }
+
+    private long parseChunkSize(byte[] buf, int from, int to) throws HTTPException {
+        long size = 0;
+        int i = from;
+        for(; i < to && buf[i] != ';' && buf[i] != ' ' && buf[i] != '\t'; i++) { // chunk extensions are ignored
+            int digit = Character.digit(buf[i], 16);
+            if(digit == -1)
+                throw new HTTPException(400, HTTPCodes.C400);
+            size = size * 16 + digit;
+            if(size > maxBodySize)
+                throw new HTTPException(413, HTTPCodes.C413);
+        }
+        if(i == from)
+            throw new HTTPException(400, HTTPCodes.C400);
+        return size;
+    }
+
+    private static final int LENGTH = 0, CHUNK_SIZE = 1, CHUNK_DATA = 2, CHUNK_END = 3, TRAILERS = 4, DONE = 5;
+
+    private final RequestBuffer buffer;
+    private final int bodyStart;
+    private final long maxBodySize;
+    private int phase;
+    private long remaining; // of body with known length or of current chunk
+    private int rawPos; // next raw byte to decode
+    private int decodedEnd;
+    private int readPos;
+    private long removed = 0;
+}
@@ -12,4 +12,13 @@ public interface HTTPCodes {
     String C405 = "Method Not Allowed";
     String C500 = "Internal Server Error";
     String C408 = "Request Timeout";
+    String C413 = "Payload Too Large";
+    String C429 = "Too Many Requests";
+    String C431 = "Request Header Fields Too Large";
+    String C206 = "Partial Content";
+    String C304 = "Not Modified";
+    String C416 = "Range Not Satisfiable";
+    String C501 = "Not Implemented";
+    String C503 = "Service Unavailable";
+    String C504 = "Gateway Timeout";
 }
@@ -0,0 +1,271 @@
+package eu.piotro.rest2api.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Headers of {@link HTTPRequest}, stored as offsets into request bytes.
+ * <p>Names are compared ASCII case-insensitively, directly on bytes, so lookups don't create strings. Well-known names
+ * (constants of this class) are interned to tokens while headers are parsed and compared as numbers. Headers are indexed
+ * by small open-addressed hash table, headers with repeated name are linked, so all values of a name may be read.</p>
+ * @see HTTPRequest#getHTTPHeaders()
+ * @since 1.4
+ */
+public final class HTTPHeaders {
+    public static final String ACCEPT = "Accept";
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String AUTHORIZATION = "Authorization";
+    public static final String CACHE_CONTROL = "Cache-Control";
+    public static final String CONNECTION = "Connection";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String CONTENT_LENGTH = "Content-Length";
+    public static final String CONTENT_TYPE = "Content-Type";
+    public static final String COOKIE = "Cookie";
+    public static final String EXPECT = "Expect";
+    public static final String HOST = "Host";
+    public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+    public static final String IF_NONE_MATCH = "If-None-Match";
+    public static final String IF_RANGE = "If-Range";
+    public static final String RANGE = "Range";
+    public static final String TRANSFER_ENCODING = "Transfer-Encoding";
+    public static final String UPGRADE = "Upgrade";
+    public static final String USER_AGENT = "User-Agent";
+
+    private static final String[] KNOWN = {ACCEPT, ACCEPT_ENCODING, AUTHORIZATION, CACHE_CONTROL, CONNECTION, CONTENT_ENCODING,
+            CONTENT_LENGTH, CONTENT_TYPE, COOKIE, EXPECT, HOST, IF_MODIFIED_SINCE, IF_NONE_MATCH, IF_RANGE, RANGE,
+            TRANSFER_ENCODING, UPGRADE, USER_AGENT};
+    private static final int[] KNOWN_HASHES = new int[KNOWN.length];
+    private static final int UNKNOWN = -1;
+
+    static {
+        for(int i = 0; i < KNOWN.length; i++)
+            KNOWN_HASHES[i] = hash(KNOWN[i]);
+    }
+
+    static final HTTPHeaders EMPTY = new HTTPHeaders(null, null);
+
+    HTTPHeaders(HTTPRequest request, RequestBuffer buffer){
+        this.request = request;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Adds header parsed from request
+     * @param buf bytes of request
+     * @param base start of request in buf, offsets are stored relative to it
+     */
+    void add(byte[] buf, int base, int nameFrom, int nameTo, int valueFrom, int valueTo){
+        if(count == hashes.length) {
+            offsets = Arrays.copyOf(offsets, count * 8);
+            hashes = Arrays.copyOf(hashes, count * 2);
+            tokens = Arrays.copyOf(tokens, count * 2);
+            previous = Arrays.copyOf(previous, count * 2);
+        }
+        int i = count * 4;
+        offsets[i] = nameFrom - base;
+        offsets[i + 1] = nameTo - base;
+        offsets[i + 2] = valueFrom - base;
+        offsets[i + 3] = valueTo - base;
+        int hash = hash(buf, nameFrom, nameTo);
+        hashes[count] = hash;
+        tokens[count] = UNKNOWN;
+        for(int k = 0; k < KNOWN.length; k++) {
+            if(KNOWN_HASHES[k] == hash && equalsIgnoreCase(buf, nameFrom, nameTo, KNOWN[k])) {
+                tokens[count] = k;
+                break;
+            }
+        }
+        count++;
+        if(count * 2 > table.length)
+            rehash(buf, base);
+        else
+            insert(buf, base, count - 1);
+    }
+
+    /**
+     * Finds header without creating strings
+     * @param buf bytes of request
+     * @param base start of request in buf
+     * @return index of last header with name or -1
+     */
+    int find(byte[] buf, int base, String name){
+        if(count == 0)
+            return -1;
+        int hash = hash(name);
+        int token = UNKNOWN;
+        for(int k = 0; k < KNOWN.length; k++) {
+            if(KNOWN_HASHES[k] == hash && KNOWN[k].equalsIgnoreCase(name)) {
+                token = k;
+                break;
+            }
+        }
+        int mask = table.length - 1;
+        for(int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int h = table[slot] - 1;
+            if(hashes[h] != hash)
+                continue;
+            if(token != UNKNOWN ? tokens[h] == token : equalsIgnoreCase(buf, base + offsets[h * 4], base + offsets[h * 4 + 1], name))
+                return h;
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of previous header with the same name or -1
+     */
+    int previous(int index){
+        return previous[index];
+    }
+
+    int valueFrom(int index){
+        return offsets[index * 4 + 2];
+    }
+
+    int valueTo(int index){
+        return offsets[index * 4 + 3];
+    }
+
+    /**
+     * @param name name of header (case-insensitive)
+     * @return value of last header with name or null if it was not sent
+     */
+    public String get(String name){
+        int h = find(name);
+        return h == -1 ? null : getValue(h);
+    }
+
+    /**
+     * @param name name of header (case-insensitive)
+     * @return values of all headers with name in order they were sent, empty if it was not sent
+     */
+    public List<String> getAll(String name){
+        int h = find(name);
+        if(h == -1)
+            return Collections.emptyList();
+        List<String> values = new ArrayList<>(1);
+        for(; h != -1; h = previous[h])
+            values.add(getValue(h));
+        Collections.reverse(values);
+        return values;
+    }
+
+    /**
+     * @param name name of header (case-insensitive)
+     * @return true if header was sent
+     */
+    public boolean contains(String name){
+        return find(name) != -1;
+    }
+
+    /**
+     * @return number of headers including repeated names
+     */
+    public int size(){
+        return count;
+    }
+
+    /**
+     * @param index index of header in order it was sent
+     * @return name of header as it was sent
+     */
+    public String getName(int index){
+        checkIndex(index);
+        return request.string(offsets[index * 4], offsets[index * 4 + 1], StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @param index index of header in order it was sent
+     * @return value of header
+     */
+    public String getValue(int index){
+        checkIndex(index);
+        return request.string(offsets[index * 4 + 2], offsets[index * 4 + 3], StandardCharsets.ISO_8859_1);
+    }
+
+    private int find(String name){
+        if(count == 0)
+            return -1;
+        request.checkNotReleased();
+        return find(buffer.array(), buffer.start(), name);
+    }
+
+    private void checkIndex(int index){
+        if(index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Header " + index + " of " + count);
+    }
+
+    private void insert(byte[] buf, int base, int index){
+        int mask = table.length - 1;
+        int slot = hashes[index] & mask;
+        previous[index] = -1;
+        for(; table[slot] != 0; slot = (slot + 1) & mask) {
+            int h = table[slot] - 1;
+            if(hashes[h] == hashes[index] && (tokens[index] != UNKNOWN ? tokens[h] == tokens[index]
+                    : equalsIgnoreCase(buf, base + offsets[h * 4], base + offsets[h * 4 + 1], base + offsets[index * 4], base + offsets[index * 4 + 1]))) {
+                previous[index] = h; // slot points to last header with name
+                break;
+            }
+        }
+        table[slot] = index + 1;
+    }
+
+    private void rehash(byte[] buf, int base){
+        table = new int[table.length * 2];
+        for(int h = 0; h < count; h++)
+            insert(buf, base, h);
+    }
+
+    private static int hash(byte[] buf, int from, int to){
+        int hash = 0;
+        for(int i = from; i < to; i++)
+            hash = 31 * hash + toLower(buf[i] & 0xff);
+        return mix(hash);
+    }
+
+    private static int hash(String name){
+        int hash = 0;
+        for(int i = 0; i < name.length(); i++)
+            hash = 31 * hash + toLower(name.charAt(i));
+        return mix(hash);
+    }
+
+    private static int mix(int hash){
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equalsIgnoreCase(byte[] buf, int from, int to, String s){
+        if(to - from != s.length())
+            return false;
+        for(int i = 0; i < s.length(); i++) {
+            if(toLower(buf[from + i] & 0xff) != toLower(s.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] buf, int from, int to, int otherFrom, int otherTo){
+        if(to - from != otherTo - otherFrom)
+            return false;
+        for(int i = 0; i < to - from; i++) {
+            if(toLower(buf[from + i] & 0xff) != toLower(buf[otherFrom + i] & 0xff))
+                return false;
+        }
+        return true;
+    }
+
+    private static int toLower(int c){
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private final HTTPRequest request;
+    private final RequestBuffer buffer;
+    private int[] offsets = new int[4 * 16]; // name start, name end, value start, value end; relative to request start
+    private int[] hashes = new int[16];
+    private int[] tokens = new int[16]; // index in KNOWN or UNKNOWN
+    private int[] previous = new int[16]; // previous header with same name or -1
+    private int[] table = new int[32]; // open-addressed, index + 1 of last header with name, 0 if slot is empty
+    private int count = 0;
+}
@@ -1,148 +1,704 @@
 package eu.piotro.rest2api.http;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
-import java.util.concurrent.*;
+import java.util.Objects;
 
 /**
- * Represents HTTP request
+ * Represents HTTP request.
+ * Request is parsed directly from bytes of {@link RequestBuffer}, only offsets of its parts are recorded. Strings are created
+ * lazily when they are requested. Data of request is valid until it is released after response with {@link #release()}.
+ * Body may be read on demand as stream ({@link #getBodyStream()}), chunked transfer encoding is supported.
  */
 public class HTTPRequest {
+    private static final int MAX_HEADERS_SIZE = 16 * 1024;
+    private static final long MAX_BODY_SIZE = 8 * 1024 * 1024;
+    private static final int EAGER_BODY_SIZE = 64 * 1024;
+
     /**
      * Creates new HTTP request (read via {@link #read()})
-     * @param reader reader of inet socket
+     * @param buffer buffer of connection filled from socket
      * @param socket {@link Socket} to read from
-     * @param timeoutExecutor {@link ScheduledExecutorService} to schedule timeout events
+     * @param timer scheduler of timeout events
      * @param readTimeout time in milliseconds to timeout request reading
+     * @since 1.4
      */
-    public HTTPRequest(BufferedReader reader, Socket socket, ScheduledExecutorService timeoutExecutor, int readTimeout) {
-        this.reader = reader;
-        headersMap = new HashMap<>();
+    public HTTPRequest(RequestBuffer buffer, Socket socket, TimeoutScheduler timer, int readTimeout) {
+        this(buffer, socket, timer, readTimeout, MAX_BODY_SIZE);
+    }
+
+    /**
+     * Creates new HTTP request (read via {@link #read()}) with custom body size limit
+     * @param buffer buffer of connection filled from socket
+     * @param socket {@link Socket} to read from
+     * @param timer scheduler of timeout events
+     * @param readTimeout time in milliseconds to timeout request reading
+     * @param maxBodySize maximum size of request body in bytes (413 is returned for larger requests)
+     * @since 1.4
+     */
+    public HTTPRequest(RequestBuffer buffer, Socket socket, TimeoutScheduler timer, int readTimeout, long maxBodySize) {
+        this(buffer, socket, socket.getInetAddress().getHostAddress(), timer, readTimeout, maxBodySize);
+    }
+
+    private HTTPRequest(RequestBuffer buffer, Socket socket, String clientAddress, TimeoutScheduler timer, int readTimeout, long maxBodySize) {
+        this.buffer = buffer;
         this.socket = socket;
-        this.timeoutExecutor = timeoutExecutor;
+        this.clientAddress = clientAddress;
+        this.timer = timer;
         this.readTimeout = readTimeout;
+        this.maxBodySize = maxBodySize;
+        this.headers = new HTTPHeaders(this, buffer);
     }
 
-    Socket socket;
+    /**
+     * Creates new HTTP request parsed from buffer filled by caller (parsed via {@link #parse()}). Reading is not timed out.
+     * @param buffer buffer of connection
+     * @since 1.4
+     */
+    public HTTPRequest(RequestBuffer buffer) {
+        this(buffer, null, MAX_BODY_SIZE);
+    }
+
+    /**
+     * Creates new HTTP request parsed from buffer filled by caller (parsed via {@link #parse()}) with custom body size limit.
+     * @param buffer buffer of connection
+     * @param clientAddress address of client (may be null)
+     * @param maxBodySize maximum size of request body in bytes (413 is returned for larger requests)
+     * @since 1.4
+     */
+    public HTTPRequest(RequestBuffer buffer, String clientAddress, long maxBodySize) {
+        this(buffer, null, clientAddress, null, 0, maxBodySize);
+    }
 
     /**
-     * Reads and parses HTTP requests
+     * Reads and parses HTTP requests. Small bodies of known length are read together with request, larger and chunked
+     * bodies are read on demand by handler (see {@link #getBodyStream()}).
      * @throws IOException if I/O exception while reading from socket
      * @throws HTTPException if request is invalid (4xx HTTP errors)
      */
     public void read() throws IOException, HTTPException {
-        setTimeout();
+        if(timer != null)
+            setTimeout();
 
-        String requestLine = reader.readLine();
+        try {
+            while (!parseHead())
+                fill();
+            if (contentLength != -1 && contentLength <= EAGER_BODY_SIZE) {
+                while (!body.decode())
+                    fill();
+            } else {
+                body.decode();
+            }
+            if (timeout)
+                throw new HTTPException(408, HTTPCodes.C408);
+        } finally {
+            if (timeoutTask != null)
+                timeoutTask.cancel();
+        }
+    }
 
-        if(timeout)
+    private void fill() throws IOException, HTTPException {
+        int len = buffer.fill();
+        if (timeout)
             throw new HTTPException(408, HTTPCodes.C408);
+        if (len == -1)
+            throw new IOException(state == REQUEST_LINE && parsePos == 0 ? "No data sent to socket" : "Client closed before end of request");
+    }
+
+    /**
+     * Parses bytes received so far. May be called again after more bytes are added to buffer.
+     * @return true if whole request including body was received
+     * @throws HTTPException if request is invalid (4xx HTTP errors)
+     * @since 1.4
+     */
+    public boolean parse() throws HTTPException {
+        return parseHead() && body.decode();
+    }
 
-        if (requestLine == null)
-            throw new IOException("No data sent to socket");
+    /**
+     * Parses request line and headers
+     * @return true if whole head was received
+     */
+    private boolean parseHead() throws HTTPException {
+        byte[] buf = buffer.array();
+        int base = buffer.start();
+        int end = buffer.end();
 
-        String[] splitRequest = requestLine.split(" +");
+        while (state != BODY) {
+            int lineEnd = indexOf(buf, (byte) '\n', base + parsePos, end);
+            if (lineEnd == -1) {
+                if (end - base > MAX_HEADERS_SIZE)
+                    throw new HTTPException(431, HTTPCodes.C431);
+                return false;
+            }
+            int lineStart = base + parsePos;
+            int contentEnd = lineEnd;
+            if (contentEnd > lineStart && buf[contentEnd - 1] == '\r')
+                contentEnd--;
+            parsePos = lineEnd + 1 - base;
+            if (parsePos > MAX_HEADERS_SIZE)
+                throw new HTTPException(431, HTTPCodes.C431);
 
-        if (splitRequest.length != 3)  //GET / HTTP/1.1
-            throw new HTTPException(400, HTTPCodes.C400);
+            if (state == REQUEST_LINE) {
+                parseRequestLine(buf, lineStart, contentEnd, base);
+                state = HEADERS;
+            } else if (isBlank(buf, lineStart, contentEnd)) {
+                bodyStart = parsePos;
+                parseBodyLength(buf, base);
+                body = new BodyDecoder(buffer, bodyStart, contentLength, maxBodySize);
+                state = BODY;
+            } else {
+                parseHeader(buf, lineStart, contentEnd, base);
+            }
+        }
+        return true;
+    }
 
-        method = splitRequest[0];
-        uri = splitRequest[1];
-        String proto = splitRequest[2];
+    private void parseRequestLine(byte[] buf, int from, int to, int base) throws HTTPException {
+        // same as split(" +"): leading space gives empty token, trailing spaces are ignored
+        int[] tokens = new int[6];
+        int count = 0;
+        int pos = from;
+        while (pos < to) {
+            int tokenEnd = pos;
+            while (tokenEnd < to && buf[tokenEnd] != ' ')
+                tokenEnd++;
+            if (count == 3)
+                throw new HTTPException(400, HTTPCodes.C400);
+            tokens[count * 2] = pos;
+            tokens[count * 2 + 1] = tokenEnd;
+            count++;
+            pos = tokenEnd;
+            while (pos < to && buf[pos] == ' ')
+                pos++;
+        }
 
-        if (!proto.equals("HTTP/1.1") && splitRequest[2].contains("HTTP/"))
-            throw new HTTPException(505, HTTPCodes.C505);
-        else if (!proto.equals("HTTP/1.1"))
+        if (count != 3)  //GET / HTTP/1.1
             throw new HTTPException(400, HTTPCodes.C400);
 
-        if (!(method.equals("GET") || method.equals("POST") || method.equals("PUT") || method.equals("PATCH") || method.equals("DELETE")))
+        if (!equals(buf, tokens[4], tokens[5], HTTP_1_1) && indexOf(buf, HTTP_PREFIX, tokens[4], tokens[5]) != -1)
+            throw new HTTPException(505, HTTPCodes.C505);
+        else if (!equals(buf, tokens[4], tokens[5], HTTP_1_1))
             throw new HTTPException(400, HTTPCodes.C400);
 
-        parseHeaders();
-        if(!timeout)
-            parseBody();
-
-        if(timeout)
-            throw new HTTPException(408, HTTPCodes.C408);
+        method = null;
+        for (String known : METHODS) {
+            if (equals(buf, tokens[0], tokens[1], known)) {
+                method = known;
+                break;
+            }
+        }
+        if (method == null)
+            throw new HTTPException(400, HTTPCodes.C400);
 
-        timeoutFuture.cancel(true);
+        uriStart = tokens[2] - base;
+        uriEnd = tokens[3] - base;
     }
 
-    private void parseHeaders() throws IOException, HTTPException {
-        String line;
+    private void parseHeader(byte[] buf, int from, int to, int base) throws HTTPException {
+        int colon = indexOf(buf, (byte) ':', from, to); // split only on first :
+        if (colon == -1)
+            throw new HTTPException(400, HTTPCodes.C400);
 
-        while (!timeout && ((line = reader.readLine()) == null || !line.isBlank())) {
-            if (line == null)
-                throw new IOException("Client closed while sending headers");
+        headers.add(buf, base, skipSpaceForward(buf, from, colon), skipSpaceBackward(buf, from, colon),
+                skipSpaceForward(buf, colon + 1, to), skipSpaceBackward(buf, colon + 1, to));
+    }
 
-            String[] splitHeader = line.split(":", 2); // 2-split only on first :
-            if (splitHeader.length != 2)
+    private void parseBodyLength(byte[] buf, int base) throws HTTPException {
+        int header = headers.find(buf, base, HTTPHeaders.CONTENT_LENGTH);
+        int transferEncoding = headers.find(buf, base, HTTPHeaders.TRANSFER_ENCODING);
+        if (transferEncoding != -1) {
+            if (header != -1) // ambiguous length, may be used for request smuggling
                 throw new HTTPException(400, HTTPCodes.C400);
+            parseTransferCodings(buf, base, transferEncoding);
+            contentLength = -1;
+            return;
+        }
+        if (header == -1) {
+            if (method.equals("POST") || method.equals("PATCH") || method.equals("PUT"))
+                throw new HTTPException(411, HTTPCodes.C411);
+            contentLength = 0;
+            return;
+        }
 
-            headersMap.put(splitHeader[0].strip(), splitHeader[1].strip());
+        long len = parseLength(buf, base + headers.valueFrom(header), base + headers.valueTo(header));
+        for (int h = headers.previous(header); h != -1; h = headers.previous(h)) {
+            if (parseLength(buf, base + headers.valueFrom(h), base + headers.valueTo(h)) != len) // conflicting lengths, may be used for request smuggling
+                throw new HTTPException(400, HTTPCodes.C400);
         }
+        if (len > maxBodySize)
+            throw new HTTPException(413, HTTPCodes.C413);
+        contentLength = len;
     }
 
-    private void parseBody() throws HTTPException, IOException {
-        if (!headersMap.containsKey("Content-Length") && (method.equals("POST") || method.equals("PATCH") || method.equals("PUT")))
-            throw new HTTPException(411, HTTPCodes.C411);
-
-        StringBuilder stringBuilder = new StringBuilder();
-        int contentLen = Integer.parseInt(headersMap.getOrDefault("Content-Length", "0"));
-        final int BUFFER_SIZE = 1024;
-        char[] buff = new char[BUFFER_SIZE];
-        while (!timeout && contentLen > 0) {
-            int readLen = reader.read(buff, 0, Math.min(contentLen, BUFFER_SIZE));
-            if (readLen == -1)
-                throw new IOException("Client closed before end of body");
-            contentLen -= readLen;
-            stringBuilder.append(buff, 0, readLen);
+    /**
+     * @return value of Content-Length header, values over maximum body size are capped, so they don't overflow
+     */
+    private long parseLength(byte[] buf, int from, int to) throws HTTPException {
+        if (from == to)
+            throw new HTTPException(400, HTTPCodes.C400);
+        long limit = maxBodySize == Long.MAX_VALUE ? maxBodySize : maxBodySize + 1;
+        long len = 0;
+        for (int i = from; i < to; i++) {
+            if (buf[i] < '0' || buf[i] > '9')
+                throw new HTTPException(400, HTTPCodes.C400);
+            int digit = buf[i] - '0';
+            len = len > (limit - digit) / 10 ? limit : len * 10 + digit;
         }
+        return len;
+    }
 
-        body = stringBuilder.toString();
+    /**
+     * Checks that codings listed by all Transfer-Encoding headers are exactly one "chunked", other codings are not supported
+     * @param last index of last Transfer-Encoding header
+     */
+    private void parseTransferCodings(byte[] buf, int base, int last) throws HTTPException {
+        int codings = 0;
+        boolean unsupported = false;
+        for (int h = last; h != -1; h = headers.previous(h)) {
+            int to = base + headers.valueTo(h);
+            for (int from = base + headers.valueFrom(h); from <= to; ) {
+                int comma = indexOf(buf, (byte) ',', from, to);
+                int end = comma == -1 ? to : comma;
+                int codingFrom = skipSpaceForward(buf, from, end);
+                int codingTo = skipSpaceBackward(buf, codingFrom, end);
+                if (codingFrom != codingTo) { // empty list elements are allowed
+                    codings++;
+                    if (!equalsIgnoreCase(buf, codingFrom, codingTo, "chunked"))
+                        unsupported = true;
+                }
+                from = end + 1;
+            }
+        }
+        if (unsupported)
+            throw new HTTPException(501, HTTPCodes.C501);
+        if (codings != 1) // missing or repeated chunked
+            throw new HTTPException(400, HTTPCodes.C400);
     }
 
     private void setTimeout(){
-        timeoutFuture = timeoutExecutor.schedule(() -> {
+        timeoutTask = timer.schedule(() -> {
             if(socket.isClosed())
                 return;
+            timeout = true; // set before shutdown, so reader woken by it sees timeout
             try {
                 socket.shutdownInput();
             } catch (IOException ignored) {}
-            timeout = true;
-        }, readTimeout, TimeUnit.MILLISECONDS);
+        }, readTimeout);
+    }
+
+    /**
+     * Releases request data in connection buffer, so it may be used by next request. Called by server after response.
+     * Parts of request not accessed before can't be accessed after release.
+     * @since 1.4
+     */
+    public void release() {
+        if (released || state != BODY)
+            return;
+        released = true;
+        buffer.consume(body.isComplete() ? body.rawEnd() : buffer.end() - buffer.start()); // connection is not reused if body was not read
+    }
+
+    /**
+     * Reads and discards part of body not read by handler, so connection may be reused. Called by server before response.
+     * @throws IOException if I/O error
+     * @throws HTTPException if body is invalid or too large
+     * @since 1.4
+     */
+    public void skipBody() throws IOException, HTTPException {
+        if (state != BODY)
+            return;
+        body.skipDecoded();
+        while (!body.decode()) {
+            body.skipDecoded();
+            body.compact();
+            fillBody();
+        }
+    }
+
+    /**
+     * @return IP address of client or null if it is unknown
+     * @since 1.4
+     */
+    public String getClientAddress() {
+        return clientAddress;
     }
 
     public String getMethod() {
         return method;
     }
 
+    /**
+     * @return request-target decoded as UTF-8, or as ISO-8859-1 (each byte as one character) if it is not valid UTF-8
+     */
     public String getURI() {
+        if (uri == null && method != null)
+            uri = decodeURI(uriStart, uriEnd);
         return uri;
     }
 
+    /**
+     * @return parameters of query string, parsed on first call
+     * @since 1.4
+     */
+    public QueryParameters getQuery() {
+        if (query == null && method != null)
+            query = new QueryParameters(getURI());
+        return query;
+    }
+
+    /**
+     * @param name name of query parameter
+     * @return first value of parameter or null if it was not sent
+     * @see #getQuery()
+     * @since 1.4
+     */
+    public String getQueryParameter(String name) {
+        return getQuery().get(name);
+    }
+
+    /**
+     * Returns path parameter of route registered with {@link PathTemplate}
+     * @param name name of parameter in template
+     * @return value of parameter as it is in URI
+     * @throws IllegalArgumentException if route has no such parameter
+     * @since 1.4
+     */
+    public String getPathParameter(String name) {
+        int i = pathIndex(name);
+        return getURI().substring(pathOffsets[i * 2], pathOffsets[i * 2 + 1]);
+    }
+
+    /**
+     * @param name name of {@code int} parameter in template
+     * @return value parsed when route was matched
+     * @throws IllegalArgumentException if route has no such parameter or it is not {@code int}
+     * @see #getPathParameter(String)
+     * @since 1.4
+     */
+    public int getPathInt(String name) {
+        return (int) pathValues[pathIndex(name, PathTemplate.Type.INT)];
+    }
+
+    /**
+     * @param name name of {@code int} or {@code long} parameter in template
+     * @return value parsed when route was matched
+     * @throws IllegalArgumentException if route has no such parameter or it is not {@code int} or {@code long}
+     * @see #getPathParameter(String)
+     * @since 1.4
+     */
+    public long getPathLong(String name) {
+        int i = pathIndex(name);
+        if (pathTemplate.typeOf(i) != PathTemplate.Type.INT)
+            return pathValues[pathIndex(name, PathTemplate.Type.LONG)];
+        return pathValues[i];
+    }
+
+    /**
+     * @param name name of {@code double} parameter in template
+     * @return value parsed when route was matched
+     * @throws IllegalArgumentException if route has no such parameter or it is not {@code double}
+     * @see #getPathParameter(String)
+     * @since 1.4
+     */
+    public double getPathDouble(String name) {
+        return Double.longBitsToDouble(pathValues[pathIndex(name, PathTemplate.Type.DOUBLE)]);
+    }
+
+    /**
+     * Called by {@link PathTemplate#bind} when route is matched
+     */
+    void bindPath(PathTemplate template, int[] offsets, long[] values) {
+        this.pathTemplate = template;
+        this.pathOffsets = offsets;
+        this.pathValues = values;
+    }
+
+    private int pathIndex(String name) {
+        int i = pathTemplate == null ? -1 : pathTemplate.indexOf(name);
+        if (i == -1)
+            throw new IllegalArgumentException("No path parameter " + name + " in route " + pathTemplate);
+        return i;
+    }
+
+    private int pathIndex(String name, PathTemplate.Type type) {
+        int i = pathIndex(name);
+        if (pathTemplate.typeOf(i) != type)
+            throw new IllegalArgumentException("Path parameter " + name + " is " + pathTemplate.typeOf(i) + ", not " + type);
+        return i;
+    }
+
+    /**
+     * Returns value of header. Header names are compared case-insensitively. Does not create map of all headers.
+     * @param name header name
+     * @return value of last header with given name or null if it was not sent
+     * @since 1.4
+     */
+    public String getHeader(String name) {
+        if (state != BODY)
+            return null;
+        return headers.get(name);
+    }
+
+    /**
+     * Returns headers of request, with case-insensitive lookup of all values of header. Headers are empty until head of
+     * request is parsed.
+     * @return headers of request
+     * @since 1.4
+     */
+    public HTTPHeaders getHTTPHeaders() {
+        return state == BODY ? headers : HTTPHeaders.EMPTY;
+    }
+
+    /**
+     * Returns map of headers with names as they were sent. Kept for compatibility, map is created on first call,
+     * {@link #getHeader(String)} or {@link #getHTTPHeaders()} should be preferred.
+     * @return map of header names to last value of header
+     */
     public HashMap<String, String> getHeaders() {
+        if (headersMap == null) {
+            if (state != BODY)
+                return new HashMap<>();
+            headersMap = new HashMap<>();
+            for (int h = 0; h < headers.size(); h++)
+                headersMap.put(headers.getName(h), headers.getValue(h));
+        }
         return headersMap;
     }
 
+    /**
+     * Returns whole body as text. Body not received yet is read from socket first, so for large bodies
+     * {@link #getBodyStream()} should be preferred.
+     * @return body decoded as UTF-8
+     * @throws UncheckedIOException if body can't be read
+     * @throws IllegalStateException if part of body was already read with {@link #getBodyStream()}
+     */
     public String getBody() {
-        return body;
+        if (bodyString == null && state == BODY) {
+            if (body.isCompacted())
+                throw new IllegalStateException("Body was already read as stream");
+            try {
+                while (!body.decode())
+                    fillBody();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (HTTPException e) {
+                throw new UncheckedIOException(new IOException("Invalid body: " + e, e));
+            }
+            bodyString = string(bodyStart, bodyStart + body.bufferedLength(), StandardCharsets.UTF_8);
+        }
+        return bodyString;
+    }
+
+    /**
+     * Returns body as stream read on demand, so large uploads are not buffered in memory.
+     * Chunked transfer encoding is decoded. Stream ends at the end of body.
+     * @return stream of body
+     * @since 1.4
+     */
+    public InputStream getBodyStream() {
+        if (bodyStream == null && state == BODY)
+            bodyStream = new BodyStream();
+        return bodyStream;
+    }
+
+    /**
+     * @return body as channel, see {@link #getBodyStream()}
+     * @since 1.4
+     */
+    public ReadableByteChannel getBodyChannel() {
+        return Channels.newChannel(getBodyStream());
+    }
+
+    /**
+     * @return length of body declared with Content-Length or -1 if body is chunked
+     * @since 1.4
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Waits for next part of body
+     */
+    private void fillBody() throws IOException {
+        int len;
+        if (socket != null) {
+            socket.setSoTimeout(readTimeout);
+            try {
+                len = buffer.fill();
+            } finally {
+                socket.setSoTimeout(0);
+            }
+        } else {
+            len = buffer.fill();
+        }
+        if (len == -1)
+            throw new EOFException("Client closed before end of request body");
+    }
+
+    private class BodyStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0)
+                return 0;
+            checkNotReleased();
+            int read;
+            while ((read = body.read(b, off, len)) == 0) {
+                body.compact();
+                try {
+                    body.decode();
+                } catch (HTTPException e) {
+                    throw new IOException("Invalid body: " + e, e);
+                }
+                if (body.available() == 0 && !body.isComplete())
+                    fillBody();
+            }
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return released ? 0 : body.available();
+        }
     }
 
     @Override
     public String toString() {
-        return method + " " + uri;
+        return method + " " + getURI();
+    }
+
+    String string(int from, int to, Charset charset) {
+        checkNotReleased();
+        return new String(buffer.array(), buffer.start() + from, to - from, charset);
+    }
+
+    private String decodeURI(int from, int to) {
+        checkNotReleased();
+        byte[] buf = buffer.array();
+        int base = buffer.start();
+        int i = base + from;
+        while (i < base + to && buf[i] >= 0)
+            i++;
+        if (i == base + to) // ASCII
+            return string(from, to, StandardCharsets.ISO_8859_1);
+        try {
+            return StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(buf, base + from, to - from)).toString();
+        } catch (CharacterCodingException e) {
+            return string(from, to, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    void checkNotReleased() {
+        if (released)
+            throw new IllegalStateException("Request data was already released");
+    }
+
+    private static int indexOf(byte[] buf, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] buf, String s, int from, int to) {
+        for (int i = from; i <= to - s.length(); i++) {
+            if (equals(buf, i, i + s.length(), s))
+                return i;
+        }
+        return -1;
+    }
+
+    private static boolean equals(byte[] buf, int from, int to, String s) {
+        if (to - from != s.length())
+            return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (buf[from + i] != s.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] buf, int from, int to, String lowerCase) {
+        if (to - from != lowerCase.length())
+            return false;
+        for (int i = 0; i < lowerCase.length(); i++) {
+            if (toLower(buf[from + i]) != lowerCase.charAt(i))
+                return false;
+        }
+        return true;
     }
 
-    private final BufferedReader reader;
+    private static boolean isBlank(byte[] buf, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] != ' ' && buf[i] != '\t')
+                return false;
+        }
+        return true;
+    }
+
+    private static int skipSpaceForward(byte[] buf, int from, int to) {
+        while (from < to && (buf[from] == ' ' || buf[from] == '\t'))
+            from++;
+        return from;
+    }
+
+    private static int skipSpaceBackward(byte[] buf, int from, int to) {
+        while (to > from && (buf[to - 1] == ' ' || buf[to - 1] == '\t'))
+            to--;
+        return to;
+    }
+
+    private static byte toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static final String[] METHODS = {"GET", "POST", "PUT", "PATCH", "DELETE"};
+    private static final String HTTP_1_1 = "HTTP/1.1";
+    private static final String HTTP_PREFIX = "HTTP/";
+    private static final int REQUEST_LINE = 0, HEADERS = 1, BODY = 2;
+
+    private final RequestBuffer buffer;
+    private final Socket socket;
+    private final String clientAddress;
+    private int state = REQUEST_LINE;
+    private int parsePos = 0;
     private String method;
+    private int uriStart, uriEnd;
+    private final HTTPHeaders headers;
+    private int bodyStart;
+    private long contentLength;
+    private final long maxBodySize;
+    private BodyDecoder body;
+    private InputStream bodyStream;
+    private boolean released = false;
     private String uri;
-    private String body;
-    private final HashMap<String, String> headersMap;
-    private ScheduledFuture<?> timeoutFuture;
-    private final ScheduledExecutorService timeoutExecutor;
-    private boolean timeout = false;
+    private String bodyString;
+    private HashMap<String, String> headersMap;
+    private QueryParameters query;
+    private PathTemplate pathTemplate;
+    private int[] pathOffsets;
+    private long[] pathValues;
+    private TimeoutScheduler.Timeout timeoutTask;
+    private final TimeoutScheduler timer;
+    private volatile boolean timeout = false;
     private final int readTimeout;
 }
@@ -1,5 +1,7 @@
 package eu.piotro.rest2api.http;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Represents response to HTTP request
  */
@@ -31,6 +33,36 @@ public class HTTPResponse {
         this(code, codeDescription, type, "", body);
     }
 
+    /**
+     * Creates response with binary or streamed body and additional headers
+     * @param code HTTP status code
+     * @param codeDescription HTTP code description (use {@link HTTPCodes}) interface
+     * @param type MIME type of returned body
+     * @param headers additional headers to send with response
+     * @param body HTTP response body, see {@link ResponseBody#of(byte[])} and other variants
+     * @since 1.4
+     */
+    public HTTPResponse(int code, String codeDescription, String type, String headers, ResponseBody body){
+        this.code = code;
+        this.codeDescription = codeDescription;
+        this.type = type;
+        this.headers = headers;
+        this.body = null;
+        this.responseBody = body;
+    }
+
+    /**
+     * Creates response with binary or streamed body
+     * @param code HTTP status code
+     * @param codeDescription HTTP code description (use {@link HTTPCodes}) interface
+     * @param type MIME type of returned body
+     * @param body HTTP response body, see {@link ResponseBody#of(byte[])} and other variants
+     * @since 1.4
+     */
+    public HTTPResponse(int code, String codeDescription, String type, ResponseBody body){
+        this(code, codeDescription, type, "", body);
+    }
+
     public String getType() {
         return type;
     }
@@ -39,10 +71,26 @@ public class HTTPResponse {
         return headers;
     }
 
+    /**
+     * @return text body or null if response was created with {@link ResponseBody}
+     */
     public String getBody() {
         return body;
     }
 
+    /**
+     * Returns body to send, text body is encoded to UTF-8. In-memory body is returned with new read position on every call,
+     * so the same response may be sent many times.
+     * @return body to send
+     * @since 1.4
+     */
+    public ResponseBody getResponseBody() {
+        ResponseBody content = responseBody;
+        if(content == null) // encoded content is never read directly, only through cursors, so racy caching is safe
+            responseBody = content = ResponseBody.of(body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8));
+        return content.cursor();
+    }
+
     public int getCode(){
         return code;
     }
@@ -56,5 +104,6 @@ public class HTTPResponse {
     private final String type;
     private final String body;
     private final String headers;
+    private ResponseBody responseBody;
 
 }
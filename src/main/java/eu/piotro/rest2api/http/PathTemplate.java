@@ -0,0 +1,170 @@
+package eu.piotro.rest2api.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Route URI with typed path parameters like {@code /users/{id:int}/posts/{slug}}, compiled once at registration.
+ * <p>Placeholder is {@code {name}} or {@code {name:type}}, where type is {@code int}, {@code long}, {@code double} or
+ * {@code string} (default, one path segment). Rest of template is a regex as in other routes, so quantifiers like
+ * {@code {2}} are left as they are. Template is matched against path of URI, query string is not part of it.</p>
+ * <p>When route is matched, values of parameters are parsed while binding them to request, so handlers read them
+ * with {@link HTTPRequest#getPathInt(String)} and similar methods without matching URI again.</p>
+ * @see eu.piotro.rest2api.api.APIForwarder#register(String, String, eu.piotro.rest2api.api.APIHandler)
+ * @since 1.4
+ */
+public final class PathTemplate {
+    /**
+     * Type of path parameter
+     */
+    public enum Type {
+        INT("-?[0-9]{1,10}"), LONG("-?[0-9]{1,19}"), DOUBLE("-?[0-9]+(?:\\.[0-9]+)?"), STRING("[^/?]+");
+
+        Type(String regex){
+            this.regex = regex;
+        }
+
+        private final String regex;
+    }
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{([A-Za-z_][A-Za-z0-9_]*)(?::([a-z]+))?}");
+
+    private PathTemplate(String template, String regex, String[] names, Type[] types){
+        this.template = template;
+        this.regex = regex;
+        this.names = names;
+        this.types = types;
+    }
+
+    /**
+     * Compiles template
+     * @param template URI with placeholders
+     * @return compiled template or null if URI has no placeholders
+     * @throws IllegalArgumentException if type of placeholder is unknown or name is repeated
+     */
+    public static PathTemplate compile(String template){
+        Matcher placeholder = PLACEHOLDER.matcher(template);
+        List<String> names = new ArrayList<>();
+        List<Type> types = new ArrayList<>();
+        StringBuilder regex = new StringBuilder();
+        int pos = 0;
+        while(placeholder.find()) {
+            if(placeholder.start() > 0 && template.charAt(placeholder.start() - 1) == '\\')
+                continue; // escaped brace is literal
+            String name = placeholder.group(1);
+            if(names.contains(name))
+                throw new IllegalArgumentException("Path parameter " + name + " is repeated in " + template);
+            Type type;
+            try {
+                type = placeholder.group(2) == null ? Type.STRING : Type.valueOf(placeholder.group(2).toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown type of path parameter " + name + ": " + placeholder.group(2));
+            }
+            regex.append(template, pos, placeholder.start()).append('(').append(type.regex).append(')');
+            names.add(name);
+            types.add(type);
+            pos = placeholder.end();
+        }
+        if(names.isEmpty())
+            return null;
+        regex.append(template, pos, template.length());
+
+        String pattern = regex.toString();
+        if(Pattern.compile(pattern).matcher("").groupCount() != names.size())
+            throw new IllegalArgumentException("Template with path parameters can't contain capturing groups, use (?:...): " + template);
+        return new PathTemplate(template, pattern, names.toArray(new String[0]), types.toArray(new Type[0]));
+    }
+
+    /**
+     * @return regex matching URIs of template, each parameter is captured by group with its index + 1
+     */
+    public String getRegex(){
+        return regex;
+    }
+
+    /**
+     * @return template as it was registered
+     */
+    public String getTemplate(){
+        return template;
+    }
+
+    /**
+     * Parses parameters captured by matcher of {@link #getRegex()} and binds them to request
+     * @param request matched request
+     * @param matcher matcher which matched URI of request
+     * @return false if numeric parameter is out of range of its type, so URI doesn't match template
+     */
+    public boolean bind(HTTPRequest request, Matcher matcher){
+        int[] offsets = new int[names.length * 2];
+        long[] values = new long[names.length];
+        String uri = request.getURI();
+        for(int i = 0; i < names.length; i++) {
+            int from = matcher.start(i + 1);
+            int to = matcher.end(i + 1);
+            offsets[i * 2] = from;
+            offsets[i * 2 + 1] = to;
+            switch (types[i]) {
+                case INT:
+                case LONG:
+                    if(!parseLong(uri, from, to, values, i) || (types[i] == Type.INT && (int) values[i] != values[i]))
+                        return false;
+                    break;
+                case DOUBLE:
+                    values[i] = Double.doubleToRawLongBits(Double.parseDouble(uri.substring(from, to)));
+                    break;
+                default:
+            }
+        }
+        request.bindPath(this, offsets, values);
+        return true;
+    }
+
+    /**
+     * @return index of parameter or -1
+     */
+    int indexOf(String name){
+        for(int i = 0; i < names.length; i++) {
+            if(names[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+    Type typeOf(int index){
+        return types[index];
+    }
+
+    /**
+     * Parses digits matched by {@link Type#LONG} without creating substring
+     * @param values array to store value to
+     * @param index index of value in array
+     * @return false on overflow
+     */
+    private static boolean parseLong(String s, int from, int to, long[] values, int index){
+        boolean negative = s.charAt(from) == '-';
+        long value = 0;
+        for(int i = negative ? from + 1 : from; i < to; i++) {
+            int digit = s.charAt(i) - '0';
+            if(value < (Long.MIN_VALUE + digit) / 10)
+                return false;
+            value = value * 10 - digit; // accumulated negatively, so Long.MIN_VALUE is parsed too
+        }
+        if(!negative && value == Long.MIN_VALUE)
+            return false;
+        values[index] = negative ? value : -value;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+
+    private final String template;
+    private final String regex;
+    private final String[] names;
+    private final Type[] types;
+}
@@ -0,0 +1,143 @@
+package eu.piotro.rest2api.http;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Parameters of query string ({@code ?a=1&b=2&a=3}), name may have multiple values.
+ * <p>Query is split into offsets of names and values when parameters are first requested, and only names and values which
+ * are requested are decoded (percent-encoding and {@code +}). Parameters without {@code =} have empty value.</p>
+ * @see HTTPRequest#getQuery()
+ * @since 1.4
+ */
+public final class QueryParameters {
+    /**
+     * Parses query of URI
+     * @param uri requested URI, part before {@code ?} and fragment after {@code #} are ignored
+     */
+    QueryParameters(String uri){
+        int start = uri.indexOf('?');
+        int end = uri.indexOf('#');
+        this.uri = uri;
+        this.end = end == -1 ? uri.length() : end;
+        if(start == -1 || start >= this.end)
+            return;
+
+        int pos = start + 1;
+        while(pos <= this.end) {
+            int next = uri.indexOf('&', pos);
+            if(next == -1 || next > this.end)
+                next = this.end;
+            if(next > pos) {
+                int equals = uri.indexOf('=', pos);
+                if(equals == -1 || equals > next)
+                    equals = next;
+                if(offsets.length < (count + 1) * 3)
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                offsets[count * 3] = pos;
+                offsets[count * 3 + 1] = equals;
+                offsets[count * 3 + 2] = next;
+                count++;
+            }
+            pos = next + 1;
+        }
+    }
+
+    /**
+     * @param name name of parameter
+     * @return first value of parameter or null if it was not sent
+     */
+    public String get(String name){
+        for(int i = 0; i < count; i++) {
+            if(nameEquals(i, name))
+                return value(i);
+        }
+        return null;
+    }
+
+    /**
+     * @param name name of parameter
+     * @return all values of parameter in order, empty if it was not sent
+     */
+    public List<String> getAll(String name){
+        List<String> values = new ArrayList<>(1);
+        for(int i = 0; i < count; i++) {
+            if(nameEquals(i, name))
+                values.add(value(i));
+        }
+        return values;
+    }
+
+    /**
+     * @param name name of parameter
+     * @return true if parameter was sent (with or without value)
+     */
+    public boolean contains(String name){
+        for(int i = 0; i < count; i++) {
+            if(nameEquals(i, name))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return names of parameters in order of first occurrence
+     */
+    public Set<String> names(){
+        Set<String> names = new LinkedHashSet<>();
+        for(int i = 0; i < count; i++)
+            names.add(decode(offsets[i * 3], offsets[i * 3 + 1]));
+        return names;
+    }
+
+    /**
+     * @return number of parameters including repeated names
+     */
+    public int size(){
+        return count;
+    }
+
+    private boolean nameEquals(int index, String name){
+        int from = offsets[index * 3];
+        int to = offsets[index * 3 + 1];
+        if(!encoded(from, to))
+            return uri.regionMatches(from, name, 0, name.length()) && to - from == name.length();
+        return decode(from, to).equals(name);
+    }
+
+    private String value(int index){
+        int equals = offsets[index * 3 + 1];
+        int to = offsets[index * 3 + 2];
+        return equals == to ? "" : decode(equals + 1, to);
+    }
+
+    private String decode(int from, int to){
+        if(!encoded(from, to))
+            return uri.substring(from, to);
+        try {
+            return URLDecoder.decode(uri.substring(from, to), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) { // invalid escape, returned as sent
+            return uri.substring(from, to);
+        }
+    }
+
+    private boolean encoded(int from, int to){
+        for(int i = from; i < to; i++) {
+            char c = uri.charAt(i);
+            if(c == '%' || c == '+')
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return count == 0 ? "" : uri.substring(offsets[0], end);
+    }
+
+    private final String uri;
+    private final int end;
+    private int[] offsets = new int[3 * 4]; // name start, '=' or value end, value end
+    private int count = 0;
+}
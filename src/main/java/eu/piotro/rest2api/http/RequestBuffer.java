@@ -0,0 +1,185 @@
+package eu.piotro.rest2api.http;
+
+import eu.piotro.rest2api.tcp.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Reusable byte buffer of single connection from which {@link HTTPRequest}s are parsed.
+ * Bytes of pipelined requests received together with current one are kept for next request.
+ * Data of request stays in buffer until request is released with {@link HTTPRequest#release()}.
+ * Bytes are kept in buffer taken from {@link BufferPool} on first read, which is returned to pool by {@link #release()}
+ * or by {@link #trim()} while connection waits for next request.
+ * @since 1.4
+ */
+public class RequestBuffer {
+    private static final int INITIAL_SIZE = BufferPool.MIN_SIZE;
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Creates buffer filled from blocking stream with {@link #fill()}
+     * @param in stream to read from
+     */
+    public RequestBuffer(InputStream in){
+        this.in = in;
+    }
+
+    /**
+     * Creates buffer filled from non-blocking channel with {@link #fill(ReadableByteChannel)}
+     */
+    public RequestBuffer(){
+        this(null);
+    }
+
+    /**
+     * Reads available bytes from stream, blocks if there are none
+     * @return number of bytes read or -1 if end of stream was reached
+     * @throws IOException if I/O error
+     */
+    public int fill() throws IOException {
+        ensureSpace();
+        byte[] buf = pooled.array();
+        int len = in.read(buf, end, buf.length - end);
+        if(len > 0)
+            end += len;
+        return len;
+    }
+
+    /**
+     * Reads available bytes from non-blocking channel
+     * @param channel channel to read from
+     * @return number of bytes read or -1 if end of stream was reached
+     * @throws IOException if I/O error
+     */
+    public int fill(ReadableByteChannel channel) throws IOException {
+        ensureSpace();
+        pooled.limit(pooled.capacity()).position(end);
+        int len = channel.read(pooled);
+        if(len > 0)
+            end += len;
+        return len;
+    }
+
+    /**
+     * @return true if there are received bytes not consumed by any request (ex. pipelined request)
+     */
+    public boolean hasRemaining(){
+        return end > start;
+    }
+
+    /**
+     * Consumes prefix if unconsumed bytes start with it, reads from stream until enough bytes are received or they differ
+     * @param prefix expected bytes
+     * @return true if prefix was received and consumed, false if received bytes differ or stream ended
+     * @throws IOException if I/O error
+     */
+    public boolean skipPrefix(byte[] prefix) throws IOException {
+        while(end - start < prefix.length) {
+            if(!Arrays.equals(array(), start, end, prefix, 0, end - start) || fill() == -1)
+                return false;
+        }
+        if(!Arrays.equals(array(), start, start + prefix.length, prefix, 0, prefix.length))
+            return false;
+        consume(prefix.length);
+        return true;
+    }
+
+    /**
+     * Reads bytes not consumed by any request, then directly from stream (used when connection switches protocol)
+     * @param dst array to read to
+     * @param off start in array
+     * @param len maximum number of bytes to read
+     * @return number of bytes read or -1 if end of stream was reached
+     * @throws IOException if I/O error
+     */
+    public int read(byte[] dst, int off, int len) throws IOException {
+        if(!hasRemaining()) {
+            trim();
+            return in.read(dst, off, len);
+        }
+        int n = Math.min(len, end - start);
+        System.arraycopy(pooled.array(), start, dst, off, n);
+        consume(n);
+        return n;
+    }
+
+    /**
+     * Returns buffer to pool if all received bytes were consumed, so connection waiting for next request doesn't hold it.
+     * Buffer is taken from pool again on next read.
+     * @return true if buffer was returned to pool
+     */
+    public boolean trim(){
+        if(pooled == null || hasRemaining())
+            return false;
+        release();
+        return true;
+    }
+
+    /**
+     * Returns buffer to pool when connection is closed. Unconsumed bytes are discarded.
+     */
+    public void release(){
+        if(pooled == null)
+            return;
+        BufferPool.getDefault().release(pooled);
+        pooled = null;
+        start = end = 0;
+    }
+
+    /**
+     * Takes buffer from pool, moves unconsumed bytes to beginning of buffer or grows buffer if it is full
+     */
+    private void ensureSpace(){
+        if(pooled == null) {
+            pooled = BufferPool.getDefault().acquire(INITIAL_SIZE);
+            return;
+        }
+        byte[] buf = pooled.array();
+        if(end < buf.length)
+            return;
+        if(start > 0) {
+            System.arraycopy(buf, start, buf, 0, end - start);
+            end -= start;
+            start = 0;
+        } else {
+            ByteBuffer bigger = BufferPool.getDefault().acquire(buf.length * 2);
+            System.arraycopy(buf, 0, bigger.array(), 0, end);
+            BufferPool.getDefault().release(pooled);
+            pooled = bigger;
+        }
+    }
+
+    /**
+     * Marks bytes as consumed by request
+     * @param length number of bytes from start of buffer
+     */
+    void consume(int length){
+        start += length;
+        if(start == end)
+            start = end = 0;
+    }
+
+    /**
+     * Removes bytes from buffer, following bytes are moved in their place
+     * @param from start of removed range relative to start of buffer
+     * @param to end of removed range relative to start of buffer
+     */
+    void remove(int from, int to){
+        byte[] buf = array();
+        System.arraycopy(buf, start + to, buf, start + from, end - start - to);
+        end -= to - from;
+    }
+
+    byte[] array() { return pooled == null ? EMPTY : pooled.array(); }
+    int start() { return start; }
+    int end() { return end; }
+
+    private final InputStream in;
+    private ByteBuffer pooled; // null until first read and after release
+    private int start = 0;
+    private int end = 0;
+}
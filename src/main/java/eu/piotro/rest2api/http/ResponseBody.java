@@ -0,0 +1,269 @@
+package eu.piotro.rest2api.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Body of {@link HTTPResponse}. Body may be kept in memory or streamed from {@link InputStream} or file, so large
+ * responses don't have to be built in heap. Bodies of unknown length are sent with chunked transfer encoding.
+ * <p>Streamed bodies can be sent only once and are closed by server after response is written or connection fails.
+ * In-memory bodies may be sent many times, also concurrently, as each send reads through its own cursor.</p>
+ * @since 1.4
+ */
+public abstract class ResponseBody implements Closeable {
+    /**
+     * @param bytes body content, array is not copied
+     * @return in-memory body
+     */
+    public static ResponseBody of(byte[] bytes){
+        return new Memory(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * @param buffer body content between position and limit, buffer is not modified
+     * @return in-memory body
+     */
+    public static ResponseBody of(ByteBuffer buffer){
+        return new Memory(buffer.duplicate());
+    }
+
+    /**
+     * @param in stream to send, read until end of stream
+     * @return body of unknown length (sent with chunked transfer encoding)
+     */
+    public static ResponseBody of(InputStream in){
+        return new Stream(in, -1);
+    }
+
+    /**
+     * @param in stream to send
+     * @param length number of bytes to send from stream
+     * @return body of known length
+     */
+    public static ResponseBody of(InputStream in, long length){
+        if(length < 0)
+            throw new IllegalArgumentException("length must not be negative");
+        return new Stream(in, length);
+    }
+
+    /**
+     * Body sent from file region. Non-blocking engine transfers it directly from file to socket.
+     * @param file file to send, closed after response
+     * @param position position of region in file
+     * @param count length of region
+     * @return body of known length
+     */
+    public static ResponseBody of(FileChannel file, long position, long count){
+        if(position < 0 || count < 0)
+            throw new IllegalArgumentException("position and count must not be negative");
+        return new FileRegion(file, position, count);
+    }
+
+    /**
+     * @param path whole file to send
+     * @return body of known length
+     * @throws IOException if file can't be opened
+     */
+    public static ResponseBody of(Path path) throws IOException {
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+        return new FileRegion(file, 0, file.size());
+    }
+
+    /**
+     * @return length of body in bytes or -1 if it is unknown
+     */
+    public abstract long length();
+
+    /**
+     * Reads next part of body. May block.
+     * @param dst buffer to read to
+     * @return number of bytes read or -1 if whole body was read
+     * @throws IOException if I/O error or body source ended before declared length
+     */
+    public abstract int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * @return content of in-memory body (new buffer on every call) or null if body is streamed
+     */
+    public ByteBuffer buffer(){
+        return null;
+    }
+
+    /**
+     * @return true if body is file region, that may be sent with {@link #transferTo(WritableByteChannel)}
+     */
+    public boolean isFileRegion(){
+        return false;
+    }
+
+    /**
+     * Transfers next part of file region directly to channel
+     * @param target channel to write to
+     * @return number of bytes transferred or -1 if whole body was already sent
+     * @throws IOException if I/O error
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        throw new UnsupportedOperationException("Body is not a file region");
+    }
+
+    @Override
+    public void close() throws IOException {}
+
+    /**
+     * @return body to read from for one send: new cursor over the same content for in-memory body, this body otherwise
+     */
+    ResponseBody cursor(){
+        return this;
+    }
+
+    private static final class Memory extends ResponseBody {
+        Memory(ByteBuffer content){
+            this.content = content;
+        }
+
+        @Override
+        public long length() {
+            return content.remaining();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if(position == content.limit() - content.position())
+                return -1;
+            ByteBuffer src = buffer();
+            src.position(src.position() + position);
+            int len = Math.min(src.remaining(), dst.remaining());
+            src.limit(src.position() + len);
+            dst.put(src);
+            position += len;
+            return len;
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return content.duplicate();
+        }
+
+        @Override
+        ResponseBody cursor() {
+            return new Memory(content);
+        }
+
+        private final ByteBuffer content; // shared by cursors, never modified
+        private int position = 0;
+    }
+
+    private static final class Stream extends ResponseBody {
+        private static final int TRANSFER_SIZE = 8192;
+
+        Stream(InputStream in, long length){
+            this.in = in;
+            this.length = length;
+            this.remaining = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if(remaining == 0)
+                return -1;
+            int max = length == -1 ? dst.remaining() : (int) Math.min(dst.remaining(), remaining);
+            int len;
+            if(dst.hasArray()) {
+                len = in.read(dst.array(), dst.arrayOffset() + dst.position(), max);
+                if(len > 0)
+                    dst.position(dst.position() + len);
+            } else { // direct buffer is filled through array reused for whole body
+                if(transfer == null)
+                    transfer = new byte[TRANSFER_SIZE];
+                len = in.read(transfer, 0, Math.min(max, TRANSFER_SIZE));
+                if(len > 0)
+                    dst.put(transfer, 0, len);
+            }
+            if(len == -1) {
+                if(length != -1)
+                    throw new IOException("Stream ended " + remaining + " bytes before declared length");
+                remaining = 0;
+                return -1;
+            }
+            if(length != -1)
+                remaining -= len;
+            return len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private final InputStream in;
+        private final long length;
+        private long remaining;
+        private byte[] transfer; // used only when reading to direct buffer
+    }
+
+    private static final class FileRegion extends ResponseBody {
+        FileRegion(FileChannel file, long position, long count){
+            this.file = file;
+            this.position = position;
+            this.count = count;
+            this.end = position + count;
+        }
+
+        @Override
+        public long length() {
+            return count;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if(position == end)
+                return -1;
+            int limit = dst.limit();
+            if(dst.remaining() > end - position)
+                dst.limit(dst.position() + (int) (end - position));
+            int len = file.read(dst, position);
+            dst.limit(limit);
+            if(len == -1)
+                throw new IOException("File ended before end of region");
+            position += len;
+            return len;
+        }
+
+        @Override
+        public boolean isFileRegion() {
+            return true;
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            if(position == end)
+                return -1;
+            long len = file.transferTo(position, end - position, target);
+            if(len == 0 && position >= file.size())
+                throw new IOException("File ended before end of region");
+            position += len;
+            return len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+
+        private final FileChannel file;
+        private final long count;
+        private final long end;
+        private long position;
+    }
+}
@@ -0,0 +1,27 @@
+package eu.piotro.rest2api.http;
+
+/**
+ * Schedules timeouts of reading {@link HTTPRequest}, implemented by timer of server
+ * @see eu.piotro.rest2api.tcp.TimingWheel
+ * @since 1.4
+ */
+public interface TimeoutScheduler {
+    /**
+     * Schedules task to run once after delay
+     * @param task short task to run
+     * @param delayMillis delay in milliseconds
+     * @return timeout, that may be cancelled
+     */
+    Timeout schedule(Runnable task, long delayMillis);
+
+    /**
+     * Scheduled task
+     */
+    interface Timeout {
+        /**
+         * Cancels timeout, so its task is not run
+         * @return false if task has already expired (it may be running now) or timeout was cancelled
+         */
+        boolean cancel();
+    }
+}
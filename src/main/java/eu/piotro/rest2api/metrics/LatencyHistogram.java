@@ -0,0 +1,152 @@
+package eu.piotro.rest2api.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds.
+ * <p>Buckets are log-linear like in HdrHistogram: every power of two is split into {@value #SUB_BUCKETS} buckets, so recorded
+ * values and quantiles have relative error below 12.5%. Recording is single atomic increment of bucket, without allocation.
+ * Durations above about 18 minutes are recorded in last bucket.</p>
+ * @since 1.4
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40; // 2^40 ns
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    LatencyHistogram(){}
+
+    /**
+     * Records duration
+     * @param nanos duration in nanoseconds
+     */
+    public void record(long nanos){
+        if(nanos < 0)
+            nanos = 0;
+        counts.getAndIncrement(index(nanos));
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * @return number of recorded durations
+     */
+    public long getCount(){
+        return count.sum();
+    }
+
+    /**
+     * @return sum of recorded durations in nanoseconds
+     */
+    public long getSum(){
+        return sum.sum();
+    }
+
+    /**
+     * @return maximum recorded duration in nanoseconds
+     */
+    public long getMax(){
+        return max.get();
+    }
+
+    /**
+     * @param quantile quantile from 0 to 1 ex. 0.99
+     * @return upper bound of bucket containing quantile in nanoseconds, 0 if nothing was recorded
+     */
+    public long getQuantile(double quantile){
+        long[] snapshot = counts();
+        long total = 0;
+        for(long c : snapshot)
+            total += c;
+        if(total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for(int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if(seen >= rank)
+                return Math.min(upperBound(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * @return summary for JMX
+     */
+    public Snapshot snapshot(){
+        return new Snapshot(getCount(), getSum(), getQuantile(0.5), getQuantile(0.9), getQuantile(0.99), getMax());
+    }
+
+    /**
+     * @return number of durations recorded in each bucket
+     */
+    long[] counts(){
+        long[] snapshot = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++)
+            snapshot[i] = counts.get(i);
+        return snapshot;
+    }
+
+    static int index(long value){
+        if(value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if(exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return largest value recorded in bucket
+     */
+    static long upperBound(int index){
+        if(index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * Summary of histogram in milliseconds
+     */
+    public static final class Snapshot {
+        Snapshot(long count, long sum, long p50, long p90, long p99, long max){
+            this.count = count;
+            this.meanMillis = count == 0 ? 0 : millis(sum) / count;
+            this.p50Millis = millis(p50);
+            this.p90Millis = millis(p90);
+            this.p99Millis = millis(p99);
+            this.maxMillis = millis(max);
+        }
+
+        public long getCount() { return count; }
+        public double getMeanMillis() { return meanMillis; }
+        public double getP50Millis() { return p50Millis; }
+        public double getP90Millis() { return p90Millis; }
+        public double getP99Millis() { return p99Millis; }
+        public double getMaxMillis() { return maxMillis; }
+
+        private static double millis(long nanos){
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        private final long count;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p90Millis;
+        private final double p99Millis;
+        private final double maxMillis;
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+}
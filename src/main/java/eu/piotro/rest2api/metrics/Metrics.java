@@ -0,0 +1,246 @@
+package eu.piotro.rest2api.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of server metrics. Counters are {@link LongAdder}s and durations are recorded in lock-free {@link LatencyHistogram}s,
+ * so recording doesn't contend between workers.
+ * <p>Pass registry to {@link eu.piotro.rest2api.tcp.Server.Builder#metrics(Metrics)} for connection, request, rejection and
+ * worker metrics and to {@link eu.piotro.rest2api.api.APIForwarder#setMetrics(Metrics)} for per-route latency.
+ * Metrics are exposed as JMX MXBean ({@link #registerMBean(String)}) and in Prometheus text format
+ * ({@link #toPrometheus()}, see {@link eu.piotro.rest2api.api.APIForwarder#registerMetrics(String, Metrics)}).</p>
+ * @since 1.4
+ */
+public class Metrics {
+
+    public Metrics(){
+        connections = counter("rest2api_connections_total", "Accepted connections");
+        rejected = counter("rest2api_rejected_total", "Connections and requests rejected because worker queue was full");
+        rateLimited = counter("rest2api_rate_limited_total", "Connections and requests rejected by rate limiter");
+        shed = counter("rest2api_shed_total", "Requests shed because they waited in queue for too long");
+        for(int i = 0; i < responses.length; i++)
+            responses[i] = counter("rest2api_responses_total", "Sent responses by status class", "code", (i + 1) + "xx");
+        requestDuration = histogram("rest2api_request_duration_seconds", "Time from received request to sent response");
+    }
+
+    /**
+     * Counts accepted connection
+     */
+    public void connectionAccepted(){
+        connections.increment();
+    }
+
+    /**
+     * Counts connection or request rejected because executor queue is full
+     */
+    public void rejected(){
+        rejected.increment();
+    }
+
+    /**
+     * Counts connection or request rejected by rate limiter
+     */
+    public void rateLimited(){
+        rateLimited.increment();
+    }
+
+    /**
+     * Counts request shed by {@link eu.piotro.rest2api.tcp.LoadShedder}
+     */
+    public void shed(){
+        shed.increment();
+    }
+
+    /**
+     * Records sent response
+     * @param code HTTP status code
+     * @param nanos time from received request to sent response in nanoseconds, negative if request was not received
+     */
+    public void response(int code, long nanos){
+        int statusClass = code / 100 - 1;
+        if(statusClass >= 0 && statusClass < responses.length)
+            responses[statusClass].increment();
+        if(nanos >= 0)
+            requestDuration.record(nanos);
+    }
+
+    /**
+     * Returns counter, creating it on first use
+     * @param name metric name
+     * @param help description of metric
+     * @param labels label names and values ex. "code", "2xx"
+     * @return counter
+     */
+    public LongAdder counter(String name, String help, String... labels){
+        return (LongAdder) family(name, help, "counter").metrics.computeIfAbsent(labels(labels), k -> new LongAdder());
+    }
+
+    /**
+     * Returns histogram, creating it on first use
+     * @param name metric name, ex. name_seconds
+     * @param help description of metric
+     * @param labels label names and values ex. "method", "GET"
+     * @return histogram
+     */
+    public LatencyHistogram histogram(String name, String help, String... labels){
+        return (LatencyHistogram) family(name, help, "histogram").metrics.computeIfAbsent(labels(labels), k -> new LatencyHistogram());
+    }
+
+    /**
+     * Registers gauge read when metrics are exposed
+     * @param name metric name
+     * @param help description of metric
+     * @param value supplier of current value, called from exposing thread
+     * @param labels label names and values
+     */
+    public void gauge(String name, String help, LongSupplier value, String... labels){
+        family(name, help, "gauge").metrics.put(labels(labels), value);
+    }
+
+    /**
+     * Registers metrics as MXBean {@code eu.piotro.rest2api:type=Metrics,name=<name>} in platform MBean server
+     * @param name name of registry, ex. port of server
+     * @throws JMException if registration failed, ex. name is already registered
+     */
+    public void registerMBean(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MXBean(), new ObjectName("eu.piotro.rest2api:type=Metrics,name=" + ObjectName.quote(name)));
+    }
+
+    /**
+     * @return all metrics in Prometheus text exposition format
+     */
+    public String toPrometheus(){
+        StringBuilder out = new StringBuilder(4096);
+        families.forEach((name, family) -> {
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            family.metrics.forEach((labels, metric) -> {
+                if(metric instanceof LatencyHistogram)
+                    appendHistogram(out, name, labels, (LatencyHistogram) metric);
+                else
+                    appendSample(out, name, labels, metric instanceof LongAdder ? ((LongAdder) metric).sum() : ((LongSupplier) metric).getAsLong());
+            });
+        });
+        return out.toString();
+    }
+
+    /**
+     * Writes histogram as cumulative buckets with fixed bounds, bucket boundaries are approximate within histogram precision
+     */
+    private static void appendHistogram(StringBuilder out, String name, String labels, LatencyHistogram histogram){
+        long[] counts = histogram.counts();
+        long cumulative = 0;
+        int index = 0;
+        String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+        for(double bound : PROMETHEUS_BUCKETS) {
+            long boundNanos = (long) (bound * 1e9);
+            while(index < counts.length && LatencyHistogram.upperBound(index) <= boundNanos)
+                cumulative += counts[index++];
+            out.append(name).append("_bucket").append(prefix).append("le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+        while(index < counts.length)
+            cumulative += counts[index++];
+        out.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum").append(labels).append(' ').append(histogram.getSum() / 1e9).append('\n');
+        out.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+    }
+
+    private static void appendSample(StringBuilder out, String name, String labels, long value){
+        out.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private Family family(String name, String help, String type){
+        Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+        if(!family.type.equals(type))
+            throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type);
+        return family;
+    }
+
+    /**
+     * @return labels in Prometheus format ex. {method="GET",route="/"} or empty string
+     */
+    private static String labels(String... labels){
+        if(labels.length % 2 != 0)
+            throw new IllegalArgumentException("Labels must be given as name and value pairs");
+        if(labels.length == 0)
+            return "";
+        StringBuilder out = new StringBuilder("{");
+        for(int i = 0; i < labels.length; i += 2) {
+            if(i > 0)
+                out.append(',');
+            out.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for(int c = 0; c < value.length(); c++) {
+                char ch = value.charAt(c);
+                if(ch == '\\' || ch == '"')
+                    out.append('\\').append(ch);
+                else if(ch == '\n')
+                    out.append("\\n");
+                else
+                    out.append(ch);
+            }
+            out.append('"');
+        }
+        return out.append('}').toString();
+    }
+
+    private static final class Family {
+        Family(String help, String type){
+            this.help = help;
+            this.type = type;
+        }
+
+        private final String help;
+        private final String type;
+        private final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+    }
+
+    private class MXBean implements MetricsMXBean {
+        @Override
+        public Map<String, Long> getCounters() {
+            return values("counter");
+        }
+
+        @Override
+        public Map<String, Long> getGauges() {
+            return values("gauge");
+        }
+
+        @Override
+        public Map<String, LatencyHistogram.Snapshot> getLatencies() {
+            Map<String, LatencyHistogram.Snapshot> latencies = new LinkedHashMap<>();
+            families.forEach((name, family) -> {
+                if(family.type.equals("histogram"))
+                    family.metrics.forEach((labels, metric) -> latencies.put(name + labels, ((LatencyHistogram) metric).snapshot()));
+            });
+            return latencies;
+        }
+
+        private Map<String, Long> values(String type){
+            Map<String, Long> values = new LinkedHashMap<>();
+            families.forEach((name, family) -> {
+                if(family.type.equals(type))
+                    family.metrics.forEach((labels, metric) -> values.put(name + labels,
+                            metric instanceof LongAdder ? ((LongAdder) metric).sum() : ((LongSupplier) metric).getAsLong()));
+            });
+            return values;
+        }
+    }
+
+    private static final double[] PROMETHEUS_BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+    private final LongAdder connections;
+    private final LongAdder rejected;
+    private final LongAdder rateLimited;
+    private final LongAdder shed;
+    private final LongAdder[] responses = new LongAdder[5];
+    private final LatencyHistogram requestDuration;
+}
@@ -0,0 +1,25 @@
+package eu.piotro.rest2api.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link Metrics}, keys are metric names with Prometheus labels ex. {@code rest2api_responses_total{code="2xx"}}
+ * @see Metrics#registerMBean(String)
+ * @since 1.4
+ */
+public interface MetricsMXBean {
+    /**
+     * @return values of counters
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * @return current values of gauges (queue size, workers)
+     */
+    Map<String, Long> getGauges();
+
+    /**
+     * @return summaries of duration histograms
+     */
+    Map<String, LatencyHistogram.Snapshot> getLatencies();
+}
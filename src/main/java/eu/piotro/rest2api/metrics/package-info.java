@@ -0,0 +1,5 @@
+/**
+ * Server and route metrics, exposed via JMX and Prometheus text format
+ * @since 1.4
+ */
+package eu.piotro.rest2api.metrics;
@@ -0,0 +1,210 @@
+package eu.piotro.rest2api.tcp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Pool of I/O buffers in power of two size classes from {@value #MIN_SIZE} to {@value #MAX_SIZE} bytes.
+ * <p>Connection read buffers, write buffers and chunks of streamed bodies are taken from pool and returned when they are
+ * no longer needed, so moving bytes between sockets and handlers doesn't produce garbage. Each thread keeps one released
+ * buffer of every class, so worker serving requests one after another doesn't touch shared queues. Shared queues are
+ * bounded, surplus buffers are left to garbage collector. Larger buffers are not pooled.</p>
+ * <p>Heap buffers are used where bytes are parsed or written to streams, direct buffers where they are only passed to channels.</p>
+ * <p>With leak detection (system property {@value #LEAK_DETECTION_PROPERTY}, enabled in tests) pool records stack trace of
+ * every acquired buffer, reports buffers which were not released and fails on double release.</p>
+ * @since 1.4
+ */
+public final class BufferPool {
+    public static final int MIN_SIZE = 4 * 1024;
+    public static final int MAX_SIZE = 64 * 1024;
+    public static final String LEAK_DETECTION_PROPERTY = "eu.piotro.rest2api.bufferPool.leakDetection";
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+    private static final BufferPool DEFAULT = new BufferPool(256, Boolean.getBoolean(LEAK_DETECTION_PROPERTY));
+
+    /**
+     * Creates pool
+     * @param maxPooled maximum number of buffers of each size class and kind kept in shared queue
+     * @param leakDetection true to track acquired buffers (slow, for tests)
+     */
+    public BufferPool(int maxPooled, boolean leakDetection){
+        this.maxPooled = maxPooled;
+        this.outstanding = leakDetection ? new IdentityHashMap<>() : null;
+        for(int i = 0; i < 2 * CLASSES; i++) {
+            shared[i] = new SharedQueue();
+        }
+    }
+
+    /**
+     * @return pool used by server
+     */
+    public static BufferPool getDefault(){
+        return DEFAULT;
+    }
+
+    /**
+     * Takes heap buffer from pool
+     * @param size minimum capacity
+     * @return cleared buffer with accessible array, capacity is rounded up to size class
+     */
+    public ByteBuffer acquire(int size){
+        return acquire(size, false);
+    }
+
+    /**
+     * Takes direct buffer from pool
+     * @param size minimum capacity
+     * @return cleared buffer, capacity is rounded up to size class
+     */
+    public ByteBuffer acquireDirect(int size){
+        return acquire(size, true);
+    }
+
+    /**
+     * Returns buffer to pool. Buffer must not be used after release.
+     * @param buffer buffer acquired from this pool (the same object, not its duplicate)
+     * @throws IllegalStateException if leak detection is enabled and buffer is not acquired
+     */
+    public void release(ByteBuffer buffer){
+        if(outstanding != null) {
+            synchronized (outstanding) {
+                if(outstanding.remove(buffer) == null)
+                    throw new IllegalStateException("Buffer was not acquired from pool or is already released");
+            }
+        }
+        released.increment();
+        int index = index(buffer.capacity(), buffer.isDirect());
+        if(index == -1 || buffer.capacity() < MIN_SIZE || Integer.bitCount(buffer.capacity()) != 1)
+            return;
+        buffer.clear();
+        ByteBuffer[] cache = threadCache.get();
+        if(cache[index] == null) {
+            cache[index] = buffer;
+            return;
+        }
+        if(shared[index].size.incrementAndGet() > maxPooled) {
+            shared[index].size.decrementAndGet();
+            return;
+        }
+        shared[index].buffers.offer(buffer);
+    }
+
+    /**
+     * @return number of acquired buffers
+     */
+    public long getAcquired(){
+        return acquired.sum();
+    }
+
+    /**
+     * @return number of buffers allocated because there was none of requested size in pool
+     */
+    public long getAllocated(){
+        return allocated.sum();
+    }
+
+    /**
+     * @return number of acquired buffers, which are not released yet
+     */
+    public long getOutstanding(){
+        return acquired.sum() - released.sum();
+    }
+
+    /**
+     * @return number of buffers in shared queues (buffers cached by threads are not counted)
+     */
+    public int getPooled(){
+        int pooled = 0;
+        for(SharedQueue queue : shared)
+            pooled += queue.size.get();
+        return pooled;
+    }
+
+    /**
+     * Logs stack traces of acquisition of buffers which are not released. Requires leak detection.
+     * @return stack traces of acquisition of outstanding buffers, empty if leak detection is disabled
+     */
+    public List<Throwable> reportLeaks(){
+        if(outstanding == null)
+            return new ArrayList<>();
+        List<Throwable> leaks;
+        synchronized (outstanding) {
+            leaks = new ArrayList<>(outstanding.values());
+        }
+        for(Throwable leak : leaks)
+            logger.warning("Buffer was not released, acquired at " + stackTrace(leak));
+        return leaks;
+    }
+
+    private ByteBuffer acquire(int size, boolean direct){
+        acquired.increment();
+        ByteBuffer buffer = poll(size, direct);
+        if(buffer == null) {
+            allocated.increment();
+            int capacity = size <= MIN_SIZE ? MIN_SIZE : size > MAX_SIZE ? size : Integer.highestOneBit(size - 1) << 1;
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        if(outstanding != null) {
+            synchronized (outstanding) {
+                outstanding.put(buffer, new Throwable("Buffer acquired by " + Thread.currentThread().getName()));
+            }
+        }
+        return buffer;
+    }
+
+    private ByteBuffer poll(int size, boolean direct){
+        int index = index(size, direct);
+        if(index == -1)
+            return null;
+        ByteBuffer[] cache = threadCache.get();
+        ByteBuffer buffer = cache[index];
+        if(buffer != null) {
+            cache[index] = null;
+            return buffer;
+        }
+        buffer = shared[index].buffers.poll();
+        if(buffer != null)
+            shared[index].size.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * @return index of size class and kind or -1 if size is too large to pool
+     */
+    private static int index(int size, boolean direct){
+        if(size > MAX_SIZE)
+            return -1;
+        int sizeClass = size <= MIN_SIZE ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+        return direct ? CLASSES + sizeClass : sizeClass;
+    }
+
+    private static String stackTrace(Throwable trace){
+        StringBuilder result = new StringBuilder();
+        for(StackTraceElement element : trace.getStackTrace())
+            result.append("\n\tat ").append(element);
+        return trace.getMessage() + result;
+    }
+
+    private final int maxPooled;
+    private final SharedQueue[] shared = new SharedQueue[2 * CLASSES];
+    private final ThreadLocal<ByteBuffer[]> threadCache = ThreadLocal.withInitial(() -> new ByteBuffer[2 * CLASSES]);
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final Map<ByteBuffer, Throwable> outstanding; // null if leak detection is disabled
+    private static final Logger logger = Logger.getLogger(BufferPool.class.getName());
+
+    /**
+     * Shared queue of one size class and kind with its bounded size
+     */
+    private static final class SharedQueue {
+        final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+    }
+}
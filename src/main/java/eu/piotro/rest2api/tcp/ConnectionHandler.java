@@ -2,41 +2,79 @@ package eu.piotro.rest2api.tcp;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.concurrent.ScheduledExecutorService;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import eu.piotro.rest2api.api.APIForwarder;
+import eu.piotro.rest2api.http.HTTPCodes;
 import eu.piotro.rest2api.http.HTTPExceptionHandler;
 import eu.piotro.rest2api.http.HTTPResponse;
 import eu.piotro.rest2api.http.HTTPException;
 import eu.piotro.rest2api.http.HTTPRequest;
+import eu.piotro.rest2api.http.RequestBuffer;
+import eu.piotro.rest2api.metrics.Metrics;
 
 /**
  * Handles HTTP Socket connections
  * @author piotro
  * @since 0.1
  */
-public class ConnectionHandler implements Runnable {
+public class ConnectionHandler implements LoadShedder.Sheddable {
     /**
-     * Initializes handler. {@link #run()} must be called in order to process request.
+     * Initializes handler for single request per connection. {@link #run()} must be called in order to process request.
      * @param socket {@link Socket} to handle
      * @param forwarder {@link APIForwarder} used to route HTTP requests
-     * @param timeoutExecutor {@link ScheduledExecutorService} to schedule connection timeouts
+     * @param timer {@link TimingWheel} to schedule connection timeouts
      * @param readTimeout time in milliseconds to timeout request reading
      * @throws IOException if I/O error when creating socket reader or writer
      */
-    ConnectionHandler(Socket socket, APIForwarder forwarder, ScheduledExecutorService timeoutExecutor, int readTimeout) throws IOException {
+    ConnectionHandler(Socket socket, APIForwarder forwarder, TimingWheel timer, int readTimeout) throws IOException {
+        this(socket, forwarder, timer, readTimeout, 0, 1, 8 * 1024 * 1024, address -> true, null, null, false);
+    }
+
+    /**
+     * Initializes handler for persistent connection. {@link #run()} must be called in order to process requests.
+     * @param socket {@link Socket} to handle
+     * @param forwarder {@link APIForwarder} used to route HTTP requests
+     * @param timer {@link TimingWheel} to schedule connection timeouts
+     * @param readTimeout time in milliseconds to timeout request reading
+     * @param keepAliveTimeout time in milliseconds to wait for next request on persistent connection
+     * @param maxRequests maximum number of requests served on one connection (1 disables keep-alive)
+     * @param maxBodySize maximum size of request body in bytes
+     * @param rateLimiter tests if next request from client address is allowed, called for every request after the first one
+     * @param metrics metrics to record responses to, may be null
+     * @param executor executor running streams of HTTP/2 connection, other than one running connections
+     * @param http2 true to accept HTTP/2 with prior knowledge and {@code Upgrade: h2c}
+     * @throws IOException if I/O error when creating socket reader or writer
+     * @since 1.4
+     */
+    ConnectionHandler(Socket socket, APIForwarder forwarder, TimingWheel timer, int readTimeout, int keepAliveTimeout, int maxRequests,
+                      long maxBodySize, Predicate<String> rateLimiter, Metrics metrics, Executor executor, boolean http2) throws IOException {
         this.socket = socket;
-        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()));
-        request = new HTTPRequest(reader, socket, timeoutExecutor, readTimeout);
+        buffer = new RequestBuffer(socket.getInputStream());
+        out = socket.getOutputStream();
+        this.timer = timer;
+        this.readTimeout = readTimeout;
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.maxRequests = maxRequests;
+        this.maxBodySize = maxBodySize;
+        this.rateLimiter = rateLimiter;
+        this.metrics = metrics;
+        this.executor = executor;
+        this.http2 = http2;
         this.apiForwarder = forwarder;
-        if(forwarder.getHTTPExceptionHandler() != null)
-            this.exceptionHandler = forwarder.getHTTPExceptionHandler();
+        this.exceptionHandler = exceptionHandlerOf(forwarder);
     }
 
     /**
-     * Reads, passes to {@link APIForwarder} and responds to HTTP request.
+     * Reads, passes to {@link APIForwarder} and responds to HTTP requests until connection is closed or not kept alive.
+     * Pipelined requests are served in order. Connection switched to HTTP/2 is served by {@link HTTP2Connection}.
      */
     @Override
     public void run() {
@@ -44,45 +82,256 @@ public class ConnectionHandler implements Runnable {
         logger.info("Processing connection " + socket);
 
         try {
-            request.read();
-            logger.info(socket + " request: " +  request);
-            logger.fine("headers: " + request.getHeaders() + " body: " + request.getBody());
+            int served = 0;
+            boolean keepAlive;
+            do {
+                if(served > 0 && !awaitNextRequest())
+                    break;
 
-            HTTPResponse response = apiForwarder.forward(request);
-            respond(response);
+                HTTPRequest request = new HTTPRequest(buffer, socket, timer, readTimeout, maxBodySize);
+                try {
+                    request.read();
+                    if(metrics != null)
+                        received = System.nanoTime();
+                } catch (HTTPException e){
+                    if(http2 && served == 0 && e.getCode() == 505 && receivedPreface()) {
+                        serveHTTP2(null, null, shedPriority);
+                        break;
+                    }
+                    respond(exceptionHandler.handleHTTPException(e), false); // request may be read partially, connection can't be reused
+                    break;
+                }
+                logger.info(socket + " request: " +  request);
+                if(logger.isLoggable(Level.FINE))
+                    logger.fine("headers: " + request.getHeaders() + " content length: " + request.getContentLength()); // body may be not received yet
 
-        } catch (HTTPException e){
-            respond(exceptionHandler.handleHTTPException(e));
-        } catch (IOException e){
+                if(++served > 1 && !rateLimiter.test(request.getClientAddress())){
+                    respond(exceptionHandler.handleHTTPException(new HTTPException(429, HTTPCodes.C429)), false);
+                    break;
+                }
+                if(shedPriority != LoadShedder.NONE && apiForwarder.getPriority(request) <= shedPriority){
+                    if(metrics != null)
+                        metrics.shed();
+                    respond(exceptionHandler.handleHTTPException(new HTTPException(503, HTTPCodes.C503, "Retry-After: 1")), false);
+                    break;
+                }
+                shedPriority = LoadShedder.NONE; // only request which waited in queue may be shed
+                byte[] settings = http2 ? HTTP2Connection.upgradeSettings(request) : null;
+                if(settings != null) {
+                    List<String> headers = HTTP2Connection.headersOf(request);
+                    request.release();
+                    out.write(SWITCHING_PROTOCOLS);
+                    out.flush();
+                    serveHTTP2(headers, settings, LoadShedder.NONE);
+                    break;
+                }
+                keepAlive = !closing && served < maxRequests && isKeepAliveRequested(request);
+
+                HTTPResponse response;
+                try {
+                    response = apiForwarder.forward(request);
+                } catch (HTTPException e){
+                    response = exceptionHandler.handleHTTPException(e);
+                }
+                if(keepAlive)
+                    keepAlive = skipBody(request);
+                keepAlive = keepAlive && !closing;
+                respond(response, keepAlive);
+                request.release();
+            } while(keepAlive);
+
+        } catch (IOException | UncheckedIOException e){
             logger.info(socket + " IOException " + e);
         } finally {
-            try{ socket.close(); } catch (IOException e) { logger.info(socket + " IOException when closing " + e); }
+            closeSocket();
+            buffer.release();
+        }
+    }
+
+    /**
+     * Processes connection waiting in queue for too long. First request is responded with 503, unless its route has higher priority.
+     * @param maxPriority maximum priority of shed request
+     */
+    @Override
+    public void shed(int maxPriority) {
+        shedPriority = maxPriority;
+        run();
+    }
+
+    /**
+     * Checks if request rejected with 505 is connection preface of HTTP/2 with prior knowledge
+     * @return true if whole preface was received
+     */
+    private boolean receivedPreface() throws IOException {
+        socket.setSoTimeout(readTimeout);
+        try {
+            return buffer.skipPrefix(HTTP2Connection.PREFACE);
+        } finally {
+            if(!socket.isClosed())
+                socket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * Serves connection switched to HTTP/2 until it is closed
+     */
+    private void serveHTTP2(List<String> upgrade, byte[] settings, int shedPriority) throws IOException {
+        logger.info(socket + " switched to HTTP/2");
+        HTTP2Connection connection = new HTTP2Connection(socket, buffer, out, apiForwarder, exceptionHandler, executor,
+                readTimeout, keepAliveTimeout, maxBodySize, rateLimiter, metrics);
+        http2Connection = connection;
+        if(closing)
+            connection.shutdown(drained);
+        connection.serve(upgrade, settings, shedPriority);
+    }
+
+    Socket getSocket(){
+        return socket;
+    }
+
+    @Override
+    public String toString() {
+        return socket.toString();
+    }
+
+    /**
+     * Waits for first byte of next request on persistent connection
+     * @return false if connection was closed by client or idle timeout passed
+     */
+    private boolean awaitNextRequest() throws IOException {
+        if(buffer.hasRemaining()) // pipelined request is already buffered
+            return true;
+
+        buffer.trim(); // idle connection doesn't hold buffer
+        idle = true; // shutdown() closes idle socket, so read below fails
+        try {
+            if(closing)
+                return false;
+            socket.setSoTimeout(keepAliveTimeout);
+            return buffer.fill() != -1;
+        } catch (SocketTimeoutException e){
+            logger.fine(socket + " keep-alive timeout");
+            return false;
+        } catch (IOException e){
+            if(closing)
+                return false;
+            throw e;
+        } finally {
+            idle = false;
+            if(!socket.isClosed())
+                socket.setSoTimeout(0);
         }
     }
 
+    /**
+     * Starts graceful shutdown of connection: idle persistent connection is closed now, request in progress is finished
+     * and responded with "Connection: close". Called from thread shutting down server.
+     * @param drained counter of requests responded during shutdown
+     */
+    void shutdown(AtomicInteger drained){
+        this.drained = drained;
+        closing = true;
+        HTTP2Connection connection = http2Connection;
+        if(connection != null)
+            connection.shutdown(drained);
+        else if(idle)
+            closeSocket();
+    }
+
+    /**
+     * Closes connection, which didn't finish before shutdown deadline
+     * @return true if request was in progress or waiting for worker
+     */
+    boolean abort(){
+        HTTP2Connection connection = http2Connection;
+        boolean aborted = connection != null ? connection.isActive() : !idle;
+        closeSocket();
+        return aborted;
+    }
+
+    private void closeSocket(){
+        try{ socket.close(); } catch (IOException e) { logger.info(socket + " IOException when closing " + e); }
+    }
+
+    /**
+     * Reads rest of body not read by handler, so next request on connection may be read
+     * @return false if body can't be read and connection must be closed after response
+     */
+    private boolean skipBody(HTTPRequest request){
+        try {
+            request.skipBody();
+            return true;
+        } catch (IOException | HTTPException e) {
+            logger.info(socket + " can't skip request body " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Checks if client allows to keep connection open (HTTP/1.1 connections are persistent unless "Connection: close" is sent)
+     * @param request received request
+     * @return true if connection may be kept alive
+     */
+    static boolean isKeepAliveRequested(HTTPRequest request){
+        String connection = request.getHeader("Connection");
+        if(connection == null)
+            return true;
+        for(String token : connection.split(",")){
+            if(token.strip().equalsIgnoreCase("close"))
+                return false;
+        }
+        return true;
+    }
+
     private final Socket socket;
-    private final PrintWriter writer;
-    private final HTTPRequest request;
+    private final RequestBuffer buffer;
+    private final OutputStream out;
+    private final TimingWheel timer;
+    private final int readTimeout;
+    private final int keepAliveTimeout;
+    private final int maxRequests;
+    private final long maxBodySize;
+    private final Predicate<String> rateLimiter;
+    private final Metrics metrics;
+    private final Executor executor;
+    private final boolean http2;
+    private volatile HTTP2Connection http2Connection; // set when connection is switched to HTTP/2
+    private long received = -1; // System.nanoTime() when current request was read, -1 if it is not measured
+    private int shedPriority = LoadShedder.NONE;
+    private volatile boolean closing = false;
+    private volatile boolean idle = false;
+    private volatile AtomicInteger drained;
     private final APIForwarder apiForwarder;
-    private HTTPExceptionHandler exceptionHandler = new DefaultHTTPExceptionHandler();
+    private final HTTPExceptionHandler exceptionHandler;
     private final Logger logger = Logger.getLogger(ConnectionHandler.class.getName());
 
-    private void respond(HTTPResponse response){
+    private void respond(HTTPResponse response, boolean keepAlive) throws IOException {
         logger.info(socket + " " + response.getCode() + " " + response.getCodeDescription());
         if(response.getCode() == 500)
             logger.warning(socket + " 500 Status code returned");
 
-        writer.print("HTTP/1.1 " + response.getCode() + " " + response.getCodeDescription() + "\r\n");
-        writer.print("Content-Type: " + response.getType() + "\r\n");
-        writer.print("Content-Length: " + response.getBody().length() + "\r\n");
-        writer.print("Connection: close" + "\r\n");
-        if(!response.getHeaders().isEmpty())
-            writer.print(response.getHeaders() + "\r\n");
-        writer.print("\r\n");
-        writer.print(response.getBody() + "\r\n");
-        writer.flush();
+        ResponseEncoder.write(out, response, keepAlive);
+        if(closing)
+            drained.incrementAndGet();
+        if(metrics != null) {
+            metrics.response(response.getCode(), received == -1 ? -1 : System.nanoTime() - received);
+            received = -1;
+        }
+    }
+
+    /**
+     * @param forwarder forwarder with optional custom {@link HTTPExceptionHandler}
+     * @return exception handler set in forwarder or default one
+     */
+    static HTTPExceptionHandler exceptionHandlerOf(APIForwarder forwarder){
+        if(forwarder.getHTTPExceptionHandler() != null)
+            return forwarder.getHTTPExceptionHandler();
+        return defaultExceptionHandler;
     }
 
+    private static final byte[] SWITCHING_PROTOCOLS = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final HTTPExceptionHandler defaultExceptionHandler = new DefaultHTTPExceptionHandler();
+
     private static class DefaultHTTPExceptionHandler implements HTTPExceptionHandler {
         @Override
         public HTTPResponse handleHTTPException(HTTPException e){
@@ -0,0 +1,440 @@
+package eu.piotro.rest2api.tcp;
+
+import eu.piotro.rest2api.api.APIForwarder;
+import eu.piotro.rest2api.http.*;
+import eu.piotro.rest2api.metrics.Metrics;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking I/O loop for {@link Server.Engine#NIO} engine.
+ * Single thread reads requests from many connections using {@link Selector}. Complete requests are passed
+ * to worker {@link Executor} for processing by {@link APIForwarder}, so slow clients don't hold worker threads.
+ * @since 1.4
+ */
+class EventLoop implements Runnable {
+    private static final int TIMER_TICK = 50;
+
+    /**
+     * Creates and starts event loop thread
+     * @param name name of loop thread
+     * @param forwarder {@link APIForwarder} used to route HTTP requests
+     * @param executor executor running request handlers
+     * @param readTimeout time in milliseconds to timeout request reading
+     * @param keepAliveTimeout time in milliseconds to wait for next request on persistent connection
+     * @param maxRequests maximum number of requests served on one connection (1 disables keep-alive)
+     * @param maxBodySize maximum size of request body in bytes
+     * @param rateLimiter tests if next request from client address is allowed, called for every request after the first one
+     * @param metrics metrics to record responses and rejections to, may be null
+     * @throws IOException if selector cannot be opened
+     */
+    EventLoop(String name, APIForwarder forwarder, Executor executor, int readTimeout, int keepAliveTimeout, int maxRequests, long maxBodySize,
+              Predicate<String> rateLimiter, Metrics metrics) throws IOException {
+        this.selector = Selector.open();
+        this.forwarder = forwarder;
+        this.executor = executor;
+        this.readTimeout = readTimeout;
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.maxRequests = maxRequests;
+        this.maxBodySize = maxBodySize;
+        this.rateLimiter = rateLimiter;
+        this.metrics = metrics;
+        this.exceptionHandler = ConnectionHandler.exceptionHandlerOf(forwarder);
+        new Thread(this, name).start();
+    }
+
+    /**
+     * Adds accepted connection to this loop
+     * @param channel accepted channel in non-blocking mode
+     */
+    void register(SocketChannel channel){
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Starts graceful shutdown: idle persistent connections are closed and requests in progress are finished
+     * and responded with "Connection: close". Called from thread shutting down server.
+     * @param drained counter of requests responded during shutdown
+     */
+    void shutdown(AtomicInteger drained){
+        this.drained = drained;
+        closing = true;
+        selector.wakeup();
+    }
+
+    /**
+     * @return number of open connections, updated by loop thread during shutdown
+     */
+    int getOpenConnections(){
+        return openConnections;
+    }
+
+    /**
+     * Closes all connections and stops loop thread
+     * @return future of number of connections, which had request in progress
+     */
+    CompletableFuture<Integer> abort(){
+        aborting = true;
+        selector.wakeup();
+        return aborted;
+    }
+
+    @Override
+    public void run() {
+        while(!Thread.currentThread().isInterrupted()){
+            try {
+                selector.select(TIMER_TICK);
+            } catch (IOException e) {
+                logger.warning("Selector exception " + e);
+                continue;
+            }
+
+            registerPending();
+            writePending();
+            if(closing && drain())
+                return;
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()){
+                SelectionKey key = keys.next();
+                keys.remove();
+                NIOConnection connection = (NIOConnection) key.attachment();
+                if(key.isValid() && key.isReadable())
+                    read(connection);
+                if(key.isValid() && key.isWritable())
+                    write(connection);
+            }
+
+            timer.expire(System.nanoTime());
+        }
+    }
+
+    /**
+     * Closes idle connections and counts open ones during shutdown
+     * @return true if loop was aborted and should stop
+     */
+    private boolean drain(){
+        int open = 0;
+        int inProgress = 0;
+        boolean abort = aborting;
+        for(SelectionKey key : selector.keys()) {
+            NIOConnection connection = (NIOConnection) key.attachment();
+            if(!key.isValid() || connection == null)
+                continue;
+            if(connection.getState() == NIOConnection.State.READING && connection.isIdle()) {
+                close(connection);
+                continue;
+            }
+            open++;
+            if(abort) {
+                inProgress++;
+                close(connection);
+            }
+        }
+        openConnections = open;
+        if(!abort)
+            return false;
+        try { selector.close(); } catch (IOException e) { logger.info("IOException when closing selector " + e); }
+        aborted.complete(inProgress);
+        return true;
+    }
+
+    private void registerPending(){
+        SocketChannel channel;
+        while((channel = pendingChannels.poll()) != null){
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NIOConnection connection = new NIOConnection(channel, key, readTimeout, keepAliveTimeout, maxBodySize);
+                key.attach(connection);
+                scheduleTimeout(connection, readTimeout);
+                logger.info("Processing connection " + connection);
+            } catch (IOException e) {
+                logger.info(channel + " IOException when registering " + e);
+                close(channel);
+            }
+        }
+    }
+
+    private void read(NIOConnection connection){
+        try {
+            if(!connection.read())
+                return;
+        } catch (HTTPException e) {
+            respond(connection, exceptionHandler.handleHTTPException(e));
+            return;
+        } catch (IOException e) {
+            if(connection.isIdle())
+                logger.fine(connection + " closed by client");
+            else
+                logger.info(connection + " IOException " + e);
+            close(connection);
+            return;
+        }
+
+        dispatch(connection);
+    }
+
+    /**
+     * Passes complete request to worker executor
+     */
+    private void dispatch(NIOConnection connection){
+        connection.setState(NIOConnection.State.PROCESSING);
+        if(metrics != null)
+            connection.setReceived(System.nanoTime());
+        connection.getKey().interestOps(0);
+        try {
+            executor.execute(new Process(connection));
+        } catch (RejectedExecutionException e) {
+            logger.warning("Exception while adding connection to queue" + e);
+            if(metrics != null)
+                metrics.rejected();
+            respond(connection, exceptionHandler.handleHTTPException(new HTTPException(503, HTTPCodes.C503, "Retry-After: 1")));
+        }
+    }
+
+    /**
+     * Forwards parsed request. Called from worker thread, response of asynchronous handler is written when it completes
+     * and worker is released in the meantime.
+     */
+    private void process(NIOConnection connection, int shedPriority){
+        HTTPRequest request = connection.getRequest();
+        boolean keepAlive = false;
+        try {
+            logger.info(connection + " request: " + request);
+            if(logger.isLoggable(Level.FINE))
+                logger.fine("headers: " + request.getHeaders() + " body: " + request.getBody());
+
+            int served = connection.countRequest();
+            if(served > 1 && !rateLimiter.test(request.getClientAddress()))
+                throw new HTTPException(429, HTTPCodes.C429);
+            if(shedPriority != LoadShedder.NONE && forwarder.getPriority(request) <= shedPriority) {
+                if(metrics != null)
+                    metrics.shed();
+                throw new HTTPException(503, HTTPCodes.C503, "Retry-After: 1");
+            }
+            keepAlive = !closing && served < maxRequests && ConnectionHandler.isKeepAliveRequested(request);
+        } catch (HTTPException e) { // rate limited or shed, connection is closed after response
+            complete(connection, exceptionHandler.handleHTTPException(e), false);
+            return;
+        }
+
+        boolean finalKeepAlive = keepAlive;
+        CompletableFuture<HTTPResponse> response;
+        try {
+            response = forwarder.forwardAsync(request);
+        } catch (HTTPException e) {
+            response = CompletableFuture.failedFuture(e);
+        } catch (RuntimeException e) {
+            logger.severe(connection + " handler threw exception " + e);
+            response = CompletableFuture.failedFuture(new HTTPException(500, HTTPCodes.C500));
+        }
+        response.whenComplete((result, e) -> complete(connection,
+                e == null ? result : exceptionHandler.handleHTTPException(httpException(connection, e)), finalKeepAlive));
+    }
+
+    /**
+     * @return exception future of response failed with, other failures than {@link HTTPException} are answered with 500
+     */
+    private static HTTPException httpException(NIOConnection connection, Throwable e){
+        if(e instanceof CompletionException && e.getCause() != null)
+            e = e.getCause();
+        if(e instanceof HTTPException)
+            return (HTTPException) e;
+        logger.severe(connection + " handler failed " + e);
+        return new HTTPException(500, HTTPCodes.C500);
+    }
+
+    /**
+     * Task processing request on worker thread, may be shed when it waits in queue for too long
+     */
+    private final class Process implements LoadShedder.Sheddable {
+        Process(NIOConnection connection){
+            this.connection = connection;
+        }
+
+        @Override
+        public void run() {
+            process(connection, LoadShedder.NONE);
+        }
+
+        @Override
+        public void shed(int maxPriority) {
+            process(connection, maxPriority);
+        }
+
+        @Override
+        public String toString() {
+            return connection.toString();
+        }
+
+        private final NIOConnection connection;
+    }
+
+    /**
+     * Passes response to event loop thread to be written. Called from worker thread or thread completing asynchronous response.
+     */
+    private void complete(NIOConnection connection, HTTPResponse response, boolean keepAlive){
+        log(connection, response);
+        connection.setResponse(response, keepAlive && !closing);
+        pendingWrites.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Responds from event loop thread and closes connection
+     */
+    private void respond(NIOConnection connection, HTTPResponse response){
+        log(connection, response);
+        connection.setResponse(response, false);
+        write(connection);
+    }
+
+    private void log(NIOConnection connection, HTTPResponse response){
+        logger.info(connection + " " + response.getCode() + " " + response.getCodeDescription());
+        if(response.getCode() == 500)
+            logger.warning(connection + " 500 Status code returned");
+    }
+
+    private void writePending(){
+        NIOConnection connection;
+        while((connection = pendingWrites.poll()) != null)
+            write(connection);
+    }
+
+    private void write(NIOConnection connection){
+        try {
+            switch(connection.write()) {
+                case PENDING:
+                    connection.getKey().interestOps(SelectionKey.OP_WRITE);
+                    return;
+                case NEEDS_DATA:
+                    connection.getKey().interestOps(0);
+                    readBody(connection);
+                    return;
+                case DONE:
+                    break;
+            }
+            if(metrics != null)
+                metrics.response(connection.getStatus(), connection.getReceived() == -1 ? -1 : System.nanoTime() - connection.getReceived());
+            if(closing)
+                drained.incrementAndGet();
+            if(!connection.isKeepAlive() || closing) {
+                close(connection);
+                return;
+            }
+
+            connection.reset();
+            if(connection.isComplete()) // pipelined request was already received
+                dispatch(connection);
+            else
+                connection.getKey().interestOps(SelectionKey.OP_READ);
+        } catch (HTTPException e) {
+            respond(connection, exceptionHandler.handleHTTPException(e));
+        } catch (IOException e) {
+            logger.info(connection + " IOException " + e);
+            close(connection);
+        }
+    }
+
+    /**
+     * Reads next part of streamed response body on worker thread, as it may block
+     */
+    private void readBody(NIOConnection connection){
+        try {
+            executor.execute(() -> {
+                try {
+                    connection.readBody();
+                } catch (IOException e) {
+                    logger.warning(connection + " IOException when reading response body " + e);
+                    close(connection);
+                    return;
+                }
+                pendingWrites.add(connection);
+                selector.wakeup();
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warning("Exception while adding connection to queue" + e);
+            if(metrics != null)
+                metrics.rejected();
+            close(connection);
+        }
+    }
+
+    /**
+     * Checks deadline of connection when its timeout expires. Deadline is moved by connection itself on every request,
+     * so timeout is rescheduled instead of cancelled each time. Deadline applies while request is read and while response
+     * waits for peer to read it, connection is not timed out while request is processed.
+     */
+    private void checkTimeout(NIOConnection connection){
+        if(!connection.getKey().isValid())
+            return;
+        NIOConnection.State state = connection.getState();
+        boolean waiting = state == NIOConnection.State.READING
+                || (state == NIOConnection.State.WRITING && connection.getKey().interestOps() == SelectionKey.OP_WRITE);
+        long remaining = connection.getDeadline() - System.currentTimeMillis();
+        if(!waiting || remaining > 0) {
+            scheduleTimeout(connection, waiting ? remaining : readTimeout);
+            return;
+        }
+        if(state == NIOConnection.State.WRITING) {
+            logger.info(connection + " write timeout");
+            close(connection);
+        } else if(connection.isIdle()) {
+            logger.fine(connection + " keep-alive timeout");
+            close(connection);
+        } else {
+            respond(connection, exceptionHandler.handleHTTPException(new HTTPException(408, HTTPCodes.C408)));
+            if(connection.getKey().isValid()) // response is still pending
+                scheduleTimeout(connection, readTimeout);
+        }
+    }
+
+    private void scheduleTimeout(NIOConnection connection, long delay){
+        connection.setTimeout(timer.schedule(() -> checkTimeout(connection), delay));
+    }
+
+    private void close(NIOConnection connection){
+        connection.cancelTimeout();
+        connection.closeBody();
+        close(connection.getChannel());
+        connection.releaseBuffers();
+    }
+
+    private void close(SocketChannel channel){
+        try{ channel.close(); } catch (IOException e) { logger.info(channel + " IOException when closing " + e); }
+    }
+
+    private final Selector selector;
+    private final APIForwarder forwarder;
+    private final Executor executor;
+    private final int readTimeout;
+    private final int keepAliveTimeout;
+    private final int maxRequests;
+    private final long maxBodySize;
+    private final Predicate<String> rateLimiter;
+    private final Metrics metrics;
+    private final HTTPExceptionHandler exceptionHandler;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<NIOConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final TimingWheel timer = new TimingWheel(TIMER_TICK, 256); // advanced by this loop, tasks run on loop thread
+    private final CompletableFuture<Integer> aborted = new CompletableFuture<>();
+    private volatile boolean closing = false;
+    private volatile boolean aborting = false;
+    private volatile int openConnections = -1; // -1 until counted during shutdown
+    private volatile AtomicInteger drained;
+    private static final Logger logger = Logger.getLogger(EventLoop.class.getName());
+}
@@ -0,0 +1,353 @@
+package eu.piotro.rest2api.tcp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression of HTTP/2 (RFC 7541).
+ * <p>{@link Decoder} keeps dynamic table of connection and decodes all header field representations including Huffman
+ * coded strings. Encoder doesn't add fields to dynamic table, so it keeps no state and header blocks of concurrent streams
+ * may be written in any order. Names are referenced in static table and strings are Huffman coded when it makes them shorter.</p>
+ * @since 1.4
+ */
+final class HPACK {
+    private HPACK() {}
+
+    /**
+     * Header block can't be decoded, connection must be closed with COMPRESSION_ERROR
+     */
+    static final class CompressionException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        CompressionException(String message){
+            super(message);
+        }
+    }
+
+    /**
+     * Decoder of header blocks received on one connection. Blocks must be decoded in order they were received.
+     */
+    static final class Decoder {
+        /**
+         * @param maxTableSize maximum size of dynamic table, announced to client in SETTINGS_HEADER_TABLE_SIZE
+         */
+        Decoder(int maxTableSize){
+            this.maxTableSize = maxTableSize;
+            this.tableSize = maxTableSize;
+            int capacity = maxTableSize / ENTRY_OVERHEAD + 1;
+            names = new String[capacity];
+            values = new String[capacity];
+        }
+
+        /**
+         * Decodes header block. Fields over size limit are still decoded, so dynamic table stays in sync with client.
+         * @param block bytes of header block
+         * @param from start of block
+         * @param to end of block
+         * @param headers list to add decoded names and values to, alternately
+         * @param maxListSize maximum size of decoded header list (sum of name and value lengths and 32 per field)
+         * @return false if header list exceeded size limit and not all fields were added
+         * @throws CompressionException if block is invalid
+         */
+        boolean decode(byte[] block, int from, int to, List<String> headers, int maxListSize) throws CompressionException {
+            pos = from;
+            end = to;
+            int listSize = 0;
+            boolean first = true;
+            while(pos < end) {
+                int b = block[pos] & 0xff;
+                String name, value;
+                if((b & 0x80) != 0) { // indexed field
+                    int index = integer(block, 7);
+                    name = name(index);
+                    value = index <= STATIC_TABLE.length / 2 ? STATIC_TABLE[2 * index - 1] : values[slot(index)];
+                } else if((b & 0x40) != 0) { // literal with incremental indexing
+                    int index = integer(block, 6);
+                    name = index == 0 ? string(block) : name(index);
+                    value = string(block);
+                    add(name, value);
+                } else if((b & 0x20) != 0) { // dynamic table size update
+                    if(!first)
+                        throw new CompressionException("Table size update after header field");
+                    int size = integer(block, 5);
+                    if(size > maxTableSize)
+                        throw new CompressionException("Table size " + size + " over limit " + maxTableSize);
+                    tableSize = size;
+                    evict(0);
+                    continue;
+                } else { // literal without indexing or never indexed
+                    int index = integer(block, 4);
+                    name = index == 0 ? string(block) : name(index);
+                    value = string(block);
+                }
+                first = false;
+                listSize += name.length() + value.length() + ENTRY_OVERHEAD;
+                if(listSize <= maxListSize) {
+                    headers.add(name);
+                    headers.add(value);
+                }
+            }
+            return listSize <= maxListSize;
+        }
+
+        /**
+         * @return current size of dynamic table
+         */
+        int getTableSize(){
+            return usedSize;
+        }
+
+        private String name(int index) throws CompressionException {
+            if(index == 0 || index > STATIC_TABLE.length / 2 + count)
+                throw new CompressionException("Invalid index " + index);
+            return index <= STATIC_TABLE.length / 2 ? STATIC_TABLE[2 * index - 2] : names[slot(index)];
+        }
+
+        /**
+         * @param index index in address space of static and dynamic table, must point to dynamic table
+         * @return slot of entry in ring
+         */
+        private int slot(int index){
+            return Math.floorMod(newest - (index - STATIC_TABLE.length / 2 - 1), names.length);
+        }
+
+        private void add(String name, String value){
+            int size = name.length() + value.length() + ENTRY_OVERHEAD;
+            evict(size);
+            if(size > tableSize) // larger entry empties table and is not added
+                return;
+            newest = (newest + 1) % names.length;
+            names[newest] = name;
+            values[newest] = value;
+            count++;
+            usedSize += size;
+        }
+
+        /**
+         * Evicts oldest entries until entry of given size fits
+         */
+        private void evict(int size){
+            while(count > 0 && usedSize + size > tableSize) {
+                int oldest = Math.floorMod(newest - count + 1, names.length);
+                usedSize -= names[oldest].length() + values[oldest].length() + ENTRY_OVERHEAD;
+                names[oldest] = values[oldest] = null;
+                count--;
+            }
+        }
+
+        private int integer(byte[] block, int prefix) throws CompressionException {
+            int max = (1 << prefix) - 1;
+            int value = block[pos++] & max;
+            if(value < max)
+                return value;
+            for(int shift = 0; shift <= 21; shift += 7) {
+                if(pos == end)
+                    throw new CompressionException("Truncated integer");
+                int b = block[pos++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if((b & 0x80) == 0)
+                    return value;
+            }
+            throw new CompressionException("Integer overflow");
+        }
+
+        private String string(byte[] block) throws CompressionException {
+            if(pos == end)
+                throw new CompressionException("Truncated string");
+            boolean huffman = (block[pos] & 0x80) != 0;
+            int length = integer(block, 7);
+            if(length > end - pos)
+                throw new CompressionException("Truncated string");
+            String s = huffman ? huffmanDecode(block, pos, pos + length) : new String(block, pos, length, StandardCharsets.ISO_8859_1);
+            pos += length;
+            return s;
+        }
+
+        private final int maxTableSize;
+        private int tableSize; // limit set by client, at most maxTableSize
+        private int usedSize = 0;
+        private final String[] names; // ring of dynamic table entries, newest at newest
+        private final String[] values;
+        private int newest = -1;
+        private int count = 0;
+        private int pos;
+        private int end;
+    }
+
+    /**
+     * Encodes {@code :status} pseudo-header, indexed if status is in static table
+     * @param out header block
+     * @param code status code
+     */
+    static void encodeStatus(ByteArrayOutputStream out, int code){
+        String status = Integer.toString(code);
+        for(int i = STATUS_INDEX; i < STATUS_INDEX + 7; i++) {
+            if(STATIC_TABLE[2 * i - 1].equals(status)) {
+                out.write(0x80 | i);
+                return;
+            }
+        }
+        integer(out, 0, 4, STATUS_INDEX);
+        string(out, status.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Encodes header field as literal without indexing
+     * @param out header block
+     * @param name lower case name
+     * @param value value, encoded to UTF-8
+     */
+    static void encode(ByteArrayOutputStream out, String name, String value){
+        Integer index = STATIC_NAMES.get(name);
+        integer(out, 0, 4, index == null ? 0 : index);
+        if(index == null)
+            string(out, name.getBytes(StandardCharsets.US_ASCII));
+        string(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void integer(ByteArrayOutputStream out, int first, int prefix, int value){
+        int max = (1 << prefix) - 1;
+        if(value < max) {
+            out.write(first | value);
+            return;
+        }
+        out.write(first | max);
+        value -= max;
+        while(value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void string(ByteArrayOutputStream out, byte[] bytes){
+        long bits = 0;
+        for(byte b : bytes)
+            bits += HUFFMAN_LENGTHS[b & 0xff];
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if(huffmanLength >= bytes.length) {
+            integer(out, 0, 7, bytes.length);
+            out.write(bytes, 0, bytes.length);
+            return;
+        }
+        integer(out, 0x80, 7, huffmanLength);
+        long acc = 0;
+        int pending = 0;
+        for(byte b : bytes) {
+            int symbol = b & 0xff;
+            acc = (acc << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            pending += HUFFMAN_LENGTHS[symbol];
+            while(pending >= 8) {
+                pending -= 8;
+                out.write((int) (acc >>> pending));
+            }
+            acc &= (1L << pending) - 1;
+        }
+        if(pending > 0) // padded with most significant bits of EOS
+            out.write((int) ((acc << (8 - pending)) | (0xff >>> pending)));
+    }
+
+    /**
+     * @return decoded string, each byte is one character
+     * @throws CompressionException if string contains EOS or padding is invalid
+     */
+    static String huffmanDecode(byte[] src, int from, int to) throws CompressionException {
+        StringBuilder result = new StringBuilder((to - from) * 8 / 5);
+        int node = 0;
+        int depth = 0; // bits since last symbol
+        boolean ones = true; // all bits since last symbol are 1
+        for(int i = from; i < to; i++) {
+            int b = src[i];
+            for(int bit = 7; bit >= 0; bit--) {
+                int set = (b >>> bit) & 1;
+                int next = HUFFMAN_TREE[2 * node + set];
+                if(next < 0) {
+                    int symbol = -next - 1;
+                    if(symbol == EOS)
+                        throw new CompressionException("EOS in Huffman string");
+                    result.append((char) symbol);
+                    node = depth = 0;
+                    ones = true;
+                } else {
+                    node = next;
+                    depth++;
+                    ones &= set == 1;
+                }
+            }
+        }
+        if(depth > 7 || !ones)
+            throw new CompressionException("Invalid Huffman padding");
+        return result.toString();
+    }
+
+    private static final int ENTRY_OVERHEAD = 32;
+    private static final int STATUS_INDEX = 8;
+    private static final int EOS = 256;
+
+    private static final String[] STATIC_TABLE = {
+            ":authority", "", ":method", "GET", ":method", "POST", ":path", "/", ":path", "/index.html",
+            ":scheme", "http", ":scheme", "https", ":status", "200", ":status", "204", ":status", "206",
+            ":status", "304", ":status", "400", ":status", "404", ":status", "500", "accept-charset", "",
+            "accept-encoding", "gzip, deflate", "accept-language", "", "accept-ranges", "", "accept", "",
+            "access-control-allow-origin", "", "age", "", "allow", "", "authorization", "", "cache-control", "",
+            "content-disposition", "", "content-encoding", "", "content-language", "", "content-length", "",
+            "content-location", "", "content-range", "", "content-type", "", "cookie", "", "date", "", "etag", "",
+            "expect", "", "expires", "", "from", "", "host", "", "if-match", "", "if-modified-since", "",
+            "if-none-match", "", "if-range", "", "if-unmodified-since", "", "last-modified", "", "link", "",
+            "location", "", "max-forwards", "", "proxy-authenticate", "", "proxy-authorization", "", "range", "",
+            "referer", "", "refresh", "", "retry-after", "", "server", "", "set-cookie", "",
+            "strict-transport-security", "", "transfer-encoding", "", "user-agent", "", "vary", "", "via", "",
+            "www-authenticate", ""
+    };
+
+    /**
+     * Lengths of Huffman codes of symbols 0-255 and EOS. Code is canonical, codes are assigned in order of length and symbol.
+     */
+    private static final int[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+    private static final int[] HUFFMAN_CODES = new int[EOS + 1];
+    /**
+     * Decoding tree, children of node n are at 2n and 2n+1: index of inner node or -(symbol + 1) for leaf
+     */
+    private static final int[] HUFFMAN_TREE = new int[4 * (EOS + 1)];
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    static {
+        Integer[] order = new Integer[EOS + 1];
+        for(int i = 0; i <= EOS; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> HUFFMAN_LENGTHS[a] != HUFFMAN_LENGTHS[b] ? HUFFMAN_LENGTHS[a] - HUFFMAN_LENGTHS[b] : a - b);
+        int code = 0;
+        int nodes = 1;
+        for(int i = 0; i < order.length; i++) {
+            int symbol = order[i];
+            if(i > 0)
+                code = (code + 1) << (HUFFMAN_LENGTHS[symbol] - HUFFMAN_LENGTHS[order[i - 1]]);
+            HUFFMAN_CODES[symbol] = code;
+            int node = 0;
+            for(int bit = HUFFMAN_LENGTHS[symbol] - 1; bit > 0; bit--) {
+                int child = 2 * node + ((code >>> bit) & 1);
+                if(HUFFMAN_TREE[child] == 0)
+                    HUFFMAN_TREE[child] = nodes++;
+                node = HUFFMAN_TREE[child];
+            }
+            HUFFMAN_TREE[2 * node + (code & 1)] = -(symbol + 1);
+        }
+
+        for(int i = STATIC_TABLE.length / 2; i > 0; i--) // first index of name wins
+            STATIC_NAMES.put(STATIC_TABLE[2 * i - 2], i);
+    }
+}
@@ -0,0 +1,1039 @@
+package eu.piotro.rest2api.tcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+import eu.piotro.rest2api.api.APIForwarder;
+import eu.piotro.rest2api.http.HTTPCodes;
+import eu.piotro.rest2api.http.HTTPException;
+import eu.piotro.rest2api.http.HTTPExceptionHandler;
+import eu.piotro.rest2api.http.HTTPHeaders;
+import eu.piotro.rest2api.http.HTTPRequest;
+import eu.piotro.rest2api.http.HTTPResponse;
+import eu.piotro.rest2api.http.RequestBuffer;
+import eu.piotro.rest2api.http.ResponseBody;
+import eu.piotro.rest2api.metrics.Metrics;
+
+/**
+ * HTTP/2 connection over cleartext TCP (h2c), started with prior knowledge (client sends connection preface instead of
+ * HTTP/1.1 request) or by {@code Upgrade: h2c} request.
+ * <p>Frames are read by connection thread. Stream is dispatched to stream executor of server as soon as its headers are received
+ * and served by {@link APIForwarder} like HTTP/1.1 request: headers are translated to HTTP/1.1 request head parsed by
+ * {@link HTTPRequest}, followed by body fed from DATA frames, so handlers, routes and limits work unchanged on both protocols.
+ * Responses are written by stream workers, frames of concurrent streams are interleaved.</p>
+ * <p>Received data is credited to connection window at once and to stream window when handler reads it, so handler which
+ * doesn't read body blocks only its stream. Responses are sent within connection and stream windows of client.</p>
+ * @since 1.4
+ */
+final class HTTP2Connection {
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    static final int MAX_CONCURRENT_STREAMS = 100;
+    private static final int FRAME_HEADER = 9;
+    private static final int FRAME_SIZE = 16384; // SETTINGS_MAX_FRAME_SIZE, default is kept in both directions
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int MAX_WINDOW = Integer.MAX_VALUE;
+    private static final int MAX_HEADER_BLOCK = 64 * 1024;
+    private static final int MAX_HEADER_LIST_SIZE = 16 * 1024;
+    private static final int HEADER_TABLE_SIZE = 4096;
+
+    private static final int DATA = 0, HEADERS = 1, PRIORITY = 2, RST_STREAM = 3, SETTINGS = 4, PUSH_PROMISE = 5,
+            PING = 6, GOAWAY = 7, WINDOW_UPDATE = 8, CONTINUATION = 9;
+    private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY_FLAG = 0x20;
+    private static final int NO_ERROR = 0, PROTOCOL_ERROR = 1, FLOW_CONTROL_ERROR = 3,
+            STREAM_CLOSED = 5, FRAME_SIZE_ERROR = 6, REFUSED_STREAM = 7, CANCEL = 8, COMPRESSION_ERROR = 9,
+            ENHANCE_YOUR_CALM = 11;
+    private static final int SETTINGS_ENABLE_PUSH = 2, SETTINGS_MAX_CONCURRENT_STREAMS = 3,
+            SETTINGS_INITIAL_WINDOW_SIZE = 4, SETTINGS_MAX_FRAME_SIZE = 5, SETTINGS_MAX_HEADER_LIST_SIZE = 6;
+    private static final Set<String> CONNECTION_HEADERS = Set.of("connection", "keep-alive", "proxy-connection",
+            "transfer-encoding", "upgrade", "http2-settings", "te");
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Creates connection, {@link #serve(List, byte[], int)} must be called in order to process streams
+     * @param socket connection socket
+     * @param buffer buffer of connection, bytes received after preface or upgrade request are read from it first
+     * @param out stream of socket
+     * @param forwarder {@link APIForwarder} used to route requests
+     * @param exceptionHandler handler of {@link HTTPException}s
+     * @param executor executor running streams
+     * @param readTimeout time in milliseconds to wait for next part of request body
+     * @param idleTimeout time in milliseconds to keep connection without streams open (0 for no timeout)
+     * @param maxBodySize maximum size of request body in bytes
+     * @param rateLimiter tests if next request from client address is allowed, called for every stream after the first one
+     * @param metrics metrics to record responses to, may be null
+     */
+    HTTP2Connection(Socket socket, RequestBuffer buffer, OutputStream out, APIForwarder forwarder, HTTPExceptionHandler exceptionHandler,
+                    Executor executor, int readTimeout, int idleTimeout, long maxBodySize, Predicate<String> rateLimiter, Metrics metrics){
+        this.socket = socket;
+        this.buffer = buffer;
+        this.out = out;
+        this.forwarder = forwarder;
+        this.exceptionHandler = exceptionHandler;
+        this.executor = executor;
+        this.readTimeout = readTimeout;
+        this.idleTimeout = idleTimeout;
+        this.maxBodySize = maxBodySize;
+        this.rateLimiter = rateLimiter;
+        this.metrics = metrics;
+        this.clientAddress = socket.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * Checks if request asks to switch connection to HTTP/2. Requests with body are served with HTTP/1.1.
+     * @param request received HTTP/1.1 request
+     * @return settings of client from {@code HTTP2-Settings} header or null if connection should not be upgraded
+     */
+    static byte[] upgradeSettings(HTTPRequest request){
+        String upgrade = request.getHeader(HTTPHeaders.UPGRADE);
+        List<String> settings = request.getHTTPHeaders().getAll("HTTP2-Settings");
+        if(upgrade == null || settings.size() != 1 || request.getContentLength() != 0)
+            return null;
+        boolean h2c = false;
+        for(String protocol : upgrade.split(","))
+            h2c |= protocol.strip().equalsIgnoreCase("h2c");
+        if(!h2c)
+            return null;
+        try {
+            byte[] decoded = Base64.getUrlDecoder().decode(settings.get(0).strip());
+            return decoded.length % 6 == 0 ? decoded : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param request upgrade request
+     * @return request as HTTP/2 header list of stream 1
+     */
+    static List<String> headersOf(HTTPRequest request){
+        String path = new String(request.getURI().getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1); // header strings hold raw bytes
+        List<String> headers = new ArrayList<>(List.of(":method", request.getMethod(), ":path", path, ":scheme", "http"));
+        HTTPHeaders fields = request.getHTTPHeaders();
+        for(int i = 0; i < fields.size(); i++) {
+            String name = fields.getName(i).toLowerCase(Locale.ROOT);
+            if(!CONNECTION_HEADERS.contains(name)) {
+                headers.add(name);
+                headers.add(fields.getValue(i));
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Reads frames and dispatches streams until connection is closed. Client preface is read from buffer.
+     * @param upgrade headers of upgrade request served as stream 1 or null if connection was started with prior knowledge
+     * @param upgradeSettings settings sent by client in upgrade request, null with prior knowledge
+     * @param shedPriority maximum priority of route of first stream answered with 503, {@link LoadShedder#NONE} if it is not shed
+     * @throws IOException if I/O error
+     */
+    void serve(List<String> upgrade, byte[] upgradeSettings, int shedPriority) throws IOException {
+        this.shedPriority = shedPriority;
+        ByteBuffer pooled = BufferPool.getDefault().acquire(FRAME_SIZE);
+        byte[] frame = pooled.array();
+        try {
+            socket.setSoTimeout(idleTimeout);
+            writeSettings();
+            started = true;
+            if(closing)
+                goAway(NO_ERROR);
+            if(upgrade != null) {
+                applySettings(upgradeSettings, 0, upgradeSettings.length);
+                lastStreamId = 1;
+                open(1, upgrade, true, true);
+                if(!buffer.skipPrefix(PREFACE))
+                    throw new ConnectionError(PROTOCOL_ERROR, "Invalid connection preface");
+            }
+            boolean settingsReceived = false;
+            while(readFully(header, FRAME_HEADER, true)) {
+                int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+                int type = header[3] & 0xff;
+                int flags = header[4] & 0xff;
+                int stream = getInt(header, 5) & MAX_WINDOW;
+                if(length > FRAME_SIZE)
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+                readFully(frame, length, false);
+                if(!settingsReceived && type != SETTINGS)
+                    throw new ConnectionError(PROTOCOL_ERROR, "Connection preface doesn't start with SETTINGS");
+                settingsReceived = true;
+                if(pendingStream != 0 && (type != CONTINUATION || stream != pendingStream))
+                    throw new ConnectionError(PROTOCOL_ERROR, "Header block interrupted");
+                handleFrame(type, flags, stream, frame, length);
+            }
+        } catch (ConnectionError e) {
+            logger.info(socket + " HTTP/2 connection error " + e.error + " " + e.getMessage());
+            goAway(e.error);
+        } catch (HPACK.CompressionException e) {
+            logger.info(socket + " HTTP/2 compression error " + e.getMessage());
+            goAway(COMPRESSION_ERROR);
+        } finally {
+            BufferPool.getDefault().release(pooled);
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            for(Stream stream : streams.values())
+                stream.body.fail("Connection closed");
+        }
+    }
+
+    /**
+     * Starts graceful shutdown: GOAWAY is sent, new streams are refused and connection is closed when open streams are responded
+     * @param drained counter of requests responded during shutdown
+     */
+    void shutdown(AtomicInteger drained){
+        this.drained = drained;
+        closing = true;
+        goingAway = true;
+        if(started) {
+            try {
+                goAway(NO_ERROR);
+            } catch (IOException e) {
+                logger.info(socket + " IOException when sending GOAWAY " + e);
+            }
+        }
+        if(streams.isEmpty())
+            closeSocket();
+    }
+
+    /**
+     * @return true if any stream is open
+     */
+    boolean isActive(){
+        return !streams.isEmpty();
+    }
+
+    private void handleFrame(int type, int flags, int id, byte[] frame, int length) throws IOException, ConnectionError, HPACK.CompressionException {
+        switch (type) {
+            case DATA:
+                onData(flags, id, frame, length);
+                break;
+            case HEADERS: {
+                if(id == 0 || id % 2 == 0)
+                    throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream " + id);
+                int from = (flags & PADDED) != 0 ? 1 : 0;
+                int to = length - ((flags & PADDED) != 0 && length > 0 ? frame[0] & 0xff : 0);
+                if((flags & PRIORITY_FLAG) != 0)
+                    from += 5;
+                if(to < from)
+                    throw new ConnectionError(PROTOCOL_ERROR, "Invalid padding");
+                if((flags & END_HEADERS) != 0) {
+                    onHeaders(id, flags, frame, from, to);
+                } else {
+                    pendingStream = id;
+                    pendingFlags = flags;
+                    pendingBlock = Arrays.copyOfRange(frame, from, to);
+                }
+                break;
+            }
+            case CONTINUATION: {
+                if(pendingStream == 0)
+                    throw new ConnectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+                if(pendingBlock.length + length > MAX_HEADER_BLOCK)
+                    throw new ConnectionError(ENHANCE_YOUR_CALM, "Header block over " + MAX_HEADER_BLOCK + " bytes");
+                int size = pendingBlock.length;
+                pendingBlock = Arrays.copyOf(pendingBlock, size + length);
+                System.arraycopy(frame, 0, pendingBlock, size, length);
+                if((flags & END_HEADERS) != 0) {
+                    pendingStream = 0;
+                    onHeaders(id, pendingFlags, pendingBlock, 0, pendingBlock.length);
+                    pendingBlock = null;
+                }
+                break;
+            }
+            case PRIORITY:
+                if(id == 0)
+                    throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                if(length != 5)
+                    reset(id, FRAME_SIZE_ERROR);
+                break;
+            case RST_STREAM: {
+                if(id == 0 || id > lastStreamId)
+                    throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on idle stream " + id);
+                if(length != 4)
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes");
+                Stream stream = streams.get(id);
+                if(stream != null) {
+                    stream.reset = true;
+                    stream.body.fail("Stream reset by client");
+                    synchronized (this) {
+                        notifyAll();
+                    }
+                }
+                break;
+            }
+            case SETTINGS:
+                if(id != 0)
+                    throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on stream " + id);
+                if((flags & ACK) != 0) {
+                    if(length != 0)
+                        throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+                    break;
+                }
+                applySettings(frame, 0, length);
+                writeFrame(SETTINGS, ACK, 0, frame, 0, 0);
+                break;
+            case PUSH_PROMISE:
+                throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE sent by client");
+            case PING:
+                if(id != 0)
+                    throw new ConnectionError(PROTOCOL_ERROR, "PING on stream " + id);
+                if(length != 8)
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+                if((flags & ACK) == 0)
+                    writeFrame(PING, ACK, 0, frame, 0, 8);
+                break;
+            case GOAWAY:
+                if(id != 0)
+                    throw new ConnectionError(PROTOCOL_ERROR, "GOAWAY on stream " + id);
+                goingAway = true; // client doesn't start new streams, connection is closed when open ones are finished
+                if(streams.isEmpty())
+                    closeSocket();
+                break;
+            case WINDOW_UPDATE:
+                onWindowUpdate(id, frame, length);
+                break;
+            default: // unknown frames are ignored
+        }
+    }
+
+    private void onData(int flags, int id, byte[] frame, int length) throws IOException, ConnectionError {
+        if(id == 0 || id > lastStreamId)
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA on idle stream " + id);
+        int padding = (flags & PADDED) != 0 && length > 0 ? frame[0] & 0xff : 0;
+        int from = (flags & PADDED) != 0 ? 1 : 0;
+        if(length - from - padding < 0)
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid padding");
+        receiveWindow -= length;
+        if(receiveWindow < 0)
+            throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window exceeded");
+        if(DEFAULT_WINDOW - receiveWindow >= DEFAULT_WINDOW / 2) { // buffered data is limited by stream windows
+            windowUpdate(0, DEFAULT_WINDOW - receiveWindow);
+            receiveWindow = DEFAULT_WINDOW;
+        }
+
+        Stream stream = streams.get(id);
+        if(stream == null) // stream was already responded and reset, frames sent before reset was received are ignored
+            return;
+        if(stream.remoteClosed) {
+            reset(id, STREAM_CLOSED);
+            return;
+        }
+        boolean endStream = (flags & END_STREAM) != 0;
+        if(endStream) // before data is passed, so handler reading it doesn't see open stream
+            stream.remoteClosed = true;
+        int len = length - from - padding;
+        stream.received += len;
+        if(stream.declaredLength != -1 && stream.received > stream.declaredLength) {
+            reset(id, PROTOCOL_ERROR);
+            return;
+        }
+        if(!stream.body.data(frame, from, len, length - len)) {
+            reset(id, FLOW_CONTROL_ERROR);
+            return;
+        }
+        if(endStream) {
+            if(stream.declaredLength != -1 && stream.received != stream.declaredLength)
+                reset(id, PROTOCOL_ERROR);
+            else
+                stream.body.end();
+        }
+    }
+
+    private void onHeaders(int id, int flags, byte[] block, int from, int to) throws IOException, ConnectionError, HPACK.CompressionException {
+        List<String> headers = new ArrayList<>();
+        boolean fits = decoder.decode(block, from, to, headers, MAX_HEADER_LIST_SIZE);
+        if(id <= lastStreamId) {
+            Stream stream = streams.get(id);
+            if(stream == null || stream.remoteClosed)
+                throw new ConnectionError(STREAM_CLOSED, "HEADERS on closed stream " + id);
+            if((flags & END_STREAM) == 0) {
+                reset(id, PROTOCOL_ERROR);
+                return;
+            }
+            stream.remoteClosed = true; // trailers are not passed to handler
+            stream.body.end();
+            return;
+        }
+        lastStreamId = id;
+        if(goingAway || streams.size() >= MAX_CONCURRENT_STREAMS) {
+            reset(id, REFUSED_STREAM);
+            return;
+        }
+        open(id, headers, fits, (flags & END_STREAM) != 0);
+    }
+
+    private void open(int id, List<String> headers, boolean fits, boolean endStream) throws IOException {
+        Stream stream = new Stream(id, shedPriority);
+        shedPriority = LoadShedder.NONE; // only first request of connection which waited in queue may be shed
+        stream.limited = requests++ > 0 && !rateLimiter.test(clientAddress);
+        for(int i = 0; i < headers.size(); i += 2) {
+            if(headers.get(i).equals("content-length")) {
+                try {
+                    stream.declaredLength = Long.parseLong(headers.get(i + 1));
+                } catch (NumberFormatException ignored) {} // rejected by HTTPRequest
+            }
+        }
+        if(endStream) {
+            stream.remoteClosed = true;
+            stream.body.end();
+        }
+        streams.put(id, stream);
+        try {
+            executor.execute(() -> serveStream(stream, headers, fits, endStream));
+        } catch (RejectedExecutionException e) {
+            logger.warning(socket + " stream " + id + " refused " + e);
+            if(metrics != null)
+                metrics.rejected();
+            streams.remove(id);
+            reset(id, REFUSED_STREAM);
+        }
+    }
+
+    private void onWindowUpdate(int id, byte[] frame, int length) throws IOException, ConnectionError {
+        if(length != 4)
+            throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes");
+        int increment = getInt(frame, 0) & MAX_WINDOW;
+        if(id == 0) {
+            if(increment == 0)
+                throw new ConnectionError(PROTOCOL_ERROR, "Window increment 0");
+            synchronized (this) {
+                sendWindow += increment;
+                if(sendWindow > MAX_WINDOW)
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window over maximum");
+                notifyAll();
+            }
+            return;
+        }
+        Stream stream = streams.get(id);
+        if(stream == null)
+            return;
+        boolean overflow;
+        synchronized (this) {
+            stream.sendWindow += increment;
+            overflow = increment == 0 || stream.sendWindow > MAX_WINDOW;
+            notifyAll();
+        }
+        if(overflow)
+            reset(id, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+    }
+
+    private void applySettings(byte[] payload, int from, int to) throws ConnectionError {
+        if((to - from) % 6 != 0)
+            throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS of " + (to - from) + " bytes");
+        for(int i = from; i < to; i += 6) {
+            int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+            long value = getInt(payload, i + 2) & 0xffffffffL;
+            switch (id) {
+                case SETTINGS_ENABLE_PUSH:
+                    if(value > 1)
+                        throw new ConnectionError(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH " + value);
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if(value > MAX_WINDOW)
+                        throw new ConnectionError(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE " + value);
+                    synchronized (this) {
+                        long delta = value - initialSendWindow;
+                        initialSendWindow = value;
+                        for(Stream stream : streams.values())
+                            stream.sendWindow += delta;
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if(value < FRAME_SIZE || value > 0xffffff)
+                        throw new ConnectionError(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE " + value);
+                    break; // larger frames are allowed, but not needed
+                default: // header table size is not used by encoder, other settings are ignored
+            }
+        }
+    }
+
+    /**
+     * Serves stream on worker thread
+     * @param headers decoded request headers
+     * @param fits false if headers exceeded size limit
+     * @param endStream true if request has no body
+     */
+    private void serveStream(Stream stream, List<String> headers, boolean fits, boolean endStream){
+        RequestBuffer requestBuffer = null;
+        HTTPRequest request = null;
+        long received = -1;
+        try {
+            HTTPResponse response;
+            try {
+                if(!fits)
+                    throw new HTTPException(431, HTTPCodes.C431);
+                byte[] head = head(headers, endStream, stream.declaredLength == -1 && !endStream);
+                InputStream in = new ByteArrayInputStream(head);
+                requestBuffer = new RequestBuffer(endStream ? in : new SequenceInputStream(in, stream.body));
+                request = new HTTPRequest(requestBuffer, clientAddress, maxBodySize);
+                request.read();
+                received = System.nanoTime();
+                logger.info(socket + " stream " + stream.id + " request: " + request);
+                if(stream.limited)
+                    throw new HTTPException(429, HTTPCodes.C429);
+                if(stream.shedPriority != LoadShedder.NONE && forwarder.getPriority(request) <= stream.shedPriority) {
+                    if(metrics != null)
+                        metrics.shed();
+                    throw new HTTPException(503, HTTPCodes.C503, "Retry-After: 1");
+                }
+                response = forwarder.forward(request);
+            } catch (HTTPException e) {
+                response = exceptionHandler.handleHTTPException(e);
+            }
+            respond(stream, response, received);
+        } catch (IOException | UncheckedIOException e) {
+            logger.info(socket + " stream " + stream.id + " IOException " + e);
+            try {
+                if(!stream.reset && !closed)
+                    reset(stream.id, CANCEL);
+            } catch (IOException ignored) {}
+        } finally {
+            if(request != null)
+                request.release();
+            if(requestBuffer != null)
+                requestBuffer.release();
+            finish(stream);
+        }
+    }
+
+    /**
+     * Translates request headers to HTTP/1.1 request head
+     * @param empty true if request has no body
+     * @param chunked true if body of unknown length follows, it is fed with chunked transfer encoding
+     * @return request line and headers including empty line ending them
+     * @throws HTTPException 400 if request is malformed
+     */
+    static byte[] head(List<String> headers, boolean empty, boolean chunked) throws HTTPException {
+        String method = null, path = null, scheme = null, authority = null, cookie = null;
+        boolean regular = false, host = false, length = false;
+        StringBuilder fields = new StringBuilder(256);
+        for(int i = 0; i < headers.size(); i += 2) {
+            String name = headers.get(i);
+            String value = headers.get(i + 1);
+            if(!isValidValue(value))
+                throw new HTTPException(400, HTTPCodes.C400);
+            if(name.startsWith(":")) {
+                if(regular)
+                    throw new HTTPException(400, HTTPCodes.C400);
+                switch (name) {
+                    case ":method": if(method != null) throw new HTTPException(400, HTTPCodes.C400); method = value; break;
+                    case ":path": if(path != null) throw new HTTPException(400, HTTPCodes.C400); path = value; break;
+                    case ":scheme": if(scheme != null) throw new HTTPException(400, HTTPCodes.C400); scheme = value; break;
+                    case ":authority": if(authority != null) throw new HTTPException(400, HTTPCodes.C400); authority = value; break;
+                    default: throw new HTTPException(400, HTTPCodes.C400);
+                }
+                continue;
+            }
+            regular = true;
+            if(!isValidName(name) || (CONNECTION_HEADERS.contains(name) && !(name.equals("te") && value.equalsIgnoreCase("trailers"))))
+                throw new HTTPException(400, HTTPCodes.C400);
+            if(name.equals("te"))
+                continue;
+            if(name.equals("cookie")) { // split cookie header is joined for HTTP/1.1
+                cookie = cookie == null ? value : cookie + "; " + value;
+                continue;
+            }
+            host |= name.equals("host");
+            length |= name.equals("content-length");
+            fields.append(name).append(": ").append(value).append("\r\n");
+        }
+        if(method == null || path == null || scheme == null || path.isEmpty() || path.indexOf(' ') != -1)
+            throw new HTTPException(400, HTTPCodes.C400);
+
+        StringBuilder head = new StringBuilder(fields.length() + 64);
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        if(!host && authority != null)
+            head.append("host: ").append(authority).append("\r\n");
+        head.append(fields);
+        if(cookie != null)
+            head.append("cookie: ").append(cookie).append("\r\n");
+        if(chunked)
+            head.append("transfer-encoding: chunked\r\n");
+        else if(empty && !length)
+            head.append("content-length: 0\r\n");
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isValidName(String name){
+        if(name.isEmpty())
+            return false;
+        for(int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if(c <= ' ' || c >= 0x7f || c == ':' || (c >= 'A' && c <= 'Z'))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isValidValue(String value){
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c == '\r' || c == '\n' || c == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private void respond(Stream stream, HTTPResponse response, long received) throws IOException {
+        logger.info(socket + " stream " + stream.id + " " + response.getCode() + " " + response.getCodeDescription());
+        if(response.getCode() == 500)
+            logger.warning(socket + " 500 Status code returned");
+        try (ResponseBody body = response.getResponseBody()) {
+            long length = body.length();
+            writeHeaders(stream, responseHeaders(response, length), length == 0);
+            if(length != 0)
+                writeBody(stream, body, length);
+        }
+        if(closing)
+            drained.incrementAndGet();
+        if(metrics != null)
+            metrics.response(response.getCode(), received == -1 ? -1 : System.nanoTime() - received);
+    }
+
+    /**
+     * @return HPACK encoded header block of response
+     */
+    static byte[] responseHeaders(HTTPResponse response, long length){
+        ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+        HPACK.encodeStatus(block, response.getCode());
+        if(response.getType() != null)
+            HPACK.encode(block, "content-type", response.getType());
+        if(length != -1 && ResponseEncoder.hasBody(response.getCode()))
+            HPACK.encode(block, "content-length", Long.toString(length));
+        String headers = response.getHeaders();
+        if(headers != null && !headers.isEmpty()) {
+            for(String header : headers.split("\r?\n")) {
+                int colon = header.indexOf(':');
+                if(colon <= 0)
+                    continue;
+                String name = header.substring(0, colon).strip().toLowerCase(Locale.ROOT);
+                if(!CONNECTION_HEADERS.contains(name))
+                    HPACK.encode(block, name, header.substring(colon + 1).strip());
+            }
+        }
+        return block.toByteArray();
+    }
+
+    private void writeHeaders(Stream stream, byte[] block, boolean endStream) throws IOException {
+        int frames = Math.max(1, (block.length + FRAME_SIZE - 1) / FRAME_SIZE);
+        byte[] bytes = new byte[block.length + frames * FRAME_HEADER];
+        int pos = 0;
+        for(int i = 0; i < frames; i++) {
+            int from = i * FRAME_SIZE;
+            int len = Math.min(FRAME_SIZE, block.length - from);
+            int flags = (i == frames - 1 ? END_HEADERS : 0) | (i == 0 && endStream ? END_STREAM : 0);
+            putHeader(bytes, pos, len, i == 0 ? HEADERS : CONTINUATION, flags, stream.id);
+            System.arraycopy(block, from, bytes, pos + FRAME_HEADER, len);
+            pos += FRAME_HEADER + len;
+        }
+        write(stream, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Sends body in DATA frames within flow control windows. Data is copied from in-memory body or read from streamed one
+     * after space for frame header, so frame is written with single write.
+     * @param length length of body or -1 if it is unknown (end of stream is sent in empty frame)
+     */
+    private void writeBody(Stream stream, ResponseBody body, long length) throws IOException {
+        ByteBuffer pooled = BufferPool.getDefault().acquire(FRAME_HEADER + FRAME_SIZE);
+        try {
+            byte[] frame = pooled.array();
+            ByteBuffer data = ByteBuffer.wrap(frame, FRAME_HEADER, FRAME_SIZE);
+            ByteBuffer memory = body.buffer();
+            long sent = 0;
+            int len;
+            while((len = memory != null ? copy(memory, data) : body.read(data)) != -1) {
+                for(int off = 0; off < len; ) {
+                    int n = acquireWindow(stream, len - off);
+                    sent += n;
+                    // header is written over already sent data
+                    putHeader(frame, off, n, DATA, sent == length ? END_STREAM : 0, stream.id);
+                    write(stream, frame, off, FRAME_HEADER + n);
+                    off += n;
+                }
+                data.position(FRAME_HEADER);
+            }
+            if(length == -1) {
+                putHeader(frame, 0, 0, DATA, END_STREAM, stream.id);
+                write(stream, frame, 0, FRAME_HEADER);
+            } else if(sent != length) {
+                throw new IOException("Body ended " + (length - sent) + " bytes before declared length");
+            }
+        } finally {
+            BufferPool.getDefault().release(pooled);
+        }
+    }
+
+    /**
+     * Copies next part of in-memory body
+     * @return number of bytes copied or -1 if whole body was copied
+     */
+    private static int copy(ByteBuffer memory, ByteBuffer data){
+        if(!memory.hasRemaining())
+            return -1;
+        int len = Math.min(memory.remaining(), data.remaining());
+        memory.get(data.array(), data.arrayOffset() + data.position(), len);
+        data.position(data.position() + len);
+        return len;
+    }
+
+    /**
+     * Waits until client allows to send data on stream
+     * @param wanted number of bytes to send
+     * @return number of bytes that may be sent, at least 1
+     * @throws IOException if stream was reset or connection closed
+     */
+    private synchronized int acquireWindow(Stream stream, int wanted) throws IOException {
+        while((sendWindow <= 0 || stream.sendWindow <= 0) && !stream.reset && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for flow control window");
+            }
+        }
+        if(stream.reset || closed)
+            throw new IOException(closed ? "Connection closed" : "Stream reset by client");
+        int n = (int) Math.min(wanted, Math.min(sendWindow, stream.sendWindow));
+        sendWindow -= n;
+        stream.sendWindow -= n;
+        return n;
+    }
+
+    /**
+     * Removes responded stream. Client is asked to stop sending body, which was not read.
+     */
+    private void finish(Stream stream){
+        streams.remove(stream.id);
+        stream.body.fail("Stream closed");
+        if(!stream.remoteClosed && !stream.reset && !closed) {
+            try {
+                reset(stream.id, NO_ERROR);
+            } catch (IOException ignored) {}
+        }
+        if(goingAway && streams.isEmpty())
+            closeSocket();
+    }
+
+    private void reset(int id, int error) throws IOException {
+        Stream stream = streams.get(id);
+        if(stream != null) {
+            stream.reset = true;
+            stream.body.fail("Stream reset");
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+        byte[] payload = new byte[4];
+        putInt(payload, 0, error);
+        writeFrame(RST_STREAM, 0, id, payload, 0, 4);
+    }
+
+    private void windowUpdate(int id, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, id, payload, 0, 4);
+    }
+
+    private void goAway(int error) throws IOException {
+        byte[] payload = new byte[8];
+        putInt(payload, 0, lastStreamId);
+        putInt(payload, 4, error);
+        writeFrame(GOAWAY, 0, 0, payload, 0, 8);
+    }
+
+    private void writeSettings() throws IOException {
+        byte[] payload = new byte[12];
+        putSetting(payload, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+        putSetting(payload, 6, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+        writeFrame(SETTINGS, 0, 0, payload, 0, payload.length);
+    }
+
+    private void writeFrame(int type, int flags, int id, byte[] payload, int off, int len) throws IOException {
+        byte[] frame = new byte[FRAME_HEADER + len];
+        putHeader(frame, 0, len, type, flags, id);
+        System.arraycopy(payload, off, frame, FRAME_HEADER, len);
+        write(null, frame, 0, frame.length);
+    }
+
+    /**
+     * Writes frames, frames of stream are not written after it was reset
+     * @param stream stream of frames or null for connection frames
+     */
+    private void write(Stream stream, byte[] bytes, int off, int len) throws IOException {
+        synchronized (writeLock) {
+            if(stream != null && stream.reset)
+                throw new IOException("Stream reset");
+            out.write(bytes, off, len);
+            out.flush();
+        }
+    }
+
+    /**
+     * Reads bytes, waiting while streams are open
+     * @param frameStart true if reading starts new frame, connection may be closed at this point
+     * @return false if connection was closed or idle timeout passed before frame
+     */
+    private boolean readFully(byte[] dst, int len, boolean frameStart) throws IOException {
+        int pos = 0;
+        while(pos < len) {
+            int n;
+            try {
+                n = buffer.read(dst, pos, len - pos);
+            } catch (SocketTimeoutException e) {
+                if(frameStart && pos == 0 && streams.isEmpty()) {
+                    logger.fine(socket + " HTTP/2 idle timeout");
+                    goAway(NO_ERROR);
+                    return false;
+                }
+                continue;
+            } catch (IOException e) {
+                if(closing || goingAway) // closed after last stream
+                    return false;
+                throw e;
+            }
+            if(n == -1) {
+                if(frameStart && pos == 0)
+                    return false;
+                throw new EOFException("Connection closed in the middle of frame");
+            }
+            pos += n;
+        }
+        return true;
+    }
+
+    private void closeSocket(){
+        try{ socket.close(); } catch (IOException e) { logger.info(socket + " IOException when closing " + e); }
+    }
+
+    private static void putHeader(byte[] frame, int off, int length, int type, int flags, int id){
+        frame[off] = (byte) (length >>> 16);
+        frame[off + 1] = (byte) (length >>> 8);
+        frame[off + 2] = (byte) length;
+        frame[off + 3] = (byte) type;
+        frame[off + 4] = (byte) flags;
+        putInt(frame, off + 5, id);
+    }
+
+    private static void putSetting(byte[] payload, int off, int id, int value){
+        payload[off] = (byte) (id >>> 8);
+        payload[off + 1] = (byte) id;
+        putInt(payload, off + 2, value);
+    }
+
+    private static void putInt(byte[] dst, int off, int value){
+        dst[off] = (byte) (value >>> 24);
+        dst[off + 1] = (byte) (value >>> 16);
+        dst[off + 2] = (byte) (value >>> 8);
+        dst[off + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] src, int off){
+        return ((src[off] & 0xff) << 24) | ((src[off + 1] & 0xff) << 16) | ((src[off + 2] & 0xff) << 8) | (src[off + 3] & 0xff);
+    }
+
+    /**
+     * Error after which connection is closed with GOAWAY
+     */
+    private static final class ConnectionError extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        ConnectionError(int error, String message){
+            super(message);
+            this.error = error;
+        }
+
+        private final int error;
+    }
+
+    /**
+     * State of stream shared by connection thread and worker serving it
+     */
+    private final class Stream {
+        Stream(int id, int shedPriority){
+            this.id = id;
+            this.shedPriority = shedPriority;
+            this.sendWindow = initialSendWindow;
+            this.body = new RequestBody(this);
+        }
+
+        private final int id;
+        private final int shedPriority;
+        private final RequestBody body;
+        private long sendWindow; // guarded by connection
+        private volatile boolean remoteClosed = false; // client sent END_STREAM
+        private volatile boolean reset = false;
+        private boolean limited = false; // rate limit exceeded
+        private long declaredLength = -1; // content-length sent by client
+        private long received = 0;
+    }
+
+    /**
+     * Body of request fed by connection thread from DATA frames. Body of unknown length is fed with chunked transfer encoding.
+     * Stream window is updated when handler reads data.
+     */
+    private final class RequestBody extends InputStream {
+        RequestBody(Stream stream){
+            this.stream = stream;
+        }
+
+        /**
+         * @param padding bytes of frame which are not data, counted to window
+         * @return false if stream window was exceeded
+         */
+        synchronized boolean data(byte[] src, int off, int len, int padding){
+            window -= len + padding;
+            if(window < 0)
+                return false;
+            credit += padding;
+            if(failure != null)
+                return true;
+            boolean chunked = stream.declaredLength == -1;
+            if(chunked && len > 0)
+                chunks.add(new Chunk((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII), false));
+            if(len > 0)
+                chunks.add(new Chunk(Arrays.copyOfRange(src, off, off + len), true));
+            if(chunked && len > 0)
+                chunks.add(new Chunk(CRLF, false));
+            notifyAll();
+            return true;
+        }
+
+        synchronized void end(){
+            if(stream.declaredLength == -1)
+                chunks.add(new Chunk(LAST_CHUNK, false));
+            ended = true;
+            notifyAll();
+        }
+
+        synchronized void fail(String reason){
+            if(failure == null)
+                failure = reason;
+            chunks.clear();
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n, increment = 0;
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + readTimeout;
+                while(chunks.isEmpty() && !ended && failure == null) {
+                    long remaining = readTimeout == 0 ? 0 : deadline - System.currentTimeMillis();
+                    if(readTimeout != 0 && remaining <= 0)
+                        throw new SocketTimeoutException("Timeout waiting for request body");
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for request body");
+                    }
+                }
+                if(failure != null)
+                    throw new IOException(failure);
+                Chunk chunk = chunks.peek();
+                if(chunk == null)
+                    return -1;
+                n = Math.min(len, chunk.bytes.length - chunk.pos);
+                System.arraycopy(chunk.bytes, chunk.pos, b, off, n);
+                chunk.pos += n;
+                if(chunk.pos == chunk.bytes.length)
+                    chunks.poll();
+                if(chunk.data)
+                    credit += n;
+                if(credit >= DEFAULT_WINDOW / 2 && !ended) {
+                    increment = credit;
+                    window += credit;
+                    credit = 0;
+                }
+            }
+            if(increment > 0) // written outside of lock, so connection thread adding data is not blocked by socket
+                windowUpdate(stream.id, increment);
+            return n;
+        }
+
+        private final Stream stream;
+        private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+        private int window = DEFAULT_WINDOW; // receive window of stream
+        private int credit = 0; // bytes consumed and not announced to client yet
+        private boolean ended = false;
+        private String failure;
+    }
+
+    private static final class Chunk {
+        Chunk(byte[] bytes, boolean data){
+            this.bytes = bytes;
+            this.data = data;
+        }
+
+        private final byte[] bytes;
+        private final boolean data; // request data counted to window, not chunk framing
+        private int pos = 0;
+    }
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final Socket socket;
+    private final RequestBuffer buffer;
+    private final OutputStream out;
+    private final APIForwarder forwarder;
+    private final HTTPExceptionHandler exceptionHandler;
+    private final Executor executor;
+    private final int readTimeout;
+    private final int idleTimeout;
+    private final long maxBodySize;
+    private final Predicate<String> rateLimiter;
+    private final Metrics metrics;
+    private final String clientAddress;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final HPACK.Decoder decoder = new HPACK.Decoder(HEADER_TABLE_SIZE);
+    private final Object writeLock = new Object();
+    private final byte[] header = new byte[FRAME_HEADER];
+    private volatile int lastStreamId = 0;
+    private int requests = 0; // streams opened, used by connection thread only
+    private int shedPriority = LoadShedder.NONE;
+    private int receiveWindow = DEFAULT_WINDOW; // connection receive window, credited by connection thread
+    private long sendWindow = DEFAULT_WINDOW; // guarded by this
+    private long initialSendWindow = DEFAULT_WINDOW; // guarded by this
+    private int pendingStream = 0; // stream of header block continued in CONTINUATION frames
+    private int pendingFlags;
+    private byte[] pendingBlock;
+    private volatile boolean started = false;
+    private volatile boolean closing = false;
+    private volatile boolean goingAway = false;
+    private volatile boolean closed = false;
+    private volatile AtomicInteger drained;
+    private final Logger logger = Logger.getLogger(HTTP2Connection.class.getName());
+}
@@ -0,0 +1,115 @@
+package eu.piotro.rest2api.tcp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive load shedding driven by time spent by tasks in executor queue (CoDel, RFC 8289).
+ * <p>Queue length alone doesn't tell if server is overloaded: a long queue of fast requests is fine, while a short queue
+ * of slow ones already makes clients wait. Shedder watches sojourn time of dequeued tasks instead. When it stays above
+ * {@code target} for whole {@code interval}, shedder starts dropping tasks at rate growing with square root of number of drops,
+ * until sojourn time falls below target again. Dropped connections are answered with {@code 503} and {@code Retry-After}.</p>
+ * <p>Tasks are shed according to priority of requested route ({@link eu.piotro.rest2api.api.APIForwarder#setPriority(String, String, int)}):
+ * routes with negative priority are shed as soon as sojourn time exceeds target, routes with priority 0 are shed by CoDel
+ * control law and routes with positive priority (ex. health checks) are never shed.</p>
+ * @see Server.Builder#loadShedding(int, int)
+ * @since 1.4
+ */
+public final class LoadShedder {
+    /**
+     * Verdict of {@link #onDequeue(long, long)}: task is not shed
+     */
+    static final int NONE = Integer.MIN_VALUE;
+
+    /**
+     * Creates shedder
+     * @param targetMillis acceptable queue sojourn time in milliseconds
+     * @param intervalMillis time in milliseconds for which sojourn time may exceed target before shedding starts, should be
+     *                       about the usual request processing time
+     */
+    public LoadShedder(int targetMillis, int intervalMillis){
+        if(targetMillis <= 0 || intervalMillis <= 0)
+            throw new IllegalArgumentException("target and interval must be positive");
+        this.target = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.interval = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    /**
+     * Task, which may be shed instead of being run
+     */
+    public interface Sheddable extends Runnable {
+        /**
+         * Called by executor instead of {@link #run()} under overload. Task should respond with 503 if priority of
+         * request is not higher than {@code maxPriority}, otherwise process it normally.
+         * @param maxPriority maximum priority of shed requests
+         */
+        void shed(int maxPriority);
+    }
+
+    /**
+     * Runs task dequeued by worker, or sheds it if queue is overloaded
+     * @param task dequeued task
+     * @param enqueued {@link System#nanoTime()} when task was queued
+     */
+    void run(Runnable task, long enqueued){
+        if(!(task instanceof Sheddable)) {
+            task.run();
+            return;
+        }
+        long now = System.nanoTime();
+        int verdict = onDequeue(now - enqueued, now);
+        if(verdict == NONE)
+            task.run();
+        else
+            ((Sheddable) task).shed(verdict);
+    }
+
+    /**
+     * CoDel state machine, called on every dequeue
+     * @param sojourn time spent by task in queue in nanoseconds
+     * @param now current {@link System#nanoTime()}
+     * @return {@link #NONE} or maximum priority of request to shed: -1 if only sojourn time is above target, 0 if task is dropped
+     */
+    int onDequeue(long sojourn, long now){
+        if(sojourn < target && firstAboveTime == 0 && !dropping) // fast path, not overloaded
+            return NONE;
+
+        synchronized (this) {
+            boolean okToDrop = false;
+            if(sojourn < target) {
+                firstAboveTime = 0;
+            } else if(firstAboveTime == 0) {
+                firstAboveTime = now + interval;
+            } else if(now - firstAboveTime >= 0) {
+                okToDrop = true;
+            }
+
+            if(dropping) {
+                if(!okToDrop) {
+                    dropping = false;
+                } else if(now - dropNext >= 0) {
+                    count++;
+                    dropNext = controlLaw(dropNext);
+                    return 0;
+                }
+            } else if(okToDrop) {
+                dropping = true;
+                // drop rate is reused if dropping state was left recently
+                count = count > 2 && now - dropNext < 16 * interval ? count - 2 : 1;
+                dropNext = controlLaw(now);
+                return 0;
+            }
+            return sojourn < target ? NONE : -1;
+        }
+    }
+
+    private long controlLaw(long time){
+        return time + (long) (interval / Math.sqrt(count));
+    }
+
+    private final long target;
+    private final long interval;
+    private volatile long firstAboveTime = 0; // time when sojourn time is above target for whole interval, 0 if it is below target
+    private volatile boolean dropping = false;
+    private long dropNext = 0;
+    private int count = 0;
+}
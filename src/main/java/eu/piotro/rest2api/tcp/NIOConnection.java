@@ -0,0 +1,265 @@
+package eu.piotro.rest2api.tcp;
+
+import eu.piotro.rest2api.http.HTTPException;
+import eu.piotro.rest2api.http.HTTPRequest;
+import eu.piotro.rest2api.http.HTTPResponse;
+import eu.piotro.rest2api.http.RequestBuffer;
+import eu.piotro.rest2api.http.ResponseBody;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * State of single non-blocking connection handled by {@link EventLoop}.
+ * Incoming bytes are parsed incrementally as they arrive, until complete request is received.
+ * Connection may be reused for next requests, see {@link #reset()}.
+ * @since 1.4
+ */
+class NIOConnection {
+    enum State { READING, PROCESSING, WRITING }
+    enum WriteResult { DONE, PENDING, NEEDS_DATA }
+
+    /**
+     * @param channel accepted channel
+     * @param key selection key of channel
+     * @param readTimeout time in milliseconds to timeout request reading
+     * @param keepAliveTimeout time in milliseconds to wait for next request on persistent connection
+     * @param maxBodySize maximum size of request body in bytes
+     */
+    NIOConnection(SocketChannel channel, SelectionKey key, int readTimeout, int keepAliveTimeout, long maxBodySize){
+        this.channel = channel;
+        this.key = key;
+        this.readTimeout = readTimeout;
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.maxBodySize = maxBodySize;
+        this.clientAddress = channel.socket().getInetAddress().getHostAddress();
+        this.deadline = System.currentTimeMillis() + readTimeout;
+        this.request = new HTTPRequest(buffer, clientAddress, maxBodySize);
+    }
+
+    /**
+     * Reads available bytes from channel
+     * @return true if complete request was received
+     * @throws IOException if I/O error or client closed connection
+     * @throws HTTPException if request is invalid or too large
+     */
+    boolean read() throws IOException, HTTPException {
+        while(true) {
+            int len = buffer.fill(channel);
+            if(len == -1)
+                throw new IOException("Client closed connection");
+            if(idle && buffer.hasRemaining()) { // next request started, read timeout applies from now
+                idle = false;
+                deadline = System.currentTimeMillis() + readTimeout;
+            }
+            if(request.parse())
+                return true;
+            if(len == 0)
+                return false;
+        }
+    }
+
+    /**
+     * @return true if complete request is buffered
+     * @throws HTTPException if request is invalid or too large
+     */
+    boolean isComplete() throws HTTPException {
+        return request.parse();
+    }
+
+    /**
+     * Prepares connection for next request on persistent connection. Already received bytes of pipelined requests are kept.
+     */
+    void reset(){
+        request.release();
+        buffer.trim(); // idle connection doesn't hold buffer
+        request = new HTTPRequest(buffer, clientAddress, maxBodySize);
+        out = null;
+        received = -1;
+        idle = !buffer.hasRemaining();
+        deadline = System.currentTimeMillis() + (idle ? keepAliveTimeout : readTimeout);
+        state = State.READING;
+    }
+
+    /**
+     * Writes pending response bytes with gathering write. File region body is transferred directly to socket.
+     * Read timeout applies from last write progress, so peer which stops reading response times out.
+     * @return {@link WriteResult#DONE} if whole response was written, {@link WriteResult#PENDING} if socket buffer is full
+     * or {@link WriteResult#NEEDS_DATA} if next part of streamed body must be read with {@link #readBody()}
+     * @throws IOException if I/O error
+     */
+    WriteResult write() throws IOException {
+        while(true) {
+            if(out != null) {
+                if(channel.write(out) > 0)
+                    deadline = System.currentTimeMillis() + readTimeout;
+                if(out[out.length - 1].hasRemaining())
+                    return WriteResult.PENDING;
+                out = null;
+            }
+            if(body == null)
+                return WriteResult.DONE;
+            if(!body.isFileRegion())
+                return WriteResult.NEEDS_DATA;
+
+            long len = body.transferTo(channel);
+            if(len == -1) {
+                closeBody();
+                return WriteResult.DONE;
+            }
+            if(len == 0)
+                return WriteResult.PENDING;
+            deadline = System.currentTimeMillis() + readTimeout;
+        }
+    }
+
+    /**
+     * Reads next part of streamed body to be written. May block, so it is called from worker thread.
+     * @throws IOException if body can't be read
+     */
+    void readBody() throws IOException {
+        readingBody = true;
+        try {
+            readBodyChunk();
+        } finally {
+            deadline = System.currentTimeMillis() + readTimeout; // time of reading body is not counted to peer
+            readingBody = false;
+        }
+    }
+
+    private void readBodyChunk() throws IOException {
+        if(chunk == null)
+            chunk = BufferPool.getDefault().acquire(ResponseEncoder.CHUNK_SIZE); // heap buffer, stream is read into its array
+        chunk.clear();
+        int len;
+        do {
+            len = body.read(chunk);
+        } while(len == 0);
+
+        if(len == -1) {
+            closeBody();
+            releaseChunk();
+            out = chunked ? new ByteBuffer[] { ByteBuffer.wrap(ResponseEncoder.LAST_CHUNK) } : null;
+            return;
+        }
+        chunk.flip();
+        if(chunked)
+            out = new ByteBuffer[] { ByteBuffer.wrap(ResponseEncoder.chunkHeader(len)), chunk, ByteBuffer.wrap(ResponseEncoder.CRLF) };
+        else
+            out = new ByteBuffer[] { chunk };
+    }
+
+    /**
+     * Sets response to be written. In-memory body is written together with head, streamed body is written in parts.
+     * @param response response to write
+     * @param keepAlive if connection is kept open after response
+     */
+    void setResponse(HTTPResponse response, boolean keepAlive){
+        status = response.getCode();
+        ResponseBody responseBody = response.getResponseBody();
+        ByteBuffer head = ByteBuffer.wrap(ResponseEncoder.encodeHead(response, responseBody.length(), keepAlive));
+        ByteBuffer memory = responseBody.buffer();
+        if(memory != null) {
+            out = new ByteBuffer[] { head, memory };
+        } else {
+            out = new ByteBuffer[] { head };
+            body = responseBody;
+            chunked = responseBody.length() == -1;
+        }
+        this.keepAlive = keepAlive;
+        deadline = System.currentTimeMillis() + readTimeout;
+        state = State.WRITING;
+    }
+
+    /**
+     * @param timeout timeout checking deadline of this connection
+     */
+    void setTimeout(TimingWheel.Timeout timeout){
+        this.timeout = timeout;
+    }
+
+    void cancelTimeout(){
+        TimingWheel.Timeout timeout = this.timeout;
+        if(timeout != null)
+            timeout.cancel();
+    }
+
+    /**
+     * Returns buffers of closed connection to pool. Buffers still used by worker (request in progress or body being
+     * read when connection is aborted) are left to garbage collector.
+     */
+    void releaseBuffers(){
+        if(state == State.PROCESSING || readingBody)
+            return;
+        buffer.release();
+        releaseChunk();
+    }
+
+    private void releaseChunk(){
+        if(chunk == null)
+            return;
+        BufferPool.getDefault().release(chunk);
+        chunk = null;
+    }
+
+    /**
+     * Closes streamed body (if it was not fully sent)
+     */
+    void closeBody(){
+        if(body == null)
+            return;
+        try {
+            body.close();
+        } catch (IOException ignored) {}
+        body = null;
+    }
+
+    /**
+     * Counts request served on this connection
+     * @return number of requests including this one
+     */
+    int countRequest(){
+        return ++served;
+    }
+
+    SocketChannel getChannel() { return channel; }
+    SelectionKey getKey() { return key; }
+    HTTPRequest getRequest() { return request; }
+    State getState() { return state; }
+    void setState(State state) { this.state = state; }
+    long getDeadline() { return deadline; }
+    long getReceived() { return received; }
+    void setReceived(long received) { this.received = received; }
+    int getStatus() { return status; }
+    boolean isIdle() { return idle; }
+    boolean isKeepAlive() { return keepAlive; }
+
+    @Override
+    public String toString() {
+        return channel.socket().toString();
+    }
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final int readTimeout;
+    private final int keepAliveTimeout;
+    private final long maxBodySize;
+    private final String clientAddress;
+    private final RequestBuffer buffer = new RequestBuffer();
+    private HTTPRequest request;
+    private volatile long deadline; // moved by worker thread when response is set or body is read
+    private long received = -1; // System.nanoTime() when request was dispatched, -1 if it is not measured
+    private int status;
+    private volatile TimingWheel.Timeout timeout;
+    private boolean idle = false;
+    private boolean keepAlive = false;
+    private int served = 0;
+    private ByteBuffer[] out;
+    private ResponseBody body;
+    private boolean chunked;
+    private ByteBuffer chunk; // buffer of streamed body, taken from pool while body is sent
+    private volatile boolean readingBody = false;
+    private volatile State state = State.READING;
+}
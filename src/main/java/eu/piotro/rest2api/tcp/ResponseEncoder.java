@@ -0,0 +1,211 @@
+package eu.piotro.rest2api.tcp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import eu.piotro.rest2api.http.HTTPResponse;
+import eu.piotro.rest2api.http.ResponseBody;
+
+/**
+ * Encodes {@link HTTPResponse} to bytes sent to client.
+ * Status lines and common headers are copied from cached byte arrays, text body is encoded to UTF-8 once and
+ * Content-Length is its length in bytes. Bodies of unknown length are sent with chunked transfer encoding.
+ * Buffers used to assemble writes are taken from {@link BufferPool}.
+ * @since 1.4
+ */
+final class ResponseEncoder {
+    private static final int SINGLE_WRITE_LIMIT = 64 * 1024;
+    private static final int MAX_CACHED_TYPES = 256;
+    private static final int CHUNK_HEADER_SPACE = 10; // hex size of int and CRLF
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private ResponseEncoder() {}
+
+    /**
+     * Writes response to stream. In-memory response is written with single write, unless body is large.
+     * Streamed body is copied in parts, with chunked transfer encoding if its length is unknown. Body is closed after write.
+     * @param out stream to write to
+     * @param response response to write
+     * @param keepAlive if connection is kept open after response
+     * @throws IOException if I/O error or body can't be read
+     */
+    static void write(OutputStream out, HTTPResponse response, boolean keepAlive) throws IOException {
+        try (ResponseBody body = response.getResponseBody()) {
+            byte[] head = encodeHead(response, body.length(), keepAlive);
+            ByteBuffer memory = body.buffer();
+            if(memory != null)
+                writeMemory(out, head, memory);
+            else
+                writeStream(out, head, body);
+            out.flush();
+        }
+    }
+
+    private static void writeMemory(OutputStream out, byte[] head, ByteBuffer body) throws IOException {
+        int length = body.remaining();
+        if(length > SINGLE_WRITE_LIMIT && body.hasArray()) { // don't copy large body only to save one syscall
+            out.write(head);
+            out.write(body.array(), body.arrayOffset() + body.position(), length);
+        } else {
+            ByteBuffer pooled = BufferPool.getDefault().acquire(head.length + length);
+            try {
+                byte[] whole = pooled.array();
+                System.arraycopy(head, 0, whole, 0, head.length);
+                body.get(whole, head.length, length);
+                out.write(whole, 0, head.length + length);
+            } finally {
+                BufferPool.getDefault().release(pooled);
+            }
+        }
+    }
+
+    private static void writeStream(OutputStream out, byte[] head, ResponseBody body) throws IOException {
+        out.write(head);
+        boolean chunked = body.length() == -1;
+        // data is read after space for chunk size line, so chunk is written with single write
+        ByteBuffer pooled = BufferPool.getDefault().acquire(CHUNK_SIZE);
+        try {
+            byte[] chunk = pooled.array();
+            ByteBuffer data = ByteBuffer.wrap(chunk, CHUNK_HEADER_SPACE, chunk.length - CHUNK_HEADER_SPACE - CRLF.length);
+            int len;
+            while((len = body.read(data)) != -1) {
+                if(len == 0)
+                    continue;
+                if(chunked) {
+                    byte[] size = chunkHeader(len);
+                    System.arraycopy(size, 0, chunk, CHUNK_HEADER_SPACE - size.length, size.length);
+                    put(chunk, CHUNK_HEADER_SPACE + len, CRLF);
+                    out.write(chunk, CHUNK_HEADER_SPACE - size.length, size.length + len + CRLF.length);
+                } else {
+                    out.write(chunk, CHUNK_HEADER_SPACE, len);
+                }
+                data.position(CHUNK_HEADER_SPACE);
+            }
+        } finally {
+            BufferPool.getDefault().release(pooled);
+        }
+        if(chunked)
+            out.write(LAST_CHUNK);
+    }
+
+    /**
+     * @param size size of chunk data
+     * @return chunk size line of chunked transfer encoding
+     */
+    static byte[] chunkHeader(int size){
+        return (Integer.toHexString(size) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Encodes head of response. Content-Length and Transfer-Encoding are omitted for 1xx, 204 and 304 responses,
+     * as they don't have body (RFC 9110 section 8.6).
+     * @param response response to encode
+     * @param contentLength length of body in bytes or -1 for chunked transfer encoding
+     * @param keepAlive if connection is kept open after response
+     * @return status line and headers including empty line ending them
+     */
+    static byte[] encodeHead(HTTPResponse response, long contentLength, boolean keepAlive){
+        byte[] status = statusLine(response.getCode(), response.getCodeDescription());
+        byte[] type = contentType(response.getType());
+        byte[] connection = keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE;
+        byte[] headers = response.getHeaders() == null || response.getHeaders().isEmpty() ? null : response.getHeaders().getBytes(StandardCharsets.UTF_8);
+        boolean framed = hasBody(response.getCode());
+        int lengthDigits = contentLength == -1 ? 0 : digits(contentLength);
+        int lengthSize = !framed ? 0 : contentLength == -1 ? TRANSFER_ENCODING_CHUNKED.length : CONTENT_LENGTH.length + lengthDigits + CRLF.length;
+
+        int size = status.length + type.length + lengthSize + connection.length
+                + (headers != null ? headers.length + CRLF.length : 0) + CRLF.length;
+        byte[] head = new byte[size];
+        int pos = put(head, 0, status);
+        pos = put(head, pos, type);
+        if(framed && contentLength == -1) {
+            pos = put(head, pos, TRANSFER_ENCODING_CHUNKED);
+        } else if(framed) {
+            pos = put(head, pos, CONTENT_LENGTH);
+            for(int i = lengthDigits - 1; i >= 0; i--, contentLength /= 10)
+                head[pos + i] = (byte) ('0' + contentLength % 10);
+            pos = put(head, pos + lengthDigits, CRLF);
+        }
+        pos = put(head, pos, connection);
+        if(headers != null) {
+            pos = put(head, pos, headers);
+            pos = put(head, pos, CRLF);
+        }
+        put(head, pos, CRLF);
+        return head;
+    }
+
+    /**
+     * @return false for status codes of responses, which never have body: 1xx, 204 and 304
+     */
+    static boolean hasBody(int code){
+        return code >= 200 && code != 204 && code != 304;
+    }
+
+    private static byte[] statusLine(int code, String description){
+        if(code < 0 || code >= statusLines.length)
+            return encodeStatusLine(code, description);
+        StatusLine cached = statusLines[code];
+        if(cached == null || !Objects.equals(cached.description, description)) {
+            cached = new StatusLine(description, encodeStatusLine(code, description));
+            statusLines[code] = cached;
+        }
+        return cached.bytes;
+    }
+
+    private static byte[] encodeStatusLine(int code, String description){
+        return ("HTTP/1.1 " + code + " " + description + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] contentType(String type){
+        type = String.valueOf(type);
+        byte[] cached = contentTypes.get(type);
+        if(cached == null) {
+            cached = ("Content-Type: " + type + "\r\n").getBytes(StandardCharsets.UTF_8);
+            if(contentTypes.size() < MAX_CACHED_TYPES)
+                contentTypes.put(type, cached);
+        }
+        return cached;
+    }
+
+    private static int put(byte[] dst, int pos, byte[] src){
+        System.arraycopy(src, 0, dst, pos, src.length);
+        return pos + src.length;
+    }
+
+    private static int digits(long value){
+        int digits = 1;
+        while(value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * Encoded status line with description it was created for (description of code may be customized)
+     */
+    private static final class StatusLine {
+        StatusLine(String description, byte[] bytes){
+            this.description = description;
+            this.bytes = bytes;
+        }
+
+        private final String description;
+        private final byte[] bytes;
+    }
+
+    static final byte[] CRLF = {'\r', '\n'};
+    static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = "Transfer-Encoding: chunked\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION_KEEP_ALIVE = "Connection: keep-alive\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION_CLOSE = "Connection: close\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final StatusLine[] statusLines = new StatusLine[1000]; // StatusLine is immutable, so racy caching is safe
+    private static final ConcurrentHashMap<String, byte[]> contentTypes = new ConcurrentHashMap<>();
+}
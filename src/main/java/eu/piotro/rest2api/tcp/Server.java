@@ -1,25 +1,46 @@
 package eu.piotro.rest2api.tcp;
 
 import eu.piotro.rest2api.api.APIForwarder;
+import eu.piotro.rest2api.api.RateLimiter;
+import eu.piotro.rest2api.api.TokenBucketRateLimiter;
+import eu.piotro.rest2api.metrics.Metrics;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
  * Socket server for HTTP
  * @since 0.1
  */
-public class Server {
+public class Server implements AutoCloseable {
     private static final int defaultMaxThreads = 10;
     private static final int defaultMinKeepThreads = 1;
     private static final int defaultInactiveWorkerTimeout = 10;
     private static final int defaultReadTimeout = 5000;
     private static final int defaultMaxQueueSize = 100;
     private static final int defaultRateLimit = 10;
+    private static final int defaultEventLoops = 1;
+    private static final int defaultKeepAliveTimeout = 5000;
+    private static final int defaultMaxKeepAliveRequests = 100;
+    private static final int defaultBlockingMaxKeepAliveRequests = 1; // idle connection of blocking engine occupies worker
+    private static final long defaultMaxBodySize = 8 * 1024 * 1024;
+    private static final long defaultShutdownTimeout = 10_000;
+    private static final int TIMER_TICK = 10;
+    private static final byte[] TOO_MANY_REQUESTS = "HTTP/1.1 429 Too Many Requests\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SERVICE_UNAVAILABLE = "HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
 
     /**
      * Create server with custom parameters
@@ -30,17 +51,12 @@ public class Server {
      * @param inactiveWorkerTimeout time in seconds to keep inactive handlers over minimum limit
      * @param readTimeout time in milliseconds to timeout request reading
      * @param maxQueueSize maximum number of waiting connections
-     * @param rateLimit maximum number of connections from one IP address per second
+     * @param rateLimit maximum number of connections (and subsequent requests on persistent connections) from one IP address per second
      * @throws IOException if I/O error when creating ServerSocket ex. cannot bind to port
      */
     public Server (int port, APIForwarder forwarder, int maxThreads, int minKeepThreads, int inactiveWorkerTimeout, int readTimeout, int maxQueueSize, int rateLimit) throws IOException {
-        serverSocket = new ServerSocket(port);
-        executor = new ServerExecutor(maxThreads, minKeepThreads, inactiveWorkerTimeout, maxQueueSize);
-        this.forwarder = forwarder;
-        this.readTimeout = readTimeout;
-        this.rateLimit = rateLimit;
-        clearAndSchedule();
-        logger.info("Server created");
+        this(new Builder(port, forwarder).maxThreads(maxThreads).minKeepThreads(minKeepThreads).inactiveWorkerTimeout(inactiveWorkerTimeout)
+                .readTimeout(readTimeout).maxQueueSize(maxQueueSize).rateLimit(rateLimit));
     }
 
     /**
@@ -50,60 +66,672 @@ public class Server {
      * @throws IOException if I/O error when creating ServerSocket ex. cannot bind to port
      */
     public Server (int port, APIForwarder forwarder) throws IOException {
-        this(port, forwarder, defaultMaxThreads, defaultMinKeepThreads, defaultInactiveWorkerTimeout, defaultReadTimeout, defaultMaxQueueSize, defaultRateLimit);
+        this(new Builder(port, forwarder));
+    }
+
+    private Server (Builder builder) throws IOException {
+        if(builder.virtualThreads && !VirtualThreadExecutor.isSupported())
+            logger.info("Virtual threads are not supported, falling back to ServerExecutor");
+        executor = createExecutor(builder, builder.loadShedder);
+        this.forwarder = builder.forwarder;
+        this.readTimeout = builder.readTimeout;
+        this.rateLimiter = builder.rateLimiter != null ? builder.rateLimiter : new TokenBucketRateLimiter(builder.rateLimit);
+        this.engine = builder.engine;
+        this.keepAliveTimeout = builder.keepAliveTimeout;
+        this.maxKeepAliveRequests = builder.maxKeepAliveRequests != 0 ? builder.maxKeepAliveRequests
+                : engine == Engine.NIO ? defaultMaxKeepAliveRequests : defaultBlockingMaxKeepAliveRequests;
+        this.maxBodySize = builder.maxBodySize;
+        this.metrics = builder.metrics;
+        this.http2 = builder.http2;
+        if(http2 && engine == Engine.NIO)
+            logger.info("HTTP/2 is supported only by blocking engine, NIO engine serves HTTP/1.1");
+        // HTTP/2 connection occupies worker while reading frames, so its streams must not wait for workers of the same pool
+        streamExecutor = http2 && engine == Engine.BLOCKING ? createExecutor(builder, null) : null;
+        if(metrics != null)
+            registerGauges();
+
+        this.acceptors = builder.acceptors;
+        int listeners = builder.reusePort ? builder.acceptors : 1;
+        if(builder.reusePort && listeners > 1 && !reusePortSupported()) {
+            logger.info("SO_REUSEPORT is not supported, acceptors share one socket");
+            listeners = 1;
+        }
+
+        if(engine == Engine.NIO) {
+            serverSockets = null;
+            serverChannels = new ServerSocketChannel[listeners];
+            for(int i = 0; i < listeners; i++) {
+                serverChannels[i] = ServerSocketChannel.open();
+                if(listeners > 1)
+                    serverChannels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                serverChannels[i].bind(new InetSocketAddress(builder.port));
+            }
+            timer = null;
+            eventLoops = new EventLoop[builder.eventLoops];
+            for(int i = 0; i < eventLoops.length; i++)
+                eventLoops[i] = new EventLoop("SEEventLoop" + i, forwarder, executor, readTimeout, keepAliveTimeout, maxKeepAliveRequests, maxBodySize, this::allowRequest, metrics);
+        } else {
+            serverSockets = new ServerSocket[listeners];
+            for(int i = 0; i < listeners; i++) {
+                serverSockets[i] = new ServerSocket();
+                if(listeners > 1)
+                    serverSockets[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                serverSockets[i].bind(new InetSocketAddress(builder.port));
+            }
+            serverChannels = null;
+            eventLoops = null;
+            timer = new TimingWheel(TIMER_TICK, 1024);
+            timer.start("SETimer");
+        }
+
+        logger.info("Server created");
     }
 
     /**
-     * Listen for new connection and execute it asynchronously in future
+     * Listen for new connection and execute it asynchronously in future. Returns immediately when server is shut down.
      */
     public void accept(){
+        accept(0);
+    }
+
+    /**
+     * Accepts connection on listening socket of acceptor
+     * @param acceptor number of acceptor, selects listening socket when there is one per acceptor
+     */
+    private void accept(int acceptor){
+        if(closed)
+            return;
+        if(engine == Engine.NIO) {
+            acceptChannel(serverChannels[acceptor % serverChannels.length]);
+            return;
+        }
+
+        ConnectionHandler handler = null;
         try {
-            Socket acceptedSocket = serverSocket.accept();
+            Socket acceptedSocket = serverSockets[acceptor % serverSockets.length].accept();
             logger.fine(acceptedSocket + "accepted");
+            if(metrics != null)
+                metrics.connectionAccepted();
 
             if(!checkRateLimit(acceptedSocket))
                 return;
 
-            executor.execute(new ConnectionHandler(acceptedSocket, forwarder, scheduledExecutor, readTimeout));
+            ConnectionHandler connection = new ConnectionHandler(acceptedSocket, forwarder, timer, readTimeout, keepAliveTimeout, maxKeepAliveRequests,
+                    maxBodySize, this::allowRequest, metrics, streamExecutor, http2);
+            handler = connection;
+            connections.add(connection);
+            if(closed) // accepted while shutting down, serve one request
+                connection.shutdown(drained);
+            executor.execute(new TrackedConnection(connection));
 
         } catch(RejectedExecutionException e) {
             logger.warning("Exception while adding connection to queue" + e);
+            if(metrics != null)
+                metrics.rejected();
+            connections.remove(handler);
+            reject(handler.getSocket(), SERVICE_UNAVAILABLE);
         } catch (IOException e) {
-            logger.info("Socket I/O exception" + e);
+            if(closed)
+                logger.fine("Server socket closed");
+            else
+                logger.info("Socket I/O exception" + e);
         }
     }
 
-    private boolean checkRateLimit(Socket socket){
-        String ip = socket.getInetAddress().getHostAddress();
-        if(rateLimitMap.containsKey(ip)){
-            int cnt = rateLimitMap.get(ip);
-            if(cnt > rateLimit){
+    /**
+     * Accepts connections until server is shut down
+     * @since 1.4
+     */
+    public void serve(){
+        while(!closed)
+            accept();
+    }
+
+    /**
+     * Starts acceptor threads accepting connections until server is shut down, so callers don't have to call
+     * {@link #accept()} in a loop. Number of acceptors is set by {@link Builder#acceptors(int)}.
+     * @since 1.4
+     */
+    public synchronized void start(){
+        if(acceptorThreads != null)
+            throw new IllegalStateException("Server is already started");
+        acceptorThreads = new Thread[acceptors];
+        for(int i = 0; i < acceptors; i++) {
+            int acceptor = i;
+            acceptorThreads[i] = new Thread(() -> {
+                while(!closed)
+                    accept(acceptor);
+            }, "SEAcceptor" + i);
+            acceptorThreads[i].start();
+        }
+    }
+
+    /**
+     * Shuts server down gracefully: stops accepting connections, closes idle persistent connections and waits until
+     * requests in progress and queued connections are responded (with "Connection: close"). Connections not finished before
+     * timeout are closed. Then workers and timers are stopped. Calling it again returns result of first shutdown.
+     * @param timeout maximum time to wait for requests in progress
+     * @return number of drained and aborted requests
+     * @since 1.4
+     */
+    public synchronized ShutdownResult shutdown(Duration timeout){
+        if(shutdownResult != null)
+            return shutdownResult;
+        closed = true;
+        long deadline = System.nanoTime() + timeout.toNanos();
+        logger.info("Shutting down server");
+        for(Closeable listener : serverSockets != null ? serverSockets : serverChannels) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                logger.info("IOException when closing server socket " + e);
+            }
+        }
+
+        int aborted = 0;
+        if(engine == Engine.NIO) {
+            for(EventLoop loop : eventLoops)
+                loop.shutdown(drained);
+            while(!Arrays.stream(eventLoops).allMatch(loop -> loop.getOpenConnections() == 0) && awaitDeadline(deadline));
+            for(EventLoop loop : eventLoops) {
                 try {
-                    String response = "HTTP/1.1 429 Too Many Requests\r\nContent-Length: 0\r\n\r\n";
-                    socket.getOutputStream().write(response.getBytes(), 0, response.length());
-                    socket.getOutputStream().flush();
-                    socket.close();
-                } catch (IOException ignored) {}
-                return false;
+                    aborted += loop.abort().get(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException | TimeoutException e) {
+                    logger.warning("Event loop did not stop " + e);
+                }
             }
-            rateLimitMap.replace(ip, cnt, cnt+1);
         } else {
-            rateLimitMap.put(ip, 1);
+            for(ConnectionHandler connection : connections)
+                connection.shutdown(drained);
+            while(!connections.isEmpty() && awaitDeadline(deadline));
+            for(ConnectionHandler connection : connections) {
+                if(connection.abort())
+                    aborted++;
+            }
+            timer.stop();
+        }
+
+        shutdownExecutor(executor);
+        if(streamExecutor != null)
+            shutdownExecutor(streamExecutor);
+
+        shutdownResult = new ShutdownResult(drained.get(), aborted);
+        logger.info("Server shut down, " + shutdownResult);
+        return shutdownResult;
+    }
+
+    /**
+     * Shuts server down gracefully, waiting up to 10 seconds for requests in progress
+     * @see #shutdown(Duration)
+     * @since 1.4
+     */
+    @Override
+    public void close(){
+        shutdown(Duration.ofMillis(defaultShutdownTimeout));
+    }
+
+    /**
+     * @return true if server was shut down
+     * @since 1.4
+     */
+    public boolean isClosed(){
+        return closed;
+    }
+
+    /**
+     * Sleeps for a while before next check of drained connections
+     * @return false if deadline passed or thread was interrupted
+     */
+    private static boolean awaitDeadline(long deadline){
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return System.nanoTime() - deadline < 0;
+    }
+
+    private static Executor createExecutor(Builder builder, LoadShedder shedder){
+        if(builder.virtualThreads && VirtualThreadExecutor.isSupported())
+            return new VirtualThreadExecutor(builder.maxThreads, builder.maxQueueSize, shedder);
+        return new ServerExecutor(builder.maxThreads, builder.minKeepThreads, builder.inactiveWorkerTimeout, builder.maxQueueSize, shedder);
+    }
+
+    private static void shutdownExecutor(Executor executor){
+        if(executor instanceof ServerExecutor)
+            ((ServerExecutor) executor).shutdown();
+        else if(executor instanceof VirtualThreadExecutor)
+            ((VirtualThreadExecutor) executor).shutdown();
+    }
+
+    private static boolean reusePortSupported() throws IOException {
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    private void acceptChannel(ServerSocketChannel serverChannel){
+        try {
+            SocketChannel acceptedChannel = serverChannel.accept();
+            logger.fine(acceptedChannel + "accepted");
+            if(metrics != null)
+                metrics.connectionAccepted();
+
+            if(!checkRateLimit(acceptedChannel.socket())) // channel is still in blocking mode, so socket streams may be used
+                return;
+
+            acceptedChannel.configureBlocking(false);
+            eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)].register(acceptedChannel);
+        } catch (IOException e) {
+            if(closed)
+                logger.fine("Server socket closed");
+            else
+                logger.info("Socket I/O exception" + e);
+        }
+    }
+
+    private boolean checkRateLimit(Socket socket){
+        if(!allowRequest(socket.getInetAddress().getHostAddress())){
+            reject(socket, TOO_MANY_REQUESTS);
+            return false;
         }
         return true;
     }
 
-    private void clearAndSchedule(){
-        rateLimitMap.clear();
-        scheduledExecutor.schedule(this::clearAndSchedule, 1, TimeUnit.SECONDS);
+    /**
+     * Responds without reading request and closes connection
+     */
+    private static void reject(Socket socket, byte[] response){
+        try {
+            socket.getOutputStream().write(response);
+            socket.getOutputStream().flush();
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Connection of blocking engine, removed from open connections when it is finished
+     */
+    private final class TrackedConnection implements LoadShedder.Sheddable {
+        TrackedConnection(ConnectionHandler connection){
+            this.connection = connection;
+        }
+
+        @Override
+        public void run() {
+            try {
+                connection.run();
+            } finally {
+                connections.remove(connection);
+            }
+        }
+
+        @Override
+        public void shed(int maxPriority) {
+            try {
+                connection.shed(maxPriority);
+            } finally {
+                connections.remove(connection);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return connection.toString();
+        }
+
+        private final ConnectionHandler connection;
+    }
+
+    /**
+     * Counts new connection or next request on persistent connection from address
+     * @param ip client address
+     * @return false if rate limit is exceeded
+     */
+    private boolean allowRequest(String ip){
+        if(rateLimiter.tryAcquire(ip))
+            return true;
+        if(metrics != null)
+            metrics.rateLimited();
+        return false;
+    }
+
+    private void registerGauges(){
+        BufferPool pool = BufferPool.getDefault();
+        metrics.gauge("rest2api_buffers_outstanding", "I/O buffers taken from pool and not returned", pool::getOutstanding);
+        metrics.gauge("rest2api_buffers_pooled", "I/O buffers waiting in pool", pool::getPooled);
+        metrics.gauge("rest2api_buffers_allocated", "I/O buffers allocated because pool was empty", pool::getAllocated);
+        if(executor instanceof ServerExecutor) {
+            ServerExecutor serverExecutor = (ServerExecutor) executor;
+            metrics.gauge("rest2api_queue_size", "Tasks waiting for worker", serverExecutor::getQueueSize);
+            metrics.gauge("rest2api_workers", "Started workers", serverExecutor::getWorkerCount);
+            metrics.gauge("rest2api_idle_workers", "Started workers waiting for task", serverExecutor::getIdleWorkerCount);
+        } else if(executor instanceof VirtualThreadExecutor) {
+            VirtualThreadExecutor virtualExecutor = (VirtualThreadExecutor) executor;
+            metrics.gauge("rest2api_queue_size", "Tasks waiting for worker", virtualExecutor::getQueueSize);
+            metrics.gauge("rest2api_workers", "Running tasks", virtualExecutor::getActiveCount);
+        }
     }
 
     private final Executor executor;
-    private final ServerSocket serverSocket;
+    private final Executor streamExecutor; // runs streams of HTTP/2 connections, null if HTTP/2 is disabled
+    private final Engine engine;
+    private final ServerSocket[] serverSockets;
+    private final ServerSocketChannel[] serverChannels;
+    private final int acceptors;
+    private Thread[] acceptorThreads;
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
     private final APIForwarder forwarder;
     private final int readTimeout;
-    private final int rateLimit;
-    private final ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
-    private final HashMap<String, Integer> rateLimitMap = new HashMap<>();
+    private final RateLimiter rateLimiter;
+    private final int keepAliveTimeout;
+    private final int maxKeepAliveRequests;
+    private final long maxBodySize;
+    private final TimingWheel timer;
+    private final Metrics metrics;
+    private final boolean http2;
+    private final Set<ConnectionHandler> connections = ConcurrentHashMap.newKeySet(); // connections of blocking engine
+    private final AtomicInteger drained = new AtomicInteger();
+    private volatile boolean closed = false;
+    private ShutdownResult shutdownResult;
     private static final Logger logger = Logger.getLogger(Server.class.getName());
+
+    /**
+     * Result of {@link #shutdown(Duration)}
+     * @since 1.4
+     */
+    public static final class ShutdownResult {
+        private ShutdownResult(int drained, int aborted){
+            this.drained = drained;
+            this.aborted = aborted;
+        }
+
+        /**
+         * @return number of requests responded during shutdown
+         */
+        public int getDrained() {
+            return drained;
+        }
+
+        /**
+         * @return number of connections closed with request in progress or waiting for worker when timeout passed
+         */
+        public int getAborted() {
+            return aborted;
+        }
+
+        @Override
+        public String toString() {
+            return drained + " requests drained, " + aborted + " aborted";
+        }
+
+        private final int drained;
+        private final int aborted;
+    }
+
+    /**
+     * Connection handling engine
+     * @since 1.4
+     */
+    public enum Engine {
+        /**
+         * Each connection is handled from start to end by one {@link ServerExecutor} thread using blocking socket I/O
+         */
+        BLOCKING,
+        /**
+         * Connections are read and written by non-blocking event loop threads. Only complete requests are passed to
+         * {@link ServerExecutor} threads, so idle and slow clients don't occupy them.
+         */
+        NIO
+    }
+
+    /**
+     * Builder for {@link Server} with custom parameters. Parameters not set are left with default values.
+     * @since 1.4
+     */
+    public static class Builder {
+        /**
+         * @param port inet port number
+         * @param forwarder APIForwarder to route HTTP requests
+         */
+        public Builder(int port, APIForwarder forwarder){
+            this.port = port;
+            this.forwarder = forwarder;
+        }
+
+        /**
+         * @param maxThreads maximum number of connections (requests for {@link Engine#NIO}) to handle simultaneously
+         * @return this builder
+         */
+        public Builder maxThreads(int maxThreads){
+            this.maxThreads = maxThreads;
+            return this;
+        }
+
+        /**
+         * @param minKeepThreads minimum number of handler threads to keep (more - faster reaction to traffic changes)
+         * @return this builder
+         */
+        public Builder minKeepThreads(int minKeepThreads){
+            this.minKeepThreads = minKeepThreads;
+            return this;
+        }
+
+        /**
+         * @param inactiveWorkerTimeout time in seconds to keep inactive handlers over minimum limit
+         * @return this builder
+         */
+        public Builder inactiveWorkerTimeout(int inactiveWorkerTimeout){
+            this.inactiveWorkerTimeout = inactiveWorkerTimeout;
+            return this;
+        }
+
+        /**
+         * @param readTimeout time in milliseconds to timeout request reading
+         * @return this builder
+         */
+        public Builder readTimeout(int readTimeout){
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        /**
+         * @param maxQueueSize maximum number of waiting connections (requests for {@link Engine#NIO})
+         * @return this builder
+         */
+        public Builder maxQueueSize(int maxQueueSize){
+            this.maxQueueSize = maxQueueSize;
+            return this;
+        }
+
+        /**
+         * @param rateLimit maximum number of connections (and subsequent requests on persistent connections) from one IP address per second
+         * @return this builder
+         */
+        public Builder rateLimit(int rateLimit){
+            this.rateLimit = rateLimit;
+            return this;
+        }
+
+        /**
+         * Sets custom limiter of connections (and subsequent requests on persistent connections), keyed by client IP address.
+         * Overrides {@link #rateLimit(int)}.
+         * @param rateLimiter rate limiter
+         * @return this builder
+         * @since 1.4
+         */
+        public Builder rateLimiter(RateLimiter rateLimiter){
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+
+        /**
+         * Sets idle timeout of persistent connections. Note that with {@link Engine#BLOCKING} engine idle connection occupies
+         * worker thread until timeout.
+         * @param keepAliveTimeout time in milliseconds to wait for next request on persistent connection
+         * @return this builder
+         */
+        public Builder keepAliveTimeout(int keepAliveTimeout){
+            this.keepAliveTimeout = keepAliveTimeout;
+            return this;
+        }
+
+        /**
+         * Sets maximum number of requests served on one connection. By default persistent connections are enabled (100 requests)
+         * only with {@link Engine#NIO} engine, as with {@link Engine#BLOCKING} engine idle connection occupies worker thread.
+         * @param maxKeepAliveRequests maximum number of requests served on one connection, 1 disables persistent connections
+         * @return this builder
+         */
+        public Builder maxKeepAliveRequests(int maxKeepAliveRequests){
+            if(maxKeepAliveRequests < 1)
+                throw new IllegalArgumentException("At least one request per connection is required");
+            this.maxKeepAliveRequests = maxKeepAliveRequests;
+            return this;
+        }
+
+        /**
+         * Runs each connection (request for {@link Engine#NIO}) on new virtual thread when supported by JVM (JDK 21+),
+         * otherwise {@link ServerExecutor} is used. {@code maxThreads} and {@code maxQueueSize} limits still apply.
+         * @param virtualThreads true to use {@link VirtualThreadExecutor}
+         * @return this builder
+         * @see VirtualThreadExecutor#isSupported()
+         */
+        public Builder virtualThreads(boolean virtualThreads){
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * Sets maximum size of request body, larger requests are rejected with 413. With {@link Engine#BLOCKING} engine large
+         * bodies are read on demand by handler, {@link Engine#NIO} engine receives whole body before passing request to handler.
+         * @param maxBodySize maximum size of request body in bytes, 8MB by default
+         * @return this builder
+         * @since 1.4
+         */
+        public Builder maxBodySize(long maxBodySize){
+            if(maxBodySize < 0)
+                throw new IllegalArgumentException("maxBodySize must not be negative");
+            this.maxBodySize = maxBodySize;
+            return this;
+        }
+
+        /**
+         * @param engine connection handling engine, {@link Engine#BLOCKING} by default
+         * @return this builder
+         */
+        public Builder engine(Engine engine){
+            this.engine = engine;
+            return this;
+        }
+
+        /**
+         * @param eventLoops number of event loop threads used by {@link Engine#NIO} engine
+         * @return this builder
+         */
+        public Builder eventLoops(int eventLoops){
+            if(eventLoops < 1)
+                throw new IllegalArgumentException("At least one event loop is required");
+            this.eventLoops = eventLoops;
+            return this;
+        }
+
+        /**
+         * @param acceptors number of threads accepting connections started by {@link Server#start()}
+         * @return this builder
+         * @since 1.4
+         */
+        public Builder acceptors(int acceptors){
+            if(acceptors < 1)
+                throw new IllegalArgumentException("At least one acceptor is required");
+            this.acceptors = acceptors;
+            return this;
+        }
+
+        /**
+         * Opens one listening socket per acceptor with {@code SO_REUSEPORT}, so kernel balances new connections between them
+         * instead of acceptors contending on one socket. Ignored when option is not supported by platform.
+         * @param reusePort true to open listening socket per acceptor
+         * @return this builder
+         * @since 1.4
+         */
+        public Builder reusePort(boolean reusePort){
+            this.reusePort = reusePort;
+            return this;
+        }
+
+        /**
+         * Enables HTTP/2 over cleartext TCP (h2c) for clients connecting with prior knowledge or sending {@code Upgrade: h2c}.
+         * Connection occupies worker of server while it is open, like persistent HTTP/1.1 connection. Its streams are served
+         * concurrently by separate pool with the same {@code maxThreads} and {@code maxQueueSize} limits, so open connections
+         * never starve their streams. Supported by {@link Engine#BLOCKING} engine.
+         * @param http2 true to accept HTTP/2 connections
+         * @return this builder
+         * @since 1.4
+         */
+        public Builder http2(boolean http2){
+            this.http2 = http2;
+            return this;
+        }
+
+        /**
+         * Enables adaptive load shedding driven by time spent by connections (requests for {@link Engine#NIO}) in queue.
+         * When sojourn time stays above target for whole interval, requests are answered with 503 and Retry-After without
+         * calling handler. Routes with positive priority are never shed, see {@link APIForwarder#setPriority(String, String, int)}.
+         * @param targetMillis acceptable time in milliseconds spent in queue, ex. 50
+         * @param intervalMillis time in milliseconds for which target may be exceeded before shedding starts, ex. 500
+         * @return this builder
+         * @see LoadShedder
+         * @since 1.4
+         */
+        public Builder loadShedding(int targetMillis, int intervalMillis){
+            this.loadShedder = new LoadShedder(targetMillis, intervalMillis);
+            return this;
+        }
+
+        /**
+         * Sets registry to record connections, responses, rejections and worker pool state to.
+         * For per-route latency also set it in {@link APIForwarder#setMetrics(Metrics)}.
+         * @param metrics metrics registry
+         * @return this builder
+         * @since 1.4
+         */
+        public Builder metrics(Metrics metrics){
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Creates server
+         * @return created server
+         * @throws IOException if I/O error when creating server socket ex. cannot bind to port
+         */
+        public Server build() throws IOException {
+            return new Server(this);
+        }
+
+        private final int port;
+        private final APIForwarder forwarder;
+        private int maxThreads = defaultMaxThreads;
+        private int minKeepThreads = defaultMinKeepThreads;
+        private int inactiveWorkerTimeout = defaultInactiveWorkerTimeout;
+        private int readTimeout = defaultReadTimeout;
+        private int maxQueueSize = defaultMaxQueueSize;
+        private int rateLimit = defaultRateLimit;
+        private RateLimiter rateLimiter;
+        private Engine engine = Engine.BLOCKING;
+        private int eventLoops = defaultEventLoops;
+        private int keepAliveTimeout = defaultKeepAliveTimeout;
+        private int maxKeepAliveRequests = 0; // 0 - default of engine
+        private long maxBodySize = defaultMaxBodySize;
+        private boolean virtualThreads = false;
+        private Metrics metrics;
+        private LoadShedder loadShedder;
+        private int acceptors = 1;
+        private boolean reusePort = false;
+        private boolean http2 = false;
+    }
 }
@@ -1,22 +1,23 @@
 package eu.piotro.rest2api.tcp;
 
-import java.util.HashSet;
+import java.util.Queue;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 
 /**
  * Custom {@link Executor} for socket server.
+ * Tasks are passed through lock-free queue. Idle workers wait parked on lock-free stack and are woken directly by
+ * {@link #execute(Runnable)}, new workers are started only if there is no idle one.
  *
  * @author Piotro
  * @since 0.1
  */
 public class ServerExecutor implements Executor {
 
-    private final BlockingQueue<Runnable> taskQueue;
-    private final HashSet<Worker> workers;
-    private final ReentrantLock lock;
+    private final Queue<Runnable> taskQueue;
+    private final ConcurrentLinkedDeque<Worker> idleWorkers;
 
     /**
      * Creates ServerExecutor
@@ -26,15 +27,27 @@ public class ServerExecutor implements Executor {
      * @param maxQueueSize maximum number of waiting {@link Runnable}
      */
     public ServerExecutor(int maxThreads, int minKeepThreads, int inactiveWorkerTimeout, int maxQueueSize){
+        this(maxThreads, minKeepThreads, inactiveWorkerTimeout, maxQueueSize, null);
+    }
+
+    /**
+     * Creates ServerExecutor shedding load when tasks wait in queue for too long
+     * @param maxThreads Max number of threads allowed to run in parallel
+     * @param minKeepThreads Number of threads ({@link Worker}) that are always kept, even when they are idle and independently of inactiveTimeout.
+     * @param inactiveWorkerTimeout Time in seconds after which idle threads ({@link Worker}) above {@code minKeepThreads} limit would be stopped.
+     * @param maxQueueSize maximum number of waiting {@link Runnable}
+     * @param shedder shedder deciding which {@link LoadShedder.Sheddable} tasks are shed, null to run all tasks
+     * @since 1.4
+     */
+    public ServerExecutor(int maxThreads, int minKeepThreads, int inactiveWorkerTimeout, int maxQueueSize, LoadShedder shedder){
         this.maxThreads = maxThreads;
         this.minKeepThreads = minKeepThreads;
-        this.inactiveWorkerTimeout = inactiveWorkerTimeout;
+        this.inactiveWorkerTimeoutNanos = TimeUnit.SECONDS.toNanos(inactiveWorkerTimeout);
         this.maxQueueSize = maxQueueSize;
+        this.shedder = shedder;
 
-        taskQueue = new LinkedBlockingQueue<>();
-        workers = new HashSet<>(maxThreads);
-        lock = new ReentrantLock();
-        newTask = lock.newCondition();
+        taskQueue = new ConcurrentLinkedQueue<>();
+        idleWorkers = new ConcurrentLinkedDeque<>();
     }
 
     /**
@@ -44,104 +57,234 @@ public class ServerExecutor implements Executor {
      */
     @Override
     public void execute(Runnable r) throws RejectedExecutionException {
-        try {
-            lock.lock();
-            if(taskQueue.size() >= maxQueueSize)
-                throw new RejectedExecutionException("Maximum size of queue reached");
-            if (!taskQueue.offer(r))
-                throw new RejectedExecutionException("Cannot add to queue");
-            adjustWorkers();
-            newTask.signal();
-        } finally {
-            lock.unlock();
+        if(shutdown)
+            throw new RejectedExecutionException("Executor is shut down");
+        if(queueSize.incrementAndGet() > maxQueueSize) {
+            queueSize.decrementAndGet();
+            throw new RejectedExecutionException("Maximum size of queue reached");
+        }
+        if (shedder != null)
+            r = new Queued(r, System.nanoTime());
+        if (!taskQueue.offer(r)) {
+            queueSize.decrementAndGet();
+            throw new RejectedExecutionException("Cannot add to queue");
         }
+        signalWorker();
     }
 
-//    public void shutdown(){
-//        try{
-//            lock.lock();
-//            for(Worker w: workers){
-//                w.currentThread.interrupt();
-//                w.shutdown = true; //Set this in case this not interrupted Worker but only ConnectionHandler
-//            }
-//        } finally {
-//            lock.unlock();
-//        }
-//    }
-
-    private void adjustWorkers(){
-        if(taskQueue.size() > 0 && workers.size() < maxThreads){
-            boolean idle = false;
-            for(Worker w: workers){
-                if(w.runningTask == null){
-                    idle = true;
-                    break;
-                }
-            }
+    /**
+     * Stops executor: new tasks are rejected, queued tasks are discarded and workers stop after finishing current task
+     * @return number of discarded tasks
+     * @since 1.4
+     */
+    public int shutdown(){
+        shutdown = true;
+        int discarded = 0;
+        while(pollTask() != null)
+            discarded++;
+        Worker idle;
+        while((idle = idleWorkers.pollFirst()) != null)
+            idle.wake();
+        return discarded;
+    }
 
-            if(!idle){
-                logger.fine("Starting new Worker " + "SEWorker"+workerCnt);
-                Worker newWorker = new Worker();
-                Thread workerThread = new Thread(newWorker, "SEWorker"+workerCnt++);
-                workerThread.start();
-                workers.add(newWorker);
-            }
+    /**
+     * @return true if {@link #shutdown()} was called
+     * @since 1.4
+     */
+    public boolean isShutdown(){
+        return shutdown;
+    }
+
+    /**
+     * Wakes idle worker or starts new one if limit allows. Task must be in queue before call.
+     */
+    private void signalWorker(){
+        Worker idle;
+        while((idle = idleWorkers.pollFirst()) != null){
+            if(idle.wake())
+                return;
         }
+
+        if(reserveWorker()) {
+            String name = "SEWorker" + workerCnt.getAndIncrement();
+            logger.fine("Starting new Worker " + name);
+            new Thread(new Worker(), name).start();
+        }
+    }
+
+    /**
+     * Increments worker count if it is below maximum
+     * @return true if new worker may be started
+     */
+    private boolean reserveWorker(){
+        int count;
+        do {
+            count = workerCount.get();
+            if(count >= maxThreads)
+                return false;
+        } while(!workerCount.compareAndSet(count, count+1));
+        return true;
+    }
+
+    /**
+     * Decrements worker count if it is above minimum kept threads
+     * @return true if worker may stop
+     */
+    private boolean releaseWorker(){
+        int count;
+        do {
+            count = workerCount.get();
+            if(count <= minKeepThreads)
+                return false;
+        } while(!workerCount.compareAndSet(count, count-1));
+        return true;
+    }
+
+    private Runnable pollTask(){
+        Runnable task = taskQueue.poll();
+        if(task != null)
+            queueSize.decrementAndGet();
+        return task;
+    }
+
+    /**
+     * @return number of tasks waiting in queue
+     */
+    int getQueueSize(){
+        return queueSize.get();
+    }
+
+    /**
+     * @return number of started workers
+     */
+    int getWorkerCount(){
+        return workerCount.get();
+    }
+
+    /**
+     * @return number of idle workers, stack of idle workers may also hold stale entries, so it is counted on state changes
+     */
+    int getIdleWorkerCount(){
+        return idleCount.get();
     }
 
     private final int maxThreads;
     private final int minKeepThreads;
-    private final int inactiveWorkerTimeout;
+    private final long inactiveWorkerTimeoutNanos;
     private final int maxQueueSize;
-    private final Condition newTask;
-    private int workerCnt = 0;
+    private final LoadShedder shedder;
+    private final AtomicInteger queueSize = new AtomicInteger();
+    private final AtomicInteger workerCount = new AtomicInteger();
+    private final AtomicInteger idleCount = new AtomicInteger(); // workers in IDLE state
+    private final AtomicInteger workerCnt = new AtomicInteger();
+    private volatile boolean shutdown = false;
     private final Logger logger = Logger.getLogger(ServerExecutor.class.getName());
 
-    private final ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
+    /**
+     * Task with time it was queued, so shedder can measure its sojourn time
+     */
+    private final class Queued implements Runnable {
+        Queued(Runnable task, long enqueued){
+            this.task = task;
+            this.enqueued = enqueued;
+        }
+
+        @Override
+        public void run() {
+            shedder.run(task, enqueued);
+        }
+
+        @Override
+        public String toString() {
+            return task.toString();
+        }
+
+        private final Runnable task;
+        private final long enqueued;
+    }
 
     private class Worker implements Runnable {
+        private static final int RUNNING = 0, IDLE = 1;
 
         @Override
         public void run() {
-            currentThread = Thread.currentThread();
-            ScheduledFuture<?> inactiveTimeoutTask = scheduledExecutorService.schedule(new InactiveTimeoutRunnable(), 1, TimeUnit.SECONDS);
-            try {
-                while (!Thread.currentThread().isInterrupted()) {
+            thread = Thread.currentThread();
+            while (true) {
+                if (shutdown) {
+                    workerCount.decrementAndGet();
+                    break;
+                }
+                Runnable task = pollTask();
+                if (task != null) {
+                    logger.fine(thread.getName() + " executing task " + task);
                     try {
-                        lock.lock();
-                        while (taskQueue.size() <= 0) {
-                            logger.fine(Thread.currentThread().getName() + "awaiting");
-                            newTask.await(); //Fixes checking if newTask in main loop  (Consuming 100% CPU) now waiting for signal in addition to queue take. Await releases lock and waits to reacquire it after receiving signal
-                        }
-
-                        runningTask = taskQueue.take();
-                        logger.fine(Thread.currentThread().getName() + " executing task " + runningTask);
-                    } finally {
-                        lock.unlock();
-                    }
-
-                    if (runningTask != null) {
-                        inactiveTimeoutTask.cancel(false);
-                        runningTask.run();
-                        inactiveTimeoutTask = scheduledExecutorService.schedule(new InactiveTimeoutRunnable(), inactiveWorkerTimeout, TimeUnit.SECONDS);
+                        task.run();
+                    } catch (RuntimeException | Error e) {
+                        logger.severe(thread.getName() + " task threw exception " + e);
                     }
-                    runningTask = null;
+                    continue;
                 }
-            } catch (InterruptedException ignored){ }
-            workers.remove(this);
-            logger.fine("Removed worker " + Thread.currentThread().getName() + ". " + workers.size() + " workers left");
+
+                if (!awaitTask())
+                    break;
+            }
+            logger.fine("Removed worker " + thread.getName() + ". " + workerCount.get() + " workers left");
         }
 
-        private Runnable runningTask;
-        private Thread currentThread;
+        /**
+         * Parks worker until it is woken by {@link #execute(Runnable)} or inactive timeout passes.
+         * @return false if worker should stop
+         */
+        private boolean awaitTask(){
+            idleCount.incrementAndGet();
+            state.set(IDLE);
+            idleWorkers.addFirst(this);
+            // task (or shutdown) could be added before this worker was visible as idle, check again so wakeup is not lost
+            if ((!taskQueue.isEmpty() || shutdown) && setRunning())
+                return true; // stale stack entry is skipped by signalWorker()
 
-        private class InactiveTimeoutRunnable implements Runnable {
-            @Override
-            public void run() {
-                if(workers.size() > minKeepThreads) {
-                    Worker.this.currentThread.interrupt();
+            long deadline = System.nanoTime() + inactiveWorkerTimeoutNanos;
+            while (state.get() == IDLE) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    if (workerCount.get() <= minKeepThreads) { // keep minimum number of workers, stay idle
+                        deadline = System.nanoTime() + inactiveWorkerTimeoutNanos;
+                        continue;
+                    }
+                    if (!setRunning())
+                        return true; // woken just now
+                    if (!releaseWorker())
+                        return true;
+                    // task could be added when this worker was not idle anymore, but still counted as started
+                    return !taskQueue.isEmpty() && reserveWorker();
                 }
+                LockSupport.parkNanos(this, remaining);
             }
+            return true;
+        }
+
+        /**
+         * @return true if worker was idle and is woken now
+         */
+        private boolean wake(){
+            if (!setRunning())
+                return false;
+            LockSupport.unpark(thread);
+            return true;
+        }
+
+        /**
+         * @return true if worker was idle and this call changed its state
+         */
+        private boolean setRunning(){
+            if (!state.compareAndSet(IDLE, RUNNING))
+                return false;
+            idleCount.decrementAndGet();
+            return true;
         }
+
+        private final AtomicInteger state = new AtomicInteger(RUNNING);
+        private volatile Thread thread;
     }
 }
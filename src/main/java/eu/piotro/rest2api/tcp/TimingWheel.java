@@ -0,0 +1,199 @@
+package eu.piotro.rest2api.tcp;
+
+import eu.piotro.rest2api.http.TimeoutScheduler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel for connection timeouts.
+ * <p>Timeouts are kept in circular array of buckets, one bucket per tick, as doubly linked lists with absolute deadline,
+ * so {@link #schedule(Runnable, long)} and {@link Timeout#cancel()} are O(1) and allocate single {@link Timeout} object.
+ * Each bucket is locked separately, so threads scheduling timeouts rarely contend. Timeouts expire with precision of one tick,
+ * never before their delay.</p>
+ * <p>Wheel is advanced by its own thread ({@link #start(String)}) or by owner thread calling {@link #expire(long)},
+ * expired tasks are run by thread advancing the wheel, so they should be short.</p>
+ * @since 1.4
+ */
+public final class TimingWheel implements TimeoutScheduler {
+
+    /**
+     * Creates timing wheel, call {@link #start(String)} to advance it with own thread
+     * @param tickMillis length of tick in milliseconds (precision of timeouts)
+     * @param ticksPerWheel number of buckets, rounded up to power of two
+     */
+    public TimingWheel(long tickMillis, int ticksPerWheel){
+        if(tickMillis <= 0 || ticksPerWheel <= 0)
+            throw new IllegalArgumentException("tickMillis and ticksPerWheel must be positive");
+        int size = 1;
+        while(size < ticksPerWheel)
+            size <<= 1;
+        buckets = new Bucket[size];
+        for(int i = 0; i < size; i++)
+            buckets[i] = new Bucket();
+        mask = size - 1;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Schedules task to run once after delay
+     * @param task task to run by thread advancing the wheel
+     * @param delayMillis delay in milliseconds
+     * @return timeout, that may be cancelled
+     */
+    @Override
+    public Timeout schedule(Runnable task, long delayMillis){
+        long delay = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis) - startTime;
+        long deadline = (delay + tickNanos - 1) / tickNanos; // first tick not before delay
+        Timeout timeout = new Timeout(task);
+        while(true) {
+            long target = Math.max(deadline, tick + 1);
+            Bucket bucket = buckets[(int) (target & mask)];
+            synchronized (bucket) {
+                if(bucket.processed < target) { // else wheel has just passed this bucket, read tick again
+                    timeout.deadline = target;
+                    bucket.add(timeout);
+                    return timeout;
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts daemon thread advancing the wheel every tick
+     * @param name name of thread
+     */
+    public void start(String name){
+        Thread thread = new Thread(() -> {
+            while(!Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(this, startTime + (tick + 1) * tickNanos - System.nanoTime());
+                expire(System.nanoTime());
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        this.thread = thread;
+    }
+
+    /**
+     * Stops thread started by {@link #start(String)}. Pending timeouts don't expire anymore.
+     */
+    public void stop(){
+        Thread thread = this.thread;
+        if(thread != null)
+            thread.interrupt();
+    }
+
+    /**
+     * Advances the wheel and runs expired tasks. Must be called by single thread.
+     * @param now current {@link System#nanoTime()}
+     */
+    void expire(long now){
+        long current = (now - startTime) / tickNanos;
+        while(tick < current) {
+            long next = tick + 1;
+            Bucket bucket = buckets[(int) (next & mask)];
+            Timeout expired;
+            synchronized (bucket) {
+                tick = next;
+                bucket.processed = next;
+                expired = bucket.expire(next);
+            }
+            while(expired != null) {
+                Timeout timeout = expired;
+                expired = timeout.next;
+                timeout.next = null;
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    logger.severe("Timeout task threw exception " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Scheduled task, see {@link #schedule(Runnable, long)}
+     */
+    public static final class Timeout implements TimeoutScheduler.Timeout {
+        private Timeout(Runnable task){
+            this.task = task;
+        }
+
+        /**
+         * Cancels timeout, so its task is not run
+         * @return false if task has already expired (it may be running now) or timeout was cancelled
+         */
+        @Override
+        public boolean cancel(){
+            Bucket bucket = this.bucket;
+            if(bucket == null)
+                return false;
+            synchronized (bucket) {
+                if(this.bucket != bucket)
+                    return false;
+                bucket.remove(this);
+                return true;
+            }
+        }
+
+        private final Runnable task;
+        private long deadline; // absolute tick
+        private volatile Bucket bucket; // null when not scheduled, guarded by bucket lock
+        private Timeout prev;
+        private Timeout next;
+    }
+
+    private static final class Bucket {
+        void add(Timeout timeout){
+            timeout.bucket = this;
+            timeout.next = head;
+            if(head != null)
+                head.prev = timeout;
+            head = timeout;
+        }
+
+        void remove(Timeout timeout){
+            if(timeout.prev != null)
+                timeout.prev.next = timeout.next;
+            else
+                head = timeout.next;
+            if(timeout.next != null)
+                timeout.next.prev = timeout.prev;
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        /**
+         * Removes timeouts with deadline not after tick
+         * @return expired timeouts linked by {@code next}
+         */
+        Timeout expire(long tick){
+            Timeout expired = null;
+            Timeout timeout = head;
+            while(timeout != null) {
+                Timeout next = timeout.next;
+                if(timeout.deadline <= tick) {
+                    remove(timeout);
+                    timeout.next = expired;
+                    expired = timeout;
+                }
+                timeout = next;
+            }
+            return expired;
+        }
+
+        private Timeout head;
+        private long processed = 0; // last tick at which bucket was processed
+    }
+
+    private final Bucket[] buckets;
+    private final int mask;
+    private final long tickNanos;
+    private final long startTime;
+    private volatile long tick = 0; // last processed tick, written only by thread advancing the wheel
+    private volatile Thread thread;
+    private static final Logger logger = Logger.getLogger(TimingWheel.class.getName());
+}
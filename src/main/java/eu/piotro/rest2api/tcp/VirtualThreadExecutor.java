@@ -0,0 +1,140 @@
+package eu.piotro.rest2api.tcp;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * {@link Executor} running each task on new virtual thread (JDK 21+).
+ * Concurrency is limited by semaphores with the same meaning of limits as in {@link ServerExecutor}:
+ * at most {@code maxThreads} tasks run at once and at most {@code maxQueueSize} tasks wait for their turn.
+ * @see #isSupported()
+ * @since 1.4
+ */
+public class VirtualThreadExecutor implements Executor {
+    /**
+     * Creates VirtualThreadExecutor
+     * @param maxThreads Max number of tasks allowed to run in parallel
+     * @param maxQueueSize maximum number of waiting {@link Runnable}
+     * @throws UnsupportedOperationException if virtual threads are not supported by running JVM
+     */
+    public VirtualThreadExecutor(int maxThreads, int maxQueueSize){
+        this(maxThreads, maxQueueSize, null);
+    }
+
+    /**
+     * Creates VirtualThreadExecutor shedding load when tasks wait for their turn for too long
+     * @param maxThreads Max number of tasks allowed to run in parallel
+     * @param maxQueueSize maximum number of waiting {@link Runnable}
+     * @param shedder shedder deciding which {@link LoadShedder.Sheddable} tasks are shed, null to run all tasks
+     * @throws UnsupportedOperationException if virtual threads are not supported by running JVM
+     * @since 1.4
+     */
+    public VirtualThreadExecutor(int maxThreads, int maxQueueSize, LoadShedder shedder){
+        if(threadFactory == null)
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+        this.maxThreads = maxThreads;
+        this.maxQueueSize = maxQueueSize;
+        this.shedder = shedder;
+        running = new Semaphore(maxThreads);
+        admitted = new Semaphore(maxThreads + maxQueueSize);
+    }
+
+    /**
+     * @return true if running JVM supports virtual threads
+     */
+    public static boolean isSupported(){
+        return threadFactory != null;
+    }
+
+    /**
+     * Submit new {@link Runnable} to execute
+     * @param r {@link Runnable} to be executed
+     * @throws RejectedExecutionException When maximum number of waiting tasks is reached
+     */
+    @Override
+    public void execute(Runnable r) throws RejectedExecutionException {
+        if(shutdown)
+            throw new RejectedExecutionException("Executor is shut down");
+        if(!admitted.tryAcquire())
+            throw new RejectedExecutionException("Maximum size of queue reached");
+
+        long enqueued = System.nanoTime();
+        Thread thread = threadFactory.newThread(() -> {
+            try {
+                running.acquire(); // parking virtual thread is cheap, it is the queue
+                try {
+                    if(shutdown) // queued task is discarded
+                        return;
+                    if(shedder != null)
+                        shedder.run(r, enqueued);
+                    else
+                        r.run();
+                } finally {
+                    running.release();
+                }
+            } catch (InterruptedException ignored){
+            } finally {
+                admitted.release();
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * Stops executor: new tasks are rejected and queued tasks are discarded, running tasks are finished
+     * @since 1.4
+     */
+    public void shutdown(){
+        shutdown = true;
+    }
+
+    /**
+     * @return true if {@link #shutdown()} was called
+     * @since 1.4
+     */
+    public boolean isShutdown(){
+        return shutdown;
+    }
+
+    /**
+     * @return number of running tasks
+     */
+    int getActiveCount(){
+        return maxThreads - running.availablePermits();
+    }
+
+    /**
+     * @return number of tasks waiting for their turn
+     */
+    int getQueueSize(){
+        return Math.max(0, maxThreads + maxQueueSize - admitted.availablePermits() - getActiveCount());
+    }
+
+    private final int maxThreads;
+    private final int maxQueueSize;
+    private final Semaphore running;
+    private final Semaphore admitted;
+    private final LoadShedder shedder;
+    private volatile boolean shutdown = false;
+    private static final ThreadFactory threadFactory = createThreadFactory();
+
+    /**
+     * Thread.ofVirtual().name(...).factory() called via reflection, so library still compiles and runs on older JDKs
+     */
+    private static ThreadFactory createThreadFactory(){
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "SEVirtualWorker", 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Logger.getLogger(VirtualThreadExecutor.class.getName()).fine("Virtual threads not available " + e);
+            return null;
+        }
+    }
+}
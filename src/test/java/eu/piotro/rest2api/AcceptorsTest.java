@@ -0,0 +1,75 @@
+package eu.piotro.rest2api;
+
+import eu.piotro.rest2api.api.APIForwarder;
+import eu.piotro.rest2api.http.HTTPCodes;
+import eu.piotro.rest2api.http.HTTPResponse;
+import eu.piotro.rest2api.tcp.BufferPool;
+import eu.piotro.rest2api.tcp.Server;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class AcceptorsTest {
+
+    @Test
+    public void testBlocking() throws Exception {
+        test(new Server.Builder(1241, forwarder()).rateLimit(1000).acceptors(2).reusePort(true).build(), 1241);
+    }
+
+    @Test
+    public void testNIO() throws Exception {
+        test(new Server.Builder(1242, forwarder()).rateLimit(1000).engine(Server.Engine.NIO).eventLoops(2).acceptors(2).reusePort(true).build(), 1242);
+    }
+
+    @Test
+    public void testSharedSocket() throws Exception {
+        test(new Server.Builder(1243, forwarder()).rateLimit(1000).acceptors(3).build(), 1243);
+    }
+
+    private static void test(Server server, int port) throws Exception {
+        long outstanding = BufferPool.getDefault().getOutstanding();
+        server.start();
+        try {
+            server.start();
+            fail();
+        } catch (IllegalStateException ignored) {}
+
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        List<Future<String>> responses = new ArrayList<>();
+        for(int i = 0; i < 32; i++) {
+            responses.add(clients.submit(() -> {
+                try (Socket socket = new Socket("localhost", port)) {
+                    socket.getOutputStream().write("GET /ok HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes());
+                    return new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+                }
+            }));
+        }
+        for(Future<String> response : responses)
+            assertEquals("HTTP/1.1 200 OK", response.get(5, TimeUnit.SECONDS));
+        clients.shutdown();
+
+        server.close();
+        assertTrue(server.isClosed());
+        Thread.sleep(100);
+        for(Thread thread : Thread.getAllStackTraces().keySet())
+            assertFalse(thread.getName().startsWith("SEAcceptor") && thread.isAlive());
+
+        long deadline = System.currentTimeMillis() + 1000; // workers return buffers after responses are drained
+        while(BufferPool.getDefault().getOutstanding() != outstanding && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(outstanding, BufferPool.getDefault().getOutstanding());
+    }
+
+    private static APIForwarder forwarder() {
+        APIForwarder forwarder = new APIForwarder();
+        forwarder.register("GET", "/ok", request -> new HTTPResponse(200, HTTPCodes.C200, "text/plain", "ok"));
+        return forwarder;
+    }
+}
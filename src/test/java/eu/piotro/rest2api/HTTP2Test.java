@@ -0,0 +1,185 @@
+package eu.piotro.rest2api;
+
+import eu.piotro.rest2api.api.APIForwarder;
+import eu.piotro.rest2api.http.HTTPCodes;
+import eu.piotro.rest2api.http.HTTPResponse;
+import eu.piotro.rest2api.http.ResponseBody;
+import eu.piotro.rest2api.tcp.BufferPool;
+import eu.piotro.rest2api.tcp.Server;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HTTP2Test {
+    private static final String LARGE = "0123456789abcdef".repeat(20_000); // over flow control windows
+    private static final HTTPResponse OK = new HTTPResponse(200, HTTPCodes.C200, "text/plain", "X-Test: 1\r\nConnection: keep-alive", "ok");
+
+    @Test
+    public void testUpgrade() throws Exception {
+        long outstanding = BufferPool.getDefault().getOutstanding();
+        try (Server server = new Server.Builder(1244, forwarder()).rateLimit(1000).http2(true).build()) {
+            server.start();
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+            HttpResponse<String> first = client.send(request(1244, "/ok").build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(HttpClient.Version.HTTP_2, first.version());
+            assertEquals(200, first.statusCode());
+            assertEquals("ok", first.body());
+            assertEquals("1", first.headers().firstValue("x-test").orElse(null));
+            assertEquals("2", first.headers().firstValue("content-length").orElse(null));
+
+            List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+            for(int i = 0; i < 30; i++) { // multiplexed on upgraded connection
+                HttpRequest request;
+                if(i % 3 == 0)
+                    request = request(1244, "/users/" + i + "?q=" + i).build();
+                else if(i % 3 == 1)
+                    request = request(1244, "/echo").POST(HttpRequest.BodyPublishers.ofString(i + LARGE)).build();
+                else
+                    request = request(1244, "/large").build();
+                responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+            }
+            for(int i = 0; i < responses.size(); i++) {
+                HttpResponse<String> response = responses.get(i).get(10, TimeUnit.SECONDS);
+                assertEquals(HttpClient.Version.HTTP_2, response.version());
+                assertEquals(200, response.statusCode());
+                assertEquals(i % 3 == 0 ? "user " + i + " " + i : i % 3 == 1 ? i + LARGE : LARGE, response.body());
+            }
+            HttpResponse<String> stream = client.send(request(1244, "/stream").build(), HttpResponse.BodyHandlers.ofString());
+            assertFalse(stream.headers().firstValue("content-length").isPresent());
+            assertEquals(LARGE, stream.body());
+            assertEquals(404, client.send(request(1244, "/missing").build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+        }
+        long deadline = System.currentTimeMillis() + 1000; // workers return buffers after streams are finished
+        while(BufferPool.getDefault().getOutstanding() != outstanding && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(outstanding, BufferPool.getDefault().getOutstanding());
+    }
+
+    @Test
+    public void testPriorKnowledge() throws Exception {
+        try (Server server = new Server.Builder(1245, forwarder()).rateLimit(1000).http2(true).build();
+             Socket socket = new Socket("localhost", 1245)) {
+            server.start();
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            writeFrame(out, 4, 0, 0, new byte[0]); // SETTINGS
+            writeFrame(out, 1, 0x5, 1, headers("GET", "/ok")); // END_STREAM, END_HEADERS
+            writeFrame(out, 1, 0x4, 3, headers("POST", "/echo")); // body of unknown length
+            writeFrame(out, 0, 0, 3, "hello ".getBytes(StandardCharsets.US_ASCII));
+            writeFrame(out, 0, 0x1, 3, "world".getBytes(StandardCharsets.US_ASCII));
+            writeFrame(out, 6, 0, 0, new byte[8]); // PING
+
+            ByteArrayOutputStream[] bodies = {new ByteArrayOutputStream(), new ByteArrayOutputStream()};
+            int ended = 0;
+            boolean settings = false, settingsAck = false, ping = false;
+            while(ended < 2 || !settingsAck || !ping) {
+                int length = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                int stream = in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if(type == 4) {
+                    if((flags & 1) == 0)
+                        settings = true;
+                    else
+                        settingsAck = true;
+                } else if(type == 6) {
+                    assertEquals(1, flags & 1);
+                    ping = true;
+                } else if(type == 1) {
+                    assertEquals((byte) 0x88, payload[0]); // :status 200 from static table
+                } else if(type == 0) {
+                    bodies[stream / 2].write(payload);
+                }
+                if((type == 0 || type == 1) && (flags & 1) != 0)
+                    ended++;
+                assertNotEquals(3, type); // no RST_STREAM
+            }
+            assertTrue(settings);
+            assertEquals("ok", bodies[0].toString(StandardCharsets.US_ASCII));
+            assertEquals("hello world", bodies[1].toString(StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void testSingleWorker() throws Exception {
+        try (Server server = new Server.Builder(1247, forwarder()).rateLimit(1000).maxThreads(1).http2(true).build()) {
+            server.start();
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+            assertEquals("ok", client.send(request(1247, "/ok").build(), HttpResponse.BodyHandlers.ofString()).body());
+            List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+            for(int i = 0; i < 3; i++) // connection occupies the only worker, streams run on stream pool
+                responses.add(client.sendAsync(request(1247, "/ok").build(), HttpResponse.BodyHandlers.ofString()));
+            for(CompletableFuture<HttpResponse<String>> response : responses) {
+                assertEquals(HttpClient.Version.HTTP_2, response.get(5, TimeUnit.SECONDS).version());
+                assertEquals("ok", response.get().body());
+            }
+        }
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        try (Server server = new Server.Builder(1246, forwarder()).build()) {
+            server.start();
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+            HttpResponse<String> response = client.send(request(1246, "/ok").build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(HttpClient.Version.HTTP_1_1, response.version());
+            assertEquals("ok", response.body());
+        }
+    }
+
+    private static HttpRequest.Builder request(int port, String path) {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + port + path)).timeout(Duration.ofSeconds(10));
+    }
+
+    private static byte[] headers(String method, String path) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        for(String field : new String[]{":method", method, ":path", path, ":scheme", "http", ":authority", "localhost"}) {
+            if(field.startsWith(":"))
+                block.write(0); // literal without indexing with new name, strings without Huffman coding
+            block.write(field.length());
+            block.writeBytes(field.getBytes(StandardCharsets.US_ASCII));
+        }
+        return block.toByteArray();
+    }
+
+    private static void writeFrame(OutputStream out, int type, int flags, int stream, byte[] payload) throws IOException {
+        byte[] header = {(byte) (payload.length >>> 16), (byte) (payload.length >>> 8), (byte) payload.length, (byte) type, (byte) flags,
+                (byte) (stream >>> 24), (byte) (stream >>> 16), (byte) (stream >>> 8), (byte) stream};
+        out.write(header);
+        out.write(payload);
+        out.flush();
+    }
+
+    private static APIForwarder forwarder() {
+        APIForwarder forwarder = new APIForwarder();
+        forwarder.register("GET", "/ok", request -> OK); // shared response is sent many times
+        forwarder.register("GET", "/stream", request ->
+                new HTTPResponse(200, HTTPCodes.C200, "text/plain", "", ResponseBody.of(new ByteArrayInputStream(LARGE.getBytes(StandardCharsets.US_ASCII)))));
+        forwarder.register("GET", "/large", request -> new HTTPResponse(200, HTTPCodes.C200, "text/plain", LARGE));
+        forwarder.register("POST", "/echo", request -> new HTTPResponse(200, HTTPCodes.C200, "text/plain", request.getBody()));
+        forwarder.register("GET", "/users/{id:int}", request ->
+                new HTTPResponse(200, HTTPCodes.C200, "text/plain", "user " + request.getPathInt("id") + " " + request.getQueryParameter("q")));
+        return forwarder;
+    }
+}
@@ -0,0 +1,70 @@
+package eu.piotro.rest2api;
+
+import eu.piotro.rest2api.api.APIForwarder;
+import eu.piotro.rest2api.http.HTTPCodes;
+import eu.piotro.rest2api.http.HTTPResponse;
+import eu.piotro.rest2api.tcp.Server;
+import org.junit.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LoadSheddingTest {
+
+    @Test
+    public void testShedding() throws Exception {
+        APIForwarder forwarder = new APIForwarder();
+        forwarder.register("GET", "/slow", request -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {}
+            return new HTTPResponse(200, HTTPCodes.C200, "text/plain", "slow");
+        });
+        forwarder.register("GET", "/health", request -> new HTTPResponse(200, HTTPCodes.C200, "text/plain", "OK"));
+        forwarder.setPriority("GET", "/health", 1);
+
+        Server server = new Server.Builder(1240, forwarder)
+                .engine(Server.Engine.NIO)
+                .maxThreads(1)
+                .rateLimit(1000)
+                .loadShedding(10, 50)
+                .build();
+        Thread serverThread = new Thread(server::serve);
+        serverThread.start();
+
+        HttpClient client = HttpClient.newHttpClient();
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for(int i = 0; i < 10; i++)
+            responses.add(client.sendAsync(HttpRequest.newBuilder().uri(URI.create("http://localhost:1240/slow")).build(), HttpResponse.BodyHandlers.ofString()));
+        Thread.sleep(250);
+        List<CompletableFuture<HttpResponse<String>>> health = new ArrayList<>();
+        for(int i = 0; i < 3; i++)
+            health.add(client.sendAsync(HttpRequest.newBuilder().uri(URI.create("http://localhost:1240/health")).build(), HttpResponse.BodyHandlers.ofString()));
+
+        int shed = 0;
+        for(CompletableFuture<HttpResponse<String>> response : responses) {
+            HttpResponse<String> httpResponse = response.get(5, TimeUnit.SECONDS);
+            if(httpResponse.statusCode() == 503) {
+                assertEquals("1", httpResponse.headers().firstValue("Retry-After").orElse(null));
+                shed++;
+            } else {
+                assertEquals(200, httpResponse.statusCode());
+            }
+        }
+        assertTrue(shed > 0);
+        assertTrue(shed < 10);
+        for(CompletableFuture<HttpResponse<String>> response : health)
+            assertEquals(200, response.get(5, TimeUnit.SECONDS).statusCode());
+
+        server.close();
+        serverThread.join();
+    }
+}
@@ -0,0 +1,295 @@
+package eu.piotro.rest2api;
+
+import eu.piotro.rest2api.api.APIForwarder;
+import eu.piotro.rest2api.metrics.Metrics;
+import eu.piotro.rest2api.tcp.Server;
+import org.junit.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NIOServerTest {
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        APIForwarder forwarder = new APIForwarder();
+        forwarder.registerClassStatic(TestHandlersStatic.class);
+        forwarder.registerClass(new TestHandlers());
+        Path files = Files.createTempDirectory("rest2api");
+        Files.write(files.resolve("data.bin"), TestHandlers.streamData());
+        forwarder.registerStaticFiles("/files", files);
+        metrics = new Metrics();
+        forwarder.setMetrics(metrics);
+        forwarder.registerMetrics("/metrics", metrics);
+
+        server = new Server.Builder(1235, forwarder)
+                .engine(Server.Engine.NIO)
+                .eventLoops(2)
+                .maxThreads(2)
+                .readTimeout(500)
+                .rateLimit(1000)
+                .metrics(metrics)
+                .build();
+        serverThread = new Thread(server::serve);
+        serverThread.start();
+        client = HttpClient.newHttpClient();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        server.close();
+        serverThread.join();
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:1235/d1"))
+                .build();
+
+        HttpResponse<String> httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(httpResponse.statusCode(), 200);
+        assertEquals(httpResponse.body(), "OK");
+    }
+
+    @Test
+    public void testPost() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:1235/relay"))
+                .POST(HttpRequest.BodyPublishers.ofString("relay!"))
+                .build();
+
+        HttpResponse<String> httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(httpResponse.statusCode(), 200);
+        assertEquals(httpResponse.body(), "relay!");
+    }
+
+    @Test
+    public void testStreamedBodies() throws Exception {
+        for(String uri : new String[]{"/stream", "/stream/length", "/stream/file"}) {
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create("http://localhost:1235" + uri))
+                    .build();
+
+            HttpResponse<byte[]> httpResponse = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(200, httpResponse.statusCode());
+            assertArrayEquals(uri, TestHandlers.streamData(), httpResponse.body());
+            if(uri.equals("/stream"))
+                assertEquals("chunked", httpResponse.headers().firstValue("Transfer-Encoding").orElse(null));
+            else
+                assertEquals(String.valueOf(TestHandlers.STREAM_SIZE), httpResponse.headers().firstValue("Content-Length").orElse(null));
+        }
+    }
+
+    @Test
+    public void testStaticFile() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:1235/files/data.bin"))
+                .build();
+        HttpResponse<byte[]> httpResponse = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, httpResponse.statusCode());
+        assertArrayEquals(TestHandlers.streamData(), httpResponse.body());
+
+        request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:1235/files/data.bin"))
+                .header("If-None-Match", httpResponse.headers().firstValue("ETag").orElseThrow())
+                .build();
+        assertEquals(304, client.send(request, HttpResponse.BodyHandlers.ofByteArray()).statusCode());
+    }
+
+    @Test
+    public void testChunkedAndUnreadBodies() throws Exception {
+        Socket socket = new Socket("localhost", PORT);
+        OutputStream out = socket.getOutputStream();
+        out.write(("POST /relay HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                "3\r\nchu\r\n4\r\nnked\r\n0\r\n\r\n" +
+                "POST /mm HTTP/1.1\r\nContent-Length: 200000\r\n\r\n").getBytes());
+        out.write(new byte[200000]); // not read by handler
+        out.write("GET /mm HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes());
+        out.flush();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        assertEquals("chunked", readBody(reader, "keep-alive"));
+        assertEquals("OK_POST", readBody(reader, "keep-alive"));
+        assertEquals("OK_GET", readBody(reader, "close"));
+        socket.close();
+    }
+
+    @Test
+    public void testNonASCIIBody() throws Exception {
+        String body = "za\u017c\u00f3\u0142\u0107 g\u0119\u015bl\u0105 ja\u017a\u0144";
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:1235/relay"))
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+
+        HttpResponse<String> httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, httpResponse.statusCode());
+        assertEquals(body, httpResponse.body());
+        assertEquals(String.valueOf(body.getBytes(StandardCharsets.UTF_8).length), httpResponse.headers().firstValue("Content-Length").orElse(null));
+    }
+
+    @Test
+    public void testSplitRequest() throws Exception {
+        Socket socket = new Socket("localhost", 1235);
+        OutputStream out = socket.getOutputStream();
+        out.write("POST /relay HTTP/1.1\r\nContent-Le".getBytes());
+        out.flush();
+        Thread.sleep(50);
+        out.write("ngth: 5\r\n\r\nsp".getBytes());
+        out.flush();
+        Thread.sleep(50);
+        out.write("lit".getBytes());
+        out.flush();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        assertEquals(reader.readLine(), "HTTP/1.1 200 OK");
+        socket.close();
+    }
+
+    @Test
+    public void testBadRequest() throws Exception {
+        Socket socket = new Socket("localhost", 1235);
+        PrintWriter writer = new PrintWriter(socket.getOutputStream());
+        writer.write("badrequest\n\n");
+        writer.flush();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        assertEquals(reader.readLine(), "HTTP/1.1 400 Bad Request");
+        socket.close();
+    }
+
+    @Test
+    public void testTimeOut() throws Exception {
+        Socket socket = new Socket("localhost", 1235);
+        socket.getOutputStream().write("GET / HTTP/1.1\r\n".getBytes());
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        assertEquals(reader.readLine(), "HTTP/1.1 408 Request Timeout");
+        socket.close();
+    }
+
+    @Test
+    public void testWriteTimeOut() throws Exception {
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("localhost", PORT));
+            socket.getOutputStream().write("GET /large HTTP/1.1\r\n\r\n".getBytes());
+            Thread.sleep(2000); // response is not read
+
+            socket.setSoTimeout(5000);
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[65536];
+            long total = 0;
+            int len;
+            try {
+                while((len = in.read(buf)) != -1)
+                    total += len;
+            } catch (SocketException ignored) {} // reset by server
+            assertTrue(total < TestHandlers.LARGE_SIZE);
+        }
+    }
+
+    @Test
+    public void testIdleConnectionsDontBlockWorkers() throws Exception {
+        List<Socket> idle = new ArrayList<>();
+        for(int i = 0; i < 50; i++)
+            idle.add(new Socket("localhost", 1235));
+
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:1235/"))
+                .build();
+        HttpResponse<String> httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(httpResponse.statusCode(), 200);
+        assertEquals(httpResponse.body(), "OK");
+
+        for(Socket socket : idle)
+            socket.close();
+    }
+
+    @Test
+    public void testKeepAlivePipelining() throws Exception {
+        Socket socket = new Socket("localhost", PORT);
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET /d1 HTTP/1.1\r\n\r\n" +
+                "POST /relay HTTP/1.1\r\nContent-Length: 4\r\n\r\npipe" +
+                "GET /mm HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes());
+        out.flush();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        assertEquals(readBody(reader, "keep-alive"), "OK");
+        assertEquals(readBody(reader, "keep-alive"), "pipe");
+        assertEquals(readBody(reader, "close"), "OK_GET");
+        assertNull(reader.readLine());
+        socket.close();
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        // more pending asynchronous requests than workers, workers are not blocked while waiting
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for(int i = 0; i < 6; i++)
+            responses.add(client.sendAsync(HttpRequest.newBuilder().uri(URI.create("http://localhost:1235/async")).build(), HttpResponse.BodyHandlers.ofString()));
+        Thread.sleep(50);
+        long start = System.nanoTime();
+        HttpResponse<String> httpResponse = client.send(HttpRequest.newBuilder().uri(URI.create("http://localhost:1235/d1")).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals("OK", httpResponse.body());
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200));
+        for(CompletableFuture<HttpResponse<String>> response : responses)
+            assertEquals("async", response.get(5, TimeUnit.SECONDS).body());
+
+        httpResponse = client.send(HttpRequest.newBuilder().uri(URI.create("http://localhost:1235/async/timeout")).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(504, httpResponse.statusCode());
+        httpResponse = client.send(HttpRequest.newBuilder().uri(URI.create("http://localhost:1235/async/failed")).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(500, httpResponse.statusCode());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        client.send(HttpRequest.newBuilder().uri(URI.create("http://localhost:1235/d1")).build(), HttpResponse.BodyHandlers.ofString());
+        client.send(HttpRequest.newBuilder().uri(URI.create("http://localhost:1235/missing")).build(), HttpResponse.BodyHandlers.ofString());
+
+        HttpResponse<String> httpResponse = client.send(HttpRequest.newBuilder().uri(URI.create("http://localhost:1235/metrics")).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, httpResponse.statusCode());
+        String body = httpResponse.body();
+        assertTrue(body.contains("# TYPE rest2api_route_duration_seconds histogram"));
+        assertTrue(body.contains("rest2api_route_duration_seconds_count{method=\"GET\",route=\"/d1\"} "));
+        assertTrue(body.contains("rest2api_workers "));
+        assertTrue(metrics.counter("rest2api_responses_total", "", "code", "2xx").sum() > 0);
+        assertTrue(metrics.counter("rest2api_responses_total", "", "code", "4xx").sum() > 0);
+        assertTrue(metrics.counter("rest2api_connections_total", "").sum() > 0);
+    }
+
+    private static String readBody(BufferedReader reader, String connection) throws IOException {
+        assertEquals(reader.readLine(), "HTTP/1.1 200 OK");
+        int length = -1;
+        String line;
+        while(!(line = reader.readLine()).isEmpty()){
+            if(line.startsWith("Content-Length: "))
+                length = Integer.parseInt(line.substring("Content-Length: ".length()));
+            if(line.startsWith("Connection: "))
+                assertEquals(line, "Connection: " + connection);
+        }
+        char[] body = new char[length];
+        assertEquals(reader.read(body), length);
+        return new String(body);
+    }
+
+    private static final int PORT = 1235;
+    private static Server server;
+    private static Thread serverThread;
+    private static Metrics metrics;
+    private static HttpClient client;
+}
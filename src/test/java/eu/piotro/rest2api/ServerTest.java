@@ -5,11 +5,13 @@ import eu.piotro.rest2api.tcp.Server;
 import org.junit.*;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 
 import static org.junit.Assert.*;
 
@@ -21,19 +23,17 @@ public class ServerTest {
         forwarder.registerClassStatic(TestHandlersStatic.class);
         forwarder.registerClass(new TestHandlers());
 
-        Server server = new Server(1234, forwarder, 2, 1, 100, 100, 100, 16);
-        serverThread = new Thread(()->{
-            while (!Thread.currentThread().isInterrupted()) {
-                server.accept();
-            }
-        });
+        server = new Server.Builder(1234, forwarder).maxThreads(2).minKeepThreads(1).inactiveWorkerTimeout(100).readTimeout(100)
+                .maxQueueSize(100).rateLimit(16).maxKeepAliveRequests(100).build();
+        serverThread = new Thread(server::serve);
         serverThread.start();
         client = HttpClient.newHttpClient();
     }
 
     @AfterClass
-    public static void tearDown() {
-        serverThread.interrupt();
+    public static void tearDown() throws Exception {
+        server.close();
+        serverThread.join();
     }
 
     @Test
@@ -149,6 +149,55 @@ public class ServerTest {
         assertEquals(httpResponse.body(), "relay!");
     }
 
+    @Test
+    public void testStreamedBodies() throws Exception {
+        for(String uri : new String[]{"/stream", "/stream/length", "/stream/file"}) {
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create("http://localhost:1234" + uri))
+                    .build();
+
+            HttpResponse<byte[]> httpResponse = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(200, httpResponse.statusCode());
+            assertArrayEquals(uri, TestHandlers.streamData(), httpResponse.body());
+            if(uri.equals("/stream"))
+                assertEquals("chunked", httpResponse.headers().firstValue("Transfer-Encoding").orElse(null));
+            else
+                assertEquals(String.valueOf(TestHandlers.STREAM_SIZE), httpResponse.headers().firstValue("Content-Length").orElse(null));
+        }
+    }
+
+    @Test
+    public void testChunkedAndUnreadBodies() throws Exception {
+        Socket socket = new Socket("localhost", PORT);
+        OutputStream out = socket.getOutputStream();
+        out.write(("POST /relay HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                "3\r\nchu\r\n4\r\nnked\r\n0\r\n\r\n" +
+                "POST /mm HTTP/1.1\r\nContent-Length: 200000\r\n\r\n").getBytes());
+        out.write(new byte[200000]); // not read by handler
+        out.write("GET /mm HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes());
+        out.flush();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        assertEquals("chunked", readBody(reader, "keep-alive"));
+        assertEquals("OK_POST", readBody(reader, "keep-alive"));
+        assertEquals("OK_GET", readBody(reader, "close"));
+        socket.close();
+    }
+
+    @Test
+    public void testNonASCIIBody() throws Exception {
+        String body = "za\u017c\u00f3\u0142\u0107 g\u0119\u015bl\u0105 ja\u017a\u0144";
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:1234/relay"))
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+
+        HttpResponse<String> httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, httpResponse.statusCode());
+        assertEquals(body, httpResponse.body());
+        assertEquals(String.valueOf(body.getBytes(StandardCharsets.UTF_8).length), httpResponse.headers().firstValue("Content-Length").orElse(null));
+    }
+
     @Test
     public void testMultiMethod() throws Exception {
         HttpRequest request = HttpRequest.newBuilder()
@@ -185,6 +234,142 @@ public class ServerTest {
         assertEquals(httpResponse.statusCode(), 499);
     }
 
+    @Test
+    public void testRegexRoutes() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:1234/items/42"))
+                .build();
+        HttpResponse<String> httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(httpResponse.statusCode(), 200);
+        assertEquals(httpResponse.body(), "42");
+
+        request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:1234/items/new"))
+                .build();
+        httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(httpResponse.statusCode(), 200);
+        assertEquals(httpResponse.body(), "new");
+
+        request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:1234/items/new"))
+                .DELETE()
+                .build();
+        httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(httpResponse.statusCode(), 200);
+        assertEquals(httpResponse.body(), "deleted");
+
+        request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:1234/items/abc"))
+                .build();
+        httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(httpResponse.statusCode(), 405);
+        assertEquals(httpResponse.headers().firstValue("Allow").orElse(""), "DELETE");
+
+        request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:1234/itemsx/1"))
+                .build();
+        httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(httpResponse.statusCode(), 404);
+
+        // literal and regex routes are matched without query string, like path templates
+        request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:1234/items/new?x=1"))
+                .build();
+        httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(httpResponse.statusCode(), 200);
+        assertEquals(httpResponse.body(), "new");
+
+        request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:1234/items/42?x=1"))
+                .build();
+        httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(httpResponse.statusCode(), 200);
+        assertEquals(httpResponse.body(), "42?x=1");
+    }
+
+    @Test
+    public void testPathTemplate() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:1234/users/41/posts/hello?q=a%20b&q=c"))
+                .build();
+        HttpResponse<String> httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(httpResponse.statusCode(), 200);
+        assertEquals(httpResponse.body(), "42 hello a b");
+
+        request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:1234/users/99999999999/posts/hello"))
+                .build();
+        httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(httpResponse.statusCode(), 404);
+    }
+
+    @Test
+    public void testKeepAlivePipelining() throws Exception {
+        Socket socket = new Socket("localhost", PORT);
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET /d1 HTTP/1.1\r\n\r\n" +
+                "POST /relay HTTP/1.1\r\nContent-Length: 4\r\n\r\npipe" +
+                "GET /mm HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes());
+        out.flush();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        assertEquals(readBody(reader, "keep-alive"), "OK");
+        assertEquals(readBody(reader, "keep-alive"), "pipe");
+        assertEquals(readBody(reader, "close"), "OK_GET");
+        assertNull(reader.readLine());
+        socket.close();
+    }
+
+    @Test
+    public void testKeepAliveDisabledByDefault() throws Exception {
+        APIForwarder forwarder = new APIForwarder();
+        forwarder.registerClassStatic(TestHandlersStatic.class);
+        try (Server server = new Server(1248, forwarder); Socket socket = new Socket()) {
+            server.start();
+            socket.connect(new InetSocketAddress("localhost", 1248));
+            OutputStream out = socket.getOutputStream();
+            out.write("GET / HTTP/1.1\r\n\r\nGET / HTTP/1.1\r\n\r\n".getBytes());
+            out.flush();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            assertEquals(readBody(reader, "close"), "OK"); // idle connection doesn't occupy worker of blocking engine
+            assertNull(reader.readLine());
+        }
+    }
+
+    @Test
+    public void testVirtualThreadsMode() throws Exception {
+        APIForwarder forwarder = new APIForwarder();
+        forwarder.registerClassStatic(TestHandlersStatic.class);
+        try (Server server = new Server.Builder(1236, forwarder).virtualThreads(true).maxThreads(1).build()) { // falls back to ServerExecutor before JDK 21
+            server.start();
+
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create("http://localhost:1236/"))
+                    .build();
+            HttpResponse<String> httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
+            assertEquals(httpResponse.statusCode(), 200);
+            assertEquals(httpResponse.body(), "OK");
+        }
+    }
+
+    private static String readBody(BufferedReader reader, String connection) throws IOException {
+        assertEquals(reader.readLine(), "HTTP/1.1 200 OK");
+        int length = -1;
+        String line;
+        while(!(line = reader.readLine()).isEmpty()){
+            if(line.startsWith("Content-Length: "))
+                length = Integer.parseInt(line.substring("Content-Length: ".length()));
+            if(line.startsWith("Connection: "))
+                assertEquals(line, "Connection: " + connection);
+        }
+        char[] body = new char[length];
+        assertEquals(reader.read(body), length);
+        return new String(body);
+    }
+
+    private static final int PORT = 1234;
+    private static Server server;
     private static Thread serverThread;
     private static HttpClient client;
 }
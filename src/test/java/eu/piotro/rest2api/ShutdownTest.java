@@ -0,0 +1,111 @@
+package eu.piotro.rest2api;
+
+import eu.piotro.rest2api.api.APIForwarder;
+import eu.piotro.rest2api.http.HTTPCodes;
+import eu.piotro.rest2api.http.HTTPResponse;
+import eu.piotro.rest2api.tcp.Server;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+public class ShutdownTest {
+
+    @Test
+    public void testDrainBlocking() throws Exception {
+        testDrain(new Server.Builder(1237, forwarder()).build(), 1237);
+    }
+
+    @Test
+    public void testDrainNIO() throws Exception {
+        testDrain(new Server.Builder(1238, forwarder()).engine(Server.Engine.NIO).build(), 1238);
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        Server server = new Server.Builder(1239, forwarder()).build();
+        Thread serverThread = new Thread(server::serve);
+        serverThread.start();
+
+        Socket slow = new Socket("localhost", 1239);
+        slow.getOutputStream().write("GET /slow?2000 HTTP/1.1\r\n\r\n".getBytes());
+        Thread.sleep(100);
+
+        Server.ShutdownResult result = server.shutdown(Duration.ofMillis(100));
+        assertEquals(0, result.getDrained());
+        assertEquals(1, result.getAborted());
+        assertEquals(-1, slow.getInputStream().read());
+        slow.close();
+        serverThread.join(1000);
+        assertFalse(serverThread.isAlive());
+    }
+
+    private static void testDrain(Server server, int port) throws Exception {
+        Thread serverThread = new Thread(server::serve);
+        serverThread.start();
+
+        Socket idle = new Socket("localhost", port);
+        idle.getOutputStream().write("GET /slow?0 HTTP/1.1\r\n\r\n".getBytes());
+        BufferedReader idleReader = new BufferedReader(new InputStreamReader(idle.getInputStream()));
+        assertEquals("slow", readBody(idleReader));
+
+        Socket slow = new Socket("localhost", port);
+        slow.getOutputStream().write("GET /slow?300 HTTP/1.1\r\n\r\n".getBytes());
+        Thread.sleep(100);
+
+        long start = System.nanoTime();
+        Server.ShutdownResult result = server.shutdown(Duration.ofSeconds(5));
+        assertTrue(System.nanoTime() - start < Duration.ofSeconds(2).toNanos());
+        assertEquals(1, result.getDrained());
+        assertEquals(0, result.getAborted());
+        assertTrue(server.isClosed());
+        assertSame(result, server.shutdown(Duration.ofSeconds(5)));
+
+        BufferedReader slowReader = new BufferedReader(new InputStreamReader(slow.getInputStream()));
+        assertEquals("HTTP/1.1 200 OK", slowReader.readLine());
+        String line;
+        boolean close = false;
+        while(!(line = slowReader.readLine()).isEmpty())
+            close |= line.equalsIgnoreCase("Connection: close");
+        assertTrue(close);
+        assertEquals("slow", slowReader.readLine());
+        assertNull(slowReader.readLine());
+        assertNull(idleReader.readLine()); // idle connection was closed
+        slow.close();
+        idle.close();
+
+        serverThread.join(1000);
+        assertFalse(serverThread.isAlive());
+        try {
+            new Socket("localhost", port).close();
+            fail();
+        } catch (ConnectException ignored) {}
+    }
+
+    private static APIForwarder forwarder() {
+        APIForwarder forwarder = new APIForwarder();
+        forwarder.register("GET", "/slow\\?[0-9]+", request -> {
+            try {
+                Thread.sleep(Long.parseLong(request.getURI().substring(6)));
+            } catch (InterruptedException ignored) {}
+            return new HTTPResponse(200, HTTPCodes.C200, "text/plain", "slow");
+        });
+        return forwarder;
+    }
+
+    private static String readBody(BufferedReader reader) throws IOException {
+        int length = 0;
+        String line;
+        while(!(line = reader.readLine()).isEmpty()) {
+            if(line.toLowerCase().startsWith("content-length:"))
+                length = Integer.parseInt(line.substring(15).trim());
+        }
+        char[] body = new char[length];
+        assertEquals(length, reader.read(body));
+        return new String(body);
+    }
+}
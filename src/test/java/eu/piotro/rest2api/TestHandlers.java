@@ -5,8 +5,14 @@ import eu.piotro.rest2api.http.HTTPCodes;
 import eu.piotro.rest2api.http.HTTPException;
 import eu.piotro.rest2api.http.HTTPRequest;
 import eu.piotro.rest2api.http.HTTPResponse;
+import eu.piotro.rest2api.http.ResponseBody;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class TestHandlers {
     @RESTHandler(method = "GET", URI = "/d1")
@@ -52,4 +58,72 @@ public class TestHandlers {
         throw new HTTPException(499, "499");
     }
 
+    @RESTHandler(method = "GET", URI = "/items/[0-9]+")
+    public HTTPResponse getItem(HTTPRequest r){
+        return new HTTPResponse(200, HTTPCodes.C200, "text/plain", r.getURI().substring("/items/".length()));
+    }
+
+    @RESTHandler(method = "GET", URI = "/users/{id:int}/posts/{slug}")
+    public HTTPResponse getUserPost(HTTPRequest r){
+        return new HTTPResponse(200, HTTPCodes.C200, "text/plain", r.getPathInt("id") + 1 + " " + r.getPathParameter("slug") + " " + r.getQueryParameter("q"));
+    }
+
+    @RESTHandler(method = "GET", URI = "/items/new")
+    public HTTPResponse getNewItem(HTTPRequest r){
+        return new HTTPResponse(200, HTTPCodes.C200, "text/plain", "new");
+    }
+
+    @RESTHandler(method = "DELETE", URI = "/items/.*")
+    public HTTPResponse deleteItem(HTTPRequest r){
+        return new HTTPResponse(200, HTTPCodes.C200, "text/plain", "deleted");
+    }
+
+    @RESTHandler(method = "GET", URI = "/stream")
+    public HTTPResponse getStream(HTTPRequest r){
+        return new HTTPResponse(200, HTTPCodes.C200, "application/octet-stream", ResponseBody.of(new ByteArrayInputStream(streamData())));
+    }
+
+    @RESTHandler(method = "GET", URI = "/stream/length")
+    public HTTPResponse getStreamWithLength(HTTPRequest r){
+        return new HTTPResponse(200, HTTPCodes.C200, "application/octet-stream", ResponseBody.of(new ByteArrayInputStream(streamData()), STREAM_SIZE));
+    }
+
+    @RESTHandler(method = "GET", URI = "/stream/file")
+    public HTTPResponse getFile(HTTPRequest r) throws IOException {
+        Path file = Files.createTempFile("rest2api", ".bin");
+        file.toFile().deleteOnExit();
+        Files.write(file, streamData());
+        return new HTTPResponse(200, HTTPCodes.C200, "application/octet-stream", ResponseBody.of(file));
+    }
+
+    @RESTHandler(method = "GET", URI = "/async")
+    public CompletableFuture<HTTPResponse> getAsync(HTTPRequest r){
+        return CompletableFuture.supplyAsync(() -> new HTTPResponse(200, HTTPCodes.C200, "text/plain", "async"),
+                CompletableFuture.delayedExecutor(300, TimeUnit.MILLISECONDS));
+    }
+
+    @RESTHandler(method = "GET", URI = "/async/failed")
+    public CompletableFuture<HTTPResponse> getAsyncFailed(HTTPRequest r){
+        return CompletableFuture.supplyAsync(() -> { throw new IllegalStateException("async failure"); });
+    }
+
+    @RESTHandler(method = "GET", URI = "/async/timeout", timeout = 100)
+    public CompletableFuture<HTTPResponse> getAsyncTimeout(HTTPRequest r){
+        return new CompletableFuture<>();
+    }
+
+    @RESTHandler(method = "GET", URI = "/large")
+    public HTTPResponse getLarge(HTTPRequest r){
+        return new HTTPResponse(200, HTTPCodes.C200, "application/octet-stream", ResponseBody.of(new byte[LARGE_SIZE]));
+    }
+
+    static final int STREAM_SIZE = 300_000;
+    static final int LARGE_SIZE = 32_000_000; // over socket buffers
+
+    static byte[] streamData(){
+        byte[] data = new byte[STREAM_SIZE];
+        for(int i = 0; i < data.length; i++)
+            data[i] = (byte) (i * 31);
+        return data;
+    }
 }
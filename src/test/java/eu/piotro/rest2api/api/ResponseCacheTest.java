@@ -0,0 +1,166 @@
+package eu.piotro.rest2api.api;
+
+import eu.piotro.rest2api.http.*;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ResponseCacheTest {
+
+    @Test
+    public void testHitsAndExpiry() throws Exception {
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        AtomicInteger calls = new AtomicInteger();
+        APIHandler handler = cache.cached(request -> new HTTPResponse(200, HTTPCodes.C200, "text/plain", "call " + calls.incrementAndGet()), 200, "Accept");
+
+        assertEquals("call 1", body(handler.handle(request("GET", "/a", "text/plain"))));
+        assertEquals("call 1", body(handler.handle(request("GET", "/a", "text/plain"))));
+        assertEquals("call 2", body(handler.handle(request("GET", "/a", "application/json"))));
+        assertEquals("call 3", body(handler.handle(request("GET", "/b", "text/plain"))));
+        assertEquals("call 4", body(handler.handle(request("POST", "/a", "text/plain"))));
+        assertEquals(1, cache.getHits());
+
+        Thread.sleep(250);
+        assertEquals("call 5", body(handler.handle(request("GET", "/a", "text/plain"))));
+    }
+
+    @Test
+    public void testNotCacheable() throws Exception {
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        AtomicInteger calls = new AtomicInteger();
+        APIHandler handler = cache.cached(request -> {
+            calls.incrementAndGet();
+            switch (request.getURI()) {
+                case "/404": return new HTTPResponse(404, HTTPCodes.C404, "text/plain", "");
+                case "/private": return new HTTPResponse(200, HTTPCodes.C200, "text/plain", "Cache-Control: private", "");
+                case "/stream": return new HTTPResponse(200, HTTPCodes.C200, "text/plain", "", ResponseBody.of(new ByteArrayInputStream(new byte[1])));
+                case "/large": return new HTTPResponse(200, HTTPCodes.C200, "text/plain", "", ResponseBody.of(new byte[200_000]));
+                default: throw new HTTPException(500, HTTPCodes.C500);
+            }
+        }, 60_000);
+
+        for(String uri : new String[] {"/404", "/private", "/stream", "/large", "/error"}) {
+            for(int i = 0; i < 2; i++) {
+                try {
+                    handler.handle(request("GET", uri, null));
+                } catch (HTTPException ignored) {}
+            }
+        }
+        assertEquals(10, calls.get());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        ResponseCache cache = new ResponseCache(64 * 1024);
+        APIHandler handler = cache.cached(request -> new HTTPResponse(200, HTTPCodes.C200, "text/plain", "", ResponseBody.of(new byte[4000])), 60_000);
+
+        for(int i = 0; i < 100; i++) {
+            handler.handle(request("GET", "/" + i, null));
+            handler.handle(request("GET", "/0", null)); // recently used, never evicted
+            assertTrue(cache.getSize() <= 64 * 1024);
+        }
+        long hits = cache.getHits();
+        handler.handle(request("GET", "/0", null));
+        handler.handle(request("GET", "/1", null));
+        assertEquals(hits + 1, cache.getHits());
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch waiting = new CountDownLatch(1);
+        APIHandler handler = cache.cached(request -> {
+            calls.incrementAndGet();
+            try {
+                waiting.await();
+            } catch (InterruptedException e) {
+                throw new HTTPException(500, HTTPCodes.C500);
+            }
+            return new HTTPResponse(200, HTTPCodes.C200, "text/plain", "shared");
+        }, 60_000);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<HTTPResponse>> responses = new ArrayList<>();
+        for(int i = 0; i < 8; i++)
+            responses.add(executor.submit(() -> handler.handle(request("GET", "/", null))));
+        Thread.sleep(100);
+        waiting.countDown();
+        for(Future<HTTPResponse> response : responses)
+            assertEquals("shared", body(response.get(5, TimeUnit.SECONDS)));
+        executor.shutdown();
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testPrivateNotCoalesced() throws Exception {
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        for(String uri : new String[] {"/private", "/error"}) {
+            AtomicInteger calls = new AtomicInteger();
+            CountDownLatch waiting = new CountDownLatch(1);
+            APIHandler handler = cache.cached(request -> {
+                int call = calls.incrementAndGet();
+                if(call > 1)
+                    return new HTTPResponse(200, HTTPCodes.C200, "text/plain", "Cache-Control: private", "user " + call);
+                try {
+                    waiting.await();
+                } catch (InterruptedException e) {
+                    throw new HTTPException(500, HTTPCodes.C500);
+                }
+                if(uri.equals("/error"))
+                    throw new HTTPException(404, HTTPCodes.C404);
+                return new HTTPResponse(200, HTTPCodes.C200, "text/plain", "Cache-Control: private", "user " + call);
+            }, 60_000);
+
+            Future<HTTPResponse> first = executor.submit(() -> handler.handle(request("GET", uri, null)));
+            Thread.sleep(100); // first request is in handler
+            Future<HTTPResponse> second = executor.submit(() -> handler.handle(request("GET", uri, null)));
+            Thread.sleep(100); // second request waits for first
+            waiting.countDown();
+            if(uri.equals("/private")) {
+                assertEquals("user 1", body(first.get(5, TimeUnit.SECONDS)));
+            } else {
+                try {
+                    first.get(5, TimeUnit.SECONDS);
+                    fail();
+                } catch (ExecutionException e) {
+                    assertEquals(404, ((HTTPException) e.getCause()).getCode());
+                }
+            }
+            assertEquals("user 2", body(second.get(5, TimeUnit.SECONDS))); // waiting request called handler itself
+            assertEquals(2, calls.get());
+        }
+        executor.shutdown();
+        assertEquals(0, cache.getSize());
+    }
+
+    private static String body(HTTPResponse response) {
+        ByteBuffer buffer = response.getResponseBody().buffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static HTTPRequest request(String method, String uri, String accept) throws IOException, HTTPException {
+        String data = method + " " + uri + " HTTP/1.1\r\nHost: localhost\r\n" + (accept == null ? "" : "Accept: " + accept + "\r\n")
+                + (method.equals("POST") ? "Content-Length: 0\r\n" : "") + "\r\n";
+        RequestBuffer buffer = new RequestBuffer(new ByteArrayInputStream(data.getBytes(StandardCharsets.ISO_8859_1)));
+        HTTPRequest request = new HTTPRequest(buffer);
+        while(!request.parse()) {
+            if(buffer.fill() == -1)
+                throw new IOException("End of stream");
+        }
+        return request;
+    }
+}
@@ -0,0 +1,139 @@
+package eu.piotro.rest2api.api;
+
+import eu.piotro.rest2api.http.*;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+public class ResponseCompressorTest {
+    private static final String JSON = "{\"items\": [" + "{\"id\": 1, \"name\": \"item\"}, ".repeat(200) + "{}]}";
+
+    @Test
+    public void testNegotiate() {
+        assertEquals("gzip", ResponseCompressor.negotiate("gzip, deflate, br"));
+        assertEquals("deflate", ResponseCompressor.negotiate("deflate"));
+        assertEquals("deflate", ResponseCompressor.negotiate("gzip;q=0.5, deflate;q=0.8"));
+        assertEquals("gzip", ResponseCompressor.negotiate("*"));
+        assertEquals("deflate", ResponseCompressor.negotiate("gzip;q=0, *"));
+        assertNull(ResponseCompressor.negotiate("br, identity"));
+        assertNull(ResponseCompressor.negotiate("gzip;q=0"));
+    }
+
+    @Test
+    public void testCompress() throws Exception {
+        ResponseCompressor compressor = new ResponseCompressor();
+        HTTPResponse response = new HTTPResponse(200, HTTPCodes.C200, "application/json; charset=utf-8", JSON);
+
+        HTTPResponse gzip = compressor.compress(response, "gzip");
+        assertTrue(gzip.getHeaders().contains("Content-Encoding: gzip"));
+        assertTrue(gzip.getHeaders().contains("Vary: Accept-Encoding"));
+        assertTrue(gzip.getResponseBody().length() < JSON.length() / 4);
+        assertEquals(JSON, decode(new GZIPInputStream(stream(gzip))));
+
+        for(int i = 0; i < 3; i++) { // pooled deflater is reset between responses
+            HTTPResponse deflate = compressor.compress(response, "deflate");
+            assertTrue(deflate.getHeaders().contains("Content-Encoding: deflate"));
+            assertEquals(JSON, decode(new InflaterInputStream(stream(deflate))));
+        }
+
+        HTTPResponse identity = compressor.compress(response, null);
+        assertEquals("Vary: Accept-Encoding", identity.getHeaders());
+        assertEquals(JSON, decode(stream(identity)));
+    }
+
+    @Test
+    public void testNotCompressed() {
+        ResponseCompressor compressor = new ResponseCompressor(1024, 1);
+        HTTPResponse[] responses = {
+                new HTTPResponse(200, HTTPCodes.C200, "application/json", "{}"),
+                new HTTPResponse(200, HTTPCodes.C200, "image/png", JSON),
+                new HTTPResponse(404, HTTPCodes.C404, "text/html", JSON),
+                new HTTPResponse(200, HTTPCodes.C200, "text/plain", "ETag: \"1\"", JSON),
+                new HTTPResponse(200, HTTPCodes.C200, "text/plain", "Content-Encoding: br", JSON),
+                new HTTPResponse(200, HTTPCodes.C200, "text/plain", "", ResponseBody.of(new ByteArrayInputStream(JSON.getBytes())))
+        };
+        for(HTTPResponse response : responses)
+            assertSame(response, compressor.compress(response, "gzip"));
+
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        HTTPResponse incompressible = compressor.compress(new HTTPResponse(200, HTTPCodes.C200, "text/plain", "", ResponseBody.of(random)), "gzip");
+        assertFalse(incompressible.getHeaders().contains("Content-Encoding"));
+        assertEquals(random.length, incompressible.getResponseBody().length());
+    }
+
+    @Test
+    public void testCached() throws Exception {
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        cache.setCompressor(new ResponseCompressor());
+        AtomicInteger calls = new AtomicInteger();
+        APIHandler handler = cache.cached(request -> {
+            calls.incrementAndGet();
+            return new HTTPResponse(200, HTTPCodes.C200, "application/json", JSON);
+        }, 60_000);
+
+        HTTPResponse first = handler.handle(request("gzip"));
+        HTTPResponse second = handler.handle(request("gzip"));
+        assertEquals(1, calls.get());
+        assertTrue(second.getHeaders().contains("Content-Encoding: gzip"));
+        assertSame(first.getResponseBody().buffer().array(), second.getResponseBody().buffer().array()); // compressed once
+        assertEquals(JSON, decode(new GZIPInputStream(stream(second))));
+
+        HTTPResponse identity = handler.handle(request(null));
+        assertFalse(identity.getHeaders().contains("Content-Encoding"));
+        assertEquals(JSON, decode(stream(identity)));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testAsyncFailure() throws Exception {
+        APIForwarder forwarder = new APIForwarder();
+        forwarder.setCompressor(new ResponseCompressor() {
+            @Override
+            public HTTPResponse compress(HTTPResponse response, String encoding) {
+                throw new IllegalStateException("compression failed");
+            }
+        });
+        forwarder.registerAsync("GET", "/", request -> CompletableFuture.completedFuture(new HTTPResponse(200, HTTPCodes.C200, "text/plain", JSON)), 0);
+        try {
+            forwarder.forwardAsync(request("gzip")).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(500, ((HTTPException) e.getCause()).getCode());
+        }
+    }
+
+    private static InputStream stream(HTTPResponse response) {
+        ByteBuffer buffer = response.getResponseBody().buffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new ByteArrayInputStream(bytes);
+    }
+
+    private static String decode(InputStream in) throws IOException {
+        return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    private static HTTPRequest request(String acceptEncoding) throws IOException, HTTPException {
+        String data = "GET / HTTP/1.1\r\nHost: localhost\r\n" + (acceptEncoding == null ? "" : "Accept-Encoding: " + acceptEncoding + "\r\n") + "\r\n";
+        RequestBuffer buffer = new RequestBuffer(new ByteArrayInputStream(data.getBytes(StandardCharsets.ISO_8859_1)));
+        HTTPRequest request = new HTTPRequest(buffer);
+        while(!request.parse()) {
+            if(buffer.fill() == -1)
+                throw new IOException("End of stream");
+        }
+        return request;
+    }
+}
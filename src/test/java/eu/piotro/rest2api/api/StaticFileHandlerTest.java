@@ -0,0 +1,160 @@
+package eu.piotro.rest2api.api;
+
+import eu.piotro.rest2api.http.*;
+import eu.piotro.rest2api.tcp.Server;
+import org.junit.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class StaticFileHandlerTest {
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        root = Files.createTempDirectory("rest2api");
+        large = new byte[100_000];
+        for(int i = 0; i < large.length; i++)
+            large[i] = (byte) i;
+        Files.write(root.resolve("large.bin"), large);
+        Files.write(root.resolve("small.txt"), "0123456789".getBytes(StandardCharsets.US_ASCII));
+        Files.createDirectory(root.resolve("dir"));
+        Files.write(root.resolve("dir").resolve("index.html"), "<html></html>".getBytes(StandardCharsets.US_ASCII));
+        handler = new StaticFileHandler("/files", root);
+    }
+
+    @Test
+    public void testServeFiles() throws Exception {
+        HTTPResponse response = get("/files/small.txt");
+        assertEquals(200, response.getCode());
+        assertEquals("text/plain", response.getType());
+        assertEquals("0123456789", new String(read(response.getResponseBody()), StandardCharsets.US_ASCII));
+        assertNotNull(response.getResponseBody().buffer()); // small file is served from mapped cache
+
+        response = get("/files/large.bin");
+        assertNull(response.getResponseBody().buffer());
+        assertTrue(response.getResponseBody().isFileRegion());
+        assertArrayEquals(large, read(response.getResponseBody()));
+
+        assertEquals("<html></html>", new String(read(get("/files/dir/").getResponseBody()), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testNotFound() throws Exception {
+        assertError("/files/missing", 404);
+        assertError("/files/../../etc/passwd", 404);
+        assertError("/files/%2e%2e/etc/passwd", 404);
+    }
+
+    @Test
+    public void testConditionalRequests() throws Exception {
+        HTTPResponse response = get("/files/small.txt");
+        String etag = header(response, "ETag");
+        String lastModified = header(response, "Last-Modified");
+        assertNotNull(etag);
+
+        assertEquals(304, get("/files/small.txt", "If-None-Match: " + etag).getCode());
+        assertEquals(200, get("/files/small.txt", "If-None-Match: \"other\"").getCode());
+        assertEquals(304, get("/files/small.txt", "If-Modified-Since: " + lastModified).getCode());
+        assertEquals(200, get("/files/small.txt", "If-Modified-Since: Thu, 01 Jan 1970 00:00:00 GMT").getCode());
+    }
+
+    @Test
+    public void testNotModifiedHead() throws Exception {
+        String etag = header(get("/files/small.txt"), "ETag");
+        APIForwarder forwarder = new APIForwarder();
+        forwarder.registerStaticFiles("/files", root);
+        for(Server.Engine engine : Server.Engine.values()) {
+            try (Server server = new Server.Builder(1249, forwarder).engine(engine).build(); Socket socket = new Socket()) {
+                server.start();
+                socket.connect(new InetSocketAddress("localhost", 1249));
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write(("GET /files/small.txt HTTP/1.1\r\nIf-None-Match: " + etag + "\r\nConnection: close\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                String head = new String(socket.getInputStream().readAllBytes(), StandardCharsets.US_ASCII);
+                assertTrue(head, head.startsWith("HTTP/1.1 304 "));
+                assertTrue(head, head.endsWith("\r\n\r\n"));
+                assertFalse(head, head.contains("Content-Length"));
+                assertFalse(head, head.contains("Transfer-Encoding"));
+            }
+        }
+    }
+
+    @Test
+    public void testRanges() throws Exception {
+        HTTPResponse response = get("/files/small.txt", "Range: bytes=2-4");
+        assertEquals(206, response.getCode());
+        assertEquals("bytes 2-4/10", header(response, "Content-Range"));
+        assertEquals("234", new String(read(response.getResponseBody()), StandardCharsets.US_ASCII));
+
+        assertEquals("789", new String(read(get("/files/small.txt", "Range: bytes=-3").getResponseBody()), StandardCharsets.US_ASCII));
+        assertEquals("89", new String(read(get("/files/small.txt", "Range: bytes=8-").getResponseBody()), StandardCharsets.US_ASCII));
+
+        response = get("/files/large.bin", "Range: bytes=50000-50009");
+        assertEquals(10, response.getResponseBody().length());
+        assertArrayEquals(Arrays.copyOfRange(large, 50000, 50010), read(response.getResponseBody()));
+
+        assertEquals(200, get("/files/small.txt", "Range: bytes=0-1,4-5").getCode());
+        assertEquals(200, get("/files/small.txt", "Range: bytes=2-4", "If-Range: \"other\"").getCode());
+        try {
+            get("/files/small.txt", "Range: bytes=20-30");
+            fail();
+        } catch (HTTPException e) {
+            assertEquals(416, e.getCode());
+            assertEquals("Content-Range: bytes */10", e.getHeaders());
+        }
+    }
+
+    private static void assertError(String uri, int code) throws IOException {
+        try {
+            get(uri);
+            fail("Expected " + code + " for " + uri);
+        } catch (HTTPException e) {
+            assertEquals(code, e.getCode());
+        }
+    }
+
+    private static HTTPResponse get(String uri, String... headers) throws IOException, HTTPException {
+        StringBuilder data = new StringBuilder("GET " + uri + " HTTP/1.1\r\n");
+        for(String header : headers)
+            data.append(header).append("\r\n");
+        data.append("\r\n");
+        RequestBuffer buffer = new RequestBuffer(new ByteArrayInputStream(data.toString().getBytes(StandardCharsets.UTF_8)));
+        HTTPRequest request = new HTTPRequest(buffer);
+        while(!request.parse())
+            buffer.fill();
+        return handler.handle(request);
+    }
+
+    private static String header(HTTPResponse response, String name){
+        for(String line : response.getHeaders().split("\r\n")) {
+            if(line.startsWith(name + ": "))
+                return line.substring(name.length() + 2);
+        }
+        return null;
+    }
+
+    private static byte[] read(ResponseBody body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while(body.read(buffer) != -1) {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        body.close();
+        return out.toByteArray();
+    }
+
+    private static Path root;
+    private static byte[] large;
+    private static StaticFileHandler handler;
+}
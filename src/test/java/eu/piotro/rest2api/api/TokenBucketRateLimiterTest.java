@@ -0,0 +1,93 @@
+package eu.piotro.rest2api.api;
+
+import eu.piotro.rest2api.http.*;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketRateLimiterTest {
+
+    @Test
+    public void testBurstAndRefill() throws Exception {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(20, 5, 100);
+        for(int i = 0; i < 5; i++)
+            assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b")); // keys are independent
+
+        Thread.sleep(120); // at least two permits refilled
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+    }
+
+    @Test
+    public void testMaxKeysAndEviction() throws Exception {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(10, 1, 2);
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+        assertTrue(limiter.tryAcquire("c")); // untracked, limited by shared overflow bucket
+        assertFalse(limiter.tryAcquire("c"));
+        assertFalse(limiter.tryAcquire("d"));
+        assertEquals(2, limiter.size());
+
+        Thread.sleep(1100); // buckets refilled and sweep is due
+        assertTrue(limiter.tryAcquire("c"));
+        assertEquals(1, limiter.size());
+        assertFalse(limiter.tryAcquire("c"));
+    }
+
+    @Test
+    public void testConcurrentAcquire() throws Exception {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(0.001, 1000, 100);
+        AtomicInteger allowed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for(int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for(int i = 0; i < 1000; i++) {
+                    if(limiter.tryAcquire("key"))
+                        allowed.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for(Thread thread : threads)
+            thread.join();
+        assertEquals(1000, allowed.get());
+    }
+
+    @Test
+    public void testRouteLimit() throws Exception {
+        APIForwarder forwarder = new APIForwarder();
+        forwarder.register("GET", "/limited", request -> new HTTPResponse(200, HTTPCodes.C200, "text/plain", "OK"), new TokenBucketRateLimiter(0.001, 2, 100));
+        assertEquals(200, forwarder.forward(get("/limited", "10.0.0.1")).getCode());
+        assertEquals(200, forwarder.forward(get("/limited", "10.0.0.1")).getCode());
+        try {
+            forwarder.forward(get("/limited", "10.0.0.1"));
+            fail();
+        } catch (HTTPException e) {
+            assertEquals(429, e.getCode());
+        }
+        assertEquals(200, forwarder.forward(get("/limited", "10.0.0.2")).getCode());
+    }
+
+    private static HTTPRequest get(String uri, String address) throws Exception {
+        byte[] data = ("GET " + uri + " HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        RequestBuffer buffer = new RequestBuffer(new ByteArrayInputStream(data));
+        HTTPRequest request = new HTTPRequest(buffer, address, 1024);
+        while(!request.parse())
+            buffer.fill();
+        return request;
+    }
+}
@@ -0,0 +1,170 @@
+package eu.piotro.rest2api.api.annotations;
+
+import eu.piotro.rest2api.api.APIForwarder;
+import eu.piotro.rest2api.api.APIHandler;
+import eu.piotro.rest2api.api.AsyncAPIHandler;
+import eu.piotro.rest2api.http.*;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class AnnotationsMagicTest {
+
+    public static class StaticHandlers {
+        @RESTHandler(method = "GET", URI = "/static")
+        public static HTTPResponse getStatic(HTTPRequest r) {
+            return new HTTPResponse(200, HTTPCodes.C200, "text/plain", "static");
+        }
+    }
+
+    public static class LoadedHandlers {
+        @RESTHandler(method = "GET", URI = "/loaded")
+        public static HTTPResponse getLoaded(HTTPRequest r) {
+            return new HTTPResponse(200, HTTPCodes.C200, "text/plain", LoadedHandlers.class.getClassLoader().getClass().getSimpleName());
+        }
+
+        public HTTPResponse getInstance(HTTPRequest r) {
+            return new HTTPResponse(200, HTTPCodes.C200, "text/plain", getClass().getClassLoader().getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Defines {@link LoadedHandlers} again, so it is not visible from class loader of library
+     */
+    private static class ChildLoader extends ClassLoader {
+        ChildLoader() {
+            super(AnnotationsMagicTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if(!name.equals(LoadedHandlers.class.getName()))
+                return super.loadClass(name, resolve);
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loaded = findLoadedClass(name);
+                if(loaded != null)
+                    return loaded;
+                try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                    byte[] bytes = in.readAllBytes();
+                    return defineClass(name, bytes, 0, bytes.length);
+                } catch (IOException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+            }
+        }
+    }
+
+    public static class Handlers {
+        @RESTHandler(method = "GET", URI = "/instance")
+        public HTTPResponse getInstance(HTTPRequest r) {
+            return new HTTPResponse(200, HTTPCodes.C200, "text/plain", name);
+        }
+
+        @RESTHandler(method = "GET", URI = "/404")
+        public HTTPResponse getNotFound(HTTPRequest r) throws HTTPException {
+            throw new HTTPException(404, HTTPCodes.C404);
+        }
+
+        @RESTHandler(method = "GET", URI = "/checked")
+        public HTTPResponse getChecked(HTTPRequest r) throws IOException {
+            throw new IOException();
+        }
+
+        @RESTHandler(method = "GET", URI = "/unchecked")
+        public HTTPResponse getUnchecked(HTTPRequest r) {
+            throw new IllegalStateException();
+        }
+
+        @RESTHandler(method = "GET", URI = "/async", timeout = 0)
+        public CompletableFuture<HTTPResponse> getAsync(HTTPRequest r) {
+            return CompletableFuture.completedFuture(new HTTPResponse(200, HTTPCodes.C200, "text/plain", name));
+        }
+
+        @RESTHandler(method = "GET", URI = "/async/failed")
+        public CompletableFuture<HTTPResponse> getAsyncFailed(HTTPRequest r) {
+            return CompletableFuture.failedFuture(new IllegalStateException());
+        }
+
+        @RESTHandler(method = "GET", URI = "/async/timeout", timeout = 50)
+        public CompletableFuture<HTTPResponse> getAsyncTimeout(HTTPRequest r) {
+            return new CompletableFuture<>();
+        }
+
+        private final String name = "instance";
+    }
+
+    @Test
+    public void testBind() throws Exception {
+        APIHandler handler = AnnotationsMagic.bind(Handlers.class.getMethod("getInstance", HTTPRequest.class), new Handlers());
+        assertEquals("instance", handler.handle(get("/instance")).getBody());
+        handler = AnnotationsMagic.bind(StaticHandlers.class.getMethod("getStatic", HTTPRequest.class), null);
+        assertEquals("static", handler.handle(get("/static")).getBody());
+        handler = AnnotationsMagic.bind(Handlers.class.getMethod("getUnchecked", HTTPRequest.class), new Handlers());
+        try {
+            handler.handle(get("/unchecked"));
+            fail();
+        } catch (IllegalStateException ignored) {}
+    }
+
+    @Test
+    public void testErrorMapping() throws Exception {
+        APIForwarder forwarder = new APIForwarder();
+        forwarder.registerClassStatic(StaticHandlers.class);
+        forwarder.registerClass(new Handlers());
+        assertEquals("static", forwarder.forward(get("/static")).getBody());
+        assertEquals("instance", forwarder.forward(get("/instance")).getBody());
+        assertEquals(404, error(forwarder, "/404"));
+        assertEquals(500, error(forwarder, "/checked"));
+        assertEquals(500, error(forwarder, "/unchecked"));
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        AsyncAPIHandler handler = AnnotationsMagic.bindAsync(Handlers.class.getMethod("getAsync", HTTPRequest.class), new Handlers());
+        assertEquals("instance", handler.handleAsync(get("/async")).get().getBody());
+
+        APIForwarder forwarder = new APIForwarder();
+        forwarder.registerClass(new Handlers());
+        assertEquals("instance", forwarder.forwardAsync(get("/async")).get().getBody());
+        assertEquals("instance", forwarder.forward(get("/async")).getBody());
+        assertTrue(forwarder.forwardAsync(get("/instance")).isDone());
+        assertEquals(500, error(forwarder, "/async/failed"));
+        assertEquals(504, error(forwarder, "/async/timeout"));
+    }
+
+    @Test
+    public void testChildClassLoader() throws Exception {
+        Class<?> clazz = new ChildLoader().loadClass(LoadedHandlers.class.getName());
+        assertNotSame(LoadedHandlers.class, clazz);
+        APIForwarder forwarder = new APIForwarder();
+        forwarder.registerClassStatic(clazz);
+        assertEquals("ChildLoader", forwarder.forward(get("/loaded")).getBody());
+        APIHandler handler = AnnotationsMagic.bind(clazz.getMethod("getInstance", HTTPRequest.class), clazz.getConstructor().newInstance());
+        assertEquals("ChildLoader", handler.handle(get("/loaded")).getBody());
+    }
+
+    private static int error(APIForwarder forwarder, String uri) throws Exception {
+        try {
+            forwarder.forward(get(uri));
+            fail();
+            return 0;
+        } catch (HTTPException e) {
+            return e.getCode();
+        }
+    }
+
+    private static HTTPRequest get(String uri) throws Exception {
+        byte[] data = ("GET " + uri + " HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        RequestBuffer buffer = new RequestBuffer(new ByteArrayInputStream(data));
+        HTTPRequest request = new HTTPRequest(buffer);
+        while(!request.parse())
+            buffer.fill();
+        return request;
+    }
+}
@@ -0,0 +1,299 @@
+package eu.piotro.rest2api.http;
+
+import eu.piotro.rest2api.api.APIForwarder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class HTTPRequestTest {
+
+    @Test
+    public void testParse() throws Exception {
+        HTTPRequest request = read("POST /relay?x=1 HTTP/1.1\r\nHost: localhost\r\ncontent-length: 7\r\nX-Test:  a:b \r\n\r\n\u017c\u00f3\u0142w");
+        assertEquals("POST", request.getMethod());
+        assertEquals("/relay?x=1", request.getURI());
+        assertEquals("localhost", request.getHeader("host"));
+        assertEquals("a:b", request.getHeaders().get("X-Test"));
+        assertEquals("\u017c\u00f3\u0142w", request.getBody());
+    }
+
+    @Test
+    public void testIncrementalParse() throws Exception {
+        byte[] data = "GET /a HTTP/1.1\r\nHost: x\r\n\r\nGET /b HTTP/1.1\n\n".getBytes(StandardCharsets.ISO_8859_1);
+        // one byte per read
+        RequestBuffer buffer = new RequestBuffer(new InputStream() {
+            int pos = 0;
+            @Override
+            public int read() {
+                return pos < data.length ? data[pos++] : -1;
+            }
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if(pos >= data.length)
+                    return -1;
+                b[off] = data[pos++];
+                return 1;
+            }
+        });
+
+        HTTPRequest first = new HTTPRequest(buffer);
+        int reads = 0;
+        while(!first.parse()) {
+            buffer.fill();
+            reads++;
+        }
+        assertTrue(reads > 10);
+        assertEquals("/a", first.getURI());
+        first.release();
+
+        HTTPRequest second = new HTTPRequest(buffer);
+        while(!second.parse())
+            assertNotEquals(-1, buffer.fill());
+        assertEquals("/b", second.getURI());
+        assertEquals("", second.getBody());
+    }
+
+    @Test
+    public void testReleasedDataIsNotAccessible() throws Exception {
+        HTTPRequest request = read("GET / HTTP/1.1\r\n\r\n");
+        request.getURI();
+        request.release();
+        assertEquals("/", request.getURI());
+        try {
+            request.getBody();
+            fail();
+        } catch (IllegalStateException ignored) {}
+    }
+
+    @Test
+    public void testChunkedBody() throws Exception {
+        HTTPRequest request = read("POST /relay HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                "5\r\nhello\r\n1;ext=1\r\n \r\n5\r\nworld\r\n0\r\nTrailer: x\r\n\r\nGET / HTTP/1.1\r\n\r\n");
+        assertEquals(-1, request.getContentLength());
+        assertEquals("hello world", request.getBody());
+        assertEquals("hello world", new String(request.getBodyStream().readAllBytes(), StandardCharsets.US_ASCII));
+        assertEquals("hello", read("POST / HTTP/1.1\r\nContent-Length: 5\r\ncontent-length: 5\r\n\r\nhello").getBody()); // repeated equal length
+        assertEquals("ab", read("POST / HTTP/1.1\r\nTransfer-Encoding: , Chunked \r\n\r\n2\r\nab\r\n0\r\n\r\n").getBody());
+    }
+
+    @Test
+    public void testBodyStream() throws Exception {
+        byte[] body = new byte[200_000];
+        for(int i = 0; i < body.length; i++)
+            body[i] = (byte) i;
+        for(boolean chunked : new boolean[]{false, true}) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            data.write(("POST /upload HTTP/1.1\r\n" + (chunked ? "Transfer-Encoding: chunked" : "Content-Length: " + body.length) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            if(chunked) {
+                for(int off = 0; off < body.length; off += 30_000) {
+                    int len = Math.min(30_000, body.length - off);
+                    data.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                    data.write(body, off, len);
+                    data.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+                }
+                data.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            } else {
+                data.write(body);
+            }
+            data.write("GET /next HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+
+            RequestBuffer buffer = new RequestBuffer(new ByteArrayInputStream(data.toByteArray()));
+            HTTPRequest request = new HTTPRequest(buffer);
+            request.read();
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            InputStream in = request.getBodyStream();
+            byte[] part = new byte[777];
+            int len;
+            while((len = in.read(part)) != -1)
+                received.write(part, 0, len);
+            assertArrayEquals(body, received.toByteArray());
+            assertTrue("Body was buffered", buffer.array().length < body.length);
+            try {
+                request.getBody();
+                fail();
+            } catch (IllegalStateException ignored) {}
+            request.release();
+
+            HTTPRequest next = new HTTPRequest(buffer);
+            next.read();
+            assertEquals("/next", next.getURI());
+        }
+    }
+
+    @Test
+    public void testSkipBody() throws Exception {
+        String data = "POST /a HTTP/1.1\r\nContent-Length: 100000\r\n\r\n" + "a".repeat(100000) + "GET /next HTTP/1.1\r\n\r\n";
+        RequestBuffer buffer = new RequestBuffer(new ByteArrayInputStream(data.getBytes(StandardCharsets.US_ASCII)));
+        HTTPRequest request = new HTTPRequest(buffer);
+        request.read();
+        request.skipBody();
+        request.release();
+        HTTPRequest next = new HTTPRequest(buffer);
+        next.read();
+        assertEquals("/next", next.getURI());
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        assertError("badrequest\n\n", 400);
+        assertError(" GET / HTTP/1.1\n\n", 400);
+        assertError("GET / HTTP/2.0\n\n", 505);
+        assertError("FOO / HTTP/1.1\n\n", 400);
+        assertError("GET / HTTP/1.1\nbadheader\n\n", 400);
+        assertError("POST / HTTP/1.1\n\n", 411);
+        assertError("POST / HTTP/1.1\nContent-Length: x\n\n", 400);
+        assertError("POST / HTTP/1.1\nContent-Length: 999999999999\n\n", 413);
+        assertError("GET / HTTP/1.1\nX: " + "a".repeat(20000) + "\n\n", 431);
+        assertError("POST / HTTP/1.1\nTransfer-Encoding: chunked\nContent-Length: 1\n\n", 400);
+        assertError("POST / HTTP/1.1\nContent-Length: 5\nContent-Length: 50\n\nhello", 400);
+        assertError("POST / HTTP/1.1\nContent-Length: 5\nHost: x\nContent-Length: 5\nContent-Length: 6\n\nhello", 400);
+        assertError("POST / HTTP/1.1\nTransfer-Encoding: gzip\n\n", 501);
+        assertError("POST / HTTP/1.1\nTransfer-Encoding: xchunked\n\n", 501);
+        assertError("POST / HTTP/1.1\nTransfer-Encoding: gzip, chunked\n\n", 501);
+        assertError("POST / HTTP/1.1\nTransfer-Encoding: gzip\nTransfer-Encoding: chunked\n\n", 501);
+        assertError("POST / HTTP/1.1\nTransfer-Encoding: chunked, chunked\n\n", 400);
+        assertError("POST / HTTP/1.1\nTransfer-Encoding: \n\n", 400);
+        assertError("POST / HTTP/1.1\nTransfer-Encoding: chunked\n\nzz\n", 400);
+        assertError("POST / HTTP/1.1\nTransfer-Encoding: chunked\n\n1\nab\n0\n\n", 400);
+        assertError("POST / HTTP/1.1\nTransfer-Encoding: chunked\n\nffffffffff\n", 413);
+    }
+
+    @Test
+    public void testHeaders() throws Exception {
+        StringBuilder data = new StringBuilder("GET / HTTP/1.1\r\nhost: a\r\nX-Multi: 1\r\nACCEPT: text/plain\r\nx-multi: 2\r\n");
+        for(int i = 0; i < 40; i++)
+            data.append("X-H").append(i).append(": ").append(i).append("\r\n");
+        data.append("X-MULTI: 3\r\n\r\n");
+        HTTPRequest request = read(data.toString());
+        HTTPHeaders headers = request.getHTTPHeaders();
+        assertEquals(45, headers.size());
+        assertEquals("a", headers.get(HTTPHeaders.HOST));
+        assertEquals("text/plain", headers.get("accept"));
+        assertEquals("3", headers.get("x-Multi"));
+        assertEquals(Arrays.asList("1", "2", "3"), headers.getAll("X-MULTI"));
+        assertEquals("39", request.getHeader("x-h39"));
+        assertFalse(headers.contains("Content-Length"));
+        assertTrue(headers.getAll("X-None").isEmpty());
+        assertEquals("host", headers.getName(0));
+        assertEquals("a", request.getHeaders().get("host"));
+        assertEquals(0, new HTTPRequest(new RequestBuffer(new ByteArrayInputStream(new byte[0]))).getHTTPHeaders().size());
+    }
+
+    @Test
+    public void testPathTemplate() throws Exception {
+        PathTemplate template = PathTemplate.compile("/a/{i:int}/{l:long}/{d:double}/{s}/[a-z]{2}");
+        assertNotNull(template);
+        assertNull(PathTemplate.compile("/a/[0-9]{2}"));
+
+        HTTPRequest request = read("GET /a/-7/9000000000/2.5/x%20y/ab?z=1 HTTP/1.1\r\n\r\n");
+        Matcher matcher = Pattern.compile(template.getRegex()).matcher(request.getURI());
+        assertFalse(matcher.matches()); // matched against path without query
+        matcher.reset("/a/-7/9000000000/2.5/x%20y/ab");
+        assertTrue(matcher.matches());
+        assertTrue(template.bind(request, matcher));
+        assertEquals(-7, request.getPathInt("i"));
+        assertEquals(-7, request.getPathLong("i"));
+        assertEquals(9000000000L, request.getPathLong("l"));
+        assertEquals(2.5, request.getPathDouble("d"), 0);
+        assertEquals("x%20y", request.getPathParameter("s"));
+        try {
+            request.getPathInt("l");
+            fail();
+        } catch (IllegalArgumentException ignored) {}
+        try {
+            request.getPathParameter("missing");
+            fail();
+        } catch (IllegalArgumentException ignored) {}
+
+        request = read("GET /a/3000000000/1/1/x/ab HTTP/1.1\r\n\r\n");
+        matcher = Pattern.compile(template.getRegex()).matcher(request.getURI());
+        assertTrue(matcher.matches());
+        assertFalse(template.bind(request, matcher)); // int overflow
+
+        PathTemplate longs = PathTemplate.compile("/{l:long}");
+        request = read("GET /-9223372036854775808 HTTP/1.1\r\n\r\n");
+        matcher = Pattern.compile(longs.getRegex()).matcher(request.getURI());
+        assertTrue(matcher.matches());
+        assertTrue(longs.bind(request, matcher));
+        assertEquals(Long.MIN_VALUE, request.getPathLong("l"));
+        for(String overflow : new String[]{"9223372036854775808", "-9223372036854775809", "9999999999999999999"}) {
+            request = read("GET /" + overflow + " HTTP/1.1\r\n\r\n");
+            matcher = Pattern.compile(longs.getRegex()).matcher(request.getURI());
+            assertTrue(matcher.matches());
+            assertFalse(overflow, longs.bind(request, matcher));
+        }
+        request = read("GET /9223372036854775807 HTTP/1.1\r\n\r\n");
+        matcher = Pattern.compile(longs.getRegex()).matcher(request.getURI());
+        assertTrue(matcher.matches() && longs.bind(request, matcher));
+        assertEquals(Long.MAX_VALUE, request.getPathLong("l"));
+
+        try {
+            PathTemplate.compile("/{id:uuid}");
+            fail();
+        } catch (IllegalArgumentException ignored) {}
+        try {
+            PathTemplate.compile("/(a|b)/{id}");
+            fail();
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        QueryParameters query = read("GET /q?a=1&b&a=2&&c=x+y%21&%61=3#frag HTTP/1.1\r\n\r\n").getQuery();
+        assertEquals("1", query.get("a"));
+        assertEquals(Arrays.asList("1", "2", "3"), query.getAll("a"));
+        assertEquals("", query.get("b"));
+        assertTrue(query.contains("b"));
+        assertEquals("x y!", query.get("c"));
+        assertNull(query.get("d"));
+        assertEquals(5, query.size());
+        assertEquals(new ArrayList<>(Arrays.asList("a", "b", "c")), new ArrayList<>(query.names()));
+        assertEquals(0, read("GET /q HTTP/1.1\r\n\r\n").getQuery().size());
+    }
+
+    @Test
+    public void testNonASCIIPath() throws Exception {
+        HTTPRequest request = read("GET /\u017c\u00f3\u0142w?q=\u017c HTTP/1.1\r\n\r\n"); // raw UTF-8 bytes
+        assertEquals("/\u017c\u00f3\u0142w?q=\u017c", request.getURI());
+        assertEquals("\u017c", request.getQueryParameter("q"));
+        APIForwarder forwarder = new APIForwarder();
+        forwarder.register("GET", "/\u017c\u00f3\u0142w", r -> new HTTPResponse(200, HTTPCodes.C200, "text/plain", "OK"));
+        assertEquals(200, forwarder.forward(request).getCode());
+
+        byte[] invalid = "GET /a\u00ff HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1); // not UTF-8, bytes are kept
+        RequestBuffer buffer = new RequestBuffer(new ByteArrayInputStream(invalid));
+        request = new HTTPRequest(buffer);
+        while(!request.parse())
+            buffer.fill();
+        assertEquals("/a\u00ff", request.getURI());
+    }
+
+    private static void assertError(String data, int code) throws IOException {
+        try {
+            read(data);
+            fail("Expected " + code + " for " + data);
+        } catch (HTTPException e) {
+            assertEquals(code, e.getCode());
+        }
+    }
+
+    private static HTTPRequest read(String data) throws IOException, HTTPException {
+        RequestBuffer buffer = new RequestBuffer(new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)));
+        HTTPRequest request = new HTTPRequest(buffer);
+        while(!request.parse()) {
+            if(buffer.fill() == -1)
+                throw new IOException("End of stream");
+        }
+        return request;
+    }
+}
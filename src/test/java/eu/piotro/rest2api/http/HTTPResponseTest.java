@@ -0,0 +1,59 @@
+package eu.piotro.rest2api.http;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class HTTPResponseTest {
+    private static final HTTPResponse TEXT = new HTTPResponse(200, HTTPCodes.C200, "text/plain", "\u017c\u00f3\u0142w");
+    private static final HTTPResponse BINARY = new HTTPResponse(200, HTTPCodes.C200, "text/plain", "", ResponseBody.of(new byte[]{1, 2, 3}));
+
+    @Test
+    public void testReusedBody() throws Exception {
+        for(int i = 0; i < 3; i++) { // shared response is sent many times
+            assertEquals("\u017c\u00f3\u0142w", new String(readAll(TEXT.getResponseBody()), StandardCharsets.UTF_8));
+            assertArrayEquals(new byte[]{1, 2, 3}, readAll(BINARY.getResponseBody()));
+        }
+
+        ResponseBody first = TEXT.getResponseBody(); // interleaved sends don't share position
+        ResponseBody second = TEXT.getResponseBody();
+        ByteBuffer part = ByteBuffer.allocate(2);
+        assertEquals(2, first.read(part));
+        assertEquals(7, readAll(second).length);
+        assertEquals(5, readAll(first).length);
+        assertEquals(7, TEXT.getResponseBody().buffer().remaining());
+    }
+
+    @Test
+    public void testStreamToDirectBuffer() throws Exception {
+        byte[] data = new byte[20_000];
+        for(int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        ResponseBody body = ResponseBody.of(new ByteArrayInputStream(data), data.length);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        while(direct.hasRemaining())
+            assertTrue(body.read(direct) > 0);
+        assertEquals(-1, body.read(direct));
+        byte[] read = new byte[data.length];
+        direct.flip().get(read);
+        assertArrayEquals(data, read);
+    }
+
+    private static byte[] readAll(ResponseBody body) throws Exception {
+        ByteBuffer dst = ByteBuffer.allocate(64);
+        ByteBuffer small = ByteBuffer.allocate(2);
+        int len;
+        while((len = body.read(small)) != -1) {
+            assertTrue(len > 0);
+            dst.put(small.flip());
+            small.clear();
+        }
+        byte[] bytes = new byte[dst.position()];
+        dst.flip().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,77 @@
+package eu.piotro.rest2api.metrics;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test
+    public void testHistogramBuckets() {
+        for(long value = 0; value < 1_000_000; value = value * 2 + 3) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(value <= LatencyHistogram.upperBound(index));
+            assertTrue(index == 0 || value > LatencyHistogram.upperBound(index - 1));
+        }
+        assertEquals(LatencyHistogram.index(Long.MAX_VALUE), LatencyHistogram.index(1L << 50));
+    }
+
+    @Test
+    public void testHistogramQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getQuantile(0.5));
+        for(int i = 1; i <= 1000; i++)
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        assertEquals(1000, histogram.getCount());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), histogram.getMax());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(500), histogram.getQuantile(0.5), TimeUnit.MICROSECONDS.toNanos(500) * 0.125);
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(990), histogram.getQuantile(0.99), TimeUnit.MICROSECONDS.toNanos(990) * 0.125);
+        assertEquals(histogram.getMax(), histogram.getQuantile(1));
+    }
+
+    @Test
+    public void testPrometheus() {
+        Metrics metrics = new Metrics();
+        metrics.response(200, TimeUnit.MILLISECONDS.toNanos(3));
+        metrics.response(404, -1);
+        metrics.gauge("test_gauge", "Test gauge", () -> 42);
+        metrics.histogram("test_seconds", "Test", "route", "/a\"b").record(TimeUnit.MILLISECONDS.toNanos(20));
+
+        String text = metrics.toPrometheus();
+        assertTrue(text.contains("# TYPE rest2api_responses_total counter\n"));
+        assertTrue(text.contains("rest2api_responses_total{code=\"2xx\"} 1\n"));
+        assertTrue(text.contains("rest2api_responses_total{code=\"4xx\"} 1\n"));
+        assertTrue(text.contains("rest2api_request_duration_seconds_bucket{le=\"0.0025\"} 0\n"));
+        assertTrue(text.contains("rest2api_request_duration_seconds_bucket{le=\"0.005\"} 1\n"));
+        assertTrue(text.contains("rest2api_request_duration_seconds_count 1\n"));
+        assertTrue(text.contains("test_gauge 42\n"));
+        assertTrue(text.contains("test_seconds_bucket{route=\"/a\\\"b\",le=\"0.025\"} 1\n"));
+        assertTrue(text.contains("test_seconds_bucket{route=\"/a\\\"b\",le=\"+Inf\"} 1\n"));
+
+        try {
+            metrics.counter("test_gauge", "Test");
+            fail();
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.response(200, TimeUnit.MILLISECONDS.toNanos(3));
+        metrics.registerMBean("test");
+
+        ObjectName name = new ObjectName("eu.piotro.rest2api:type=Metrics,name=\"test\"");
+        TabularData counters = (TabularData) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Counters");
+        assertEquals(1L, counters.get(new Object[] {"rest2api_responses_total{code=\"2xx\"}"}).get("value"));
+        TabularData latencies = (TabularData) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Latencies");
+        CompositeData latency = (CompositeData) latencies.get(new Object[] {"rest2api_request_duration_seconds"}).get("value");
+        assertEquals(1L, latency.get("count"));
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    }
+}
@@ -0,0 +1,71 @@
+package eu.piotro.rest2api.tcp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool(16, false);
+        assertEquals(BufferPool.MIN_SIZE, pool.acquire(1).capacity());
+        assertEquals(BufferPool.MIN_SIZE, pool.acquire(BufferPool.MIN_SIZE).capacity());
+        assertEquals(2 * BufferPool.MIN_SIZE, pool.acquire(BufferPool.MIN_SIZE + 1).capacity());
+        assertEquals(BufferPool.MAX_SIZE, pool.acquire(BufferPool.MAX_SIZE).capacity());
+        assertEquals(BufferPool.MAX_SIZE + 1, pool.acquire(BufferPool.MAX_SIZE + 1).capacity());
+        assertTrue(pool.acquireDirect(100).isDirect());
+        assertTrue(pool.acquire(100).hasArray());
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        BufferPool pool = new BufferPool(16, false);
+        ByteBuffer first = pool.acquire(5000);
+        first.put((byte) 1);
+        pool.release(first);
+        ByteBuffer second = pool.acquire(6000);
+        assertSame(first, second); // thread cache
+        assertEquals(0, second.position());
+        assertNotSame(second, pool.acquireDirect(6000)); // heap and direct buffers are pooled separately
+
+        ByteBuffer[] shared = new ByteBuffer[3];
+        Thread other = new Thread(() -> {
+            for(int i = 0; i < shared.length; i++)
+                shared[i] = pool.acquire(100);
+            for(ByteBuffer buffer : shared)
+                pool.release(buffer);
+        });
+        other.start();
+        other.join();
+        assertEquals(2, pool.getPooled()); // one is cached by other thread
+        ByteBuffer fromShared = pool.acquire(100);
+        assertTrue(fromShared == shared[1] || fromShared == shared[2]);
+        assertEquals(1, pool.getPooled());
+        assertEquals(5, pool.getAllocated());
+        assertEquals(3, pool.getOutstanding());
+    }
+
+    @Test
+    public void testLeakDetection() {
+        BufferPool pool = new BufferPool(16, true);
+        ByteBuffer buffer = pool.acquire(100);
+        ByteBuffer leaked = pool.acquireDirect(100);
+        pool.release(buffer);
+        try {
+            pool.release(buffer);
+            fail();
+        } catch (IllegalStateException ignored) {}
+        try {
+            pool.release(ByteBuffer.allocate(100));
+            fail();
+        } catch (IllegalStateException ignored) {}
+
+        assertEquals(1, pool.reportLeaks().size());
+        pool.release(leaked);
+        assertTrue(pool.reportLeaks().isEmpty());
+        assertTrue(new BufferPool(16, false).reportLeaks().isEmpty());
+    }
+}
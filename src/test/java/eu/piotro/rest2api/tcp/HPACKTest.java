@@ -0,0 +1,106 @@
+package eu.piotro.rest2api.tcp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HPACKTest {
+
+    @Test
+    public void testDecodeRequests() throws Exception { // RFC 7541 C.4, Huffman coded requests sharing dynamic table
+        HPACK.Decoder decoder = new HPACK.Decoder(4096);
+        assertEquals(List.of(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"),
+                decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+        assertEquals(57, decoder.getTableSize());
+        assertEquals(List.of(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache"),
+                decode(decoder, "828684be5886a8eb10649cbf"));
+        assertEquals(110, decoder.getTableSize());
+        assertEquals(List.of(":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com", "custom-key", "custom-value"),
+                decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+        assertEquals(164, decoder.getTableSize());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        HPACK.Decoder decoder = new HPACK.Decoder(64);
+        // literals with incremental indexing: a: bb (35 bytes) is evicted by c: dd
+        assertEquals(List.of("a", "bb", "c", "dd", "c", "dd"), decode(decoder, "4001610262624001630264 64be".replace(" ", "")));
+        assertEquals(35, decoder.getTableSize());
+        try {
+            decode(decoder, "bf");
+            fail();
+        } catch (HPACK.CompressionException ignored) {}
+        decode(decoder, "20"); // table size update to 0
+        assertEquals(0, decoder.getTableSize());
+        try {
+            decode(decoder, "8220");
+            fail(); // size update after header field
+        } catch (HPACK.CompressionException ignored) {}
+    }
+
+    @Test
+    public void testInvalid() {
+        String[] blocks = {"80", "0084ffffffff", "00027878", "0001", "ff8080808008", "008161 00".replace(" ", "")};
+        // index 0, EOS in string, truncated string, truncated string, integer overflow, padding of zeros
+        for(String block : blocks) {
+            try {
+                decode(new HPACK.Decoder(4096), block);
+                fail(block);
+            } catch (HPACK.CompressionException ignored) {}
+        }
+    }
+
+    @Test
+    public void testEncode() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HPACK.encodeStatus(out, 200);
+        HPACK.encodeStatus(out, 418);
+        HPACK.encode(out, "content-type", "application/json");
+        HPACK.encode(out, "x-custom", "www.example.com");
+        HPACK.encode(out, "etag", "\"}~\"");
+        byte[] block = out.toByteArray();
+        assertEquals((byte) 0x88, block[0]);
+        assertEquals(List.of(":status", "200", ":status", "418", "content-type", "application/json", "x-custom", "www.example.com", "etag", "\"}~\""),
+                decodeBytes(new HPACK.Decoder(4096), block));
+
+        assertEquals("www.example.com", HPACK.huffmanDecode(hex("f1e3c2e5f23a6ba0ab90f4ff"), 0, 12));
+        for(int i = 0; i < 128; i++) { // round trip of ASCII symbols, values are sent in UTF-8
+            out.reset();
+            String value = "" + (char) i + (char) i + "x";
+            HPACK.encode(out, "x", value);
+            assertEquals(List.of("x", value), decodeBytes(new HPACK.Decoder(4096), out.toByteArray()));
+        }
+
+        out.reset();
+        HPACK.integer(out, 0, 5, 1337); // RFC 7541 C.1.2
+        assertArrayEquals(hex("1f9a0a"), out.toByteArray());
+    }
+
+    @Test
+    public void testListSize() throws Exception {
+        List<String> headers = new ArrayList<>();
+        assertFalse(new HPACK.Decoder(4096).decode(hex("828684"), 0, 3, headers, 90));
+        assertEquals(List.of(":method", "GET", ":scheme", "http"), headers);
+    }
+
+    private static List<String> decode(HPACK.Decoder decoder, String block) throws HPACK.CompressionException {
+        return decodeBytes(decoder, hex(block));
+    }
+
+    private static List<String> decodeBytes(HPACK.Decoder decoder, byte[] block) throws HPACK.CompressionException {
+        List<String> headers = new ArrayList<>();
+        assertTrue(decoder.decode(block, 0, block.length, headers, 16 * 1024));
+        return headers;
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for(int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
+}
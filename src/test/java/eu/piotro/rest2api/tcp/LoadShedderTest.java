@@ -0,0 +1,58 @@
+package eu.piotro.rest2api.tcp;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LoadShedderTest {
+
+    @Test
+    public void testControlLaw() {
+        LoadShedder shedder = new LoadShedder(10, 100);
+        long now = 0;
+        assertEquals(LoadShedder.NONE, shedder.onDequeue(millis(5), now));
+        assertEquals(-1, shedder.onDequeue(millis(20), now)); // above target, interval starts
+        assertEquals(-1, shedder.onDequeue(millis(20), now += millis(50)));
+        assertEquals(0, shedder.onDequeue(millis(20), now += millis(60))); // above target for whole interval
+
+        // next drops come after interval / sqrt(count)
+        assertEquals(-1, shedder.onDequeue(millis(20), now += millis(50)));
+        assertEquals(0, shedder.onDequeue(millis(20), now += millis(60)));
+        assertEquals(-1, shedder.onDequeue(millis(20), now += millis(50)));
+        assertEquals(0, shedder.onDequeue(millis(20), now += millis(21)));
+
+        assertEquals(LoadShedder.NONE, shedder.onDequeue(millis(5), now += millis(10))); // queue drained
+        assertEquals(-1, shedder.onDequeue(millis(20), now += millis(10)));
+    }
+
+    @Test
+    public void testRun() {
+        LoadShedder shedder = new LoadShedder(10, 100);
+        AtomicInteger run = new AtomicInteger();
+        AtomicInteger shed = new AtomicInteger();
+        LoadShedder.Sheddable task = new LoadShedder.Sheddable() {
+            @Override
+            public void run() {
+                run.incrementAndGet();
+            }
+
+            @Override
+            public void shed(int maxPriority) {
+                assertEquals(-1, maxPriority);
+                shed.incrementAndGet();
+            }
+        };
+        shedder.run(task, System.nanoTime());
+        shedder.run(task, System.nanoTime() - millis(50));
+        shedder.run(run::incrementAndGet, System.nanoTime() - millis(50)); // not sheddable
+        assertEquals(2, run.get());
+        assertEquals(1, shed.get());
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
@@ -0,0 +1,126 @@
+package eu.piotro.rest2api.tcp;
+
+import org.junit.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+public class ServerExecutorTest {
+
+    @Test
+    public void testStressNoLostWakeups() throws Exception {
+        final int maxThreads = 4;
+        ServerExecutor executor = new ServerExecutor(maxThreads, 1, 1, 1000);
+        final int producers = 8;
+        final int tasksPerProducer = 20000;
+        CountDownLatch done = new CountDownLatch(producers * tasksPerProducer);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        Runnable task = () -> {
+            int now = running.incrementAndGet();
+            maxRunning.accumulateAndGet(now, Math::max);
+            if(ThreadLocalRandom.current().nextInt(100) == 0)
+                Thread.yield();
+            running.decrementAndGet();
+            done.countDown();
+        };
+
+        Thread[] threads = new Thread[producers];
+        for(int p = 0; p < producers; p++){
+            threads[p] = new Thread(() -> {
+                for(int i = 0; i < tasksPerProducer; i++){
+                    while(true) {
+                        try {
+                            executor.execute(task);
+                            break;
+                        } catch (RejectedExecutionException e) {
+                            Thread.yield();
+                        }
+                    }
+                    if(i % 1000 == 0) // let workers go idle, so wake up path is exercised
+                        LockSupport.parkNanos(100_000);
+                }
+            });
+            threads[p].start();
+        }
+        for(Thread t : threads)
+            t.join();
+
+        assertTrue("Tasks were lost", done.await(10, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() <= maxThreads);
+        assertEquals(0, executor.getQueueSize());
+
+        long deadline = System.currentTimeMillis() + 5000; // stack of idle workers has stale entries, but they are not counted
+        while(executor.getIdleWorkerCount() != executor.getWorkerCount() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(executor.getWorkerCount(), executor.getIdleWorkerCount());
+    }
+
+    @Test
+    public void testSparseTasksAreNotLost() throws Exception {
+        ServerExecutor executor = new ServerExecutor(2, 0, 1, 10);
+        for(int i = 0; i < 2000; i++){
+            CountDownLatch done = new CountDownLatch(1);
+            executor.execute(done::countDown);
+            assertTrue("Task " + i + " was lost", done.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testIdleWorkersStop() throws Exception {
+        ServerExecutor executor = new ServerExecutor(8, 2, 1, 100);
+        CountDownLatch started = new CountDownLatch(8);
+        CountDownLatch release = new CountDownLatch(1);
+        for(int i = 0; i < 8; i++){
+            executor.execute(() -> {
+                started.countDown();
+                try { release.await(); } catch (InterruptedException ignored) {}
+            });
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(8, executor.getWorkerCount());
+        release.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while(executor.getWorkerCount() > 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+        assertEquals(2, executor.getWorkerCount());
+
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute(done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailingTaskDoesNotLeakWorker() throws Exception {
+        ServerExecutor executor = new ServerExecutor(1, 1, 1, 10);
+        executor.execute(() -> { throw new IllegalStateException("test"); });
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute(done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, executor.getWorkerCount());
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testQueueLimit() throws Exception {
+        ServerExecutor executor = new ServerExecutor(1, 1, 1, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        executor.execute(() -> {
+            started.countDown();
+            try { release.await(); } catch (InterruptedException ignored) {}
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        try {
+            executor.execute(() -> {});
+            executor.execute(() -> {});
+            executor.execute(() -> {});
+        } finally {
+            release.countDown();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package eu.piotro.rest2api.tcp;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+    @Test
+    public void testExpireAndCancel() {
+        TimingWheel wheel = new TimingWheel(10, 8);
+        long start = System.nanoTime();
+        AtomicInteger expired = new AtomicInteger();
+        wheel.schedule(expired::incrementAndGet, 30);
+        TimingWheel.Timeout cancelled = wheel.schedule(expired::incrementAndGet, 30);
+        wheel.schedule(expired::incrementAndGet, 200); // more than one rotation of wheel
+
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+
+        wheel.expire(start + millis(20));
+        assertEquals(0, expired.get());
+        wheel.expire(start + millis(50));
+        assertEquals(1, expired.get());
+        wheel.expire(start + millis(150)); // same bucket as 200ms timeout, but in earlier rotation
+        assertEquals(1, expired.get());
+        wheel.expire(start + millis(220));
+        assertEquals(2, expired.get());
+    }
+
+    @Test
+    public void testExpiredTimeoutCantBeCancelled() {
+        TimingWheel wheel = new TimingWheel(10, 8);
+        long start = System.nanoTime();
+        TimingWheel.Timeout timeout = wheel.schedule(() -> {}, 10);
+        wheel.expire(start + millis(30));
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void testThreadAndConcurrentSchedule() throws Exception {
+        TimingWheel wheel = new TimingWheel(1, 64);
+        wheel.start("TestTimer");
+        int threads = 4, perThread = 10000;
+        CountDownLatch done = new CountDownLatch(threads * perThread / 2);
+        AtomicInteger cancelledRun = new AtomicInteger();
+        Thread[] producers = new Thread[threads];
+        for(int t = 0; t < threads; t++) {
+            producers[t] = new Thread(() -> {
+                for(int i = 0; i < perThread / 2; i++) {
+                    wheel.schedule(done::countDown, i % 50);
+                    TimingWheel.Timeout timeout = wheel.schedule(cancelledRun::incrementAndGet, 100 + i % 50);
+                    assertTrue(timeout.cancel());
+                }
+            });
+            producers[t].start();
+        }
+        for(Thread producer : producers)
+            producer.join();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        assertEquals(0, cancelledRun.get());
+        wheel.stop();
+    }
+
+    private static long millis(long millis){
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
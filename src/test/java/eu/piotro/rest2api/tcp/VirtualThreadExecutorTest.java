@@ -0,0 +1,86 @@
+package eu.piotro.rest2api.tcp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class VirtualThreadExecutorTest {
+
+    @Before
+    public void checkSupported() {
+        assumeTrue("Virtual threads are not supported by this JVM", VirtualThreadExecutor.isSupported());
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        VirtualThreadExecutor executor = new VirtualThreadExecutor(2, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Runnable task = () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {}
+            running.decrementAndGet();
+            done.countDown();
+        };
+
+        for(int i = 0; i < 3; i++) // two running, one admitted to queue
+            executor.execute(task);
+        awaitCondition(() -> executor.getActiveCount() == 2 && executor.getQueueSize() == 1);
+        try {
+            executor.execute(task);
+            fail();
+        } catch (RejectedExecutionException ignored) {}
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+        awaitCondition(() -> executor.getActiveCount() == 0 && executor.getQueueSize() == 0);
+        executor.execute(done::countDown); // permits are returned
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        VirtualThreadExecutor executor = new VirtualThreadExecutor(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger finished = new AtomicInteger();
+        executor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {}
+            finished.incrementAndGet();
+        });
+        executor.execute(finished::incrementAndGet);
+        awaitCondition(() -> executor.getActiveCount() == 1 && executor.getQueueSize() == 1);
+
+        executor.shutdown();
+        assertTrue(executor.isShutdown());
+        try {
+            executor.execute(finished::incrementAndGet);
+            fail();
+        } catch (RejectedExecutionException ignored) {}
+        release.countDown(); // running task is finished, queued one is discarded
+        awaitCondition(() -> executor.getActiveCount() == 0 && executor.getQueueSize() == 0);
+        Thread.sleep(50);
+        assertEquals(1, finished.get());
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}